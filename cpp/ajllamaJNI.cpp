@@ -2,33 +2,42 @@
 #include <string>
 #include <vector>
 #include <thread>
-#ifdef __ANDROID__
-#include <android/log.h>
-#else
-#include <stdio.h>
+#include <mutex>
+#include <condition_variable>
+#include <memory>
+#include <set>
+#include <map>
+#include <atomic>
+#include <chrono>
+#include <unordered_map>
+#include <cstring>
 #include <stdarg.h>
-#endif
 
 #include "rn-llama.h"
 #include "rn-completion.h"
+#include "rn-slot.h"
+#include "rn-slot-manager.h"
+#include "rn-log.h"
+#include "rn-trace.h"
+#include "rn-thread-budget.h"
 #include "nlohmann/json.hpp"
 #include "jsi/ThreadPool.h" // Added for ThreadPool initialization
 
 // --- Logging ---
+// Messages tagged "ERROR:" / "WARNING:" keep that severity, everything else is debug output
 static void jni_log(const char *format, ...) {
-#ifdef __ANDROID__
-    va_list args;
-    va_start(args, format);
-    __android_log_vprint(ANDROID_LOG_DEBUG, "ajllama_jni", format, args);
-    va_end(args);
-#else
+    int32_t level = rnllama::RN_LOG_DEBUG;
+    if (strncmp(format, "ERROR", 5) == 0) {
+        level = rnllama::RN_LOG_ERROR;
+    } else if (strncmp(format, "WARNING", 7) == 0) {
+        level = rnllama::RN_LOG_WARN;
+    }
+    if (!rnllama::log_enabled(level)) return;
+
     va_list args;
     va_start(args, format);
-    vprintf(format, args);
-    printf("\n");
+    rnllama::log_emit(level, "ajllama_jni", nullptr, format, args);
     va_end(args);
-    fflush(stdout);
-#endif
 }
 
 // --- JNI Helper Structs ---
@@ -36,9 +45,340 @@ static void jni_log(const char *format, ...) {
 // Global state to hold the JavaVM pointer
 static JavaVM* g_jvm = nullptr;
 
-// Data passed to the C++ completion callback
-struct JniCallbackContext {
-    jobject callback_obj; // Global reference to the Java callback
+// Keeps a native thread attached to the JVM for its lifetime instead of per call
+struct JniThreadEnv {
+    JNIEnv* env = nullptr;
+    bool attached = false;
+    ~JniThreadEnv() {
+        if (attached && g_jvm != nullptr) g_jvm->DetachCurrentThread();
+    }
+};
+
+static JNIEnv* jni_thread_env() {
+    thread_local JniThreadEnv tls;
+    if (tls.env != nullptr) return tls.env;
+    if (g_jvm->GetEnv(reinterpret_cast<void**>(&tls.env), JNI_VERSION_1_6) == JNI_OK) {
+        return tls.env;
+    }
+#ifdef __ANDROID__
+    if (g_jvm->AttachCurrentThread(&tls.env, nullptr) != JNI_OK) {
+#else
+    if (g_jvm->AttachCurrentThread(reinterpret_cast<void**>(&tls.env), nullptr) != JNI_OK) {
+#endif
+        tls.env = nullptr;
+        return nullptr;
+    }
+    tls.attached = true;
+    return tls.env;
+}
+
+// --- UTF-8 text to Java ---
+// NewStringUTF expects modified UTF-8: characters outside the BMP (emoji) and bytes of a character
+// split across tokens come out mangled, and CheckJNI aborts on them. Text is converted to UTF-16
+// here instead, malformed sequences becoming U+FFFD.
+
+// Length of the longest prefix of `text` that does not end inside a multi-byte sequence
+static size_t utf8_complete_prefix(const char* text, size_t len) {
+    size_t start = len;
+    // Find the lead byte of the last sequence (at most 3 continuation bytes back)
+    while (start > 0 && len - start < 4 && (static_cast<unsigned char>(text[start - 1]) & 0xC0) == 0x80) start--;
+    if (start == 0) return len;
+    const unsigned char lead = static_cast<unsigned char>(text[start - 1]);
+    const size_t need = lead >= 0xF5 ? 1 : lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+    return len - (start - 1) < need ? start - 1 : len;
+}
+
+static void utf8_to_utf16(const char* text, size_t len, std::u16string& out) {
+    out.clear();
+    out.reserve(len);
+    const unsigned char* p = reinterpret_cast<const unsigned char*>(text);
+    size_t i = 0;
+    while (i < len) {
+        const unsigned char b = p[i];
+        if (b < 0x80) {
+            out.push_back(b);
+            i++;
+            continue;
+        }
+        size_t n;
+        uint32_t cp;
+        unsigned char lower = 0x80, upper = 0xBF;
+        if (b >= 0xC2 && b <= 0xDF) { n = 1; cp = b & 0x1F; }
+        else if (b >= 0xE0 && b <= 0xEF) { n = 2; cp = b & 0x0F; if (b == 0xE0) lower = 0xA0; if (b == 0xED) upper = 0x9F; }
+        else if (b >= 0xF0 && b <= 0xF4) { n = 3; cp = b & 0x07; if (b == 0xF0) lower = 0x90; if (b == 0xF4) upper = 0x8F; }
+        else { out.push_back(0xFFFD); i++; continue; }
+        size_t j = 1;
+        for (; j <= n && i + j < len; j++) {
+            const unsigned char c = p[i + j];
+            if (c < lower || c > upper) break;
+            lower = 0x80;
+            upper = 0xBF;
+            cp = (cp << 6) | (c & 0x3F);
+        }
+        if (j <= n) {
+            // Truncated or malformed: replace what was read and resume at the offending byte
+            out.push_back(0xFFFD);
+            i += j;
+            continue;
+        }
+        if (cp >= 0x10000) {
+            cp -= 0x10000;
+            out.push_back(static_cast<char16_t>(0xD800 + (cp >> 10)));
+            out.push_back(static_cast<char16_t>(0xDC00 + (cp & 0x3FF)));
+        } else {
+            out.push_back(static_cast<char16_t>(cp));
+        }
+        i += n + 1;
+    }
+}
+
+static jstring new_java_string(JNIEnv* env, const char* text, size_t len) {
+    thread_local std::u16string utf16;
+    utf8_to_utf16(text, len, utf16);
+    return env->NewString(reinterpret_cast<const jchar*>(utf16.data()), (jsize) utf16.size());
+}
+
+static jstring new_java_string(JNIEnv* env, const std::string& text) {
+    return new_java_string(env, text.data(), text.size());
+}
+
+// Calls `void name(String)` on a Java object; exceptions are logged and cleared
+static void call_java_string_method(jobject obj, const char* name, const std::string& arg) {
+    JNIEnv* env = jni_thread_env();
+    if (env == nullptr) {
+        jni_log("ERROR: Failed to attach current thread to JVM");
+        return;
+    }
+    jclass clazz = env->GetObjectClass(obj);
+    jmethodID method = env->GetMethodID(clazz, name, "(Ljava/lang/String;)V");
+    env->DeleteLocalRef(clazz);
+    if (method == nullptr) {
+        env->ExceptionClear();
+        jni_log("ERROR: Could not find %s(String) on callback object", name);
+        return;
+    }
+    jstring jarg = new_java_string(env, arg);
+    env->CallVoidMethod(obj, method, jarg);
+    env->DeleteLocalRef(jarg);
+    if (env->ExceptionCheck()) {
+        env->ExceptionDescribe();
+        env->ExceptionClear();
+    }
+}
+
+// Request-level sampling/generation fields shared by the legacy and queued completion paths
+static void apply_completion_params(const nlohmann::json& j, common_params& params) {
+    params.prompt = j.value("prompt", "");
+    params.sampling.temp = j.value("temperature", 0.8f);
+    params.sampling.top_k = j.value("top_k", 40);
+    params.sampling.top_p = j.value("top_p", 0.95f);
+    params.sampling.min_p = j.value("min_p", 0.05f);
+    params.sampling.penalty_repeat = j.value("repeat_penalty", 1.1f);
+    params.sampling.seed = j.value("seed", (uint32_t) LLAMA_DEFAULT_SEED);
+    params.n_predict = j.value("n_predict", -1);
+    params.n_keep = j.value("n_keep", 0);
+    params.antiprompt.clear();
+    if (j.contains("stop") && j["stop"].is_array()) {
+        for (const auto& stop : j["stop"]) {
+            if (stop.is_string()) params.antiprompt.push_back(stop.get<std::string>());
+        }
+    }
+}
+
+// A request queued on the slot manager. The Java callback gets onToken(String) per token and
+// exactly one onComplete(String json), whether the request finishes, fails or is cancelled.
+struct JniSlotRequest {
+    jobject callback_obj;               // Global reference to llama4aj.RequestCallback
+    std::atomic<bool> finished{false};
+    std::string utf8_pending;           // Start of a character split across tokens (processing thread)
+};
+
+static void finish_slot_request(const std::shared_ptr<JniSlotRequest>& req, const nlohmann::json& result) {
+    if (req->finished.exchange(true)) return;
+    call_java_string_method(req->callback_obj, "onComplete", result.dump(-1, ' ', false, nlohmann::json::error_handler_t::replace));
+    JNIEnv* env = jni_thread_env();
+    if (env != nullptr) env->DeleteGlobalRef(req->callback_obj);
+}
+
+// Per-context bookkeeping for completions. Requests run one at a time on a context;
+// each gets an id so it can be cancelled while queued or while decoding, and the
+// context is only freed once no completion thread references it.
+struct JniCompletionRunner {
+    std::mutex run_mutex;               // Held by the thread currently using the context
+    std::mutex state_mutex;             // Guards the fields below
+    std::condition_variable idle_cv;
+    int32_t next_id = 1;
+    int32_t running_id = 0;
+    int32_t cancel_before = 0;          // Every id <= this is cancelled
+    std::set<int32_t> cancelled;
+    int in_flight = 0;
+    bool destroy_pending = false;
+    bool destroy_deferred = false;      // Destroy was requested from a callback; last thread frees
+    std::thread::id running_thread;
+    std::map<int32_t, std::shared_ptr<JniSlotRequest>> slot_requests;  // Queued on the slot manager
+
+    bool is_cancelled(int32_t id) const {
+        return id <= cancel_before || cancelled.count(id) > 0;
+    }
+};
+
+static std::mutex g_runners_mutex;
+static std::unordered_map<rnllama::llama_rn_context*, std::shared_ptr<JniCompletionRunner>> g_runners;
+
+static std::shared_ptr<JniCompletionRunner> get_runner(rnllama::llama_rn_context* ctx) {
+    std::lock_guard<std::mutex> lock(g_runners_mutex);
+    auto it = g_runners.find(ctx);
+    if (it != g_runners.end()) return it->second;
+    auto runner = std::make_shared<JniCompletionRunner>();
+    g_runners[ctx] = runner;
+    return runner;
+}
+
+// The runner of a live context, nullptr if none was created or the context is gone
+static std::shared_ptr<JniCompletionRunner> find_runner(rnllama::llama_rn_context* ctx) {
+    std::lock_guard<std::mutex> lock(g_runners_mutex);
+    auto it = g_runners.find(ctx);
+    return it != g_runners.end() ? it->second : nullptr;
+}
+
+static void destroy_context(rnllama::llama_rn_context* ctx) {
+    std::shared_ptr<JniCompletionRunner> runner;
+    {
+        std::lock_guard<std::mutex> lock(g_runners_mutex);
+        auto it = g_runners.find(ctx);
+        if (it != g_runners.end()) {
+            runner = it->second;
+            g_runners.erase(it);
+        }
+    }
+
+    // Stop the slot loop, then complete whatever it left behind
+    if (ctx->slot_manager) {
+        ctx->slot_manager->stop_processing_loop();
+    }
+    if (runner) {
+        std::map<int32_t, std::shared_ptr<JniSlotRequest>> pending;
+        {
+            std::lock_guard<std::mutex> lock(runner->state_mutex);
+            pending.swap(runner->slot_requests);
+        }
+        for (auto& entry : pending) {
+            finish_slot_request(entry.second, {{"request_id", entry.first}, {"interrupted", true}, {"error", "Context destroyed"}});
+        }
+    }
+
+    delete ctx;
+    jni_log("Context destroyed: %p", ctx);
+}
+
+// Native top-k/top-p pass applied before a Java sampler sees the candidates
+struct NativePrefilter {
+    llama_sampler * chain = nullptr;
+    std::vector<llama_token_data> cur;
+
+    NativePrefilter(const common_params& params, int32_t n_vocab) {
+        chain = llama_sampler_chain_init(llama_sampler_chain_default_params());
+        llama_sampler_chain_add(chain, llama_sampler_init_top_k(params.sampling.top_k));
+        llama_sampler_chain_add(chain, llama_sampler_init_top_p(params.sampling.top_p, 1));
+        cur.resize(n_vocab);
+    }
+
+    ~NativePrefilter() {
+        llama_sampler_free(chain);
+    }
+
+    // Leaves the survivors at the front of cur; returns how many there are
+    int32_t apply(const float* logits) {
+        const llama_token n_vocab = (llama_token) cur.size();
+        for (llama_token id = 0; id < n_vocab; id++) {
+            cur[id] = llama_token_data{id, logits[id], 0.0f};
+        }
+        llama_token_data_array cur_p = {cur.data(), cur.size(), -1, false};
+        llama_sampler_apply(chain, &cur_p);
+        // Samplers shrink the array in place, except a no-op top-k which may leave it unsorted
+        if (cur_p.data != cur.data()) {
+            std::copy(cur_p.data, cur_p.data + cur_p.size, cur.begin());
+        }
+        return (int32_t) cur_p.size;
+    }
+};
+
+// Bridges rn-completion's custom_sampler to a Java llama4aj.Sampler. The logits of the last
+// position (and the native top-k/top-p survivors when prefiltering) are handed to Java as
+// direct ByteBuffers over native memory; the buffers are only recreated when the memory moves.
+struct JniJavaSampler {
+    jobject bridge;                     // Global reference to llama4aj.SamplerBridge
+    jmethodID sample_method = nullptr;
+    int32_t n_vocab = 0;
+    std::unique_ptr<NativePrefilter> prefilter;
+    const float * logits_ptr = nullptr;
+    jobject logits_buf = nullptr;
+    jobject cur_buf = nullptr;
+
+    JniJavaSampler(JNIEnv* env, jobject bridge_obj, const llama_model* model, const common_params& params) {
+        bridge = env->NewGlobalRef(bridge_obj);
+        n_vocab = llama_vocab_n_tokens(llama_model_get_vocab(model));
+
+        jclass clazz = env->GetObjectClass(bridge_obj);
+        sample_method = env->GetMethodID(clazz, "sample", "(Ljava/nio/ByteBuffer;ILjava/nio/ByteBuffer;I)I");
+        jmethodID prefilter_method = env->GetMethodID(clazz, "prefilter", "()Z");
+        env->DeleteLocalRef(clazz);
+        if (sample_method == nullptr || prefilter_method == nullptr) {
+            env->ExceptionClear();
+            jni_log("ERROR: Sampler bridge is missing sample/prefilter");
+            sample_method = nullptr;
+            return;
+        }
+
+        if (env->CallBooleanMethod(bridge_obj, prefilter_method)) {
+            prefilter.reset(new NativePrefilter(params, n_vocab));
+        }
+    }
+
+    ~JniJavaSampler() {
+        JNIEnv* env = jni_thread_env();
+        if (env == nullptr) return;
+        if (logits_buf != nullptr) env->DeleteGlobalRef(logits_buf);
+        if (cur_buf != nullptr) env->DeleteGlobalRef(cur_buf);
+        env->DeleteGlobalRef(bridge);
+    }
+
+    llama_token sample(llama_context* lctx) {
+        JNIEnv* env = jni_thread_env();
+        const float* logits = llama_get_logits_ith(lctx, -1);
+        if (env == nullptr || sample_method == nullptr || logits == nullptr) return -1;
+
+        if (logits != logits_ptr) {
+            if (logits_buf != nullptr) env->DeleteGlobalRef(logits_buf);
+            jobject local = env->NewDirectByteBuffer(const_cast<float*>(logits), (jlong) n_vocab * sizeof(float));
+            logits_buf = env->NewGlobalRef(local);
+            env->DeleteLocalRef(local);
+            logits_ptr = logits;
+        }
+
+        jint n_cur = 0;
+        if (prefilter) {
+            n_cur = prefilter->apply(logits);
+            if (cur_buf == nullptr) {
+                std::vector<llama_token_data>& cur = prefilter->cur;
+                jobject local = env->NewDirectByteBuffer(cur.data(), (jlong) cur.size() * sizeof(llama_token_data));
+                cur_buf = env->NewGlobalRef(local);
+                env->DeleteLocalRef(local);
+            }
+        }
+
+        jint token = env->CallIntMethod(bridge, sample_method, logits_buf, n_vocab, cur_buf, n_cur);
+        if (env->ExceptionCheck()) {
+            env->ExceptionDescribe();
+            env->ExceptionClear();
+            return -1;
+        }
+        if (token >= n_vocab) {
+            jni_log("WARNING: Java sampler returned out-of-range token %d, using native sampling", token);
+            return -1;
+        }
+        return token;
+    }
 };
 
 // --- JNI OnLoad ---
@@ -49,81 +389,201 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* reserved) {
     if (vm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) != JNI_OK) {
         return JNI_ERR;
     }
+    rnllama::log_install_llama_callback();
     jni_log("JNI_OnLoad successful");
     return JNI_VERSION_1_6;
 }
 
-// --- Completion Callback (from C++ to Java) ---
+// --- Native log routing ---
 
-void completion_callback_c(const char* content, bool stop, void* user_data) {
-    JNIEnv* env = nullptr;
-    bool attached = false;
+struct JniLogDrain {
+    JNIEnv* env;
+    jobject bridge;
+    jmethodID log_method;
+};
 
-    // Attach the current C++ thread to the JVM to get a valid JNIEnv
-    if (g_jvm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) != JNI_OK) {
-#ifdef __ANDROID__
-        if (g_jvm->AttachCurrentThread(&env, nullptr) != JNI_OK) {
-#else
-        if (g_jvm->AttachCurrentThread(reinterpret_cast<void**>(&env), nullptr) != JNI_OK) {
-#endif
-            jni_log("ERROR: Failed to attach current thread to JVM");
-            return;
-        }
-        attached = true;
+static void deliver_log_record(const rnllama::llama_rn_log_record& record, void* user_data) {
+    auto* drain = static_cast<JniLogDrain*>(user_data);
+    JNIEnv* env = drain->env;
+    if (env->ExceptionCheck()) return;
+    jstring tag = env->NewStringUTF(record.tag);
+    jstring text = new_java_string(env, record.text, strlen(record.text));
+    if (tag != nullptr && text != nullptr) {
+        env->CallVoidMethod(drain->bridge, drain->log_method, (jint) record.level, tag, text);
     }
+    if (tag != nullptr) env->DeleteLocalRef(tag);
+    if (text != nullptr) env->DeleteLocalRef(text);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_llama4aj_nativeSetLogLevel(JNIEnv */*env*/, jclass /*clazz*/, jint level) {
+    rnllama::log_set_level(level);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_llama4aj_nativeSetLogSink(JNIEnv */*env*/, jclass /*clazz*/, jboolean enabled) {
+    rnllama::log_set_sink(enabled == JNI_TRUE);
+}
 
-    JniCallbackContext* context = static_cast<JniCallbackContext*>(user_data);
-    jobject callback_obj = context->callback_obj;
+// Called in a loop by the Java log thread; blocks up to timeout_ms, returns the records delivered
+extern "C" JNIEXPORT jint JNICALL
+Java_com_llama4aj_nativeDrainLogs(JNIEnv *env, jclass /*clazz*/, jobject bridge_obj_j, jint timeout_ms) {
+    if (bridge_obj_j == nullptr) return 0;
+    jclass bridge_class = env->GetObjectClass(bridge_obj_j);
+    jmethodID log_method = env->GetMethodID(bridge_class, "log", "(ILjava/lang/String;Ljava/lang/String;)V");
+    env->DeleteLocalRef(bridge_class);
+    if (log_method == nullptr) return 0;
 
-    jclass callback_class = env->GetObjectClass(callback_obj);
-    if (callback_class == nullptr) {
-        jni_log("ERROR: Could not find Java callback class");
-        if (attached) g_jvm->DetachCurrentThread();
-        return;
+    JniLogDrain drain = { env, bridge_obj_j, log_method };
+    uint64_t dropped = 0;
+    size_t n = rnllama::log_drain(timeout_ms, deliver_log_record, &drain, &dropped);
+    if (dropped > 0) {
+        rnllama::llama_rn_log_record record;
+        record.level = rnllama::RN_LOG_WARN;
+        snprintf(record.tag, sizeof(record.tag), "ajllama_jni");
+        snprintf(record.text, sizeof(record.text), "%llu log records dropped (ring full)", (unsigned long long) dropped);
+        deliver_log_record(record, &drain);
+        n++;
     }
+    return (jint) n;
+}
+
+// --- Flight Recorder trace (com.ajllama.jfr.Jfr, Java 11+ only) ---
+
+static jclass g_jfr_class = nullptr;
+static jmethodID g_jfr_batch = nullptr;
 
-    jmethodID on_token_method = env->GetMethodID(callback_class, "onTokenReceived", "(Ljava/lang/String;Z)V");
-    if (on_token_method == nullptr) {
-        jni_log("ERROR: Could not find onTokenReceived method on callback object");
-        env->DeleteLocalRef(callback_class);
-        if (attached) g_jvm->DetachCurrentThread();
+static void deliver_batch_trace(const rnllama::llama_rn_batch_trace& trace) {
+    JNIEnv* env = jni_thread_env();
+    if (env == nullptr) return;
+    env->CallStaticVoidMethod(g_jfr_class, g_jfr_batch, (jint) trace.n_tokens, (jint) trace.n_prompt_tokens,
+                              (jint) trace.n_seqs, (jlong) trace.t_decode_us, (jlong) trace.t_sample_us);
+    if (env->ExceptionCheck()) env->ExceptionClear();
+}
+
+// Toggled by the Flight Recorder listener when recordings enable or disable com.ajllama.Batch
+extern "C" JNIEXPORT void JNICALL
+Java_com_ajllama_jfr_Jfr_nativeSetTrace(JNIEnv *env, jclass clazz, jboolean enabled) {
+    if (enabled != JNI_TRUE) {
+        rnllama::trace_set_sink(nullptr);
         return;
     }
+    if (g_jfr_class == nullptr) {
+        g_jfr_batch = env->GetStaticMethodID(clazz, "batch", "(IIIJJ)V");
+        if (g_jfr_batch == nullptr) {
+            env->ExceptionClear();
+            jni_log("ERROR: Could not find Jfr.batch");
+            return;
+        }
+        g_jfr_class = static_cast<jclass>(env->NewGlobalRef(clazz));
+    }
+    rnllama::trace_set_sink(deliver_batch_trace);
+}
+
+// --- Completion Callback (from C++ to Java) ---
+// Token pieces go to Java as raw UTF-8 bytes in a direct buffer owned by the request and reused
+// for every token; llama4aj decodes them incrementally, so a character split across tokens
+// arrives whole and streaming allocates nothing per token.
 
-    // Create a Java string from the C++ string
-    jstring java_content = env->NewStringUTF(content);
-    if (java_content == nullptr) {
-        jni_log("ERROR: Failed to create Java string from token content");
-        env->DeleteLocalRef(callback_class);
-        if (attached) g_jvm->DetachCurrentThread();
+struct JniTokenBytes {
+    jobject callback_obj = nullptr;     // Global reference to llama4aj's TokenBytesBridge
+    jmethodID on_token = nullptr;       // onTokenBytes(ByteBuffer, int, boolean)
+    jobject buffer = nullptr;           // Global reference to a direct ByteBuffer over data
+    std::vector<char> data;
+};
+
+static void deliver_token_bytes(JniTokenBytes& sink, const std::string& content, bool stop) {
+    JNIEnv* env = jni_thread_env();
+    if (env == nullptr) {
+        jni_log("ERROR: Failed to attach current thread to JVM");
         return;
     }
+    if (sink.on_token == nullptr) {
+        jclass clazz = env->GetObjectClass(sink.callback_obj);
+        sink.on_token = env->GetMethodID(clazz, "onTokenBytes", "(Ljava/nio/ByteBuffer;IZ)V");
+        env->DeleteLocalRef(clazz);
+        if (sink.on_token == nullptr) {
+            env->ExceptionClear();
+            jni_log("ERROR: Could not find onTokenBytes on callback object");
+            return;
+        }
+    }
+    if (sink.buffer == nullptr || content.size() > sink.data.size()) {
+        if (sink.buffer != nullptr) env->DeleteGlobalRef(sink.buffer);
+        sink.data.resize(std::max<size_t>(256, content.size() * 2));
+        jobject local = env->NewDirectByteBuffer(sink.data.data(), (jlong) sink.data.size());
+        sink.buffer = local != nullptr ? env->NewGlobalRef(local) : nullptr;
+        if (local != nullptr) env->DeleteLocalRef(local);
+        if (sink.buffer == nullptr) {
+            env->ExceptionClear();
+            jni_log("ERROR: Failed to allocate token buffer");
+            return;
+        }
+    }
+    if (!content.empty()) memcpy(sink.data.data(), content.data(), content.size());
+    env->CallVoidMethod(sink.callback_obj, sink.on_token, sink.buffer, (jint) content.size(), stop ? JNI_TRUE : JNI_FALSE);
+    if (env->ExceptionCheck()) {
+        env->ExceptionDescribe();
+        env->ExceptionClear();
+    }
+}
 
-    // Call the Java method
-    env->CallVoidMethod(callback_obj, on_token_method, java_content, stop);
 
-    // Clean up local references
-    env->DeleteLocalRef(java_content);
-    env->DeleteLocalRef(callback_class);
+// --- Native Method Implementations ---
 
-    // Detach the thread if it was attached
-    if (attached) {
-        g_jvm->DetachCurrentThread();
+// Forwards load phases to LoadProgress.onProgress(String, float) on the loading thread
+struct JniLoadProgress {
+    JNIEnv* env = nullptr;
+    jobject obj = nullptr;
+    jmethodID method = nullptr;
+    bool cancelled = false;
+
+    // Returns false (cancelling the load) if the callback threw
+    bool report(const char* phase_name, float progress) {
+        if (cancelled) return false;
+        if (obj == nullptr || method == nullptr) return true;
+        jstring phase_j = env->NewStringUTF(phase_name);
+        env->CallVoidMethod(obj, method, phase_j, (jfloat) progress);
+        env->DeleteLocalRef(phase_j);
+        if (env->ExceptionCheck()) {
+            env->ExceptionClear();
+            jni_log("WARNING: LoadProgress threw during %s, cancelling load", phase_name);
+            cancelled = true;
+            return false;
+        }
+        return true;
     }
+};
+
+static double elapsed_ms(std::chrono::steady_clock::time_point since) {
+    return std::chrono::duration<double, std::milli>(std::chrono::steady_clock::now() - since).count();
 }
 
+extern "C" JNIEXPORT void JNICALL
+Java_com_llama4aj_nativeSetThreadBudget(JNIEnv */*env*/, jclass /*clazz*/, jint n_threads) {
+    rnllama::thread_budget().set_total(n_threads);
+    ThreadPool::setDefaultThreads(rnllama::thread_budget().helper_threads());
+}
 
-// --- Native Method Implementations ---
+extern "C" JNIEXPORT jstring JNICALL
+Java_com_llama4aj_nativeThreadBudget(JNIEnv *env, jclass /*clazz*/) {
+    return new_java_string(env, rnllama::thread_budget().status_json());
+}
 
 extern "C" JNIEXPORT jlong JNICALL
-Java_com_llama4aj_nativeLoadModel(JNIEnv *env, jclass /*clazz*/, jstring model_path_j, jstring config_json_j) {
+Java_com_llama4aj_nativeLoadModel(JNIEnv *env, jclass /*clazz*/, jstring model_path_j, jstring config_json_j, jobject progress_obj_j) {
     jni_log("=== nativeLoadModel START ===");
-    try {
-        ThreadPool::getInstance().ensureRunning();
-        jni_log("ThreadPool running");
-    } catch (const std::exception& e) {
-        jni_log("ERROR: ThreadPool init failed: %s", e.what());
+    const auto t_start = std::chrono::steady_clock::now();
+    JniLoadProgress load_progress;
+    load_progress.env = env;
+    if (progress_obj_j != nullptr) {
+        load_progress.obj = progress_obj_j;
+        jclass progress_class = env->GetObjectClass(progress_obj_j);
+        load_progress.method = env->GetMethodID(progress_class, "onProgress", "(Ljava/lang/String;F)V");
+        env->DeleteLocalRef(progress_class);
     }
+    // Helper workers start on first use, sized from the thread budget rather than every core
+    ThreadPool::setDefaultThreads(rnllama::thread_budget().helper_threads());
 
     if (model_path_j == nullptr) {
         jni_log("ERROR: model_path is null");
@@ -150,8 +610,12 @@ Java_com_llama4aj_nativeLoadModel(JNIEnv *env, jclass /*clazz*/, jstring model_p
     params.n_gpu_layers = 0;
     params.use_mlock = true;
     params.n_batch = 512;
-    params.cpuparams.n_threads = std::thread::hardware_concurrency();
-    params.cpuparams_batch.n_threads = std::thread::hardware_concurrency();
+    // <= 0: the whole process thread budget
+    params.cpuparams.n_threads = 0;
+    params.cpuparams_batch.n_threads = 0;
+    int32_t prefix_cache_tokens = -1;
+    int32_t max_queued_requests = 0;
+    bool warmup = false;
 
     // Parse JSON config if provided
     if (config_json_c != nullptr) {
@@ -175,19 +639,80 @@ Java_com_llama4aj_nativeLoadModel(JNIEnv *env, jclass /*clazz*/, jstring model_p
                 params.flash_attn_type = config["flash_attn"].get<bool>() ? 
                     LLAMA_FLASH_ATTN_TYPE_ENABLED : LLAMA_FLASH_ATTN_TYPE_DISABLED;
             }
+
+            if (config.contains("cache_type_k")) params.cache_type_k = rnllama::kv_cache_type_from_str(config["cache_type_k"].get<std::string>());
+            if (config.contains("cache_type_v")) params.cache_type_v = rnllama::kv_cache_type_from_str(config["cache_type_v"].get<std::string>());
+            if (config.contains("n_ubatch")) params.n_ubatch = config["n_ubatch"].get<int>();
+            if (config.contains("kv_unified")) params.kv_unified = config["kv_unified"].get<bool>();
+            if (config.contains("n_parallel")) params.n_parallel = config["n_parallel"].get<int>();
+            if (config.contains("ctx_shift")) params.ctx_shift = config["ctx_shift"].get<bool>();
+            if (config.contains("embedding")) params.embedding = config["embedding"].get<bool>();
+            if (config.contains("prefix_cache_tokens")) prefix_cache_tokens = config["prefix_cache_tokens"].get<int>();
+            if (config.contains("warmup")) warmup = config["warmup"].get<bool>();
+            if (config.contains("max_queued_requests")) max_queued_requests = config["max_queued_requests"].get<int>();
+
+            if (params.cache_type_v != LM_GGML_TYPE_F16 && params.cache_type_v != LM_GGML_TYPE_F32 &&
+                params.flash_attn_type == LLAMA_FLASH_ATTN_TYPE_DISABLED) {
+                jni_log("WARNING: quantized V cache (%s) requires flash_attn, enabling it", lm_ggml_type_name(params.cache_type_v));
+                params.flash_attn_type = LLAMA_FLASH_ATTN_TYPE_ENABLED;
+            }
             
-            jni_log("Params updated from JSON: n_gpu_layers=%d, n_ctx=%d", params.n_gpu_layers, params.n_ctx);
+            jni_log("Params updated from JSON: n_gpu_layers=%d, n_ctx=%d, n_parallel=%d, cache_type_k=%s, cache_type_v=%s",
+                    params.n_gpu_layers, params.n_ctx, params.n_parallel,
+                    lm_ggml_type_name(params.cache_type_k), lm_ggml_type_name(params.cache_type_v));
         } catch (const std::exception& e) {
             jni_log("WARNING: Failed to parse config JSON: %s. Using defaults.", e.what());
         }
         env->ReleaseStringUTFChars(config_json_j, config_json_c);
     }
 
+    params.cpuparams.n_threads = rnllama::thread_budget().clamp(params.cpuparams.n_threads);
+    params.cpuparams_batch.n_threads = rnllama::thread_budget().clamp(params.cpuparams_batch.n_threads);
+
+    // Warm the page cache first so the mmap load and the first decodes don't fault weights in from disk
+    double prefetch_ms = 0;
+    if (warmup && params.use_mmap) {
+        const auto t_prefetch = std::chrono::steady_clock::now();
+        const bool prefetched = rnllama::prefetch_model_file(params.model.path, [&load_progress](float progress) {
+            return load_progress.report("prefetch", progress);
+        });
+        prefetch_ms = elapsed_ms(t_prefetch);
+        if (load_progress.cancelled) {
+            env->ReleaseStringUTFChars(model_path_j, model_path_c);
+            return 0;
+        }
+        if (!prefetched) jni_log("WARNING: Model prefetch did not complete");
+    }
+    if (load_progress.method != nullptr) {
+        params.load_progress_callback = [](float progress, void * user_data) {
+            return static_cast<JniLoadProgress*>(user_data)->report("load", progress);
+        };
+        params.load_progress_callback_user_data = &load_progress;
+    }
+
     rnllama::llama_rn_context* ctx = nullptr;
     try {
         ctx = new rnllama::llama_rn_context();
+        ctx->prefix_cache_tokens = prefix_cache_tokens;
+        ctx->max_queued_requests = max_queued_requests;
         jni_log("rnllama context created, loading model...");
-        if (!ctx->loadModel(params)) {
+        const auto t_load = std::chrono::steady_clock::now();
+        const bool loaded = ctx->loadModel(params);
+        const double load_ms = elapsed_ms(t_load);
+        if (loaded) {
+            // The callback points at this frame; don't keep it past the load
+            ctx->params.load_progress_callback = nullptr;
+            ctx->params.load_progress_callback_user_data = nullptr;
+        }
+        if (loaded && warmup) {
+            const auto t_warmup = std::chrono::steady_clock::now();
+            load_progress.report("warmup", 0.0f);
+            ctx->warmup();
+            load_progress.report("warmup", 1.0f);
+            jni_log("Model ready in %.0f ms (prefetch %.0f ms, load %.0f ms, warm-up %.0f ms)",
+                    elapsed_ms(t_start), prefetch_ms, load_ms, elapsed_ms(t_warmup));
+        }
+        if (!loaded) {
             jni_log("ERROR: rn-llama context failed to load model.");
             delete ctx;
             env->ReleaseStringUTFChars(model_path_j, model_path_c);
@@ -208,27 +733,237 @@ Java_com_llama4aj_nativeLoadModel(JNIEnv *env, jclass /*clazz*/, jstring model_p
     return reinterpret_cast<jlong>(ctx);
 }
 
+extern "C" JNIEXPORT jstring JNICALL
+Java_com_llama4aj_nativePlanMemory(JNIEnv *env, jclass /*clazz*/, jstring model_path_j, jstring config_json_j) {
+    if (model_path_j == nullptr) {
+        jni_log("ERROR: model_path is null");
+        return nullptr;
+    }
+
+    const char *model_path_c = env->GetStringUTFChars(model_path_j, nullptr);
+    std::string model_path(model_path_c);
+    env->ReleaseStringUTFChars(model_path_j, model_path_c);
+
+    lm_ggml_type type_k = LM_GGML_TYPE_F16;
+    lm_ggml_type type_v = LM_GGML_TYPE_F16;
+    if (config_json_j != nullptr) {
+        const char *config_json_c = env->GetStringUTFChars(config_json_j, nullptr);
+        try {
+            auto config = nlohmann::json::parse(config_json_c);
+            type_k = rnllama::kv_cache_type_from_str(config.value("cache_type_k", ""));
+            type_v = rnllama::kv_cache_type_from_str(config.value("cache_type_v", ""));
+        } catch (const std::exception& e) {
+            jni_log("WARNING: Failed to parse config JSON: %s. Using defaults.", e.what());
+        }
+        env->ReleaseStringUTFChars(config_json_j, config_json_c);
+    }
+
+    auto hparams = rnllama::model_memory_hparams(model_path, type_k, type_v);
+    if (hparams.empty()) {
+        return nullptr;
+    }
+    return env->NewStringUTF(hparams.dump().c_str());
+}
+
 extern "C" JNIEXPORT void JNICALL
 Java_com_llama4aj_nativeDestroyContext(JNIEnv *env, jclass /*clazz*/, jlong context_ptr) {
     if (context_ptr == 0) return;
     jni_log("Destroying context: %p", (void*)context_ptr);
     rnllama::llama_rn_context* ctx = reinterpret_cast<rnllama::llama_rn_context*>(context_ptr);
-    delete ctx;
+    auto runner = get_runner(ctx);
+
+    std::unique_lock<std::mutex> lock(runner->state_mutex);
+    runner->destroy_pending = true;
+    runner->cancel_before = runner->next_id - 1;
+    if (runner->running_id != 0 && ctx->completion) {
+        ctx->completion->is_interrupted = true;
+    }
+
+    if (runner->in_flight > 0 && runner->running_thread == std::this_thread::get_id()) {
+        // Called from a token callback: the completion thread frees the context when it unwinds
+        jni_log("Destroy requested from completion thread, deferring");
+        runner->destroy_deferred = true;
+        return;
+    }
+
+    if (ctx->slot_manager && ctx->slot_manager->processing_thread.get_id() == std::this_thread::get_id()) {
+        // Called from a slot callback: the slot loop can only be joined once this callback returns.
+        // Direct completions still running must unwind first, as on the synchronous path.
+        lock.unlock();
+        std::thread([ctx, runner]() {
+            {
+                std::unique_lock<std::mutex> wait_lock(runner->state_mutex);
+                runner->idle_cv.wait(wait_lock, [&runner]() { return runner->in_flight == 0; });
+            }
+            destroy_context(ctx);
+        }).detach();
+        return;
+    }
+
+    runner->idle_cv.wait(lock, [&runner]() { return runner->in_flight == 0; });
+    lock.unlock();
+    destroy_context(ctx);
 }
 
-extern "C" JNIEXPORT void JNICALL
-Java_com_llama4aj_nativeCompletion(JNIEnv *env, jclass /*clazz*/, jlong context_ptr, jstring completion_params_json_j, jobject callback_obj_j) {
+// How a completion talks back to its caller; all hooks run on the completion thread.
+// on_token gets exactly one stop == true, whether the request finished, failed or was cancelled.
+struct CompletionHooks {
+    std::function<void(const std::string& content, bool stop)> on_token;
+    // After sampling is set up: may install ctx->completion->custom_sampler
+    std::function<void(rnllama::llama_rn_context* ctx)> on_start;
+    // After the final token: release whatever the hooks hold
+    std::function<void()> on_finish;
+};
+
+// Queues a completion on a new thread; requests on one context run one at a time
+static int32_t run_completion(rnllama::llama_rn_context* ctx, const std::string& params_str, CompletionHooks hooks) {
+    auto runner = get_runner(ctx);
+
+    int32_t request_id;
+    {
+        std::lock_guard<std::mutex> lock(runner->state_mutex);
+        if (runner->destroy_pending) {
+            jni_log("ERROR: Context is being destroyed");
+            return -1;
+        }
+        request_id = runner->next_id++;
+        runner->in_flight++;
+    }
+
+    std::thread completion_thread([ctx, runner, request_id, params_str, hooks]() {
+        bool stop_sent = false;
+        bool started = false;
+        {
+            std::lock_guard<std::mutex> run_lock(runner->run_mutex);
+            try {
+                bool cancelled;
+                {
+                    std::lock_guard<std::mutex> lock(runner->state_mutex);
+                    cancelled = runner->is_cancelled(request_id);
+                }
+
+                if (!cancelled) {
+                    // A context released under memory pressure comes back with its saved session
+                    if (!ctx->restoreContext()) {
+                        throw std::runtime_error("Failed to restore context");
+                    }
+                    ctx->completion->rewind();
+
+                    // Claim the context after rewind() so a cancel arriving now is not reset
+                    std::lock_guard<std::mutex> lock(runner->state_mutex);
+                    cancelled = runner->is_cancelled(request_id);
+                    if (!cancelled) {
+                        runner->running_id = request_id;
+                        runner->running_thread = std::this_thread::get_id();
+                        started = true;
+                    }
+                }
+
+                if (cancelled) {
+                    jni_log("Completion %d cancelled before start.", request_id);
+                } else {
+                    nlohmann::json j_params = nlohmann::json::parse(params_str);
+                    apply_completion_params(j_params, ctx->params);
+                    ctx->completion->n_discard = j_params.value("n_discard", 0);
+
+                    if (!ctx->completion->initSampling()) {
+                        throw std::runtime_error("Failed to init sampling");
+                    }
+
+                    if (hooks.on_start) {
+                        hooks.on_start(ctx);
+                    }
+
+                    ctx->completion->loadPrompt({});
+
+                    if (ctx->completion->context_full) {
+                        throw std::runtime_error("Context is full and context shifting is disabled");
+                    }
+
+                    ctx->completion->beginCompletion(::COMMON_CHAT_FORMAT_CONTENT_ONLY, ::COMMON_REASONING_FORMAT_NONE, false);
+
+                    while (ctx->completion->has_next_token) {
+                        if (ctx->completion->is_interrupted) {
+                            jni_log("Completion %d interrupted.", request_id);
+                            break;
+                        }
+                        ctx->completion->doCompletion();
+                        if (ctx->completion->is_interrupted) {
+                            // Aborted mid-decode; any sampled token is not worth delivering
+                            jni_log("Completion %d interrupted.", request_id);
+                            break;
+                        }
+
+                        // Raw bytes of the new text, holding back what may still become a stop word
+                        bool stop = !ctx->completion->has_next_token || ctx->completion->stopped_word;
+                        std::string content = ctx->completion->takeStreamText(stop);
+
+                        hooks.on_token(content, stop);
+                        stop_sent = stop;
+
+                        if (ctx->completion->stopped_word) {
+                            break;
+                        }
+                    }
+                    ctx->completion->endCompletion();
+                    jni_log("Completion thread finished successfully.");
+                }
+            } catch (const std::exception& e) {
+                ctx->completion->endCompletion();
+                jni_log("EXCEPTION in completion thread: %s", e.what());
+            }
+
+            ctx->completion->custom_sampler = nullptr;
+
+            if (!stop_sent) {
+                // A held-back tail is text too, unless the request was cut short or never ran
+                hooks.on_token(!started || ctx->completion->is_interrupted ? std::string() : ctx->completion->takeStreamText(true), true);
+            }
+
+            std::lock_guard<std::mutex> lock(runner->state_mutex);
+            runner->running_id = 0;
+            runner->running_thread = std::thread::id();
+            runner->cancelled.erase(request_id);
+        }
+
+        if (hooks.on_finish) {
+            hooks.on_finish();
+        }
+
+        bool destroy;
+        {
+            std::lock_guard<std::mutex> lock(runner->state_mutex);
+            runner->in_flight--;
+            destroy = runner->destroy_deferred && runner->in_flight == 0;
+            runner->idle_cv.notify_all();
+        }
+        if (destroy) {
+            destroy_context(ctx);
+        }
+    });
+
+    completion_thread.detach();
+    return request_id;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_llama4aj_nativeCompletion(JNIEnv *env, jclass /*clazz*/, jlong context_ptr, jstring completion_params_json_j, jobject callback_obj_j, jobject sampler_obj_j) {
     jni_log("--- nativeCompletion START ---");
     if (context_ptr == 0) {
         jni_log("ERROR: Context pointer is null");
-        return;
+        return -1;
     }
     if (completion_params_json_j == nullptr || callback_obj_j == nullptr) {
         jni_log("ERROR: JSON params or callback object is null");
-        return;
+        return -1;
     }
 
     rnllama::llama_rn_context* ctx = reinterpret_cast<rnllama::llama_rn_context*>(context_ptr);
+    if (ctx->parallel_mode_enabled) {
+        jni_log("ERROR: Parallel mode is enabled, use queued completions");
+        return -1;
+    }
+
     const char *params_c = env->GetStringUTFChars(completion_params_json_j, nullptr);
     std::string params_str(params_c);
     env->ReleaseStringUTFChars(completion_params_json_j, params_c);
@@ -236,86 +971,571 @@ Java_com_llama4aj_nativeCompletion(JNIEnv *env, jclass /*clazz*/, jlong context_
     jobject callback_global_ref = env->NewGlobalRef(callback_obj_j);
     if (callback_global_ref == nullptr) {
         jni_log("ERROR: Failed to create global ref for callback object");
-        return;
+        return -1;
     }
+    auto token_bytes = std::make_shared<JniTokenBytes>();
+    token_bytes->callback_obj = callback_global_ref;
+    jobject sampler_global_ref = sampler_obj_j != nullptr ? env->NewGlobalRef(sampler_obj_j) : nullptr;
+    auto java_sampler = std::make_shared<std::unique_ptr<JniJavaSampler>>();
 
-    JniCallbackContext* callback_context = new JniCallbackContext{callback_global_ref};
+    CompletionHooks hooks;
+    hooks.on_token = [token_bytes](const std::string& content, bool stop) {
+        deliver_token_bytes(*token_bytes, content, stop);
+    };
+    if (sampler_global_ref != nullptr) {
+        hooks.on_start = [sampler_global_ref, java_sampler](rnllama::llama_rn_context* ctx) {
+            java_sampler->reset(new JniJavaSampler(jni_thread_env(), sampler_global_ref, ctx->model, ctx->params));
+            JniJavaSampler* sampler = java_sampler->get();
+            ctx->completion->custom_sampler = [sampler](llama_context* lctx) { return sampler->sample(lctx); };
+        };
+    }
+    hooks.on_finish = [token_bytes, sampler_global_ref, java_sampler]() {
+        java_sampler->reset();
+        JNIEnv* cleanup_env = jni_thread_env();
+        if (cleanup_env != nullptr) {
+            cleanup_env->DeleteGlobalRef(token_bytes->callback_obj);
+            if (token_bytes->buffer != nullptr) cleanup_env->DeleteGlobalRef(token_bytes->buffer);
+            if (sampler_global_ref != nullptr) cleanup_env->DeleteGlobalRef(sampler_global_ref);
+        }
+    };
 
-    std::thread completion_thread([ctx, params_str, callback_context]() {
-        try {
-            ctx->completion->rewind();
-
-            nlohmann::json j_params = nlohmann::json::parse(params_str);
-            ctx->params.prompt = j_params.value("prompt", "");
-            ctx->params.sampling.temp = j_params.value("temperature", 0.8f);
-            ctx->params.sampling.top_k = j_params.value("top_k", 40);
-            ctx->params.sampling.top_p = j_params.value("top_p", 0.95f);
-            ctx->params.sampling.penalty_repeat = j_params.value("repeat_penalty", 1.1f);
-            ctx->params.n_predict = j_params.value("n_predict", -1);
-            
-            if (!ctx->completion->initSampling()) {
-                throw std::runtime_error("Failed to init sampling");
-            }
+    int32_t request_id = run_completion(ctx, params_str, hooks);
+    if (request_id < 0) {
+        env->DeleteGlobalRef(callback_global_ref);
+        if (sampler_global_ref != nullptr) env->DeleteGlobalRef(sampler_global_ref);
+        return -1;
+    }
+    jni_log("--- nativeCompletion END (request %d, thread detached) ---", request_id);
+    return request_id;
+}
 
-            ctx->completion->loadPrompt({});
+extern "C" JNIEXPORT void JNICALL
+Java_com_llama4aj_nativeCancel(JNIEnv */*env*/, jclass /*clazz*/, jlong context_ptr, jint request_id) {
+    if (context_ptr == 0) return;
+    auto* ctx = reinterpret_cast<rnllama::llama_rn_context*>(context_ptr);
+    auto runner = find_runner(ctx);
+    if (!runner) return;
 
-            if (ctx->completion->context_full) {
-                 throw std::runtime_error("Context is full");
-            }
+    std::lock_guard<std::mutex> lock(runner->state_mutex);
+    if (runner->destroy_pending) return;
+    if (runner->running_id == request_id) {
+        if (ctx->completion) ctx->completion->is_interrupted = true;
+        jni_log("Cancelled running completion %d", request_id);
+    } else if (request_id > 0 && request_id < runner->next_id) {
+        runner->cancelled.insert(request_id);
+        jni_log("Cancelled queued completion %d", request_id);
+    }
+}
 
-            ctx->completion->beginCompletion(::COMMON_CHAT_FORMAT_CONTENT_ONLY, ::COMMON_REASONING_FORMAT_NONE, false);
+extern "C" JNIEXPORT void JNICALL
+Java_com_llama4aj_nativeInterrupt(JNIEnv */*env*/, jclass /*clazz*/, jlong context_ptr) {
+    jni_log("nativeInterrupt, context ptr: %p", (void*)context_ptr);
+    if (context_ptr == 0) return;
+    auto* ctx = reinterpret_cast<rnllama::llama_rn_context*>(context_ptr);
+    auto runner = find_runner(ctx);
+    if (!runner) return;
 
-            while (ctx->completion->has_next_token) {
-                if (ctx->completion->is_interrupted) {
-                    jni_log("Completion interrupted.");
-                    break;
-                }
-                rnllama::completion_token_output token_output = ctx->completion->doCompletion();
+    // Interrupt the running completion and everything queued behind it
+    std::lock_guard<std::mutex> lock(runner->state_mutex);
+    if (runner->destroy_pending) return;
+    runner->cancel_before = runner->next_id - 1;
+    if (ctx->completion) {
+        ctx->completion->is_interrupted = true;
+        jni_log("Interruption signal sent");
+    }
+}
 
-                std::string content = rnllama::tokens_to_output_formatted_string(ctx->ctx, token_output.tok);
-                bool stop = !ctx->completion->has_next_token || ctx->completion->stopped_word;
+// --- FFM (java.lang.foreign) entry points ---
+// Plain C ABI used by the Java 22+ variant of com.ajllama.ffm.Ffm instead of JNI for completions.
+// Two upcall stubs are registered once; requests are told apart by the caller's user id. Token
+// text arrives as UTF-8 bytes and logits / candidates as raw pointers, so nothing is copied into
+// JNI objects on the way.
 
-                completion_callback_c(content.c_str(), stop, callback_context);
+typedef void (*ffm_token_fn)(int64_t user, const char* text, int32_t len, int32_t stop);
+typedef int32_t (*ffm_sample_fn)(int64_t user, const float* logits, int32_t n_vocab, const llama_token_data* cur, int32_t n_cur);
 
-                if (ctx->completion->stopped_word) {
-                    break;
-                }
-            }
-            ctx->completion->endCompletion();
-            jni_log("Completion thread finished successfully.");
+static std::atomic<ffm_token_fn> g_ffm_on_token(nullptr);
+static std::atomic<ffm_sample_fn> g_ffm_sample(nullptr);
 
-        } catch (const std::exception& e) {
-            jni_log("EXCEPTION in completion thread: %s", e.what());
+extern "C" JNIEXPORT void ajllama_ffm_init(ffm_token_fn on_token, ffm_sample_fn sample) {
+    g_ffm_on_token = on_token;
+    g_ffm_sample = sample;
+}
+
+// Returns the request id (cancel it with nativeCancel), or -1
+extern "C" JNIEXPORT int32_t ajllama_ffm_completion(int64_t context_ptr, const char* params_json, int64_t user, int32_t use_sampler, int32_t prefilter) {
+    ffm_token_fn on_token = g_ffm_on_token;
+    ffm_sample_fn sample = g_ffm_sample;
+    if (context_ptr == 0 || params_json == nullptr || on_token == nullptr || (use_sampler && sample == nullptr)) return -1;
+    auto* ctx = reinterpret_cast<rnllama::llama_rn_context*>(context_ptr);
+    if (ctx->parallel_mode_enabled) {
+        jni_log("ERROR: Parallel mode is enabled, use queued completions");
+        return -1;
+    }
+
+    CompletionHooks hooks;
+    hooks.on_token = [on_token, user](const std::string& content, bool stop) {
+        on_token(user, content.data(), (int32_t) content.size(), stop ? 1 : 0);
+    };
+    if (use_sampler) {
+        auto filter = std::make_shared<std::unique_ptr<NativePrefilter>>();
+        hooks.on_start = [sample, user, prefilter, filter](rnllama::llama_rn_context* ctx) {
+            const int32_t n_vocab = llama_vocab_n_tokens(llama_model_get_vocab(ctx->model));
+            if (prefilter) filter->reset(new NativePrefilter(ctx->params, n_vocab));
+            NativePrefilter* pf = filter->get();
+            ctx->completion->custom_sampler = [sample, user, pf, n_vocab](llama_context* lctx) -> llama_token {
+                const float* logits = llama_get_logits_ith(lctx, -1);
+                if (logits == nullptr) return -1;
+                const int32_t n_cur = pf != nullptr ? pf->apply(logits) : 0;
+                const llama_token token = sample(user, logits, n_vocab, pf != nullptr ? pf->cur.data() : nullptr, n_cur);
+                return token < n_vocab ? token : -1;
+            };
+        };
+        hooks.on_finish = [filter]() { filter->reset(); };
+    }
+    return run_completion(ctx, params_json, hooks);
+}
+
+// --- Parallel Decoding (slot manager) ---
+
+static std::string jstring_to_string(JNIEnv *env, jstring str) {
+    if (str == nullptr) return "";
+    const char *chars = env->GetStringUTFChars(str, nullptr);
+    std::string result(chars);
+    env->ReleaseStringUTFChars(str, chars);
+    return result;
+}
+
+static std::shared_ptr<JniSlotRequest> register_slot_request(JNIEnv *env, jobject callback_obj_j) {
+    auto req = std::make_shared<JniSlotRequest>();
+    req->callback_obj = env->NewGlobalRef(callback_obj_j);
+    return req;
+}
+
+static void track_slot_request(const std::shared_ptr<JniCompletionRunner>& runner, int32_t request_id,
+                               const std::shared_ptr<JniSlotRequest>& req) {
+    std::lock_guard<std::mutex> lock(runner->state_mutex);
+    // The request may already have completed on the processing thread
+    if (!req->finished) runner->slot_requests[request_id] = req;
+}
+
+static void untrack_slot_request(const std::shared_ptr<JniCompletionRunner>& runner, int32_t request_id) {
+    std::lock_guard<std::mutex> lock(runner->state_mutex);
+    runner->slot_requests.erase(request_id);
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_llama4aj_nativeEnableParallelMode(JNIEnv */*env*/, jclass /*clazz*/, jlong context_ptr, jint n_parallel, jint n_batch) {
+    if (context_ptr == 0) return JNI_FALSE;
+    auto* ctx = reinterpret_cast<rnllama::llama_rn_context*>(context_ptr);
+    auto runner = get_runner(ctx);
+
+    // The legacy completion path and the slot loop cannot share the context
+    std::lock_guard<std::mutex> run_lock(runner->run_mutex);
+    try {
+        if (!ctx->restoreContext()) {
+            jni_log("ERROR: Failed to restore context");
+            return JNI_FALSE;
         }
+        if (ctx->slot_manager) ctx->slot_manager->stop_processing_loop();
+        ctx->enableParallelMode(n_parallel > 0 ? n_parallel : ctx->params.n_parallel,
+                                n_batch > 0 ? n_batch : ctx->params.n_batch);
+        ctx->slot_manager->start_processing_loop();
+    } catch (const std::exception& e) {
+        jni_log("ERROR: Failed to enable parallel mode: %s", e.what());
+        return JNI_FALSE;
+    }
+    return JNI_TRUE;
+}
 
-        // --- Cleanup ---
-        JNIEnv* cleanup_env = nullptr;
-        if (g_jvm->GetEnv(reinterpret_cast<void**>(&cleanup_env), JNI_VERSION_1_6) != JNI_OK) {
-#ifdef __ANDROID__
-            if (g_jvm->AttachCurrentThread(&cleanup_env, nullptr) == JNI_OK) {
-#else
-            if (g_jvm->AttachCurrentThread(reinterpret_cast<void**>(&cleanup_env), nullptr) == JNI_OK) {
-#endif
-                cleanup_env->DeleteGlobalRef(callback_context->callback_obj);
-                g_jvm->DetachCurrentThread();
+static int32_t queue_slot_completion(JNIEnv *env, rnllama::llama_rn_context* ctx,
+                                     const std::shared_ptr<JniCompletionRunner>& runner,
+                                     const common_params& cparams, const std::vector<llama_token>& tokens,
+                                     int32_t n_discard, bool stream, jobject callback_obj_j, int32_t fork_request_id,
+                                     rnllama::llama_rn_queue_options options) {
+    auto req = register_slot_request(env, callback_obj_j);
+
+    // Without streaming the text only arrives in onComplete, saving a JVM upcall per token
+    std::function<void(const rnllama::completion_token_output&)> token_callback;
+    if (stream) {
+        token_callback = [req](const rnllama::completion_token_output& token) {
+            if (req->finished) return;
+            // Hold back a trailing partial character until the token that completes it
+            std::string& text = req->utf8_pending;
+            text += token.text;
+            const size_t n = utf8_complete_prefix(text.data(), text.size());
+            if (n == 0) return;
+            if (n == text.size()) {
+                call_java_string_method(req->callback_obj, "onToken", text);
+                text.clear();
+            } else {
+                call_java_string_method(req->callback_obj, "onToken", text.substr(0, n));
+                text.erase(0, n);
             }
-        } else {
-            cleanup_env->DeleteGlobalRef(callback_context->callback_obj);
+        };
+    }
+
+    auto complete_callback = [req, runner](rnllama::llama_rn_slot* slot) {
+        auto timings = slot->get_timings();
+        nlohmann::json result = {
+            {"request_id", slot->request_id},
+            {"text", slot->generated_text},
+            {"stopped_eos", slot->stopped_eos},
+            {"stopped_limit", slot->stopped_limit},
+            {"stopped_word", slot->stopped_word},
+            {"stopping_word", slot->stopping_word},
+            {"context_full", slot->context_full},
+            {"truncated", slot->truncated},
+            {"interrupted", slot->is_interrupted},
+            {"tokens_predicted", slot->n_decoded},
+            {"tokens_evaluated", slot->num_prompt_tokens},
+            {"tokens_cached", timings.cache_n},
+            {"timings", {
+                {"queue_ms", slot->t_queue_wait_us / 1e3},
+                {"prompt_n", timings.prompt_n},
+                {"prompt_ms", timings.prompt_ms},
+                {"predicted_n", timings.predicted_n},
+                {"predicted_ms", timings.predicted_ms},
+                {"predicted_per_second", timings.predicted_per_second}
+            }}
+        };
+        if (!slot->error_message.empty()) result["error"] = slot->error_message;
+        if (!req->utf8_pending.empty() && !req->finished) {
+            // Generation ended inside a character; stream what there is so the tokens add up to the text
+            call_java_string_method(req->callback_obj, "onToken", req->utf8_pending);
+            req->utf8_pending.clear();
         }
-        delete callback_context;
-    });
+        untrack_slot_request(runner, slot->request_id);
+        finish_slot_request(req, result);
+    };
 
-    completion_thread.detach();
-    jni_log("--- nativeCompletion END (thread detached) ---");
+    options.on_dropped = [req, runner](int32_t request_id, const std::string& reason) {
+        untrack_slot_request(runner, request_id);
+        finish_slot_request(req, {{"request_id", request_id}, {"interrupted", true}, {reason, true},
+                                  {"error", reason == "expired" ? "Deadline passed while queued" : "Displaced from a full queue"}});
+    };
+
+    int32_t request_id = ctx->slot_manager->queue_request(
+        cparams, tokens, {}, cparams.prompt, COMMON_CHAT_FORMAT_CONTENT_ONLY, COMMON_REASONING_FORMAT_NONE, false, "", "",
+        "", "", "", -1, -1,
+        token_callback, complete_callback, n_discard, fork_request_id, options
+    );
+    if (request_id < 0) {
+        // Never queued, so no callback will come; the caller reports the rejection
+        req->finished = true;
+        env->DeleteGlobalRef(req->callback_obj);
+        return request_id;
+    }
+    track_slot_request(runner, request_id, req);
+    return request_id;
+}
+
+static rnllama::llama_rn_queue_options queue_options_from_json(const nlohmann::json& j_params) {
+    rnllama::llama_rn_queue_options options;
+    options.priority = j_params.value("priority", (int) rnllama::RN_PRIORITY_NORMAL);
+    options.deadline_ms = j_params.value("deadline_ms", (int64_t) 0);
+    return options;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_llama4aj_nativeQueueCompletion(JNIEnv *env, jclass /*clazz*/, jlong context_ptr, jstring completion_params_json_j, jobject callback_obj_j) {
+    if (context_ptr == 0 || callback_obj_j == nullptr) return -1;
+    auto* ctx = reinterpret_cast<rnllama::llama_rn_context*>(context_ptr);
+    if (!ctx->parallel_mode_enabled || !ctx->slot_manager) {
+        jni_log("ERROR: Parallel mode not enabled");
+        return -1;
+    }
+    auto runner = get_runner(ctx);
+
+    common_params cparams = ctx->params;
+    int32_t n_discard = 0;
+    bool stream = true;
+    rnllama::llama_rn_queue_options options;
+    try {
+        auto j_params = nlohmann::json::parse(jstring_to_string(env, completion_params_json_j));
+        apply_completion_params(j_params, cparams);
+        n_discard = j_params.value("n_discard", 0);
+        stream = j_params.value("stream", true);
+        options = queue_options_from_json(j_params);
+    } catch (const std::exception& e) {
+        jni_log("ERROR: Invalid completion params: %s", e.what());
+        return -1;
+    }
+
+    // Reject before paying for tokenization
+    if (!ctx->slot_manager->can_admit(options.priority)) return rnllama::RN_QUEUE_REJECTED;
+
+    const llama_vocab* vocab = llama_model_get_vocab(ctx->model);
+    const bool add_bos = llama_vocab_get_add_bos(vocab) || llama_model_has_encoder(ctx->model);
+    std::vector<llama_token> tokens = common_tokenize(ctx->ctx, cparams.prompt, add_bos, true);
+
+    return queue_slot_completion(env, ctx, runner, cparams, tokens, n_discard, stream, callback_obj_j, -1, options);
+}
+
+// Parallel sampling: the first request decodes the prompt, every other one copies its KV
+// sequence and only samples differently (seed + i when a seed is set)
+extern "C" JNIEXPORT jintArray JNICALL
+Java_com_llama4aj_nativeQueueCompletions(JNIEnv *env, jclass /*clazz*/, jlong context_ptr, jstring completion_params_json_j, jobjectArray callbacks_j) {
+    if (context_ptr == 0 || callbacks_j == nullptr) return nullptr;
+    auto* ctx = reinterpret_cast<rnllama::llama_rn_context*>(context_ptr);
+    if (!ctx->parallel_mode_enabled || !ctx->slot_manager) {
+        jni_log("ERROR: Parallel mode not enabled");
+        return nullptr;
+    }
+    auto runner = get_runner(ctx);
+
+    common_params cparams = ctx->params;
+    int32_t n_discard = 0;
+    bool stream = true;
+    rnllama::llama_rn_queue_options options;
+    try {
+        auto j_params = nlohmann::json::parse(jstring_to_string(env, completion_params_json_j));
+        apply_completion_params(j_params, cparams);
+        n_discard = j_params.value("n_discard", 0);
+        stream = j_params.value("stream", true);
+        options = queue_options_from_json(j_params);
+    } catch (const std::exception& e) {
+        jni_log("ERROR: Invalid completion params: %s", e.what());
+        return nullptr;
+    }
+
+    const jsize n = env->GetArrayLength(callbacks_j);
+    std::vector<jint> request_ids(n, rnllama::RN_QUEUE_REJECTED);
+    jintArray result = env->NewIntArray(n);
+    if (result == nullptr) return nullptr;
+    if (!ctx->slot_manager->can_admit(options.priority)) {
+        env->SetIntArrayRegion(result, 0, n, request_ids.data());
+        return result;
+    }
+
+    const llama_vocab* vocab = llama_model_get_vocab(ctx->model);
+    const bool add_bos = llama_vocab_get_add_bos(vocab) || llama_model_has_encoder(ctx->model);
+    std::vector<llama_token> tokens = common_tokenize(ctx->ctx, cparams.prompt, add_bos, true);
+
+    const uint32_t base_seed = cparams.sampling.seed;
+    int32_t parent_id = -1;
+    for (jsize i = 0; i < n; i++) {
+        jobject callback_obj_j = env->GetObjectArrayElement(callbacks_j, i);
+        if (callback_obj_j == nullptr) continue;
+        if (base_seed != LLAMA_DEFAULT_SEED) cparams.sampling.seed = base_seed + (uint32_t) i;
+        request_ids[i] = queue_slot_completion(env, ctx, runner, cparams, tokens, n_discard, stream, callback_obj_j, parent_id, options);
+        if (request_ids[i] == rnllama::RN_QUEUE_REJECTED && parent_id >= 0) {
+            // The prefill is already queued; report the branches that did not fit through their callbacks
+            auto req = register_slot_request(env, callback_obj_j);
+            finish_slot_request(req, {{"request_id", -1}, {"interrupted", true}, {"rejected", true},
+                                      {"error", "Request queue is full"}});
+        }
+        if (parent_id < 0) parent_id = request_ids[i];
+        env->DeleteLocalRef(callback_obj_j);
+        if (parent_id == rnllama::RN_QUEUE_REJECTED) break;
+    }
+
+    env->SetIntArrayRegion(result, 0, n, request_ids.data());
+    return result;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_llama4aj_nativeQueueEmbedding(JNIEnv *env, jclass /*clazz*/, jlong context_ptr, jstring text_j, jint normalize, jobject callback_obj_j) {
+    if (context_ptr == 0 || callback_obj_j == nullptr) return -1;
+    auto* ctx = reinterpret_cast<rnllama::llama_rn_context*>(context_ptr);
+    if (!ctx->parallel_mode_enabled || !ctx->slot_manager) {
+        jni_log("ERROR: Parallel mode not enabled");
+        return -1;
+    }
+    auto runner = get_runner(ctx);
+
+    const llama_vocab* vocab = llama_model_get_vocab(ctx->model);
+    const bool add_bos = llama_vocab_get_add_bos(vocab) || llama_model_has_encoder(ctx->model);
+    std::vector<llama_token> tokens = common_tokenize(ctx->ctx, jstring_to_string(env, text_j), add_bos, true);
+    const size_t n_tokens = tokens.size();
+
+    auto req = register_slot_request(env, callback_obj_j);
+    auto result_callback = [req, runner, n_tokens](int32_t request_id, const std::vector<float>& embedding) {
+        untrack_slot_request(runner, request_id);
+        finish_slot_request(req, {{"request_id", request_id}, {"embedding", embedding}, {"tokens_evaluated", n_tokens}});
+    };
+
+    rnllama::llama_rn_queue_options options;
+    options.on_dropped = [req, runner](int32_t request_id, const std::string& reason) {
+        untrack_slot_request(runner, request_id);
+        finish_slot_request(req, {{"request_id", request_id}, {"interrupted", true}, {reason, true},
+                                  {"error", "Displaced from a full queue"}});
+    };
+
+    int32_t request_id = ctx->slot_manager->queue_embedding_request(
+        tokens, normalize >= -1 ? normalize : ctx->params.embd_normalize, result_callback, options);
+    if (request_id < 0) {
+        req->finished = true;
+        env->DeleteGlobalRef(req->callback_obj);
+        return request_id;
+    }
+    track_slot_request(runner, request_id, req);
+    return request_id;
 }
 
 extern "C" JNIEXPORT void JNICALL
-Java_com_llama4aj_nativeInterrupt(JNIEnv */*env*/, jclass /*clazz*/, jlong context_ptr) {
-    jni_log("nativeInterrupt, context ptr: %p", (void*)context_ptr);
+Java_com_llama4aj_nativeCancelRequest(JNIEnv */*env*/, jclass /*clazz*/, jlong context_ptr, jint request_id) {
     if (context_ptr == 0) return;
     auto* ctx = reinterpret_cast<rnllama::llama_rn_context*>(context_ptr);
-    if (ctx->completion) {
-        ctx->completion->is_interrupted = true;
-        jni_log("Interruption signal sent");
+    auto runner = find_runner(ctx);
+    if (!runner) return;
+
+    std::shared_ptr<JniSlotRequest> req;
+    {
+        std::lock_guard<std::mutex> lock(runner->state_mutex);
+        if (runner->destroy_pending || !ctx->slot_manager) return;
+        auto it = runner->slot_requests.find(request_id);
+        if (it == runner->slot_requests.end()) return;
+        req = it->second;
+        runner->slot_requests.erase(it);
+        // Keeps a concurrent destroy waiting until the slot manager is done with
+        runner->in_flight++;
+    }
+
+    // Slot callbacks run on the processing thread with slots_mutex held
+    if (ctx->slot_manager->processing_thread.get_id() == std::this_thread::get_id()) {
+        ctx->slot_manager->cancel_request_locked(request_id);
+    } else {
+        ctx->slot_manager->cancel_request(request_id);
+    }
+
+    bool destroy;
+    {
+        std::lock_guard<std::mutex> lock(runner->state_mutex);
+        runner->in_flight--;
+        destroy = runner->destroy_deferred && runner->in_flight == 0;
+        runner->idle_cv.notify_all();
+    }
+    if (destroy) {
+        destroy_context(ctx);
+    }
+    // Not pinned: onComplete may close the model
+    finish_slot_request(req, {{"request_id", request_id}, {"interrupted", true}});
+}
+
+extern "C" JNIEXPORT jstring JNICALL
+Java_com_llama4aj_nativeFormatChat(JNIEnv *env, jclass /*clazz*/, jlong context_ptr, jstring messages_json_j) {
+    if (context_ptr == 0) return nullptr;
+    auto* ctx = reinterpret_cast<rnllama::llama_rn_context*>(context_ptr);
+    std::string messages = jstring_to_string(env, messages_json_j);
+
+    nlohmann::json result;
+    try {
+        common_chat_params chat = ctx->getFormattedChatWithJinja(messages, "", "", "", false, "", false, "none");
+        result["prompt"] = chat.prompt;
+        result["stop"] = chat.additional_stops;
+    } catch (const std::exception& e) {
+        jni_log("WARNING: Jinja chat template failed (%s), using legacy template", e.what());
+        try {
+            result["prompt"] = ctx->getFormattedChat(messages, "");
+            result["stop"] = nlohmann::json::array();
+        } catch (const std::exception& e2) {
+            jni_log("ERROR: Failed to format chat: %s", e2.what());
+            return nullptr;
+        }
     }
-}
\ No newline at end of file
+    return new_java_string(env, result.dump(-1, ' ', false, nlohmann::json::error_handler_t::replace));
+}
+
+extern "C" JNIEXPORT jintArray JNICALL
+Java_com_llama4aj_nativeTokenize(JNIEnv *env, jclass /*clazz*/, jlong context_ptr, jbyteArray text_utf8_j, jboolean add_special) {
+    if (context_ptr == 0 || text_utf8_j == nullptr) return nullptr;
+    auto* ctx = reinterpret_cast<rnllama::llama_rn_context*>(context_ptr);
+
+    // Raw UTF-8 from Java: modified UTF-8 would mangle characters outside the BMP
+    const jsize len = env->GetArrayLength(text_utf8_j);
+    std::string text(len, '\0');
+    env->GetByteArrayRegion(text_utf8_j, 0, len, reinterpret_cast<jbyte*>(&text[0]));
+
+    // The vocabulary lives in the model, so this works while the context is released
+    std::vector<llama_token> tokens = common_tokenize(llama_model_get_vocab(ctx->model), text, add_special, true);
+    jintArray result = env->NewIntArray((jsize) tokens.size());
+    if (result != nullptr) env->SetIntArrayRegion(result, 0, (jsize) tokens.size(), tokens.data());
+    return result;
+}
+
+// Session and context calls wait for the running completion; queued ones run afterwards
+extern "C" JNIEXPORT jint JNICALL
+Java_com_llama4aj_nativeSaveSession(JNIEnv *env, jclass /*clazz*/, jlong context_ptr, jstring path_j) {
+    if (context_ptr == 0 || path_j == nullptr) return -1;
+    auto* ctx = reinterpret_cast<rnllama::llama_rn_context*>(context_ptr);
+    auto runner = get_runner(ctx);
+    std::string path = jstring_to_string(env, path_j);
+
+    std::lock_guard<std::mutex> run_lock(runner->run_mutex);
+    if (!ctx->restoreContext()) return -1;
+    return ctx->saveSession(path);
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_llama4aj_nativeLoadSession(JNIEnv *env, jclass /*clazz*/, jlong context_ptr, jstring path_j) {
+    if (context_ptr == 0 || path_j == nullptr) return -1;
+    auto* ctx = reinterpret_cast<rnllama::llama_rn_context*>(context_ptr);
+    auto runner = get_runner(ctx);
+    std::string path = jstring_to_string(env, path_j);
+
+    std::lock_guard<std::mutex> run_lock(runner->run_mutex);
+    if (!ctx->restoreContext()) return -1;
+    if (ctx->parallel_mode_enabled) {
+        jni_log("ERROR: Sessions belong to the single-sequence path, not parallel mode");
+        return -1;
+    }
+    return ctx->loadSession(path);
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_llama4aj_nativeReleaseContext(JNIEnv *env, jclass /*clazz*/, jlong context_ptr, jstring session_path_j) {
+    if (context_ptr == 0) return JNI_FALSE;
+    auto* ctx = reinterpret_cast<rnllama::llama_rn_context*>(context_ptr);
+    auto runner = get_runner(ctx);
+    std::string session_path = session_path_j != nullptr ? jstring_to_string(env, session_path_j) : std::string();
+
+    std::lock_guard<std::mutex> run_lock(runner->run_mutex);
+    return ctx->releaseContext(session_path) ? JNI_TRUE : JNI_FALSE;
+}
+
+extern "C" JNIEXPORT jstring JNICALL
+Java_com_llama4aj_nativeParallelStatus(JNIEnv *env, jclass /*clazz*/, jlong context_ptr) {
+    if (context_ptr == 0) return nullptr;
+    auto* ctx = reinterpret_cast<rnllama::llama_rn_context*>(context_ptr);
+    if (!ctx->slot_manager) return nullptr;
+
+    auto status = ctx->slot_manager->get_status();
+    nlohmann::json requests = nlohmann::json::array();
+    for (const auto& r : status.requests) {
+        requests.push_back({
+            {"request_id", r.request_id},
+            {"type", r.type},
+            {"state", r.state},
+            {"priority", r.priority},
+            {"queued_ms", r.queued_ms},
+            {"prompt_length", r.prompt_length},
+            {"tokens_generated", r.tokens_generated},
+            {"prompt_ms", r.prompt_ms},
+            {"generation_ms", r.generation_ms},
+            {"tokens_per_second", r.tokens_per_second}
+        });
+    }
+    nlohmann::json result = {
+        {"n_parallel", status.n_parallel},
+        {"active_slots", status.active_slots},
+        {"queued_requests", status.queued_requests},
+        {"cached_prefix_tokens", status.cached_prefix_tokens},
+        {"kv_size", status.kv_size},
+        {"kv_used_cells", status.kv_used_cells},
+        {"queue", {
+            {"max_requests", status.max_queued_requests},
+            {"interactive", status.queued_by_priority[rnllama::RN_PRIORITY_INTERACTIVE]},
+            {"normal", status.queued_by_priority[rnllama::RN_PRIORITY_NORMAL]},
+            {"batch", status.queued_by_priority[rnllama::RN_PRIORITY_BATCH]},
+            {"admitted", status.requests_admitted},
+            {"rejected", status.requests_rejected},
+            {"expired", status.requests_expired},
+            {"wait_avg_ms", status.queue_wait_avg_ms},
+            {"wait_max_ms", status.queue_wait_max_ms},
+            {"oldest_ms", status.oldest_queued_ms}
+        }},
+        {"requests", requests}
+    };
+    return env->NewStringUTF(result.dump().c_str());
+}
@@ -2,9 +2,16 @@
 #include <system_error>
 
 ThreadPool ThreadPool::instance;
+std::atomic<size_t> ThreadPool::defaultThreads(0);
 
 ThreadPool::ThreadPool(size_t threads) : stop(false) {
-    startWorkers(threads);
+    if (threads > 0) {
+        startWorkers(threads);
+    }
+}
+
+void ThreadPool::setDefaultThreads(size_t threads) {
+    defaultThreads = threads;
 }
 
 ThreadPool::~ThreadPool() {
@@ -45,7 +52,8 @@ void ThreadPool::ensureRunning() {
     if (!workers.empty()) {
         return;
     }
-    startWorkers(std::thread::hardware_concurrency());
+    const size_t threads = defaultThreads.load();
+    startWorkers(threads > 0 ? threads : std::thread::hardware_concurrency());
 }
 
 void ThreadPool::shutdown() {
@@ -7,6 +7,7 @@
 #include <condition_variable>
 #include <functional>
 #include <future>
+#include <atomic>
 
 class ThreadPool {
 private:
@@ -18,15 +19,19 @@ private:
     bool stop;
 
     static ThreadPool instance;
+    static std::atomic<size_t> defaultThreads;
 
 public:
     static ThreadPool& getInstance() {
         return instance;
     }
 
-    // Ensure worker threads are active; lazily restarts if shut down.
+    // Ensure worker threads are active; lazily starts or restarts them with defaultThreads workers.
     void ensureRunning();
 
+    // Workers started by the next ensureRunning() that finds none running; 0 = hardware_concurrency().
+    static void setDefaultThreads(size_t threads);
+
     // Stop all workers and clear queued tasks.
     void shutdown();
 
@@ -40,7 +45,8 @@ public:
         condition.notify_one();
     }
 
-    ThreadPool(size_t threads = std::thread::hardware_concurrency());
+    // threads == 0 defers starting workers to the first ensureRunning() / enqueue()
+    ThreadPool(size_t threads = 0);
     ~ThreadPool();
 
 private:
@@ -3,6 +3,7 @@
 #include "rn-tts.h"
 #include "rn-mtmd.hpp"
 #include "rn-common.hpp"
+#include "rn-trace.h"
 
 #include <algorithm>
 #include <cstdlib>
@@ -42,6 +43,7 @@ void llama_rn_context_completion::rewind() {
     stopped_word = false;
     stopped_limit = false;
     stopping_word = "";
+    stop_matcher.clear();
     incomplete = false;
     n_remain = 0;
     n_past = 0;
@@ -63,7 +65,8 @@ bool llama_rn_context_completion::initSampling() {
 
 void llama_rn_context_completion::truncatePrompt(std::vector<llama_token> &prompt_tokens) {
     const int n_left = parent_ctx->n_ctx - parent_ctx->params.n_keep;
-    const int n_block_size = n_left / 2;
+    // Blocks larger than half the window could leave the prompt over n_ctx
+    const int n_block_size = n_discard > 0 ? std::min(n_discard, n_left / 2) : n_left / 2;
     const int erased_blocks = (prompt_tokens.size() - parent_ctx->params.n_keep - n_block_size) / n_block_size;
 
     // Keep n_keep tokens at start of prompt (at most n_ctx - 4)
@@ -71,10 +74,11 @@ void llama_rn_context_completion::truncatePrompt(std::vector<llama_token> &promp
 
     new_tokens.insert(new_tokens.end(), prompt_tokens.begin() + parent_ctx->params.n_keep + erased_blocks * n_block_size, prompt_tokens.end());
 
-    LOG_INFO("input truncated, n_ctx: %d, n_keep: %d, n_left: %d, old_size: %d, new_size: %d",
+    LOG_INFO("input truncated, n_ctx: %d, n_keep: %d, n_left: %d, n_block: %d, old_size: %d, new_size: %d",
         parent_ctx->n_ctx,
         parent_ctx->params.n_keep,
         n_left,
+        n_block_size,
         prompt_tokens.size(),
         new_tokens.size()
     );
@@ -175,6 +179,7 @@ void llama_rn_context_completion::loadPrompt(const std::vector<std::string> &med
                     n_eval = parent_ctx->params.n_batch;
                 }
 
+                auto compute = parent_ctx->lockCompute();
                 int ret = llama_encode(parent_ctx->ctx, llama_batch_get_one(embd.data() + n_past_batch, n_eval));
                 if (ret < 0) {
                     LOG_ERROR("Failed to encode token batch, code: %d, n_eval: %d, n_past_batch: %d", ret, n_eval, n_past_batch);
@@ -223,49 +228,63 @@ void llama_rn_context_completion::beginCompletion(int chat_format, common_reason
     current_reasoning_format = reasoning_format;
     current_thinking_forced_open = thinking_forced_open;
     current_chat_parser = chat_parser;
+    stop_matcher.set_words(parent_ctx->params.antiprompt);
 }
 
 void llama_rn_context_completion::endCompletion() {
     is_predicting = false;
 }
 
-completion_token_output llama_rn_context_completion::nextToken()
+bool llama_rn_context_completion::shiftContext()
 {
-    completion_token_output result;
-    result.tok = -1;
+    if (!parent_ctx->params.ctx_shift) {
+        return false;
+    }
 
-    if (embd.size() >= (size_t)parent_ctx->params.n_ctx)
-    {
-        if (!parent_ctx->params.ctx_shift) {
-            // If context shifting is disabled, stop generation
-            LOG_WARNING("context full, n_ctx: %d, tokens: %d", parent_ctx->params.n_ctx, embd.size());
-            has_next_token = false;
-            context_full = true;
-            return result;
-        }
+    auto * kv = llama_get_memory(parent_ctx->ctx);
+    if (!llama_memory_can_shift(kv)) {
+        LOG_WARNING("context shift is not supported by this model's memory");
+        return false;
+    }
 
-        // Shift context
+    // Keep BOS plus the first n_keep tokens, drop the oldest n_discard after them
+    // and slide the rest down so generation continues without re-prefilling.
+    const int n_keep    = parent_ctx->params.n_keep + 1;
+    const int n_left    = n_past - n_keep;
+    const int n_shift   = n_discard > 0 ? std::min(n_discard, n_left) : n_left / 2;
+    if (n_shift <= 0) {
+        return false;
+    }
 
-        const int n_left    = n_past - parent_ctx->params.n_keep - 1;
-        const int n_discard = n_left/2;
+    llama_memory_seq_rm (kv, 0, n_keep          , n_keep + n_shift);
+    llama_memory_seq_add(kv, 0, n_keep + n_shift, n_past, -n_shift);
 
-        auto * kv = llama_get_memory(parent_ctx->ctx);
-        llama_memory_seq_rm (kv, 0, parent_ctx->params.n_keep + 1            , parent_ctx->params.n_keep + n_discard + 1);
-        llama_memory_seq_add(kv, 0, parent_ctx->params.n_keep + 1 + n_discard, n_past, -n_discard);
+    embd.erase(embd.begin() + n_keep, embd.begin() + n_keep + n_shift);
 
-        for (size_t i = parent_ctx->params.n_keep + 1 + n_discard; i < embd.size(); i++)
-        {
-            embd[i - n_discard] = embd[i];
-        }
-        embd.resize(embd.size() - n_discard);
+    n_past -= n_shift;
+    truncated = true;
+
+    LOG_VERBOSE("context shifted, n_keep: %d, n_discard: %d, new n_past: %d, new size: %d", n_keep, n_shift, n_past, embd.size());
+    return true;
+}
 
-        n_past -= n_discard;
-        truncated = true;
+completion_token_output llama_rn_context_completion::nextToken()
+{
+    completion_token_output result;
+    result.tok = -1;
 
-        LOG_VERBOSE("context shifted, new n_past: %d, new size: %d", n_past, embd.size());
+    if (embd.size() >= (size_t)parent_ctx->n_ctx && !shiftContext())
+    {
+        LOG_WARNING("context full, n_ctx: %d, tokens: %d", parent_ctx->n_ctx, embd.size());
+        has_next_token = false;
+        context_full = true;
+        return result;
     }
 
     bool tg = true;
+    const bool tracing = trace_enabled();
+    llama_rn_batch_trace trace = {};
+    const int64_t t_decode_start = tracing ? lm_ggml_time_us() : 0;
     while (n_past < embd.size())
     {
         int n_eval = (int)embd.size() - n_past;
@@ -274,6 +293,7 @@ completion_token_output llama_rn_context_completion::nextToken()
         {
             n_eval = parent_ctx->params.n_batch;
         }
+        auto compute = parent_ctx->lockCompute();
         if (llama_decode(parent_ctx->ctx, llama_batch_get_one(&embd[n_past], n_eval)))
         {
             LOG_ERROR("failed to eval, n_eval: %d, n_past: %d, n_threads: %d, embd: %s",
@@ -282,10 +302,15 @@ completion_token_output llama_rn_context_completion::nextToken()
                 parent_ctx->params.cpuparams.n_threads,
                 tokens_to_str(parent_ctx->ctx, embd.cbegin() + n_past, embd.cend()).c_str()
             );
+            // Drop anything a partial (e.g. aborted) decode left beyond n_past
+            llama_memory_seq_rm(llama_get_memory(parent_ctx->ctx), 0, n_past, -1);
+            embd.resize(n_past);
             has_next_token = false;
             return result;
         }
         n_past += n_eval;
+        trace.n_tokens += n_eval;
+        if (!tg) trace.n_prompt_tokens += n_eval;
 
         if(is_interrupted) {
             LOG_INFO("Decoding Interrupted");
@@ -304,15 +329,25 @@ completion_token_output llama_rn_context_completion::nextToken()
         return result;
     }
 
+    if (tracing) {
+        trace.n_seqs = 1;
+        trace.t_decode_us = lm_ggml_time_us() - t_decode_start;
+    }
+    const int64_t t_sample_start = tracing ? lm_ggml_time_us() : 0;
+
     {
         // out of user input, sample next token
         std::vector<llama_token_data> candidates;
         candidates.reserve(llama_vocab_n_tokens(vocab));
 
-        llama_token new_token_id = common_sampler_sample(ctx_sampling, parent_ctx->ctx, -1);
+        llama_token new_token_id = custom_sampler ? custom_sampler(parent_ctx->ctx) : -1;
+        const bool sampled_natively = new_token_id < 0;
+        if (sampled_natively) {
+            new_token_id = common_sampler_sample(ctx_sampling, parent_ctx->ctx, -1);
+        }
 
         const int32_t n_probs = parent_ctx->params.sampling.n_probs;
-        if (n_probs > 0) {
+        if (n_probs > 0 && sampled_natively) {
           llama_token_data_array cur_p = *common_sampler_get_candidates(ctx_sampling, true);
           for (size_t i = 0; i < std::min(cur_p.size, (size_t)n_probs); ++i)
           {
@@ -320,6 +355,11 @@ completion_token_output llama_rn_context_completion::nextToken()
           }
         }
 
+        if (tracing && trace.n_tokens > 0) {
+            trace.t_sample_us = lm_ggml_time_us() - t_sample_start;
+            trace_batch(trace);
+        }
+
         if (llama_vocab_is_eog(vocab, new_token_id)) {
             has_next_token = false;
             stopped_eos = true;
@@ -352,38 +392,6 @@ completion_token_output llama_rn_context_completion::nextToken()
     return result;
 }
 
-size_t llama_rn_context_completion::findStoppingStrings(const std::string &text, const size_t last_token_size,
-                            const stop_type type)
-{
-    size_t stop_pos = std::string::npos;
-    for (const std::string &word : parent_ctx->params.antiprompt)
-    {
-        size_t pos;
-        if (type == STOP_FULL)
-        {
-            const size_t tmp = word.size() + last_token_size;
-            const size_t from_pos = text.size() > tmp ? text.size() - tmp : 0;
-            pos = text.find(word, from_pos);
-        }
-        else
-        {
-            pos = find_partial_stop_string(word, text);
-        }
-        if (pos != std::string::npos &&
-            (stop_pos == std::string::npos || pos < stop_pos))
-        {
-            if (type == STOP_FULL)
-            {
-                stopping_word = word;
-                stopped_word = true;
-                has_next_token = false;
-            }
-            stop_pos = pos;
-        }
-    }
-    return stop_pos;
-}
-
 completion_token_output llama_rn_context_completion::doCompletion()
 {
     completion_token_output token_with_probs = nextToken();
@@ -391,6 +399,13 @@ completion_token_output llama_rn_context_completion::doCompletion()
     const std::string token_text = token_with_probs.tok == -1 ? "" : common_token_to_piece(parent_ctx->ctx, token_with_probs.tok);
     generated_text += token_text;
 
+    if (stop_matcher.feed(token_text)) {
+        stopping_word = stop_matcher.match();
+        stopped_word = true;
+        has_next_token = false;
+        generated_text.resize(stop_matcher.match_pos());
+    }
+
     if (parent_ctx->isVocoderEnabled()) {
         tts_type type = parent_ctx->tts_wrapper->getTTSType(parent_ctx);
         if (parent_ctx->tts_wrapper->type == UNKNOWN) {
@@ -427,7 +442,7 @@ completion_token_output llama_rn_context_completion::doCompletion()
         break;
     }
 
-    if (incomplete && !has_next_token)
+    if (incomplete && !has_next_token && !stopped_word)
     {
         has_next_token = true;
         n_remain++;
@@ -452,6 +467,11 @@ completion_token_output llama_rn_context_completion::doCompletion()
     return token_with_probs;
 }
 
+std::string llama_rn_context_completion::takeStreamText(bool flush)
+{
+    return stop_matcher.take_stream_text(generated_text, flush || !has_next_token || stopped_word);
+}
+
 completion_chat_output llama_rn_context_completion::parseChatOutput(bool is_partial) {
     common_chat_parser_params syntax;
     syntax.format = static_cast<common_chat_format>(current_chat_format);
@@ -621,7 +641,7 @@ std::string llama_rn_context_completion::bench(int pp, int tg, int pl, int nr) {
 
     llama_batch batch = llama_batch_init(n_kv_max, 0, 1);
 
-    auto decode_helper = [ctx](llama_batch & batch_ref, int32_t n_batch_ref, bool synchronize) -> bool {
+    auto decode_helper = [this, ctx](llama_batch & batch_ref, int32_t n_batch_ref, bool synchronize) -> bool {
         const int32_t total = batch_ref.n_tokens;
         for (int32_t i = 0; i < total; i += n_batch_ref) {
             const int32_t n_tokens_step = std::min(n_batch_ref, total - i);
@@ -636,6 +656,7 @@ std::string llama_rn_context_completion::bench(int pp, int tg, int pl, int nr) {
                 batch_ref.logits   + i,
             };
 
+            auto compute = parent_ctx->lockCompute();
             const int ret = llama_decode(ctx, batch_view);
             if (ret != 0) {
                 LOG_ERROR("llama_decode() failed during benchmark, n_batch=%d ret=%d", n_batch_ref, ret);
@@ -797,6 +818,7 @@ void llama_rn_context_completion::processMedia(
 
     // Delegate to the mtmd_wrapper method
     // For non-parallel mode, use the global bitmap_past_hashes from mtmd_wrapper
+    auto compute = parent_ctx->lockCompute();
     parent_ctx->mtmd_wrapper->processMedia(
         parent_ctx->ctx,
         prompt,
@@ -6,6 +6,9 @@
 #include "sampling.h"
 #include "nlohmann/json.hpp"
 #include "chat.h"
+#include "rn-stop-matcher.h"
+#include <atomic>
+#include <functional>
 
 using json = nlohmann::ordered_json;
 
@@ -19,13 +22,6 @@ static inline void llama_batch_clear(llama_batch *batch) {
 // Forward declarations
 struct llama_rn_context;
 
-// Types defined in rn-llama.h (needed here for compilation)
-enum stop_type
-{
-    STOP_FULL,
-    STOP_PARTIAL,
-};
-
 struct completion_token_output
 {
     struct token_prob
@@ -54,8 +50,9 @@ struct llama_rn_context_completion {
     llama_rn_context* parent_ctx;
 
     // Completion state fields
-    bool is_predicting = false;
-    bool is_interrupted = false;
+    // Atomic: read by the decode abort callback on ggml worker threads
+    std::atomic<bool> is_predicting{false};
+    std::atomic<bool> is_interrupted{false};
     bool has_next_token = false;
     std::string prefill_text;
     std::string generated_text;
@@ -68,10 +65,14 @@ struct llama_rn_context_completion {
     bool incomplete = false;
     bool context_full = false;
     bool truncated = false;
+    // Tokens dropped after n_keep on each context shift (<= 0: half of the shiftable window)
+    int32_t n_discard = 0;
     bool stopped_eos = false;
     bool stopped_word = false;
     bool stopped_limit = false;
     std::string stopping_word;
+    // Stop strings of the current completion (params.antiprompt) and the streamed part of generated_text
+    llama_rn_stop_matcher stop_matcher;
     // Current completion parameters for chat parsing
     int current_chat_format = COMMON_CHAT_FORMAT_CONTENT_ONLY;
     common_reasoning_format current_reasoning_format = COMMON_REASONING_FORMAT_NONE;
@@ -80,6 +81,9 @@ struct llama_rn_context_completion {
 
     // Sampling context
     common_sampler *ctx_sampling = nullptr;
+    // Optional override for picking the next token (e.g. sampling from Java); a negative
+    // result falls back to ctx_sampling. The chosen token is still accepted by ctx_sampling.
+    std::function<llama_token(llama_context *)> custom_sampler;
 
     // Constructor
     llama_rn_context_completion(llama_rn_context* parent);
@@ -95,9 +99,11 @@ struct llama_rn_context_completion {
     void beginCompletion();
     void beginCompletion(int chat_format, common_reasoning_format reasoning_format, bool thinking_forced_open, const std::string &chat_parser = "");
     void endCompletion();
+    bool shiftContext();
     completion_token_output nextToken();
-    size_t findStoppingStrings(const std::string &text, const size_t last_token_size, const stop_type type);
     completion_token_output doCompletion();
+    // generated_text not streamed yet, minus a tail that may still turn into a stop string unless flush is set
+    std::string takeStreamText(bool flush);
     completion_chat_output parseChatOutput(bool is_partial);
 
     // Embedding methods
@@ -5,6 +5,7 @@
 #include "rn-completion.h"
 #include "rn-slot-manager.h"
 #include "rn-common.hpp"
+#include "rn-log.h"
 
 // Include multimodal support
 #include "tools/mtmd/mtmd.h"
@@ -12,6 +13,12 @@
 #include "tools/mtmd/clip.h"
 
 #include <cstdarg>
+#if !defined(_WIN32)
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#endif
 
 namespace rnllama {
 
@@ -56,35 +63,180 @@ enum llama_flash_attn_type flash_attn_type_from_str(const std::string & s) {
     return LLAMA_FLASH_ATTN_TYPE_AUTO;
 }
 
+static int64_t gguf_get_int(const lm_gguf_context * gctx, const std::string & key, int64_t def) {
+    const int64_t id = lm_gguf_find_key(gctx, key.c_str());
+    if (id < 0) {
+        return def;
+    }
+    switch (lm_gguf_get_kv_type(gctx, id)) {
+        case LM_GGUF_TYPE_UINT8:  return lm_gguf_get_val_u8(gctx, id);
+        case LM_GGUF_TYPE_INT8:   return lm_gguf_get_val_i8(gctx, id);
+        case LM_GGUF_TYPE_UINT16: return lm_gguf_get_val_u16(gctx, id);
+        case LM_GGUF_TYPE_INT16:  return lm_gguf_get_val_i16(gctx, id);
+        case LM_GGUF_TYPE_UINT32: return lm_gguf_get_val_u32(gctx, id);
+        case LM_GGUF_TYPE_INT32:  return lm_gguf_get_val_i32(gctx, id);
+        case LM_GGUF_TYPE_UINT64: return (int64_t) lm_gguf_get_val_u64(gctx, id);
+        case LM_GGUF_TYPE_INT64:  return lm_gguf_get_val_i64(gctx, id);
+        case LM_GGUF_TYPE_ARRAY: {
+            // per-layer values (e.g. head_count_kv on OpenELM) - plan for the largest layer
+            const size_t n = lm_gguf_get_arr_n(gctx, id);
+            const void * data = lm_gguf_get_arr_data(gctx, id);
+            int64_t max_val = def;
+            for (size_t i = 0; i < n; i++) {
+                int64_t v = def;
+                switch (lm_gguf_get_arr_type(gctx, id)) {
+                    case LM_GGUF_TYPE_UINT32: v = ((const uint32_t *) data)[i]; break;
+                    case LM_GGUF_TYPE_INT32:  v = ((const int32_t *) data)[i]; break;
+                    default: break;
+                }
+                max_val = i == 0 ? v : std::max(max_val, v);
+            }
+            return max_val;
+        }
+        default:
+            return def;
+    }
+}
+
+bool prefetch_model_file(const std::string & path, const std::function<bool(float)> & progress) {
+#if defined(_WIN32)
+    (void) path;
+    (void) progress;
+    LOG_WARNING("Model prefetch is not supported on this platform");
+    return false;
+#else
+    int fd = open(path.c_str(), O_RDONLY);
+    if (fd < 0) {
+        LOG_ERROR("Prefetch: cannot open %s", path.c_str());
+        return false;
+    }
+    struct stat st;
+    if (fstat(fd, &st) != 0 || st.st_size <= 0) {
+        close(fd);
+        return false;
+    }
+    const size_t size = (size_t) st.st_size;
+#if defined(POSIX_FADV_SEQUENTIAL)
+    posix_fadvise(fd, 0, 0, POSIX_FADV_SEQUENTIAL);
+#endif
+    void * addr = mmap(nullptr, size, PROT_READ, MAP_SHARED, fd, 0);
+    close(fd);
+    if (addr == MAP_FAILED) {
+        LOG_ERROR("Prefetch: cannot map %s", path.c_str());
+        return false;
+    }
+
+    // Ask for each chunk ahead of touching it, then touch one byte per page so the read
+    // has really happened (WILLNEED alone is only a hint)
+    const size_t page = (size_t) sysconf(_SC_PAGESIZE);
+    const size_t chunk = (size_t) 64 << 20;
+    const uint8_t * base = static_cast<const uint8_t *>(addr);
+    volatile uint8_t sink = 0;
+    bool completed = true;
+    for (size_t offset = 0; offset < size; offset += chunk) {
+        const size_t len = std::min(chunk, size - offset);
+        if (offset + len < size) {
+            madvise(const_cast<uint8_t *>(base) + offset + len, std::min(chunk, size - offset - len), MADV_WILLNEED);
+        }
+        for (size_t p = 0; p < len; p += page) {
+            sink ^= base[offset + p];
+        }
+        if (progress && !progress((float) (offset + len) / (float) size)) {
+            completed = false;
+            break;
+        }
+    }
+    (void) sink;
+    munmap(addr, size);
+    return completed;
+#endif
+}
+
+json model_memory_hparams(const std::string & path, lm_ggml_type type_k, lm_ggml_type type_v) {
+    lm_gguf_init_params gparams = { /* no_alloc */ true, /* ctx */ nullptr };
+    lm_gguf_context * gctx = lm_gguf_init_from_file(path.c_str(), gparams);
+    if (gctx == nullptr) {
+        LOG_ERROR("Failed to read GGUF header: %s", path.c_str());
+        return json::object();
+    }
+
+    std::string arch;
+    const int64_t arch_id = lm_gguf_find_key(gctx, "general.architecture");
+    if (arch_id >= 0) {
+        arch = lm_gguf_get_val_str(gctx, arch_id);
+    }
+
+    const int64_t n_layer   = gguf_get_int(gctx, arch + ".block_count", 0);
+    const int64_t n_embd    = gguf_get_int(gctx, arch + ".embedding_length", 0);
+    const int64_t n_ff      = gguf_get_int(gctx, arch + ".feed_forward_length", 0);
+    const int64_t n_head    = gguf_get_int(gctx, arch + ".attention.head_count", 0);
+    const int64_t n_head_kv = gguf_get_int(gctx, arch + ".attention.head_count_kv", n_head);
+    const int64_t n_ctx_train = gguf_get_int(gctx, arch + ".context_length", 0);
+    const int64_t n_embd_head = n_head > 0 ? n_embd / n_head : 0;
+    const int64_t n_embd_head_k = gguf_get_int(gctx, arch + ".attention.key_length", n_embd_head);
+    const int64_t n_embd_head_v = gguf_get_int(gctx, arch + ".attention.value_length", n_embd_head);
+
+    int64_t n_vocab = gguf_get_int(gctx, arch + ".vocab_size", 0);
+    if (n_vocab == 0) {
+        const int64_t tokens_id = lm_gguf_find_key(gctx, "tokenizer.ggml.tokens");
+        if (tokens_id >= 0) {
+            n_vocab = (int64_t) lm_gguf_get_arr_n(gctx, tokens_id);
+        }
+    }
+
+    uint64_t model_bytes = 0;
+    const int64_t n_tensors = lm_gguf_get_n_tensors(gctx);
+    for (int64_t i = 0; i < n_tensors; i++) {
+        model_bytes += lm_gguf_get_tensor_size(gctx, i);
+    }
+
+    const size_t kv_bytes_per_token = (size_t) n_layer * (
+        lm_ggml_row_size(type_k, n_head_kv * n_embd_head_k) +
+        lm_ggml_row_size(type_v, n_head_kv * n_embd_head_v));
+
+    lm_gguf_free(gctx);
+
+    return json {
+        {"architecture", arch},
+        {"n_layer", n_layer},
+        {"n_embd", n_embd},
+        {"n_ff", n_ff},
+        {"n_head", n_head},
+        {"n_head_kv", n_head_kv},
+        {"n_embd_head_k", n_embd_head_k},
+        {"n_embd_head_v", n_embd_head_v},
+        {"n_ctx_train", n_ctx_train},
+        {"n_vocab", n_vocab},
+        {"n_tensors", n_tensors},
+        {"model_bytes", model_bytes},
+        {"kv_bytes_per_token", kv_bytes_per_token}
+    };
+}
 
 void log(const char *level, const char *function, int line,
                        const char *format, ...)
 {
+    int32_t rn_level;
+    if (strcmp(level, "ERROR") == 0) {
+        rn_level = RN_LOG_ERROR;
+    } else if (strcmp(level, "WARNING") == 0) {
+        rn_level = RN_LOG_WARN;
+    } else if (strcmp(level, "INFO") == 0) {
+        rn_level = RN_LOG_INFO;
+    } else {
+        rn_level = RN_LOG_DEBUG;
+    }
+    if (!log_enabled(rn_level)) {
+        return;
+    }
+
+    char prefix[128];
+    snprintf(prefix, sizeof(prefix), "%s:%d ", function, line);
+
     va_list args;
-    #if defined(__ANDROID__)
-        char prefix[256];
-        snprintf(prefix, sizeof(prefix), "%s:%d %s", function, line, format);
-
-        va_start(args, format);
-        android_LogPriority priority;
-        if (strcmp(level, "ERROR") == 0) {
-            priority = ANDROID_LOG_ERROR;
-        } else if (strcmp(level, "WARNING") == 0) {
-            priority = ANDROID_LOG_WARN;
-        } else if (strcmp(level, "INFO") == 0) {
-            priority = ANDROID_LOG_INFO;
-        } else {
-            priority = ANDROID_LOG_DEBUG;
-        }
-        __android_log_vprint(priority, "RNLlama", prefix, args);
-        va_end(args);
-    #else
-        printf("[%s] %s:%d ", level, function, line);
-        va_start(args, format);
-        vprintf(format, args);
-        va_end(args);
-        printf("\n");
-    #endif
+    va_start(args, format);
+    log_emit(rn_level, "RNLlama", prefix, format, args);
+    va_end(args);
 }
 
 // format incomplete utf-8 multibyte character for output
@@ -115,19 +267,10 @@ std::string tokens_to_str(llama_context *ctx, const std::vector<llama_token>::co
 
 
 void llama_rn_context::cleanupThreadpools() {
-    if (ctx != nullptr && (threadpool != nullptr || threadpool_batch != nullptr)) {
+    if (ctx != nullptr && threadpool) {
         llama_detach_threadpool(ctx);
     }
-
-    if (threadpool_batch != nullptr) {
-        lm_ggml_threadpool_free(threadpool_batch);
-        threadpool_batch = nullptr;
-    }
-
-    if (threadpool != nullptr) {
-        lm_ggml_threadpool_free(threadpool);
-        threadpool = nullptr;
-    }
+    threadpool.reset();
 }
 
 bool llama_rn_context::attachThreadpoolsIfAvailable() {
@@ -143,47 +286,38 @@ bool llama_rn_context::attachThreadpoolsIfAvailable() {
 
     cleanupThreadpools();
 
+    // One pool sized for the larger of the two; each decode wakes only the threads it asks for
+    const int32_t n_threads = thread_budget().clamp(params.cpuparams.n_threads);
+    const int32_t n_threads_batch = thread_budget().clamp(params.cpuparams_batch.n_threads);
     lm_ggml_threadpool_params tpp =
         lm_ggml_threadpool_params_from_cpu_params(params.cpuparams);
-    lm_ggml_threadpool_params tpp_batch =
-        lm_ggml_threadpool_params_from_cpu_params(params.cpuparams_batch);
-
-    if (tpp.n_threads <= 0) {
-        LOG_WARNING("Skipping threadpool attachment (n_threads = %d)", tpp.n_threads);
-        return false;
-    }
+    tpp.n_threads = std::max(n_threads, n_threads_batch);
 
-    bool need_batch_pool =
-        !lm_ggml_threadpool_params_match(&tpp, &tpp_batch) && tpp_batch.n_threads > 0;
-
-    lm_ggml_threadpool *new_batch = nullptr;
-    if (need_batch_pool) {
-        new_batch = lm_ggml_threadpool_new(&tpp_batch);
-        if (new_batch == nullptr) {
-            LOG_WARNING("Failed to create batch threadpool (n_threads=%d)", tpp_batch.n_threads);
-            return false;
-        }
-        tpp.paused = true;
-    }
-
-    lm_ggml_threadpool *new_threadpool = lm_ggml_threadpool_new(&tpp);
-    if (new_threadpool == nullptr) {
+    threadpool = thread_budget().lease(tpp);
+    if (!threadpool) {
         LOG_WARNING("Failed to create threadpool (n_threads=%d)", tpp.n_threads);
-        if (new_batch != nullptr) {
-            lm_ggml_threadpool_free(new_batch);
-        }
         return false;
     }
 
-    llama_attach_threadpool(ctx, new_threadpool, new_batch);
-    threadpool = new_threadpool;
-    threadpool_batch = new_batch;
-    LOG_INFO("Attached ggml threadpool (n_threads=%d, n_threads_batch=%d)",
-             tpp.n_threads,
-             threadpool_batch ? tpp_batch.n_threads : tpp.n_threads);
+    attachLeasedThreadpool();
     return true;
 }
 
+void llama_rn_context::attachLeasedThreadpool() {
+    // The pool may have been trimmed to the budget left by pools with other settings
+    const int32_t n_pool = threadpool->params.n_threads;
+    const int32_t n_threads = std::min(thread_budget().clamp(params.cpuparams.n_threads), n_pool);
+    const int32_t n_threads_batch = std::min(thread_budget().clamp(params.cpuparams_batch.n_threads), n_pool);
+    llama_set_n_threads(ctx, n_threads, n_threads_batch);
+    llama_attach_threadpool(ctx, threadpool->pool, nullptr);
+    LOG_INFO("Attached ggml threadpool (n_threads=%d, n_threads_batch=%d, pool=%d, budget=%d)",
+             n_threads, n_threads_batch, n_pool, thread_budget().total());
+}
+
+std::unique_lock<std::mutex> llama_rn_context::lockCompute() {
+    return threadpool ? threadpool->lock() : std::unique_lock<std::mutex>();
+}
+
 llama_rn_context::~llama_rn_context() {
     cleanupThreadpools();
 
@@ -233,6 +367,8 @@ bool llama_rn_context::loadModel(common_params &params_)
     }
     completion = new llama_rn_context_completion(this);
 
+    configureContext();
+
     // Initialize context shift flag
     LOG_INFO("ctx_shift: %s", params.ctx_shift ? "enabled" : "disabled");
 
@@ -243,6 +379,50 @@ bool llama_rn_context::loadModel(common_params &params_)
 }
 
 
+void llama_rn_context::configureContext()
+{
+    // Let an interrupt stop a running decode (including a long prefill) between graph nodes
+    llama_set_abort_callback(ctx, [](void * data) {
+        auto * rn_ctx = static_cast<llama_rn_context *>(data);
+        return rn_ctx->completion != nullptr && rn_ctx->completion->is_predicting && rn_ctx->completion->is_interrupted;
+    }, this);
+}
+
+bool llama_rn_context::warmup()
+{
+    if (ctx == nullptr || !llama_model_has_decoder(model)) {
+        return false;
+    }
+
+    const llama_vocab * vocab = llama_model_get_vocab(model);
+    llama_token token = llama_vocab_bos(vocab);
+    if (token == LLAMA_TOKEN_NULL) {
+        token = 0;
+    }
+    // A full ubatch takes the batched matmul paths a real prompt will, unlike the 2-token load warm-up
+    const int32_t n_tokens = std::max(1, std::min((int32_t) llama_n_ubatch(ctx), n_ctx / 2));
+
+    llama_batch batch = llama_batch_init(n_tokens, 0, 1);
+    for (int32_t i = 0; i < n_tokens; i++) {
+        common_batch_add(batch, token, i, { 0 }, i == n_tokens - 1);
+    }
+
+    llama_set_warmup(ctx, true);
+    auto compute = lockCompute();
+    const int32_t ret = llama_decode(ctx, batch);
+    llama_memory_clear(llama_get_memory(ctx), true);
+    llama_synchronize(ctx);
+    llama_perf_context_reset(ctx);
+    llama_set_warmup(ctx, false);
+    llama_batch_free(batch);
+
+    if (ret != 0) {
+        LOG_WARNING("Warm-up decode failed: %d", ret);
+        return false;
+    }
+    return true;
+}
+
 bool llama_rn_context::validateModelChatTemplate(bool use_jinja, const char *name) const {
     const char * tmpl = llama_model_chat_template(model, name);
     if (tmpl == nullptr) {
@@ -517,4 +697,109 @@ void llama_rn_context::clearCache(bool clear_data) {
     }
 }
 
+int32_t llama_rn_context::saveSession(const std::string &path) {
+    if (ctx == nullptr || completion == nullptr) {
+        LOG_WARNING("Cannot save session: context not initialized");
+        return -1;
+    }
+
+    // The last sampled token is kept in embd but has not been decoded yet
+    const size_t n_tokens = std::min(completion->embd.size(), (size_t) std::max(completion->n_past, 0));
+    const size_t nwrite = llama_state_seq_save_file(ctx, path.c_str(), 0, completion->embd.data(), n_tokens);
+    if (nwrite == 0) {
+        LOG_ERROR("Failed to save session to %s", path.c_str());
+        return -1;
+    }
+    LOG_INFO("Saved session of %zu tokens (%zu bytes) to %s", n_tokens, nwrite, path.c_str());
+    return (int32_t) n_tokens;
+}
+
+int32_t llama_rn_context::loadSession(const std::string &path) {
+    if (ctx == nullptr || completion == nullptr) {
+        LOG_WARNING("Cannot load session: context not initialized");
+        return -1;
+    }
+
+    std::vector<llama_token> tokens(n_ctx);
+    size_t n_tokens = 0;
+    const size_t nread = llama_state_seq_load_file(ctx, path.c_str(), 0, tokens.data(), tokens.size(), &n_tokens);
+    if (nread == 0) {
+        LOG_ERROR("Failed to load session from %s", path.c_str());
+        llama_memory_seq_rm(llama_get_memory(ctx), 0, -1, -1);
+        completion->embd.clear();
+        completion->n_past = 0;
+        return -1;
+    }
+    tokens.resize(n_tokens);
+
+    // The next prompt only decodes what follows its common prefix with these tokens
+    completion->embd = tokens;
+    completion->n_past = (int) n_tokens;
+    LOG_INFO("Loaded session of %zu tokens from %s", n_tokens, path.c_str());
+    return (int32_t) n_tokens;
+}
+
+bool llama_rn_context::releaseContext(const std::string &session_path) {
+    if (ctx == nullptr) {
+        return true;
+    }
+    if (parallel_mode_enabled) {
+        LOG_WARNING("Cannot release context while parallel mode is enabled");
+        return false;
+    }
+
+    spilled_session_path.clear();
+    if (!session_path.empty() && completion != nullptr && completion->n_past > 0) {
+        if (saveSession(session_path) < 0) {
+            return false;
+        }
+        spilled_session_path = session_path;
+    }
+
+    if (completion != nullptr) {
+        completion->embd.clear();
+        completion->n_past = 0;
+    }
+    if (ctx_restored) {
+        ctx_restored.reset();
+    } else {
+        llama_init->free_context();
+    }
+    ctx = nullptr;
+    LOG_INFO("Context released, session %s", spilled_session_path.empty() ? "discarded" : spilled_session_path.c_str());
+    return true;
+}
+
+bool llama_rn_context::restoreContext() {
+    if (ctx != nullptr) {
+        return true;
+    }
+    if (model == nullptr) {
+        return false;
+    }
+
+    ctx_restored.reset(llama_init_from_model(model, common_context_params_to_llama(params)));
+    if (!ctx_restored) {
+        LOG_ERROR("Failed to recreate context");
+        return false;
+    }
+    ctx = ctx_restored.get();
+    n_ctx = llama_n_ctx(ctx);
+    configureContext();
+    if (!lora.empty()) {
+        common_set_adapter_lora(ctx, lora);
+    }
+    if (threadpool) {
+        attachLeasedThreadpool();
+    }
+
+    if (!spilled_session_path.empty()) {
+        loadSession(spilled_session_path);
+        std::remove(spilled_session_path.c_str());
+        spilled_session_path.clear();
+    }
+    LOG_INFO("Context restored (n_ctx = %d)", n_ctx);
+    return true;
+}
+
 }
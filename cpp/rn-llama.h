@@ -5,6 +5,7 @@
 #include <iostream>
 #include <thread>
 #include <codecvt>
+#include <functional>
 #include "chat.h"
 #include "common.h"
 #include "ggml.h"
@@ -16,6 +17,7 @@
 #include "sampling.h"
 #include "nlohmann/json.hpp"
 #include "rn-tts.h"
+#include "rn-thread-budget.h"
 #if defined(__ANDROID__)
 #include <android/log.h>
 #endif
@@ -32,6 +34,14 @@ lm_ggml_type kv_cache_type_from_str(const std::string & s);
 
 enum llama_flash_attn_type flash_attn_type_from_str(const std::string & s);
 
+// Reads the hyperparameters needed for memory planning from the GGUF header
+// (no tensor data is loaded). Returns an empty object if the file cannot be read.
+json model_memory_hparams(const std::string & path, lm_ggml_type type_k, lm_ggml_type type_v);
+
+// Pulls the whole model file into the page cache so a later mmap load does not fault it in
+// from disk during the first decode. progress gets the fraction done and returns false to stop.
+bool prefetch_model_file(const std::string & path, const std::function<bool(float)> & progress);
+
 // Forward declarations - actual definitions are in rn-completion.h
 // Note: enum forward declarations not allowed in C++, using include in implementation file
 struct completion_token_output;
@@ -61,6 +71,10 @@ struct llama_rn_context {
     common_params params;
     common_init_result_ptr llama_init;
     llama_context *ctx = nullptr;
+    // Context recreated by restoreContext(); declared after llama_init so it is freed before the model
+    llama_context_ptr ctx_restored;
+    // Session saved by releaseContext(), loaded back into sequence 0 by restoreContext()
+    std::string spilled_session_path;
     common_chat_templates_ptr templates;
     int n_ctx;
 
@@ -70,15 +84,25 @@ struct llama_rn_context {
     // NEW: Slot manager for parallel decoding
     llama_rn_slot_manager *slot_manager = nullptr;
     bool parallel_mode_enabled = false;
+    // KV budget (tokens) for prompt prefixes shared across slots: -1 = auto, 0 = off
+    int32_t prefix_cache_tokens = -1;
+    // Requests waiting for a slot before new ones are rejected: 0 = unbounded
+    int32_t max_queued_requests = 0;
 
-    lm_ggml_threadpool *threadpool = nullptr;
-    lm_ggml_threadpool *threadpool_batch = nullptr;
+    // Leased from the process thread budget; serves both single-token and batch decodes
+    std::shared_ptr<llama_rn_shared_threadpool> threadpool;
 
     ~llama_rn_context();
 
     bool loadModel(common_params &params_);
+    // Decodes a dummy batch of n_ubatch tokens so first-request kernels and buffers are ready
+    bool warmup();
     void cleanupThreadpools();
     bool attachThreadpoolsIfAvailable();
+    // Attaches the leased pool to ctx, with decode threads capped to what the pool has
+    void attachLeasedThreadpool();
+    // Held around every llama_decode / llama_encode on ctx: other contexts may compute on the same pool
+    std::unique_lock<std::mutex> lockCompute();
 
     // Parallel decoding methods
     void enableParallelMode(int32_t n_parallel, int32_t n_batch = 512);
@@ -129,6 +153,18 @@ struct llama_rn_context {
 
     // Cache management
     void clearCache(bool clear_data = false);
+
+    // Session state of the single-sequence completion path (KV of sequence 0 plus its tokens)
+    int32_t saveSession(const std::string &path);
+    int32_t loadSession(const std::string &path);
+
+    // Frees the KV cache and compute buffers, keeping the weights. With a path, the session is
+    // saved there first and restored by restoreContext(). Not available in parallel mode.
+    bool releaseContext(const std::string &session_path = "");
+    bool restoreContext();
+
+private:
+    void configureContext();
 };
 
 // Utility functions
@@ -0,0 +1,204 @@
+#include "rn-log.h"
+#include "llama.h"
+#include <atomic>
+#include <chrono>
+#include <condition_variable>
+#include <cstdio>
+#include <cstring>
+#include <mutex>
+#if defined(__ANDROID__)
+#include <android/log.h>
+#endif
+
+namespace rnllama {
+
+static const size_t LOG_RING_SIZE = 256; // Power of two
+
+// Bounded MPSC queue (Vyukov): producers claim a cell with one CAS and publish it through
+// the cell's sequence number, so logging never blocks on another logging thread
+struct log_cell {
+    std::atomic<size_t> seq;
+    llama_rn_log_record record;
+};
+
+static log_cell g_cells[LOG_RING_SIZE];
+static std::atomic<size_t> g_head(0);
+static size_t g_tail = 0;                   // Consumer only
+static std::atomic<bool> g_ring_ready(false);
+static std::atomic<uint64_t> g_dropped(0);
+
+static std::atomic<int32_t> g_level(RN_LOG_INFO);
+static std::atomic<bool> g_sink(false);
+
+// Only used to park the consumer; producers just notify
+static std::mutex g_wait_mutex;
+static std::condition_variable g_wait_cv;
+
+static void ring_init() {
+    static std::once_flag once;
+    std::call_once(once, [] {
+        for (size_t i = 0; i < LOG_RING_SIZE; i++) {
+            g_cells[i].seq.store(i, std::memory_order_relaxed);
+        }
+        g_ring_ready.store(true, std::memory_order_release);
+    });
+}
+
+static log_cell* ring_claim(size_t& pos) {
+    pos = g_head.load(std::memory_order_relaxed);
+    while (true) {
+        log_cell* cell = &g_cells[pos & (LOG_RING_SIZE - 1)];
+        const size_t seq = cell->seq.load(std::memory_order_acquire);
+        const intptr_t diff = (intptr_t) seq - (intptr_t) pos;
+        if (diff == 0) {
+            if (g_head.compare_exchange_weak(pos, pos + 1, std::memory_order_relaxed)) {
+                return cell;
+            }
+        } else if (diff < 0) {
+            return nullptr; // Full
+        } else {
+            pos = g_head.load(std::memory_order_relaxed);
+        }
+    }
+}
+
+static void ring_publish(log_cell* cell, size_t pos) {
+    cell->seq.store(pos + 1, std::memory_order_release);
+    g_wait_cv.notify_one();
+}
+
+static void write_direct(int32_t level, const char* tag, const char* text) {
+#if defined(__ANDROID__)
+    android_LogPriority priority = ANDROID_LOG_DEBUG;
+    if (level == RN_LOG_ERROR) priority = ANDROID_LOG_ERROR;
+    else if (level == RN_LOG_WARN) priority = ANDROID_LOG_WARN;
+    else if (level == RN_LOG_INFO) priority = ANDROID_LOG_INFO;
+    __android_log_write(priority, tag, text);
+#else
+    static const char* names[] = { "DEBUG", "DEBUG", "INFO", "WARN", "ERROR" };
+    fprintf(stderr, "[%s] %s: %s\n", names[level >= 0 && level <= RN_LOG_ERROR ? level : 0], tag, text);
+#endif
+}
+
+static void copy_tag(char* dst, const char* tag) {
+    snprintf(dst, sizeof(((llama_rn_log_record*) nullptr)->tag), "%s", tag);
+}
+
+void log_set_level(int32_t level) {
+    g_level.store(level, std::memory_order_relaxed);
+}
+
+bool log_enabled(int32_t level) {
+    return level >= g_level.load(std::memory_order_relaxed);
+}
+
+void log_set_sink(bool enabled) {
+    ring_init();
+    g_sink.store(enabled, std::memory_order_release);
+    g_wait_cv.notify_all();
+}
+
+void log_emit(int32_t level, const char* tag, const char* prefix, const char* format, va_list args) {
+    if (!log_enabled(level)) {
+        return;
+    }
+
+    if (!g_sink.load(std::memory_order_acquire)) {
+        char text[sizeof(llama_rn_log_record::text)];
+        int n = prefix ? snprintf(text, sizeof(text), "%s", prefix) : 0;
+        if (n < 0 || n >= (int) sizeof(text)) n = 0;
+        vsnprintf(text + n, sizeof(text) - n, format, args);
+        write_direct(level, tag, text);
+        return;
+    }
+
+    size_t pos;
+    log_cell* cell = ring_claim(pos);
+    if (cell == nullptr) {
+        g_dropped.fetch_add(1, std::memory_order_relaxed);
+        return;
+    }
+    llama_rn_log_record& record = cell->record;
+    record.level = level;
+    copy_tag(record.tag, tag);
+    int n = prefix ? snprintf(record.text, sizeof(record.text), "%s", prefix) : 0;
+    if (n < 0 || n >= (int) sizeof(record.text)) n = 0;
+    vsnprintf(record.text + n, sizeof(record.text) - n, format, args);
+    ring_publish(cell, pos);
+}
+
+static void emit_text(int32_t level, const char* tag, const char* format, ...) {
+    va_list args;
+    va_start(args, format);
+    log_emit(level, tag, nullptr, format, args);
+    va_end(args);
+}
+
+void log_emit_text(int32_t level, const char* tag, const char* text) {
+    emit_text(level, tag, "%s", text);
+}
+
+static void llama_callback(lm_ggml_log_level level, const char* text, void* /*user_data*/) {
+    // Continuation fragments (progress dots) inherit the level of the line they continue
+    static thread_local int32_t last_level = RN_LOG_INFO;
+    int32_t rn_level;
+    switch (level) {
+        case LM_GGML_LOG_LEVEL_ERROR: rn_level = RN_LOG_ERROR; break;
+        case LM_GGML_LOG_LEVEL_WARN:  rn_level = RN_LOG_WARN; break;
+        case LM_GGML_LOG_LEVEL_INFO:  rn_level = RN_LOG_INFO; break;
+        case LM_GGML_LOG_LEVEL_CONT:  rn_level = last_level; break;
+        default:                      rn_level = RN_LOG_DEBUG; break;
+    }
+    last_level = rn_level;
+    if (!log_enabled(rn_level) || text == nullptr) {
+        return;
+    }
+
+    size_t len = strlen(text);
+    while (len > 0 && (text[len - 1] == '\n' || text[len - 1] == '\r')) {
+        len--;
+    }
+    if (len == 0) {
+        return;
+    }
+    emit_text(rn_level, "llama", "%.*s", (int) len, text);
+}
+
+void log_install_llama_callback() {
+    llama_log_set(llama_callback, nullptr);
+}
+
+size_t log_drain(int32_t timeout_ms, void (*consume)(const llama_rn_log_record&, void*), void* user_data, uint64_t* dropped) {
+    if (!g_ring_ready.load(std::memory_order_acquire)) {
+        ring_init();
+    }
+
+    auto ready = [] {
+        const log_cell& cell = g_cells[g_tail & (LOG_RING_SIZE - 1)];
+        return cell.seq.load(std::memory_order_acquire) == g_tail + 1 || !g_sink.load(std::memory_order_acquire);
+    };
+    if (timeout_ms > 0 && !ready()) {
+        // Producers notify without the mutex, so a wakeup can be missed; the timeout bounds that
+        std::unique_lock<std::mutex> lock(g_wait_mutex);
+        g_wait_cv.wait_for(lock, std::chrono::milliseconds(timeout_ms), ready);
+    }
+
+    size_t n = 0;
+    while (true) {
+        log_cell& cell = g_cells[g_tail & (LOG_RING_SIZE - 1)];
+        if (cell.seq.load(std::memory_order_acquire) != g_tail + 1) {
+            break;
+        }
+        consume(cell.record, user_data);
+        cell.seq.store(g_tail + LOG_RING_SIZE, std::memory_order_release);
+        g_tail++;
+        n++;
+    }
+
+    if (dropped != nullptr) {
+        *dropped = g_dropped.exchange(0, std::memory_order_relaxed);
+    }
+    return n;
+}
+
+} // namespace rnllama
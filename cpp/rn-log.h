@@ -0,0 +1,45 @@
+#ifndef RN_LOG_H
+#define RN_LOG_H
+
+#include <cstdarg>
+#include <cstddef>
+#include <cstdint>
+
+namespace rnllama {
+
+// Severity, ordered; a record is emitted when its level >= the threshold
+enum {
+    RN_LOG_DEBUG = 1,
+    RN_LOG_INFO  = 2,
+    RN_LOG_WARN  = 3,
+    RN_LOG_ERROR = 4,
+    RN_LOG_OFF   = 5,
+};
+
+struct llama_rn_log_record {
+    int32_t level;
+    char tag[16];
+    char text[492];
+};
+
+// Threshold checked before any formatting happens
+void log_set_level(int32_t level);
+bool log_enabled(int32_t level);
+
+// Without a sink records are written straight to logcat / stderr; with one they go
+// into a fixed-size lock-free ring drained by log_drain on a consumer thread
+void log_set_sink(bool enabled);
+
+void log_emit(int32_t level, const char* tag, const char* prefix, const char* format, va_list args);
+void log_emit_text(int32_t level, const char* tag, const char* text);
+
+// Routes llama.cpp / ggml logging through log_emit_text
+void log_install_llama_callback();
+
+// Waits up to timeout_ms for records, then pops everything available (single consumer).
+// dropped receives the number of records lost to a full ring since the last drain.
+size_t log_drain(int32_t timeout_ms, void (*consume)(const llama_rn_log_record&, void*), void* user_data, uint64_t* dropped);
+
+} // namespace rnllama
+
+#endif /* RN_LOG_H */
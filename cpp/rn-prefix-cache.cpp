@@ -0,0 +1,185 @@
+#include "rn-prefix-cache.h"
+#include <algorithm>
+#include <cstdint>
+
+namespace rnllama {
+
+static size_t edge_match(const std::vector<llama_token>& edge, const std::vector<llama_token>& tokens, size_t offset, size_t end) {
+    size_t k = 0;
+    while (k < edge.size() && offset + k < end && edge[k] == tokens[offset + k]) {
+        k++;
+    }
+    return k;
+}
+
+llama_rn_prefix_cache::llama_rn_prefix_cache() : n_cells(0), n_touches(0) {
+}
+
+// Split child after its first k edge tokens; returns the new upper node
+llama_rn_prefix_cache::node * llama_rn_prefix_cache::split(node * child, size_t k) {
+    node * parent = child->parent;
+    const llama_token first = child->tokens[0];
+
+    std::unique_ptr<node> upper(new node());
+    upper->parent = parent;
+    upper->tokens.assign(child->tokens.begin(), child->tokens.begin() + k);
+    upper->depth = child->depth - (int32_t) (child->tokens.size() - k);
+    upper->seqs = child->seqs;
+
+    std::unique_ptr<node> owned = std::move(parent->children[first]);
+    child->tokens.erase(child->tokens.begin(), child->tokens.begin() + k);
+    child->parent = upper.get();
+    upper->children[child->tokens[0]] = std::move(owned);
+
+    node * result = upper.get();
+    parent->children[first] = std::move(upper);
+    return result;
+}
+
+void llama_rn_prefix_cache::insert(llama_seq_id seq_id, const std::vector<llama_token>& tokens, size_t n_tokens) {
+    remove(seq_id);
+
+    const size_t n = std::min(n_tokens, tokens.size());
+    if (n == 0) {
+        return;
+    }
+
+    node * cur = &root;
+    size_t i = 0;
+    while (i < n) {
+        auto it = cur->children.find(tokens[i]);
+        if (it == cur->children.end()) {
+            std::unique_ptr<node> child(new node());
+            child->parent = cur;
+            child->tokens.assign(tokens.begin() + i, tokens.begin() + n);
+            child->depth = (int32_t) n;
+            child->seqs.insert(seq_id);
+            n_cells += (int32_t) (n - i);
+
+            node * next = child.get();
+            cur->children[tokens[i]] = std::move(child);
+            cur = next;
+            break;
+        }
+
+        node * child = it->second.get();
+        const size_t k = edge_match(child->tokens, tokens, i, n);
+        if (k < child->tokens.size()) {
+            child = split(child, k);
+        }
+        child->seqs.insert(seq_id);
+        cur = child;
+        i += k;
+    }
+
+    leaves[seq_id] = cur;
+    touch(seq_id);
+}
+
+void llama_rn_prefix_cache::truncate(llama_seq_id seq_id, size_t n_tokens) {
+    if (leaves.find(seq_id) == leaves.end()) {
+        return;
+    }
+    std::vector<llama_token> held = tokens(seq_id);
+    if (n_tokens < held.size()) {
+        insert(seq_id, held, n_tokens);
+    }
+}
+
+void llama_rn_prefix_cache::remove(llama_seq_id seq_id) {
+    auto it = leaves.find(seq_id);
+    if (it == leaves.end()) {
+        return;
+    }
+
+    // Walk up from the leaf; a node nobody holds has no held descendants either
+    node * cur = it->second;
+    while (cur != &root) {
+        node * parent = cur->parent;
+        cur->seqs.erase(seq_id);
+        if (cur->seqs.empty()) {
+            n_cells -= (int32_t) cur->tokens.size();
+            parent->children.erase(cur->tokens[0]);
+        }
+        cur = parent;
+    }
+
+    leaves.erase(it);
+    last_used.erase(seq_id);
+}
+
+void llama_rn_prefix_cache::clear() {
+    root.children.clear();
+    leaves.clear();
+    last_used.clear();
+    n_cells = 0;
+}
+
+llama_rn_prefix_cache::match llama_rn_prefix_cache::find(const std::vector<llama_token>& tokens) const {
+    match result;
+    const node * cur = &root;
+    size_t i = 0;
+    while (i < tokens.size()) {
+        auto it = cur->children.find(tokens[i]);
+        if (it == cur->children.end()) {
+            break;
+        }
+        const node * child = it->second.get();
+        const size_t k = edge_match(child->tokens, tokens, i, tokens.size());
+        result.n_tokens = (int32_t) (i + k);
+        result.holders.assign(child->seqs.begin(), child->seqs.end());
+        if (k < child->tokens.size()) {
+            break;
+        }
+        cur = child;
+        i += k;
+    }
+
+    int64_t newest = -1;
+    for (llama_seq_id seq_id : result.holders) {
+        auto it = last_used.find(seq_id);
+        if (it != last_used.end() && it->second > newest) {
+            newest = it->second;
+            result.seq_id = seq_id;
+        }
+    }
+    return result;
+}
+
+std::vector<llama_token> llama_rn_prefix_cache::tokens(llama_seq_id seq_id) const {
+    std::vector<llama_token> result;
+    auto it = leaves.find(seq_id);
+    if (it == leaves.end()) {
+        return result;
+    }
+
+    std::vector<const node *> path;
+    for (const node * cur = it->second; cur != &root; cur = cur->parent) {
+        path.push_back(cur);
+    }
+    result.reserve(it->second->depth);
+    for (auto p = path.rbegin(); p != path.rend(); ++p) {
+        result.insert(result.end(), (*p)->tokens.begin(), (*p)->tokens.end());
+    }
+    return result;
+}
+
+void llama_rn_prefix_cache::touch(llama_seq_id seq_id) {
+    if (leaves.find(seq_id) != leaves.end()) {
+        last_used[seq_id] = ++n_touches;
+    }
+}
+
+llama_seq_id llama_rn_prefix_cache::lru(const std::function<bool(llama_seq_id)>& can_evict) const {
+    llama_seq_id victim = -1;
+    int64_t oldest = INT64_MAX;
+    for (const auto& entry : last_used) {
+        if (entry.second < oldest && can_evict(entry.first)) {
+            oldest = entry.second;
+            victim = entry.first;
+        }
+    }
+    return victim;
+}
+
+} // namespace rnllama
@@ -0,0 +1,62 @@
+#ifndef RN_PREFIX_CACHE_H
+#define RN_PREFIX_CACHE_H
+
+#include "llama.h"
+#include <vector>
+#include <map>
+#include <set>
+#include <memory>
+#include <functional>
+
+namespace rnllama {
+
+// Radix tree of token prefixes resident in the KV cache, keyed by the sequence
+// (slot) holding them. Lets a new request find the longest cached prefix of its
+// prompt in any sequence so it can be copied with llama_memory_seq_cp instead of
+// being decoded again.
+struct llama_rn_prefix_cache {
+    struct node {
+        node * parent = nullptr;
+        std::vector<llama_token> tokens;    // Edge label from the parent
+        int32_t depth = 0;                  // Prefix length at the end of this node
+        std::map<llama_token, std::unique_ptr<node>> children;
+        std::set<llama_seq_id> seqs;        // Sequences whose cached prefix covers this node
+    };
+
+    struct match {
+        llama_seq_id seq_id = -1;           // Most recently used holder, -1 if nothing matched
+        int32_t n_tokens = 0;               // Matched prefix length
+        std::vector<llama_seq_id> holders;  // Every sequence holding the matched prefix
+    };
+
+    llama_rn_prefix_cache();
+
+    // Record that seq_id holds tokens[0, n_tokens) (replaces what it held before)
+    void insert(llama_seq_id seq_id, const std::vector<llama_token>& tokens, size_t n_tokens);
+    void truncate(llama_seq_id seq_id, size_t n_tokens);
+    void remove(llama_seq_id seq_id);
+    void clear();
+
+    match find(const std::vector<llama_token>& tokens) const;
+    std::vector<llama_token> tokens(llama_seq_id seq_id) const;
+    void touch(llama_seq_id seq_id);
+
+    // Least recently used sequence accepted by can_evict, -1 if none
+    llama_seq_id lru(const std::function<bool(llama_seq_id)>& can_evict) const;
+
+    // Distinct cached tokens, i.e. KV cells when sequences share their prefixes
+    int32_t size() const { return n_cells; }
+
+private:
+    node root;
+    std::map<llama_seq_id, node *> leaves;
+    std::map<llama_seq_id, int64_t> last_used;
+    int32_t n_cells;
+    int64_t n_touches;                      // Logical clock for LRU ordering
+
+    node * split(node * child, size_t k);
+};
+
+} // namespace rnllama
+
+#endif /* RN_PREFIX_CACHE_H */
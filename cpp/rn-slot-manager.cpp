@@ -3,6 +3,7 @@
 #include "rn-llama.h"
 #include "rn-mtmd.hpp"
 #include "rn-common.hpp"
+#include "rn-trace.h"
 #include "ggml.h"
 #include <algorithm>
 #include <cstring>
@@ -13,10 +14,22 @@ namespace rnllama {
 llama_rn_slot_manager::llama_rn_slot_manager(llama_rn_context* ctx) :
     parent_ctx(ctx),
     n_parallel(1),
+    max_queued_requests(0),
+    n_admitted(0),
+    n_rejected(0),
+    n_expired(0),
+    n_dequeued(0),
+    t_queue_wait_total_us(0),
+    t_queue_wait_max_us(0),
     next_request_id(1),
     n_batch(512),
+    n_batch_generated(0),
     slot_prompt_similarity(0.5f),
     continuous_batching(false),
+    kv_truncatable(true),
+    prefix_cache_enabled(false),
+    prefix_cache_copy(false),
+    prefix_cache_max_tokens(0),
     processing_active(false)
 {
     // Initialize batch to zero/null - will be properly allocated later
@@ -41,7 +54,10 @@ bool llama_rn_slot_manager::init(int32_t n_parallel_, int32_t n_batch_, int32_t
     n_parallel = n_parallel_;
     n_batch = n_batch_;
 
-    LOG_INFO("Initializing slot manager with %d parallel slots, batch size %d", n_parallel, n_batch);
+    max_queued_requests = std::max(0, parent_ctx->max_queued_requests);
+
+    LOG_INFO("Initializing slot manager with %d parallel slots, batch size %d, queue limit %d",
+             n_parallel, n_batch, max_queued_requests);
 
     // Allocate slots
     slots.resize(n_parallel);
@@ -57,6 +73,23 @@ bool llama_rn_slot_manager::init(int32_t n_parallel_, int32_t n_batch_, int32_t
         LOG_VERBOSE("Slot %d initialized with context size %d", i, n_ctx_per_slot);
     }
 
+    // Prefix sharing needs KV that can be partially copied/truncated, which rules out recurrent state
+    const llama_model * model = llama_get_model(parent_ctx->ctx);
+    kv_truncatable = !(llama_model_is_recurrent(model) || llama_model_is_hybrid(model));
+    prefix_cache_enabled = parent_ctx->prefix_cache_tokens != 0 && kv_truncatable;
+    // Separate per-sequence KV streams can only be copied whole, so partial prefixes are shared only when unified
+    prefix_cache_copy = parent_ctx->params.kv_unified || n_parallel == 1;
+    if (parent_ctx->prefix_cache_tokens > 0) {
+        prefix_cache_max_tokens = parent_ctx->prefix_cache_tokens;
+    } else {
+        // Auto: in a unified cache idle prefixes compete with active slots for cells
+        prefix_cache_max_tokens = parent_ctx->params.kv_unified ? n_ctx / 2 : 0;
+    }
+    if (prefix_cache_enabled) {
+        LOG_INFO("Prefix cache enabled (cross-slot copy=%s, budget=%d tokens)",
+                 prefix_cache_copy ? "yes" : "no", prefix_cache_max_tokens);
+    }
+
     // Allocate batch
     batch = llama_batch_init(n_batch, 0, n_parallel);
     if (batch.token == nullptr) {
@@ -85,7 +118,10 @@ int32_t llama_rn_slot_manager::queue_request(
     int32_t load_state_size,
     int32_t save_state_size,
     std::function<void(const completion_token_output&)> on_token,
-    std::function<void(llama_rn_slot*)> on_complete
+    std::function<void(llama_rn_slot*)> on_complete,
+    int32_t n_discard,
+    int32_t fork_request_id,
+    const llama_rn_queue_options& options
 ) {
     // Generate unique request ID
     int32_t request_id = next_request_id++;
@@ -118,34 +154,18 @@ int32_t llama_rn_slot_manager::queue_request(
     request.save_state_size = save_state_size;
     request.on_token = on_token;
     request.on_complete = on_complete;
+    request.n_discard = n_discard;
+    request.fork_request_id = fork_request_id;
 
-    // Add to queue
-    {
-        std::lock_guard<std::mutex> lock(slots_mutex);
-        queue_requests.emplace_back(std::move(request));
-    }
-
-    // Notify processing thread that new work is available
-    slots_cv.notify_one();
-
-    // Notify subscribers of status change (new request queued)
-    bool has_subscribers = false;
-    {
-        std::lock_guard<std::mutex> lock(subscribers_mutex);
-        has_subscribers = !status_subscribers.empty();
-    }
-    if (has_subscribers) {
-        notify_status_change();
-    }
-
-    return request_id;
+    return enqueue(std::move(request), options);
 }
 
 // Queue an embedding task for parallel processing
 int32_t llama_rn_slot_manager::queue_embedding_request(
     const std::vector<llama_token>& tokens,
     int embd_normalize,
-    std::function<void(int32_t, const std::vector<float>&)> on_result
+    std::function<void(int32_t, const std::vector<float>&)> on_result,
+    const llama_rn_queue_options& options
 ) {
     if (parent_ctx == nullptr || parent_ctx->model == nullptr || parent_ctx->ctx == nullptr) {
         LOG_ERROR("Cannot queue embedding: context not initialized");
@@ -171,24 +191,7 @@ int32_t llama_rn_slot_manager::queue_embedding_request(
     request.embd_normalize = embd_normalize;
     request.on_embedding = on_result;
 
-    {
-        std::lock_guard<std::mutex> lock(slots_mutex);
-        queue_requests.emplace_back(std::move(request));
-    }
-
-    slots_cv.notify_one();
-
-    // Notify subscribers of status change (new request queued)
-    bool has_subscribers = false;
-    {
-        std::lock_guard<std::mutex> lock(subscribers_mutex);
-        has_subscribers = !status_subscribers.empty();
-    }
-    if (has_subscribers) {
-        notify_status_change();
-    }
-
-    return request_id;
+    return enqueue(std::move(request), options);
 }
 
 // Queue a rerank task for parallel processing
@@ -196,7 +199,8 @@ int32_t llama_rn_slot_manager::queue_rerank_request(
     const std::string& query,
     const std::vector<std::string>& documents,
     int normalize,
-    std::function<void(int32_t, const std::vector<float>&)> on_results
+    std::function<void(int32_t, const std::vector<float>&)> on_results,
+    const llama_rn_queue_options& options
 ) {
     if (parent_ctx == nullptr || parent_ctx->model == nullptr || parent_ctx->ctx == nullptr) {
         LOG_ERROR("Cannot queue rerank: context not initialized");
@@ -283,11 +287,51 @@ int32_t llama_rn_slot_manager::queue_rerank_request(
         return request_id;
     }
 
+    return enqueue(std::move(request), options);
+}
+
+// Admit a request into the priority-ordered queue
+int32_t llama_rn_slot_manager::enqueue(llama_rn_queued_request&& request, const llama_rn_queue_options& options) {
+    const int32_t request_id = request.request_id;
+    request.priority = std::min(std::max(options.priority, (int32_t) RN_PRIORITY_INTERACTIVE), (int32_t) RN_PRIORITY_BATCH);
+    request.t_queued_us = lm_ggml_time_us();
+    request.deadline_us = options.deadline_ms > 0 ? request.t_queued_us + options.deadline_ms * 1000 : 0;
+    request.on_dropped = options.on_dropped;
+
+    std::vector<llama_rn_queued_request> displaced;
     {
         std::lock_guard<std::mutex> lock(slots_mutex);
-        queue_requests.emplace_back(std::move(request));
+        if (max_queued_requests > 0 && queue_requests.size() >= (size_t) max_queued_requests) {
+            // The back of the queue is the newest request of the least urgent class
+            if (queue_requests.back().priority <= request.priority) {
+                n_rejected++;
+                LOG_WARNING("Queue full (%zu requests), rejecting request %d (priority %d)",
+                            queue_requests.size(), request_id, request.priority);
+                return RN_QUEUE_REJECTED;
+            }
+            LOG_INFO("Queue full, request %d (priority %d) displaces request %d (priority %d)",
+                     request_id, request.priority, queue_requests.back().request_id, queue_requests.back().priority);
+            displaced.push_back(std::move(queue_requests.back()));
+            queue_requests.pop_back();
+            n_rejected++;
+        }
+
+        auto pos = std::upper_bound(queue_requests.begin(), queue_requests.end(), request.priority,
+            [](int32_t priority, const llama_rn_queued_request& queued) {
+                return priority < queued.priority;
+            });
+        queue_requests.insert(pos, std::move(request));
+        n_admitted++;
+    }
+
+    // Outside the lock: the callback may well queue something else
+    for (auto& dropped : displaced) {
+        if (dropped.on_dropped) {
+            dropped.on_dropped(dropped.request_id, "rejected");
+        }
     }
 
+    // Notify processing thread that new work is available
     slots_cv.notify_one();
 
     // Notify subscribers of status change (new request queued)
@@ -303,11 +347,56 @@ int32_t llama_rn_slot_manager::queue_rerank_request(
     return request_id;
 }
 
-// Get available slot (LRU strategy for now, similarity matching in Phase 3)
+// Admission pre-check
+bool llama_rn_slot_manager::can_admit(int32_t priority) {
+    std::lock_guard<std::mutex> lock(slots_mutex);
+    if (max_queued_requests <= 0 || queue_requests.size() < (size_t) max_queued_requests ||
+        queue_requests.back().priority > priority) {
+        return true;
+    }
+    n_rejected++;
+    return false;
+}
+
+// Drop queued requests past their deadline
+void llama_rn_slot_manager::expire_queued_requests(int64_t t_now_us) {
+    auto it = queue_requests.begin();
+    while (it != queue_requests.end()) {
+        if (it->deadline_us == 0 || t_now_us < it->deadline_us) {
+            ++it;
+            continue;
+        }
+        LOG_INFO("Request %d expired after %.1f ms in the queue",
+                 it->request_id, (t_now_us - it->t_queued_us) / 1e3);
+        n_expired++;
+        llama_rn_queued_request expired = std::move(*it);
+        it = queue_requests.erase(it);
+        if (expired.on_dropped) {
+            expired.on_dropped(expired.request_id, "expired");
+        }
+    }
+}
+
+// Get available slot: an idle slot already holding the longest cached prefix of the prompt, else LRU
 llama_rn_slot* llama_rn_slot_manager::get_available_slot(const std::vector<llama_token>& prompt) {
     llama_rn_slot* best_slot = nullptr;
     int64_t oldest_time = INT64_MAX;
 
+    if (prefix_cache_enabled && !prompt.empty()) {
+        const auto match = prefix_cache.find(prompt);
+        for (llama_seq_id seq_id : match.holders) {
+            llama_rn_slot& slot = slots[seq_id];
+            if ((slot.state == SLOT_STATE_IDLE || slot.state == SLOT_STATE_DONE) && slot.t_last_used < oldest_time) {
+                oldest_time = slot.t_last_used;
+                best_slot = &slot;
+            }
+        }
+        if (best_slot != nullptr) {
+            LOG_VERBOSE("Selected slot %d (holds %d prefix tokens)", best_slot->id, match.n_tokens);
+            return best_slot;
+        }
+    }
+
     // Find idle or done slot with oldest t_last_used (LRU)
     for (auto& slot : slots) {
         if (slot.state == SLOT_STATE_IDLE || slot.state == SLOT_STATE_DONE) {
@@ -347,42 +436,102 @@ void llama_rn_slot_manager::release_slot(llama_rn_slot* slot) {
     slot->reset();
 }
 
-// Cancel request
-void llama_rn_slot_manager::cancel_request(int32_t request_id) {
-    LOG_INFO("Cancelling request %d", request_id);
+bool llama_rn_slot_manager::resolve_fork(const llama_rn_queued_request& request, llama_rn_slot*& source) {
+    source = nullptr;
 
-    bool cancelled = false;
+    auto parent_it = active_requests.find(request.fork_request_id);
+    if (parent_it == active_requests.end()) {
+        // Parent not started yet: keep waiting; parent gone: prefill like any other request
+        for (const auto& queued : queue_requests) {
+            if (queued.request_id == request.fork_request_id) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-    // Check if request is active
-    auto it = active_requests.find(request_id);
-    if (it != active_requests.end()) {
-        llama_rn_slot* slot = it->second;
-        // Mark as interrupted and set to DONE state
-        // Don't call release_slot yet - let update_slots handle cleanup
-        slot->is_interrupted = true;
-        slot->state = SLOT_STATE_DONE;
-        active_requests.erase(it);
-        LOG_INFO("Request %d cancelled (was active in slot %d)", request_id, slot->id);
-        cancelled = true;
+    llama_rn_slot* parent = parent_it->second;
+    if (parent->state == SLOT_STATE_PROCESSING_PROMPT) {
+        return false;
+    }
+
+    // The parent's sequence holds exactly the prompt until its first sampled token is decoded
+    if (kv_truncatable && parent->state == SLOT_STATE_GENERATING && parent->media_paths.empty() &&
+        parent->n_past == (llama_pos) parent->num_prompt_tokens && parent->prompt_tokens == request.prompt_tokens) {
+        source = parent;
     } else {
-        // Remove from pending queue
-        auto pending_it = std::remove_if(queue_requests.begin(), queue_requests.end(),
-            [request_id](const llama_rn_queued_request& req) {
-                return req.request_id == request_id;
-            });
-        if (pending_it != queue_requests.end()) {
-            queue_requests.erase(pending_it, queue_requests.end());
-            LOG_INFO("Request %d cancelled (was in pending queue)", request_id);
-            cancelled = true;
+        LOG_VERBOSE("Request %d: parent %d already past its prompt, prefilling instead",
+                    request.request_id, request.fork_request_id);
+    }
+    return true;
+}
+
+// Make the longest cached prefix of prompt available in slot's sequence; returns its length
+size_t llama_rn_slot_manager::reuse_prefix(llama_rn_slot* slot, const std::vector<llama_token>& prompt) {
+    size_t n_reuse = find_common_prefix_length(prefix_cache.tokens(slot->id), prompt);
+
+    const auto match = prefix_cache.find(prompt);
+    if (prefix_cache_copy && match.seq_id >= 0 && match.seq_id != slot->id && (size_t) match.n_tokens > n_reuse) {
+        auto * kv = llama_get_memory(parent_ctx->ctx);
+        llama_memory_seq_rm(kv, slot->id, -1, -1);
+        llama_memory_seq_cp(kv, match.seq_id, slot->id, 0, match.n_tokens);
+        prefix_cache.touch(match.seq_id);
+        n_reuse = match.n_tokens;
+        LOG_INFO("Slot %d: Copied %d prefix tokens from slot %d", slot->id, match.n_tokens, match.seq_id);
+    }
+
+    // The slot's sequence is about to change; it is re-added once the prompt is decoded
+    prefix_cache.remove(slot->id);
+    return n_reuse;
+}
+
+// Record what slot's sequence holds (up to n_tokens, stopping at media placeholders)
+void llama_rn_slot_manager::remember_prefix(llama_rn_slot& slot, size_t n_tokens) {
+    if (!prefix_cache_enabled) {
+        return;
+    }
+    const auto& tokens = slot.cache_tokens;
+    size_t n = std::min(n_tokens, tokens.size());
+    auto null_it = std::find(tokens.begin(), tokens.begin() + n, LLAMA_TOKEN_NULL);
+    n = std::distance(tokens.begin(), null_it);
+
+    prefix_cache.insert(slot.id, tokens, n);
+    evict_prefixes();
+}
+
+// Drop least recently used idle prefixes until the cache fits its KV budget
+void llama_rn_slot_manager::evict_prefixes() {
+    if (prefix_cache_max_tokens <= 0) {
+        return;
+    }
+    auto * kv = llama_get_memory(parent_ctx->ctx);
+    while (prefix_cache.size() > prefix_cache_max_tokens) {
+        llama_seq_id victim = prefix_cache.lru([this](llama_seq_id seq_id) {
+            return slots[seq_id].state == SLOT_STATE_IDLE;
+        });
+        if (victim < 0) {
+            break;
         }
+        LOG_VERBOSE("Evicting cached prefix of slot %d", victim);
+        llama_memory_seq_rm(kv, victim, -1, -1);
+        prefix_cache.remove(victim);
+        slots[victim].cache_tokens.clear();
+    }
+}
+
+// Cancel request
+void llama_rn_slot_manager::cancel_request(int32_t request_id) {
+    bool cancelled;
+    {
+        std::lock_guard<std::mutex> lock(slots_mutex);
+        cancelled = cancel_request_locked(request_id);
     }
 
     if (!cancelled) {
-        LOG_WARNING("Request %d not found for cancellation", request_id);
         return;
     }
 
-    // Notify subscribers of status change
+    // Notify subscribers of status change (get_status takes slots_mutex)
     bool has_subscribers = false;
     {
         std::lock_guard<std::mutex> lock(subscribers_mutex);
@@ -393,6 +542,37 @@ void llama_rn_slot_manager::cancel_request(int32_t request_id) {
     }
 }
 
+bool llama_rn_slot_manager::cancel_request_locked(int32_t request_id) {
+    LOG_INFO("Cancelling request %d", request_id);
+
+    // Check if request is active
+    auto it = active_requests.find(request_id);
+    if (it != active_requests.end()) {
+        llama_rn_slot* slot = it->second;
+        // Mark as interrupted and set to DONE state
+        // Don't call release_slot yet - let update_slots handle cleanup
+        slot->is_interrupted = true;
+        slot->state = SLOT_STATE_DONE;
+        active_requests.erase(it);
+        LOG_INFO("Request %d cancelled (was active in slot %d)", request_id, slot->id);
+        return true;
+    }
+
+    // Remove from pending queue
+    auto pending_it = std::remove_if(queue_requests.begin(), queue_requests.end(),
+        [request_id](const llama_rn_queued_request& req) {
+            return req.request_id == request_id;
+        });
+    if (pending_it != queue_requests.end()) {
+        queue_requests.erase(pending_it, queue_requests.end());
+        LOG_INFO("Request %d cancelled (was in pending queue)", request_id);
+        return true;
+    }
+
+    LOG_WARNING("Request %d not found for cancellation", request_id);
+    return false;
+}
+
 // Compute similarity between two token sequences (stub for Phase 3)
 float llama_rn_slot_manager::compute_similarity(
     const std::vector<llama_token>& a,
@@ -417,8 +597,20 @@ float llama_rn_slot_manager::compute_similarity(
 
 // Process pending queue
 void llama_rn_slot_manager::process_pending_queue() {
-    while (!queue_requests.empty()) {
-        llama_rn_queued_request& request = queue_requests.front();
+    // Nothing past its deadline gets a slot
+    const int64_t t_now = lm_ggml_time_us();
+    expire_queued_requests(t_now);
+
+    auto it = queue_requests.begin();
+    while (it != queue_requests.end()) {
+        llama_rn_queued_request& request = *it;
+
+        // A parallel-sampling branch waits until its parent has decoded the shared prompt
+        llama_rn_slot* fork_source = nullptr;
+        if (request.fork_request_id >= 0 && !resolve_fork(request, fork_source)) {
+            ++it;
+            continue;
+        }
 
         const std::vector<llama_token>* prompt_view = nullptr;
         std::vector<llama_token> empty_prompt;
@@ -444,8 +636,31 @@ void llama_rn_slot_manager::process_pending_queue() {
             break;
         }
 
+        // Reuse a cached prefix for plain-text completions; anything else overwrites the sequence
+        size_t n_cached = 0;
+        if (fork_source != nullptr) {
+            // Whole-sequence copies work across per-slot KV streams too
+            auto * kv = llama_get_memory(parent_ctx->ctx);
+            llama_memory_seq_rm(kv, slot->id, -1, -1);
+            llama_memory_seq_cp(kv, fork_source->id, slot->id, -1, -1);
+            n_cached = request.prompt_tokens.size();
+            prefix_cache.remove(slot->id);
+            LOG_INFO("Slot %d: Forked %zu prompt tokens from slot %d (request %d)",
+                     slot->id, n_cached, fork_source->id, request.fork_request_id);
+        } else if (prefix_cache_enabled) {
+            const bool can_reuse = request.task_type == SLOT_TASK_TYPE_COMPLETION &&
+                                   request.load_state_path.empty() && request.media_paths.empty();
+            if (can_reuse) {
+                n_cached = reuse_prefix(slot, request.prompt_tokens);
+            } else {
+                prefix_cache.remove(slot->id);
+            }
+        }
+
         // Assign request to slot
         slot->request_id = request.request_id;
+        slot->priority = request.priority;
+        slot->t_queue_wait_us = t_now - request.t_queued_us;
         slot->task_type = request.task_type;
         slot->is_interrupted = false;
 
@@ -464,7 +679,8 @@ void llama_rn_slot_manager::process_pending_queue() {
 
         switch (request.task_type) {
             case SLOT_TASK_TYPE_COMPLETION: {
-                slot->params = &request.params;
+                slot->task_params = request.params;
+                slot->params = &slot->task_params;
                 slot->ctx_sampling = common_sampler_init(parent_ctx->model, request.params.sampling);
 
                 // Assign state parameters
@@ -486,7 +702,7 @@ void llama_rn_slot_manager::process_pending_queue() {
                         if (request.on_complete) {
                             request.on_complete(slot);
                         }
-                        queue_requests.pop_front();
+                        it = queue_requests.erase(it);
                         continue;
                     }
                 }
@@ -507,7 +723,7 @@ void llama_rn_slot_manager::process_pending_queue() {
                     slot->media_paths.clear();
                     slot->prompt_text.clear();
                     slot->media_processed = true;
-                    slot->load_prompt(request.prompt_tokens);
+                    slot->load_prompt(request.prompt_tokens, n_cached);
                 }
                 slot->i_batch = -1;
 
@@ -519,12 +735,15 @@ void llama_rn_slot_manager::process_pending_queue() {
                 slot->current_chat_parser = request.chat_parser;
                 slot->prefill_text = request.prefill_text;
                 slot->n_remaining = request.params.n_predict;
-                slot->stop_words = request.params.antiprompt;
+                slot->stop_matcher.set_words(request.params.antiprompt);
+                slot->n_keep = request.params.n_keep;
+                slot->n_discard = request.n_discard;
                 break;
             }
 
             case SLOT_TASK_TYPE_EMBEDDING: {
-                slot->params = &request.params;
+                slot->task_params = request.params;
+                slot->params = &slot->task_params;
                 // Start timing (no state loading for embeddings)
                 slot->t_start_process = lm_ggml_time_us();
 
@@ -534,7 +753,7 @@ void llama_rn_slot_manager::process_pending_queue() {
                 slot->embd_normalize = request.embd_normalize;
                 slot->on_embedding_callback = request.on_embedding;
                 slot->n_remaining = -1;
-                slot->stop_words.clear();
+                slot->stop_matcher.clear();
                 slot->load_prompt(request.prompt_tokens);
                 slot->i_batch = -1;
                 break;
@@ -548,12 +767,13 @@ void llama_rn_slot_manager::process_pending_queue() {
                 if (parent_ctx && parent_ctx->ctx) {
                     llama_memory_clear(llama_get_memory(parent_ctx->ctx), false);
                 }
+                prefix_cache.clear();
                 if (request.rerank_prompt_tokens.empty()) {
                     LOG_WARNING("Rerank request %d has no documents to process", request.request_id);
                     if (request.on_rerank) {
                         request.on_rerank(request.request_id, {});
                     }
-                    queue_requests.pop_front();
+                    it = queue_requests.erase(it);
                     continue;
                 }
 
@@ -566,7 +786,7 @@ void llama_rn_slot_manager::process_pending_queue() {
                 slot->rerank_scores.assign(slot->rerank_prompt_tokens.size(), 0.0f);
                 slot->rerank_current_index = 0;
                 slot->n_remaining = -1;
-                slot->stop_words.clear();
+                slot->stop_matcher.clear();
                 slot->load_prompt(slot->rerank_prompt_tokens[0]);
                 slot->i_batch = -1;
                 break;
@@ -574,15 +794,18 @@ void llama_rn_slot_manager::process_pending_queue() {
 
             default:
                 LOG_ERROR("Unknown task type %d for request %d", request.task_type, request.request_id);
-                queue_requests.pop_front();
+                it = queue_requests.erase(it);
                 continue;
         }
 
         // Track active request
         active_requests[request.request_id] = slot;
+        n_dequeued++;
+        t_queue_wait_total_us += slot->t_queue_wait_us;
+        t_queue_wait_max_us = std::max(t_queue_wait_max_us, slot->t_queue_wait_us);
 
         // Remove from queue
-        queue_requests.pop_front();
+        it = queue_requests.erase(it);
     }
 }
 
@@ -590,6 +813,7 @@ void llama_rn_slot_manager::process_pending_queue() {
 void llama_rn_slot_manager::build_batch() {
     // Clear the batch
     batch.n_tokens = 0;
+    n_batch_generated = 0;
 
     // First pass: Add tokens from GENERATING slots (previously sampled tokens)
     for (auto& slot : slots) {
@@ -604,6 +828,7 @@ void llama_rn_slot_manager::build_batch() {
 
                 // Mark position in batch for this slot
                 slot.i_batch = batch.n_tokens - 1;
+                n_batch_generated++;
 
                 slot.n_past++; // Increment for next token
 
@@ -634,19 +859,22 @@ void llama_rn_slot_manager::build_batch() {
                     slot.n_past = 0;
                     bool context_full = false;
 
-                    parent_ctx->mtmd_wrapper->processMedia(
-                        parent_ctx->ctx,
-                        slot.prompt_text,
-                        slot.media_paths,
-                        parent_ctx->n_ctx,
-                        n_batch,
-                        slot.n_past,
-                        slot.embd,
-                        context_full,
-                        slot.ctx_sampling,
-                        slot.bitmap_past_hashes,
-                        slot.id  // Use slot ID as sequence ID for parallel processing
-                    );
+                    {
+                        auto compute = parent_ctx->lockCompute();
+                        parent_ctx->mtmd_wrapper->processMedia(
+                            parent_ctx->ctx,
+                            slot.prompt_text,
+                            slot.media_paths,
+                            parent_ctx->n_ctx,
+                            n_batch,
+                            slot.n_past,
+                            slot.embd,
+                            context_full,
+                            slot.ctx_sampling,
+                            slot.bitmap_past_hashes,
+                            slot.id  // Use slot ID as sequence ID for parallel processing
+                        );
+                    }
 
                     if (context_full) {
                         LOG_ERROR("Context full after processing media for slot %d", slot.id);
@@ -778,7 +1006,11 @@ bool llama_rn_slot_manager::process_batch() {
     }
 
     // Call llama_decode with the unified batch
-    int ret = llama_decode(parent_ctx->ctx, batch);
+    int ret;
+    {
+        auto compute = parent_ctx->lockCompute();
+        ret = llama_decode(parent_ctx->ctx, batch);
+    }
 
     if (ret != 0) {
         // Decode failed
@@ -865,6 +1097,16 @@ void llama_rn_slot_manager::sample_and_callback() {
                     slot.state = SLOT_STATE_DONE;
                     LOG_INFO("Slot %d: Stopped on EOS token", slot.id);
 
+                    // Release text held back as a possible stop word
+                    std::string held = slot.stop_matcher.take_stream_text(slot.generated_text, true);
+                    if (!held.empty() && slot.on_token_callback) {
+                        completion_token_output token_output;
+                        token_output.tok = -1;
+                        token_output.text = held;
+                        token_output.request_id = slot.request_id;
+                        slot.on_token_callback(token_output);
+                    }
+
                     // Save state if path is provided
                     if (!slot.save_state_path.empty()) {
                         slot.save_state();
@@ -879,13 +1121,22 @@ void llama_rn_slot_manager::sample_and_callback() {
                 std::string token_text = common_token_to_piece(parent_ctx->ctx, new_token_id);
                 slot.generated_text += token_text;
 
+                bool should_stop = false;
+
+                if (slot.stop_matcher.feed(token_text)) {
+                    slot.stopped_word = true;
+                    slot.stopping_word = slot.stop_matcher.match();
+                    slot.generated_text.resize(slot.stop_matcher.match_pos());
+                    should_stop = true;
+                    LOG_INFO("Slot %d: Stopped on word '%s'", slot.id, slot.stopping_word.c_str());
+                }
+
                 // Update token generation timing
                 const int64_t t_current = lm_ggml_time_us();
                 slot.t_token_generation = (t_current - slot.t_start_generation) / 1e6;
 
                 completion_token_output token_output;
                 token_output.tok = new_token_id;
-                token_output.text = token_text;
                 token_output.request_id = slot.request_id;
 
                 const int32_t n_probs = slot.params->sampling.n_probs;
@@ -904,12 +1155,6 @@ void llama_rn_slot_manager::sample_and_callback() {
                 // This is needed for state saving
                 slot.cache_tokens.push_back(new_token_id);
 
-                if (slot.on_token_callback) {
-                    slot.on_token_callback(token_output);
-                }
-
-                bool should_stop = false;
-
                 if (slot.n_remaining > 0) {
                     slot.n_remaining--;
                     if (slot.n_remaining == 0) {
@@ -920,29 +1165,20 @@ void llama_rn_slot_manager::sample_and_callback() {
                 }
 
                 if (slot.n_past >= slot.n_ctx) {
-                    slot.context_full = true;
-                    should_stop = true;
-                    LOG_WARNING("Slot %d: Context full", slot.id);
+                    int32_t n_kept = 0;
+                    if (slot.context_shift(&n_kept)) {
+                        prefix_cache.truncate(slot.id, n_kept);
+                    } else {
+                        slot.context_full = true;
+                        should_stop = true;
+                        LOG_WARNING("Slot %d: Context full", slot.id);
+                    }
                 }
 
-                if (!slot.stop_words.empty() && !slot.generated_text.empty()) {
-                    const std::string& text = slot.generated_text;
-                    const size_t last_token_size = token_text.size();
-
-                    for (const std::string& word : slot.stop_words) {
-                        const size_t search_start = text.size() > word.size() + last_token_size
-                            ? text.size() - word.size() - last_token_size
-                            : 0;
-                        size_t pos = text.find(word, search_start);
-
-                        if (pos != std::string::npos) {
-                            slot.stopped_word = true;
-                            slot.stopping_word = word;
-                            should_stop = true;
-                            LOG_INFO("Slot %d: Stopped on word '%s'", slot.id, word.c_str());
-                            break;
-                        }
-                    }
+                // Stream the new text up to a possible partial stop word, and all of it once the slot stops
+                token_output.text = slot.stop_matcher.take_stream_text(slot.generated_text, should_stop);
+                if (slot.on_token_callback) {
+                    slot.on_token_callback(token_output);
                 }
 
                 if (should_stop) {
@@ -1043,6 +1279,13 @@ void llama_rn_slot_manager::release_completed_slots() {
                 active_requests.erase(it);
             }
 
+            // Keep the decoded tokens (prompt + reply) around for the next turn
+            if (slot.task_type == SLOT_TASK_TYPE_COMPLETION && !slot.incomplete && slot.media_paths.empty()) {
+                remember_prefix(slot, slot.n_past);
+            } else {
+                prefix_cache.remove(slot.id);
+            }
+
             // Release slot
             release_slot(&slot);
         }
@@ -1075,18 +1318,33 @@ void llama_rn_slot_manager::update_slots() {
     }
 
     // Step 3: Build batch from all active slots (with mutex)
+    const bool tracing = trace_enabled();
+    llama_rn_batch_trace trace = {};
     {
         std::lock_guard<std::mutex> lock(slots_mutex);
         build_batch();
+        if (tracing) {
+            trace.n_tokens = batch.n_tokens;
+            trace.n_prompt_tokens = batch.n_tokens - n_batch_generated;
+            for (const auto& slot : slots) {
+                if (slot.state == SLOT_STATE_PROCESSING_PROMPT || slot.state == SLOT_STATE_GENERATING) {
+                    trace.n_seqs++;
+                }
+            }
+        }
     }
 
     // Step 4: Process batch if we have tokens (NO mutex - llama_decode is thread-safe)
     if (batch.n_tokens > 0) {
+        const int64_t t_decode_start = tracing ? lm_ggml_time_us() : 0;
         bool success = process_batch();
+        if (tracing) trace.t_decode_us = lm_ggml_time_us() - t_decode_start;
         if (!success) {
             LOG_ERROR("Batch processing failed");
             // Mark all active slots as done with error (with mutex)
             std::lock_guard<std::mutex> lock(slots_mutex);
+            // Sequences touched by the failed batch may be partially written
+            prefix_cache.clear();
             for (auto& slot : slots) {
                 if (slot.state == SLOT_STATE_PROCESSING_PROMPT || slot.state == SLOT_STATE_GENERATING) {
                     slot.state = SLOT_STATE_DONE;
@@ -1106,6 +1364,9 @@ void llama_rn_slot_manager::update_slots() {
             const int64_t t_now = lm_ggml_time_us();
             for (auto& slot : slots) {
                 if (slot.prompt_processing_finished) {
+                    if (slot.task_type == SLOT_TASK_TYPE_COMPLETION && slot.media_paths.empty()) {
+                        remember_prefix(slot, slot.num_prompt_tokens);
+                    }
                     slot.t_start_generation = t_now;
                     slot.t_prompt_processing = (slot.t_start_generation - slot.t_start_process) / 1e6;
                     slot.prompt_processing_finished = false;  // Clear the flag
@@ -1144,8 +1405,13 @@ void llama_rn_slot_manager::update_slots() {
 
     // Step 5: Sample tokens and invoke callbacks for GENERATING slots (with mutex)
     {
+        const int64_t t_sample_start = tracing ? lm_ggml_time_us() : 0;
         std::lock_guard<std::mutex> lock(slots_mutex);
         sample_and_callback();
+        if (tracing) trace.t_sample_us = lm_ggml_time_us() - t_sample_start;
+    }
+    if (tracing && trace.n_tokens > 0) {
+        trace_batch(trace);
     }
 
     // Step 6: Release completed slots (with mutex)
@@ -1246,6 +1512,26 @@ llama_rn_parallel_status llama_rn_slot_manager::get_status() {
     status.n_parallel = n_parallel;
     status.active_slots = 0;
     status.queued_requests = static_cast<int32_t>(queue_requests.size());
+    status.cached_prefix_tokens = prefix_cache.size();
+    status.kv_size = static_cast<int32_t>(llama_n_ctx(parent_ctx->ctx));
+    status.kv_used_cells = 0;
+    auto * kv = llama_get_memory(parent_ctx->ctx);
+    for (const auto& slot : slots) {
+        const llama_pos pos_max = llama_memory_seq_pos_max(kv, slot.id);
+        if (pos_max >= 0) {
+            status.kv_used_cells += pos_max - llama_memory_seq_pos_min(kv, slot.id) + 1;
+        }
+    }
+    status.kv_used_cells = std::min(status.kv_used_cells, status.kv_size);
+    status.max_queued_requests = max_queued_requests;
+    std::fill(std::begin(status.queued_by_priority), std::end(status.queued_by_priority), 0);
+    status.requests_admitted = n_admitted;
+    status.requests_rejected = n_rejected;
+    status.requests_expired = n_expired;
+    status.queue_wait_avg_ms = n_dequeued > 0 ? t_queue_wait_total_us / 1e3 / n_dequeued : 0.0;
+    status.queue_wait_max_ms = t_queue_wait_max_us / 1e3;
+    status.oldest_queued_ms = 0.0;
+    const int64_t t_now = lm_ggml_time_us();
 
     // Add active slot requests
     for (const auto& slot : slots) {
@@ -1254,6 +1540,8 @@ llama_rn_parallel_status llama_rn_slot_manager::get_status() {
 
             llama_rn_request_status req_status;
             req_status.request_id = slot.request_id;
+            req_status.priority = slot.priority;
+            req_status.queued_ms = slot.t_queue_wait_us / 1e3;
 
             // Map task type to string
             switch (slot.task_type) {
@@ -1285,6 +1573,10 @@ llama_rn_parallel_status llama_rn_slot_manager::get_status() {
     for (const auto& queued : queue_requests) {
         llama_rn_request_status req_status;
         req_status.request_id = queued.request_id;
+        req_status.priority = queued.priority;
+        req_status.queued_ms = (t_now - queued.t_queued_us) / 1e3;
+        status.queued_by_priority[queued.priority]++;
+        status.oldest_queued_ms = std::max(status.oldest_queued_ms, req_status.queued_ms);
 
         switch (queued.task_type) {
             case SLOT_TASK_TYPE_COMPLETION: req_status.type = "completion"; break;
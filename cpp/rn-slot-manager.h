@@ -2,6 +2,7 @@
 #define RN_SLOT_MANAGER_H
 
 #include "rn-slot.h"
+#include "rn-prefix-cache.h"
 #include "common.h"
 #include "llama.h"
 #include <vector>
@@ -24,6 +25,8 @@ struct llama_rn_request_status {
     int32_t request_id;
     std::string type;           // "completion", "embedding", "rerank"
     std::string state;          // "queued", "processing_prompt", "generating", "done"
+    int32_t priority;
+    double queued_ms;           // Time spent waiting for a slot
     size_t prompt_length;
     size_t tokens_generated;
     double prompt_ms;
@@ -35,9 +38,32 @@ struct llama_rn_parallel_status {
     int32_t n_parallel;
     int32_t active_slots;
     int32_t queued_requests;
+    int32_t cached_prefix_tokens;
+    int32_t kv_size;                                   // KV cells in the context
+    int32_t kv_used_cells;                             // Held by slot sequences; a shared prefix counts per holder
+    int32_t max_queued_requests;                       // 0 = unbounded
+    int32_t queued_by_priority[RN_PRIORITY_COUNT];
+    int64_t requests_admitted;                         // Totals since parallel mode was enabled
+    int64_t requests_rejected;                         // Queue full, or displaced by a more urgent request
+    int64_t requests_expired;                          // Deadline passed before prefill
+    double queue_wait_avg_ms;                          // Over requests that got a slot
+    double queue_wait_max_ms;
+    double oldest_queued_ms;
     std::vector<llama_rn_request_status> requests;
 };
 
+// Returned by the queue_* methods instead of a request id when admission fails
+constexpr int32_t RN_QUEUE_REJECTED = -2;
+
+// Scheduling options shared by every request type
+struct llama_rn_queue_options {
+    int32_t priority = RN_PRIORITY_NORMAL;
+    int64_t deadline_ms = 0;    // Relative to queuing; dropped if no slot was free by then. 0 = none
+    // Called instead of the result callback when the request leaves the queue without running
+    // ("expired" or "rejected"); never called when queue_* itself returns RN_QUEUE_REJECTED
+    std::function<void(int32_t request_id, const std::string& reason)> on_dropped;
+};
+
 // Queued request structure
 struct llama_rn_queued_request {
     int32_t request_id;
@@ -60,6 +86,12 @@ struct llama_rn_queued_request {
     // Prefill text
     std::string prefill_text;
 
+    // Context shift window (n_keep comes from params)
+    int32_t n_discard;
+
+    // Parallel sampling: branch request whose prompt KV is copied from this request (-1 = none)
+    int32_t fork_request_id;
+
     // Embedding parameters
     int embd_normalize;
     std::function<void(int32_t, const std::vector<float>&)> on_embedding;
@@ -75,15 +107,26 @@ struct llama_rn_queued_request {
     int32_t load_state_size;           // Number of tokens to load (0 or -1 = all tokens)
     int32_t save_state_size;           // Number of tokens to save (0 or -1 = all tokens)
 
+    // Scheduling
+    int32_t priority;
+    int64_t t_queued_us;
+    int64_t deadline_us;               // Absolute (lm_ggml_time_us), 0 = none
+    std::function<void(int32_t, const std::string&)> on_dropped;
+
     llama_rn_queued_request() :
         request_id(-1),
         task_type(SLOT_TASK_TYPE_COMPLETION),
         chat_format(0),
         reasoning_format(COMMON_REASONING_FORMAT_NONE),
         thinking_forced_open(false),
+        n_discard(0),
+        fork_request_id(-1),
         embd_normalize(-1),
         load_state_size(-1),
-        save_state_size(-1)
+        save_state_size(-1),
+        priority(RN_PRIORITY_NORMAL),
+        t_queued_us(0),
+        deadline_us(0)
     {}
 };
 
@@ -96,20 +139,37 @@ struct llama_rn_slot_manager {
     std::vector<llama_rn_slot> slots;
     int32_t n_parallel;                    // Number of parallel slots
 
-    // Request queue
+    // Request queue, ordered by priority class and FIFO within a class
     std::deque<llama_rn_queued_request> queue_requests;
+    int32_t max_queued_requests;           // 0 = unbounded
+
+    // Queue metrics (guarded by slots_mutex)
+    int64_t n_admitted;
+    int64_t n_rejected;
+    int64_t n_expired;
+    int64_t n_dequeued;
+    int64_t t_queue_wait_total_us;
+    int64_t t_queue_wait_max_us;
 
     // Request tracking
     std::map<int32_t, llama_rn_slot*> active_requests;  // request_id -> slot
-    int32_t next_request_id;
+    std::atomic<int32_t> next_request_id;  // Requests may be queued from any thread
 
     // Batch processing
     llama_batch batch;
     int32_t n_batch;                       // Max batch size
+    int32_t n_batch_generated;             // Tokens in the current batch that were sampled, not prompt
 
     // Configuration
     float slot_prompt_similarity;          // Threshold for cache reuse (0.0-1.0)
     bool continuous_batching;              // Allow mixing prompt/generation
+    bool kv_truncatable;                   // Sequences can be cut at any position (not recurrent state)
+
+    // Prompt prefixes resident in slot sequences, shared with new requests via seq_cp
+    llama_rn_prefix_cache prefix_cache;
+    bool prefix_cache_enabled;
+    bool prefix_cache_copy;                // Cross-slot copies need a unified KV cache
+    int32_t prefix_cache_max_tokens;       // 0 = no limit
 
     // Processing loop control
     std::mutex slots_mutex;                // Mutex for thread-safe access to slots
@@ -148,27 +208,41 @@ struct llama_rn_slot_manager {
         int32_t load_state_size,
         int32_t save_state_size,
         std::function<void(const completion_token_output&)> on_token,
-        std::function<void(llama_rn_slot*)> on_complete
+        std::function<void(llama_rn_slot*)> on_complete,
+        int32_t n_discard = 0,
+        int32_t fork_request_id = -1,
+        const llama_rn_queue_options& options = {}
     );
 
     int32_t queue_embedding_request(
         const std::vector<llama_token>& tokens,
         int embd_normalize,
-        std::function<void(int32_t, const std::vector<float>&)> on_result
+        std::function<void(int32_t, const std::vector<float>&)> on_result,
+        const llama_rn_queue_options& options = {}
     );
 
     int32_t queue_rerank_request(
         const std::string& query,
         const std::vector<std::string>& documents,
         int normalize,
-        std::function<void(int32_t, const std::vector<float>&)> on_results
+        std::function<void(int32_t, const std::vector<float>&)> on_results,
+        const llama_rn_queue_options& options = {}
     );
 
+    // Admission: inserts by priority class, FIFO within a class. A full queue sheds its newest
+    // least urgent request if that is less urgent than this one, else returns RN_QUEUE_REJECTED
+    int32_t enqueue(llama_rn_queued_request&& request, const llama_rn_queue_options& options);
+    // Cheap check before tokenizing a prompt; a failed check counts as a rejection
+    bool can_admit(int32_t priority);
+    // Drops queued requests whose deadline has passed (caller holds slots_mutex)
+    void expire_queued_requests(int64_t t_now_us);
+
     // Slot management
     llama_rn_slot* get_available_slot(const std::vector<llama_token>& prompt);
     llama_rn_slot* get_slot_by_request_id(int32_t request_id);
     void release_slot(llama_rn_slot* slot);
-    void cancel_request(int32_t request_id);
+    void cancel_request(int32_t request_id);         // Acquires slots_mutex
+    bool cancel_request_locked(int32_t request_id);  // Caller holds slots_mutex (e.g. from a slot callback)
 
     // Processing loop management
     void start_processing_loop();
@@ -184,6 +258,15 @@ struct llama_rn_slot_manager {
     bool process_batch();
     void sample_and_callback();
 
+    // Parallel sampling: false while the parent's prompt is still pending; source stays null
+    // when the branch has to fall back to a regular prefill
+    bool resolve_fork(const llama_rn_queued_request& request, llama_rn_slot*& source);
+
+    // Prefix cache helpers
+    size_t reuse_prefix(llama_rn_slot* slot, const std::vector<llama_token>& prompt);
+    void remember_prefix(llama_rn_slot& slot, size_t n_tokens);
+    void evict_prefixes();
+
     // Process pending queue
     void process_pending_queue();
 
@@ -12,6 +12,7 @@ namespace rnllama {
 llama_rn_slot::llama_rn_slot() :
     id(-1),
     request_id(-1),
+    priority(RN_PRIORITY_NORMAL),
     state(SLOT_STATE_IDLE),
     task_type(SLOT_TASK_TYPE_COMPLETION),
     parent_ctx(nullptr),
@@ -26,6 +27,8 @@ llama_rn_slot::llama_rn_slot() :
     incomplete(false),
     context_full(false),
     truncated(false),
+    n_keep(0),
+    n_discard(0),
     stopped_eos(false),
     stopped_word(false),
     stopped_limit(false),
@@ -36,6 +39,7 @@ llama_rn_slot::llama_rn_slot() :
     t_start_process(0),
     t_start_generation(0),
     t_last_used(0),
+    t_queue_wait_us(0),
     n_prompt_tokens_cache(0),
     n_prompt_tokens_processed(0),
     t_prompt_processing(0.0),
@@ -63,6 +67,8 @@ llama_rn_slot::~llama_rn_slot() {
 void llama_rn_slot::reset() {
     state = SLOT_STATE_IDLE;
     request_id = -1;
+    priority = RN_PRIORITY_NORMAL;
+    t_queue_wait_us = 0;
     n_past = 0;
     n_decoded = 0;
     n_remaining = -1;
@@ -82,11 +88,13 @@ void llama_rn_slot::reset() {
     incomplete = false;
     context_full = false;
     truncated = false;
+    n_keep = 0;
+    n_discard = 0;
     stopped_eos = false;
     stopped_word = false;
     stopped_limit = false;
     stopping_word.clear();
-    stop_words.clear();
+    stop_matcher.clear();
     error_message.clear();
 
     // Clear multimodal state
@@ -152,8 +160,45 @@ void llama_rn_slot::reset() {
     // Note: Keep t_last_used for LRU tracking
 }
 
-// Load prompt tokens
-void llama_rn_slot::load_prompt(const std::vector<llama_token>& tokens) {
+// Shift this slot's sequence: keep BOS plus n_keep tokens, drop the next
+// n_discard and slide the remainder down
+bool llama_rn_slot::context_shift(int32_t * n_kept) {
+    if (parent_ctx == nullptr || !parent_ctx->params.ctx_shift) {
+        return false;
+    }
+
+    auto * kv = llama_get_memory(parent_ctx->ctx);
+    if (!llama_memory_can_shift(kv)) {
+        LOG_WARNING("Slot %d: context shift is not supported by this model's memory", id);
+        return false;
+    }
+
+    const int32_t keep = std::min(n_keep < 0 ? (int32_t) num_prompt_tokens : n_keep, n_ctx - 4) + 1;
+    const int32_t n_left = n_past - keep;
+    const int32_t n_shift = n_discard > 0 ? std::min(n_discard, n_left) : n_left / 2;
+    if (n_shift <= 0) {
+        return false;
+    }
+
+    llama_memory_seq_rm (kv, id, keep          , keep + n_shift);
+    llama_memory_seq_add(kv, id, keep + n_shift, n_past, -n_shift);
+
+    if (cache_tokens.size() >= (size_t) (keep + n_shift)) {
+        cache_tokens.erase(cache_tokens.begin() + keep, cache_tokens.begin() + keep + n_shift);
+    }
+
+    n_past -= n_shift;
+    truncated = true;
+    if (n_kept != nullptr) {
+        *n_kept = keep;
+    }
+
+    LOG_VERBOSE("Slot %d: context shifted, n_keep: %d, n_discard: %d, new n_past: %d", id, keep, n_shift, n_past);
+    return true;
+}
+
+// Load prompt tokens; n_cached leading tokens are already in this slot's sequence
+void llama_rn_slot::load_prompt(const std::vector<llama_token>& tokens, size_t n_cached) {
     prompt_tokens = tokens;
     num_prompt_tokens = tokens.size();
     state = SLOT_STATE_PROCESSING_PROMPT;
@@ -232,6 +277,21 @@ void llama_rn_slot::load_prompt(const std::vector<llama_token>& tokens) {
 
             cache_tokens = tokens;
         }
+    } else if (n_cached > 0 && !tokens.empty()) {
+        // Prefix kept from an earlier request or copied from another slot's sequence.
+        // Re-evaluate at least the last prompt token to get fresh logits.
+        n_past = std::min(n_cached, tokens.size() - 1);
+        n_decoded = 0;
+        n_prompt_tokens_cache = n_past;
+
+        if (parent_ctx && parent_ctx->ctx) {
+            auto * kv = llama_get_memory(parent_ctx->ctx);
+            llama_memory_seq_rm(kv, id, n_past, -1);
+        }
+        LOG_INFO("Slot %d (req=%d): Reusing %d cached prefix tokens of %zu prompt tokens",
+                 id, request_id, n_past, tokens.size());
+
+        cache_tokens = tokens;
     } else {
         // No loaded state, start fresh
         n_past = 0;
@@ -4,6 +4,7 @@
 #include "common.h"
 #include "llama.h"
 #include "sampling.h"
+#include "rn-stop-matcher.h"
 #include <vector>
 #include <string>
 #include <functional>
@@ -37,6 +38,14 @@ enum llama_rn_slot_task_type {
     SLOT_TASK_TYPE_RERANK,
 };
 
+// Priority classes: a queued request never waits behind one of a less urgent class
+enum llama_rn_priority {
+    RN_PRIORITY_INTERACTIVE = 0,
+    RN_PRIORITY_NORMAL = 1,
+    RN_PRIORITY_BATCH = 2,
+    RN_PRIORITY_COUNT = 3
+};
+
 // Slot states
 enum llama_rn_slot_state {
     SLOT_STATE_IDLE = 0,           // Available for new requests
@@ -50,6 +59,7 @@ struct llama_rn_slot {
     // Slot identification
     int32_t id;                    // Slot index (0 to n_parallel-1)
     int32_t request_id;            // Unique request identifier
+    int32_t priority;              // Priority class of the current request (llama_rn_priority)
     llama_rn_slot_state state;
     llama_rn_slot_task_type task_type; // Current task type assigned to slot
 
@@ -82,11 +92,13 @@ struct llama_rn_slot {
     bool incomplete;
     bool context_full;
     bool truncated;
+    int32_t n_keep;                // Prompt tokens kept on context shift (-1 = whole prompt)
+    int32_t n_discard;             // Tokens dropped per context shift (<= 0 = half of the shiftable window)
     bool stopped_eos;
     bool stopped_word;
     bool stopped_limit;
     std::string stopping_word;
-    std::vector<std::string> stop_words;  // Stop words for this slot
+    llama_rn_stop_matcher stop_matcher;    // Stop words for this slot; also tracks what was streamed
     std::string error_message;             // Error message if completion failed
 
     // Chat parsing state
@@ -96,6 +108,7 @@ struct llama_rn_slot {
     std::string current_chat_parser;  // Serialized PEG parser for chat output parsing
 
     // Sampling context (per-slot)
+    common_params task_params;     // Copy of the request params; the queued request is freed on assignment
     common_params* params;
     common_sampler* ctx_sampling;
 
@@ -103,6 +116,7 @@ struct llama_rn_slot {
     int64_t t_start_process;       // Start time for processing (us)
     int64_t t_start_generation;    // Start time for generation (us)
     int64_t t_last_used;           // Last time slot was used (us)
+    int64_t t_queue_wait_us;       // Time the current request waited for a slot (us)
 
     // Timing metrics
     int32_t n_prompt_tokens_cache;     // Number of prompt tokens from cache
@@ -149,8 +163,9 @@ struct llama_rn_slot {
 
     // Methods
     void reset();                          // Reset to IDLE state
-    void load_prompt(const std::vector<llama_token>& tokens);
+    void load_prompt(const std::vector<llama_token>& tokens, size_t n_cached = 0);
     bool has_next_token() const;
+    bool context_shift(int32_t * n_kept = nullptr); // Drop old tokens after n_keep to make room
     completion_token_output get_next_token();
     completion_chat_output parseChatOutput(bool is_partial);
 
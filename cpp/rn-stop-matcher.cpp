@@ -0,0 +1,119 @@
+#include "rn-stop-matcher.h"
+#include <algorithm>
+
+namespace rnllama {
+
+void llama_rn_stop_matcher::set_words(const std::vector<std::string> &stop_words) {
+    words.clear();
+    nodes.assign(1, node());
+
+    for (const std::string &word : stop_words) {
+        if (word.empty()) continue;
+        int32_t s = 0;
+        for (unsigned char c : word) {
+            int32_t n = child(s, c);
+            if (n < 0) {
+                n = (int32_t) nodes.size();
+                nodes.emplace_back();
+                nodes[n].depth = nodes[s].depth + 1;
+                nodes[s].next.emplace_back(c, n);
+            }
+            s = n;
+        }
+        if (nodes[s].word < 0) {
+            nodes[s].word = (int32_t) words.size();
+            words.push_back(word);
+        }
+    }
+
+    // Fail links breadth first, so a node's fail target is always finished before the node
+    std::vector<int32_t> queue;
+    queue.reserve(nodes.size());
+    for (const auto &edge : nodes[0].next) queue.push_back(edge.second);
+    for (size_t i = 0; i < queue.size(); i++) {
+        const int32_t u = queue[i];
+        for (const auto &edge : nodes[u].next) {
+            const int32_t v = edge.second;
+            int32_t f = nodes[u].fail;
+            int32_t n = child(f, edge.first);
+            while (n < 0 && f != 0) {
+                f = nodes[f].fail;
+                n = child(f, edge.first);
+            }
+            nodes[v].fail = n >= 0 ? n : 0;
+            // A node's own word is the longest one ending there
+            if (nodes[v].word < 0) nodes[v].word = nodes[nodes[v].fail].word;
+            queue.push_back(v);
+        }
+    }
+
+    reset();
+}
+
+void llama_rn_stop_matcher::clear() {
+    words.clear();
+    nodes.clear();
+    reset();
+}
+
+void llama_rn_stop_matcher::reset() {
+    state = 0;
+    consumed = 0;
+    match_word = -1;
+    match_end = 0;
+    n_sent = 0;
+}
+
+int32_t llama_rn_stop_matcher::child(int32_t s, unsigned char c) const {
+    for (const auto &edge : nodes[s].next) {
+        if (edge.first == c) return edge.second;
+    }
+    return -1;
+}
+
+bool llama_rn_stop_matcher::feed(const std::string &piece) {
+    if (match_word >= 0) return true;
+    if (words.empty()) {
+        consumed += piece.size();
+        return false;
+    }
+    for (unsigned char c : piece) {
+        int32_t n = child(state, c);
+        while (n < 0 && state != 0) {
+            state = nodes[state].fail;
+            n = child(state, c);
+        }
+        state = n >= 0 ? n : 0;
+        consumed++;
+        if (nodes[state].word >= 0) {
+            match_word = nodes[state].word;
+            match_end = consumed;
+            return true;
+        }
+    }
+    return false;
+}
+
+size_t llama_rn_stop_matcher::match_pos() const {
+    return match_word >= 0 ? match_end - words[match_word].size() : std::string::npos;
+}
+
+const std::string &llama_rn_stop_matcher::match() const {
+    static const std::string none;
+    return match_word >= 0 ? words[match_word] : none;
+}
+
+size_t llama_rn_stop_matcher::partial_len() const {
+    return match_word >= 0 || nodes.empty() ? 0 : (size_t) nodes[state].depth;
+}
+
+std::string llama_rn_stop_matcher::take_stream_text(const std::string &text, bool flush) {
+    const size_t held = flush ? 0 : std::min(partial_len(), text.size());
+    const size_t n_safe = text.size() - held;
+    if (n_safe <= n_sent) return "";
+    std::string out = text.substr(n_sent, n_safe - n_sent);
+    n_sent = n_safe;
+    return out;
+}
+
+} // namespace rnllama
@@ -0,0 +1,61 @@
+#ifndef RN_STOP_MATCHER_H
+#define RN_STOP_MATCHER_H
+
+#include <cstdint>
+#include <string>
+#include <utility>
+#include <vector>
+
+namespace rnllama {
+
+// Finds stop strings in generated text as it streams in, one token piece at a time.
+//
+// An Aho-Corasick automaton over the bytes of all stop strings keeps its state between pieces,
+// so each new byte costs amortised O(1) however many stop strings there are and however long the
+// text gets. The state also tells how long a tail of the text could still grow into a stop string;
+// that tail is held back from streaming until the next piece decides it.
+class llama_rn_stop_matcher {
+public:
+    // Builds the automaton and resets the stream; empty strings are ignored
+    void set_words(const std::vector<std::string> &words);
+    void clear();
+    bool empty() const { return words.empty(); }
+    // Starts a new stream with the same stop strings
+    void reset();
+
+    // Feeds the next piece of the stream. Returns true once a stop string is complete; the rest
+    // of that piece and later pieces are ignored until reset()
+    bool feed(const std::string &piece);
+    bool matched() const { return match_word >= 0; }
+    // Stream offset of the first byte of the matched stop string
+    size_t match_pos() const;
+    const std::string &match() const;
+    // Length of the longest tail of the stream that is the start of a stop string (0 after a match)
+    size_t partial_len() const;
+
+    // Next part of `text` (the stream fed so far, cut at the match) that can be streamed: all of it
+    // up to the held-back tail, or to the end when `flush` is set
+    std::string take_stream_text(const std::string &text, bool flush);
+
+private:
+    struct node {
+        std::vector<std::pair<unsigned char, int32_t>> next;
+        int32_t fail = 0;
+        int32_t depth = 0;
+        int32_t word = -1;   // Longest stop string ending here, directly or through fail links
+    };
+
+    int32_t child(int32_t s, unsigned char c) const;
+
+    std::vector<std::string> words;
+    std::vector<node> nodes;
+    int32_t state = 0;
+    size_t consumed = 0;
+    int32_t match_word = -1;
+    size_t match_end = 0;
+    size_t n_sent = 0;
+};
+
+} // namespace rnllama
+
+#endif /* RN_STOP_MATCHER_H */
@@ -0,0 +1,107 @@
+#include "rn-thread-budget.h"
+#include "common.h"
+#include "ggml-cpu.h"
+#include "nlohmann/json.hpp"
+#include <algorithm>
+#include <chrono>
+
+namespace rnllama {
+
+llama_rn_shared_threadpool::~llama_rn_shared_threadpool() {
+    if (pool != nullptr) {
+        lm_ggml_threadpool_free(pool);
+    }
+}
+
+std::unique_lock<std::mutex> llama_rn_shared_threadpool::lock() {
+    std::unique_lock<std::mutex> guard(compute_mutex, std::try_to_lock);
+    if (!guard.owns_lock()) {
+        const auto t_start = std::chrono::steady_clock::now();
+        guard.lock();
+        t_wait_us += std::chrono::duration_cast<std::chrono::microseconds>(std::chrono::steady_clock::now() - t_start).count();
+    }
+    n_computes++;
+    return guard;
+}
+
+llama_rn_thread_budget &llama_rn_thread_budget::instance() {
+    static llama_rn_thread_budget budget;
+    return budget;
+}
+
+int32_t llama_rn_thread_budget::total() const {
+    const int32_t n = n_total.load(std::memory_order_relaxed);
+    return n > 0 ? n : std::max(1, cpu_get_num_math());
+}
+
+void llama_rn_thread_budget::set_total(int32_t n_threads) {
+    n_total.store(std::max(0, n_threads), std::memory_order_relaxed);
+}
+
+int32_t llama_rn_thread_budget::clamp(int32_t n_threads) const {
+    const int32_t n = total();
+    return n_threads <= 0 ? n : std::min(n_threads, n);
+}
+
+int32_t llama_rn_thread_budget::helper_threads() const {
+    return std::max(1, total() / 4);
+}
+
+std::shared_ptr<llama_rn_shared_threadpool> llama_rn_thread_budget::lease(lm_ggml_threadpool_params params) {
+    params.n_threads = clamp(params.n_threads);
+    params.paused = false;
+
+    std::lock_guard<std::mutex> lock(mutex);
+    pools.erase(std::remove_if(pools.begin(), pools.end(),
+                               [](const std::weak_ptr<llama_rn_shared_threadpool> &p) { return p.expired(); }),
+                pools.end());
+    int32_t n_leased = 0;
+    for (const auto &p : pools) {
+        auto shared = p.lock();
+        if (!shared) continue;
+        if (lm_ggml_threadpool_params_match(&shared->requested, &params)) {
+            return shared;
+        }
+        n_leased += shared->params.n_threads;
+    }
+
+    auto shared = std::make_shared<llama_rn_shared_threadpool>();
+    shared->requested = params;
+    params.n_threads = std::max(1, std::min(params.n_threads, total() - n_leased));
+    shared->params = params;
+    shared->pool = lm_ggml_threadpool_new(&params);
+    if (shared->pool == nullptr) {
+        return nullptr;
+    }
+    pools.push_back(shared);
+    return shared;
+}
+
+std::string llama_rn_thread_budget::status_json() {
+    nlohmann::json list = nlohmann::json::array();
+    int32_t leased = 0;
+    {
+        std::lock_guard<std::mutex> lock(mutex);
+        for (const auto &p : pools) {
+            auto shared = p.lock();
+            if (!shared) continue;
+            leased += shared->params.n_threads;
+            list.push_back({
+                {"n_threads", shared->params.n_threads},
+                // Minus the reference held here
+                {"contexts", shared.use_count() - 1},
+                {"computes", shared->n_computes.load()},
+                {"wait_ms", shared->t_wait_us.load() / 1e3}
+            });
+        }
+    }
+    nlohmann::json status = {
+        {"budget", total()},
+        {"helper_threads", helper_threads()},
+        {"leased_threads", leased},
+        {"pools", list}
+    };
+    return status.dump();
+}
+
+} // namespace rnllama
@@ -0,0 +1,67 @@
+#ifndef RN_THREAD_BUDGET_H
+#define RN_THREAD_BUDGET_H
+
+#include "ggml.h"
+#include <atomic>
+#include <cstdint>
+#include <memory>
+#include <mutex>
+#include <string>
+#include <vector>
+
+namespace rnllama {
+
+// A ggml threadpool leased by every context created with the same pool settings. One context
+// computes on it at a time: hold lock() around llama_decode / llama_encode.
+struct llama_rn_shared_threadpool {
+    lm_ggml_threadpool_params params;
+    lm_ggml_threadpool_params requested;   // Settings as leased, before trimming to the budget left
+    lm_ggml_threadpool *pool = nullptr;
+    std::mutex compute_mutex;
+    std::atomic<int64_t> n_computes{0};
+    std::atomic<int64_t> t_wait_us{0};   // Time spent waiting for another context's compute
+
+    ~llama_rn_shared_threadpool();
+    std::unique_lock<std::mutex> lock();
+};
+
+// Process-wide cap on the CPU threads models compute with.
+//
+// Contexts lease their ggml threadpool here instead of creating their own, so N contexts with the
+// same settings run on one pool of at most total() threads and take turns, rather than N pools
+// competing for the same cores. A pool with other settings (priority, affinity, ...) only gets the
+// threads the live pools leave over, and at least one, so the pools together stay within total()
+// plus one thread for each pool created after the budget ran out. Pools leased before a budget
+// change keep their size.
+class llama_rn_thread_budget {
+public:
+    static llama_rn_thread_budget &instance();
+
+    int32_t total() const;
+    // <= 0 restores the default: the cores that do math (cpu_get_num_math)
+    void set_total(int32_t n_threads);
+    // n_threads capped to the budget; <= 0 means the whole budget
+    int32_t clamp(int32_t n_threads) const;
+    // Workers for helper pools (ThreadPool): they do bookkeeping next to decoding, not compute
+    int32_t helper_threads() const;
+
+    // The pool for these settings, shared with the contexts that already leased it; a new pool is
+    // trimmed to the budget left. nullptr when ggml can't create it. The lease ends when the last holder drops it.
+    std::shared_ptr<llama_rn_shared_threadpool> lease(lm_ggml_threadpool_params params);
+
+    // {"budget", "helper_threads", "leased_threads", "pools": [{"n_threads", "contexts", "computes", "wait_ms"}]}
+    std::string status_json();
+
+private:
+    std::atomic<int32_t> n_total{0};
+    std::mutex mutex;
+    std::vector<std::weak_ptr<llama_rn_shared_threadpool>> pools;
+};
+
+inline llama_rn_thread_budget &thread_budget() {
+    return llama_rn_thread_budget::instance();
+}
+
+} // namespace rnllama
+
+#endif /* RN_THREAD_BUDGET_H */
@@ -0,0 +1,23 @@
+#include "rn-trace.h"
+#include <atomic>
+
+namespace rnllama {
+
+static std::atomic<trace_batch_fn> g_trace_sink(nullptr);
+
+void trace_set_sink(trace_batch_fn sink) {
+    g_trace_sink.store(sink, std::memory_order_release);
+}
+
+bool trace_enabled() {
+    return g_trace_sink.load(std::memory_order_relaxed) != nullptr;
+}
+
+void trace_batch(const llama_rn_batch_trace& trace) {
+    trace_batch_fn sink = g_trace_sink.load(std::memory_order_acquire);
+    if (sink != nullptr) {
+        sink(trace);
+    }
+}
+
+} // namespace rnllama
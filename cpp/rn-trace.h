@@ -0,0 +1,26 @@
+#ifndef RN_TRACE_H
+#define RN_TRACE_H
+
+#include <cstdint>
+
+namespace rnllama {
+
+// One llama_decode step and the sampling that followed it
+struct llama_rn_batch_trace {
+    int32_t n_tokens;          // Tokens in the batch
+    int32_t n_prompt_tokens;   // Of which prompt (prefill) tokens; the rest are generated tokens
+    int32_t n_seqs;            // Sequences (slots) in the batch
+    int64_t t_decode_us;
+    int64_t t_sample_us;       // Sampling, including the token callbacks it runs
+};
+
+typedef void (*trace_batch_fn)(const llama_rn_batch_trace& trace);
+
+// Without a sink (the default) the instrumented sites cost one relaxed load per step
+void trace_set_sink(trace_batch_fn sink);
+bool trace_enabled();
+void trace_batch(const llama_rn_batch_trace& trace);
+
+} // namespace rnllama
+
+#endif /* RN_TRACE_H */
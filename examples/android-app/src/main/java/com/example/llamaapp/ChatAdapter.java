@@ -58,6 +58,20 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.MessageViewHol
         notifyItemInserted(messageList.size() - 1);
     }
 
+    /**
+     * Appends streamed text to a message. A visible message grows in place through
+     * {@link TextView#append}; only an off-screen one is left for the next bind.
+     */
+    public void appendToMessage(RecyclerView recyclerView, int position, CharSequence delta) {
+        messageList.get(position).appendText(delta);
+        RecyclerView.ViewHolder holder = recyclerView.findViewHolderForAdapterPosition(position);
+        if (holder instanceof MessageViewHolder) {
+            ((MessageViewHolder) holder).messageTextView.append(delta);
+        } else {
+            notifyItemChanged(position);
+        }
+    }
+
     static class MessageViewHolder extends RecyclerView.ViewHolder {
         TextView messageTextView;
 
@@ -24,6 +24,7 @@ import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import com.ajllama.text.StreamingTextBuffer;
 import com.llama4aj;
 
 public class MainActivity extends AppCompatActivity {
@@ -42,7 +43,6 @@ public class MainActivity extends AppCompatActivity {
     private Handler mainHandler;
 
     private volatile boolean isGenerating = false;
-    private StringBuilder currentResponse;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -164,43 +164,38 @@ public class MainActivity extends AppCompatActivity {
         stopButton.setVisibility(View.VISIBLE);
         stopButton.setEnabled(true);
         promptInput.setEnabled(false);
-        currentResponse = new StringBuilder();
+
+        // Tokens are only buffered on the inference thread; the UI takes what arrived once per frame
+        StreamingTextBuffer stream = new StreamingTextBuffer(StreamingTextBuffer.DEFAULT_FRAME_MILLIS,
+            mainHandler::postDelayed, (delta, done) -> {
+                appendToLastModelMessage(delta);
+                if (done) resetInputState();
+            });
 
         // Add empty model message placeholder
         addModelMessage("");
 
         executorService.execute(() -> {
-            llama4aj model = modelManager.getModel();
-
-            if (model == null) {
-                mainHandler.post(() -> {
-                    updateLastModelMessage("Error: Model not loaded");
-                    resetInputState();
-                });
-                return;
-            }
-
             try {
                 String fullPrompt = buildPrompt(userMessage);
 
                 Log.d(TAG, "Starting completion with prompt: " + fullPrompt);
-                model.generate(new llama4aj.CompletionParams()
+                llama4aj.Completion completion = modelManager.generate(new llama4aj.CompletionParams()
                     .prompt(fullPrompt)
                     .nPredict(modelManager.getMaxTokens())
                     .temperature(modelManager.getTemperature())
-                    .stream(true), 
-                    token -> {
-                        currentResponse.append(token);
-                        final String fullResponse = currentResponse.toString();
-            
-                        mainHandler.post(() -> {
-                            updateLastModelMessage(fullResponse);
-                            chatRecyclerView.scrollToPosition(messageList.size() - 1);
-                        });
-                    },
-                    () -> mainHandler.post(this::resetInputState)
+                    .stream(true),
+                    stream::append,
+                    stream::finish
                 );
 
+                if (completion == null) {
+                    mainHandler.post(() -> {
+                        updateLastModelMessage("Error: Model not loaded");
+                        resetInputState();
+                    });
+                }
+
             } catch (Exception e) {
                 Log.e(TAG, "Generation error", e);
                 mainHandler.post(() -> {
@@ -250,13 +245,20 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    private void appendToLastModelMessage(String delta) {
+        if (messageList.isEmpty() || delta.isEmpty()) return;
+        int last = messageList.size() - 1;
+        if (messageList.get(last).isUser()) return;
+        chatAdapter.appendToMessage(chatRecyclerView, last, delta);
+        chatRecyclerView.scrollToPosition(last);
+    }
+
     private void resetInputState() {
         isGenerating = false;
         sendButton.setEnabled(true);
         sendButton.setVisibility(View.VISIBLE);
         stopButton.setVisibility(View.GONE);
         promptInput.setEnabled(true);
-        currentResponse = null;
     }
 
     @Override
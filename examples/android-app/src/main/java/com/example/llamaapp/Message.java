@@ -1,16 +1,20 @@
 package com.example.llamaapp;
 
 public class Message {
-    private String text;
+    private final StringBuilder text;
     private boolean isUser; // true for user message, false for model response
 
     public Message(String text, boolean isUser) {
-        this.text = text;
+        this.text = new StringBuilder(text);
         this.isUser = isUser;
     }
 
     public String getText() {
-        return text;
+        return text.toString();
+    }
+
+    public void appendText(CharSequence delta) {
+        text.append(delta);
     }
 
     public boolean isUser() {
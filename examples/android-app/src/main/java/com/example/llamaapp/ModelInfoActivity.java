@@ -1,6 +1,7 @@
 package com.example.llamaapp;
 
 import com.example.llamaapp.ModelManager;
+import com.ajllama.gguf.GgufFile;
 import android.app.Activity;
 import android.content.Intent;
 import android.net.Uri;
@@ -23,6 +24,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ModelInfoActivity extends AppCompatActivity {
 
@@ -34,6 +37,7 @@ public class ModelInfoActivity extends AppCompatActivity {
     private ModelManager modelManager;
     private ActivityResultLauncher<Intent> pickModelLauncher;
     private Toolbar toolbar;
+    private ExecutorService executorService;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -48,6 +52,7 @@ public class ModelInfoActivity extends AppCompatActivity {
         }
 
         modelManager = ModelManager.getInstance(this);
+        executorService = Executors.newSingleThreadExecutor();
 
         systemPromptInput = findViewById(R.id.system_prompt_input);
         maxTokensInput = findViewById(R.id.max_tokens_input);
@@ -98,7 +103,35 @@ public class ModelInfoActivity extends AppCompatActivity {
         maxTokensInput.setText(String.valueOf(modelManager.getMaxTokens()));
         temperatureInput.setText(String.valueOf(modelManager.getTemperature()));
         modelPathText.setText("Selected: " + modelManager.getModelPath());
-        // modelInfoText.setText(modelManager.getModelInfo()); // ModelManager.java doesn't have getModelInfo yet
+        showModelInfo(modelManager.getModelPath());
+    }
+
+    // Header-only read: no model load, so this is quick even for multi-GB files
+    private void showModelInfo(String modelPath) {
+        if (modelPath == null || modelPath.isEmpty()) {
+            modelInfoText.setText("Model Info: N/A");
+            return;
+        }
+        executorService.execute(() -> {
+            String info;
+            try (GgufFile gguf = GgufFile.open(modelPath)) {
+                String quant = gguf.fileTypeName();
+                String template = gguf.chatTemplate();
+                info = "Model Info:\n" +
+                        "Name: " + (gguf.name() != null ? gguf.name() : new File(modelPath).getName()) + "\n" +
+                        "Architecture: " + gguf.architecture() + "\n" +
+                        "Quantization: " + (quant != null ? quant : "unknown") + "\n" +
+                        "Context length: " + gguf.contextLength() + "\n" +
+                        "Tensors: " + gguf.tensorCount() + "\n" +
+                        "Size: " + (gguf.fileSize() >> 20) + " MB\n" +
+                        "Chat template: " + (template != null ? "yes" : "none");
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read model metadata", e);
+                info = "Model Info: " + e.getMessage();
+            }
+            final String text = info;
+            runOnUiThread(() -> modelInfoText.setText(text));
+        });
     }
 
     private void saveConfigFromUI() {
@@ -120,7 +153,7 @@ public class ModelInfoActivity extends AppCompatActivity {
     private void handlePickedModelUri(Uri uri) {
         Toast.makeText(this, "Processing model file...", Toast.LENGTH_SHORT).show();
         
-        java.util.concurrent.Executors.newSingleThreadExecutor().execute(() -> {
+        executorService.execute(() -> {
             try {
                 String modelPath = copyUriToFile(uri);
                 runOnUiThread(() -> {
@@ -183,4 +216,12 @@ public class ModelInfoActivity extends AppCompatActivity {
         }
         return result;
     }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (executorService != null && !executorService.isShutdown()) {
+            executorService.shutdown();
+        }
+    }
 }
@@ -1,25 +1,48 @@
 package com.example.llamaapp;
 
+import android.content.ComponentCallbacks2;
 import android.content.SharedPreferences;
+import android.content.res.Configuration;
 import android.util.Log;
 
 import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 import com.llama4aj;
+import com.ajllama.gguf.GgufFile;
 
-public class ModelManager {
+/**
+ * Holds the loaded model and gives memory back under pressure. When the app is hidden or memory
+ * runs low the KV cache and compute buffers are freed after saving the session to app storage;
+ * when memory is critical the model is unloaded as well. The next {@link #acquireModel()} brings
+ * both back and resumes from the saved session, so the conversation so far is not decoded again.
+ */
+public class ModelManager implements ComponentCallbacks2 {
     private static final String TAG = "ModelManager";
     private static final String PREFS_NAME = "LlamaModelConfig";
     private static final String KEY_MODEL_PATH = "modelPath";
     private static final String KEY_SYSTEM_PROMPT = "systemPrompt";
     private static final String KEY_MAX_TOKENS = "maxTokens";
     private static final String KEY_TEMPERATURE = "temperature";
+    private static final String SESSION_FILE = "session.bin";
 
     private static volatile ModelManager instance;
     private final SharedPreferences preferences;
+    private final File sessionFile;
+    // Saving a session waits for the running completion, so trimming stays off the main thread
+    private final ExecutorService trimExecutor = Executors.newSingleThreadExecutor();
+    // Held while a model is saved and closed under memory pressure, outside the monitor the
+    // main thread reads state through; a reload waits for it so the session file is complete
+    private final Object memoryLock = new Object();
 
+    // Volatile so the main thread can read them without waiting for a load or a trim
     private volatile llama4aj model;
     private volatile String loadedModelPath;
+    // Model closed under memory pressure; loadedModelPath and sessionFile say how to bring it back
+    private volatile boolean unloadedForMemory;
+    private volatile llama4aj.Completion running;
 
     private String currentSystemPrompt;
     private int currentMaxTokens;
@@ -27,7 +50,11 @@ public class ModelManager {
 
     private ModelManager(android.content.Context context) {
         preferences = context.getSharedPreferences(PREFS_NAME, android.content.Context.MODE_PRIVATE);
+        sessionFile = new File(context.getFilesDir(), SESSION_FILE);
+        // A session left by an earlier process belongs to a context that no longer exists
+        sessionFile.delete();
         loadConfig();
+        context.registerComponentCallbacks(this);
     }
 
     public static ModelManager getInstance(android.content.Context context) {
@@ -77,15 +104,44 @@ public class ModelManager {
         return currentTemperature;
     }
 
-    public synchronized llama4aj getModel() {
+    /** The model if it is in memory, without reloading one unloaded under memory pressure. */
+    public llama4aj getModel() {
         return model;
     }
 
-    public synchronized boolean isModelLoaded() {
-        return model != null && loadedModelPath != null;
+    /** The model for a new request, reloading it and its session if memory pressure unloaded it. */
+    public llama4aj acquireModel() {
+        synchronized (memoryLock) {
+            synchronized (this) {
+                if (model == null && unloadedForMemory && loadedModelPath != null) {
+                    String path = loadedModelPath;
+                    Log.d(TAG, "Reloading model unloaded under memory pressure");
+                    unloadedForMemory = false;
+                    loadedModelPath = null;
+                    if (loadModel(path)) restoreSession();
+                }
+                return model;
+            }
+        }
     }
 
-    public synchronized String getLoadedModelPath() {
+    /**
+     * Starts a completion on {@link #acquireModel()}; {@code null} when no model is loaded. A
+     * running completion is not trimmed out from under it.
+     */
+    public llama4aj.Completion generate(llama4aj.CompletionParams params, Consumer<String> onToken, Runnable onComplete) {
+        llama4aj m = acquireModel();
+        if (m == null) return null;
+        llama4aj.Completion completion = m.generate(params, onToken, onComplete);
+        running = completion;
+        return completion;
+    }
+
+    public boolean isModelLoaded() {
+        return (model != null || unloadedForMemory) && loadedModelPath != null;
+    }
+
+    public String getLoadedModelPath() {
         return loadedModelPath;
     }
 
@@ -107,6 +163,13 @@ public class ModelManager {
             return true;
         }
 
+        // A session saved for another model cannot be resumed
+        if (unloadedForMemory && !modelPath.equals(loadedModelPath)) {
+            unloadedForMemory = false;
+            loadedModelPath = null;
+            sessionFile.delete();
+        }
+
         // Unload existing model first
         if (model != null) {
             Log.d(TAG, "Unloading existing model");
@@ -151,7 +214,92 @@ public class ModelManager {
                 Log.e(TAG, "Error closing model", e);
             }
             model = null;
-            loadedModelPath = null;
+        }
+        loadedModelPath = null;
+        unloadedForMemory = false;
+        sessionFile.delete();
+    }
+
+    // --- Memory pressure ---
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level == TRIM_MEMORY_RUNNING_CRITICAL || level >= TRIM_MEMORY_MODERATE) {
+            trimExecutor.execute(this::unloadForMemory);
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            // Includes TRIM_MEMORY_UI_HIDDEN and TRIM_MEMORY_BACKGROUND
+            trimExecutor.execute(this::releaseContext);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        trimExecutor.execute(this::unloadForMemory);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    // First tier: keep the weights, free the KV cache and compute buffers. The next completion
+    // recreates the context and loads the session by itself. Skipped while a reply is being
+    // generated: releasing would wait for it, and hiding the app should not cut it short.
+    private void releaseContext() {
+        llama4aj m = model;
+        if (m == null) return;
+        llama4aj.Completion completion = running;
+        if (completion != null && !completion.isDone()) {
+            Log.d(TAG, "Completion running, keeping KV cache");
+            return;
+        }
+        try {
+            if (m.releaseMemory(sessionFile)) {
+                Log.d(TAG, "Released KV cache, session saved to " + sessionFile);
+            } else {
+                Log.w(TAG, "Could not release KV cache");
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Error releasing KV cache", e);
+        }
+    }
+
+    // Second tier: save the session, then unload the model until the next request
+    private void unloadForMemory() {
+        synchronized (memoryLock) {
+            llama4aj m;
+            synchronized (this) {
+                m = model;
+                if (m == null) return;
+                // Set before clearing model so isModelLoaded() never sees neither
+                unloadedForMemory = true;
+                model = null;
+            }
+            try {
+                // Whatever was decoded before the interrupt is kept in the session
+                m.interrupt();
+                if (!m.releaseMemory(sessionFile)) sessionFile.delete();
+            } catch (Exception e) {
+                Log.w(TAG, "Error saving session", e);
+                sessionFile.delete();
+            }
+            try {
+                m.close();
+            } catch (Exception e) {
+                Log.e(TAG, "Error closing model", e);
+            }
+            Log.d(TAG, "Model unloaded under memory pressure");
+        }
+    }
+
+    private void restoreSession() {
+        if (!sessionFile.exists()) return;
+        try {
+            int tokens = model.loadSession(sessionFile);
+            Log.d(TAG, "Restored session of " + tokens + " tokens");
+        } catch (Exception e) {
+            Log.w(TAG, "Could not restore session", e);
+        } finally {
+            sessionFile.delete();
         }
     }
 
@@ -159,7 +307,6 @@ public class ModelManager {
         if (path == null || path.isEmpty()) {
             return false;
         }
-        File file = new File(path);
-        return file.exists() && file.isFile() && file.length() > 0;
+        return GgufFile.isGguf(new File(path));
     }
 }
@@ -1,11 +1,79 @@
 package com.example.desktopapp;
+import com.ajllama.index.HnswIndex;
+import com.ajllama.index.VectorIndex;
+
+import java.io.File;
+import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ConvoManager {
     private static final String DB_URL = "jdbc:sqlite:chat_history.db";
-    private int currentConversationId = -1;
+    private static final File SNAPSHOT_DIR = new File("kv_snapshots");
+    private static final int INDEX_SAVE_EVERY = 32;
+    private volatile int currentConversationId = -1;
+
+    // One connection, owned by the database thread: every statement runs there in submission
+    // order, so a read sees all writes queued before it. Messages are written behind the caller
+    // and batched into one transaction per drain.
+    private Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+    private final ConcurrentLinkedDeque<PendingMessage> pendingMessages = new ConcurrentLinkedDeque<PendingMessage>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Database thread only: delay before retrying a failed flush, 0 after a success
+    private long flushRetryMillis;
+    private boolean closed;
+    private final ScheduledExecutorService db = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "convo-db");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private interface DbTask<T> {
+        T run(Connection c) throws SQLException;
+    }
+
+    private static final class PendingMessage {
+        final int conversationId;
+        final String author;
+        final String content;
+        final long timestamp;
+        PendingMessage(int conversationId, String author, String content, long timestamp) {
+            this.conversationId = conversationId;
+            this.author = author;
+            this.content = content;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /** Turns text into an embedding vector, e.g. with an embedding model; see {@link #enableIndex}. */
+    public interface Embedder {
+        float[] embed(String text) throws Exception;
+    }
+
+    // Message index: vectors labelled with messages.id, built and saved on the indexer thread
+    private volatile Embedder embedder;
+    private volatile VectorIndex index;
+    private File indexFile;
+    private long lastIndexedId;
+    private int unsavedVectors;
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "convo-indexer");
+        t.setDaemon(true);
+        return t;
+    });
 
     public static class Message {
         public final String author;
@@ -30,27 +98,106 @@ public class ConvoManager {
         @Override public String toString() { return title; }
     }
 
-    public void init() {
-        try (Connection c = connect(); Statement s = c.createStatement()) {
-            s.execute(
-                "CREATE TABLE IF NOT EXISTS conversations (" +
-                "    id      INTEGER PRIMARY KEY AUTOINCREMENT," +
-                "    title   TEXT    NOT NULL DEFAULT 'New Chat'," +
-                "    created INTEGER NOT NULL" +
-                ")"
-            );
-            s.execute(
-                "CREATE TABLE IF NOT EXISTS messages (" +
-                "    id              INTEGER PRIMARY KEY AUTOINCREMENT," +
-                "    conversation_id INTEGER NOT NULL," +
-                "    author          TEXT    NOT NULL," +
-                "    content         TEXT    NOT NULL," +
-                "    timestamp       INTEGER NOT NULL" +
-                ")"
-            );
-        } catch (SQLException e) {
-            System.err.println("[ConvoManager] init failed: " + e.getMessage());
+    /** Model state saved after a conversation's last turn, so it resumes without prefilling. */
+    public static class Snapshot {
+        public final int    conversationId;
+        public final String model;
+        public final int    tokens;
+        public final File   file;
+        public Snapshot(int conversationId, String model, int tokens, File file) {
+            this.conversationId = conversationId;
+            this.model          = model;
+            this.tokens         = tokens;
+            this.file           = file;
         }
+    }
+
+    /** A message matching a search, with an excerpt around the matched terms. */
+    public static class SearchHit {
+        public final long   messageId;
+        public final int    conversationId;
+        public final String conversationTitle;
+        public final String author;
+        public final long   timestamp;
+        /** Excerpt with each match between {@link #MATCH_START} and {@link #MATCH_END}. */
+        public final String snippet;
+        public SearchHit(long messageId, int conversationId, String conversationTitle, String author, long timestamp, String snippet) {
+            this.messageId         = messageId;
+            this.conversationId    = conversationId;
+            this.conversationTitle = conversationTitle;
+            this.author            = author;
+            this.timestamp         = timestamp;
+            this.snippet           = snippet;
+        }
+        @Override public String toString() { return snippet; }
+    }
+
+    public static final char MATCH_START = '\u0002';
+    public static final char MATCH_END   = '\u0003';
+
+    public void init() {
+        call("init", null, c -> {
+            try (Statement s = c.createStatement()) {
+                s.execute(
+                    "CREATE TABLE IF NOT EXISTS conversations (" +
+                    "    id      INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "    title   TEXT    NOT NULL DEFAULT 'New Chat'," +
+                    "    created INTEGER NOT NULL" +
+                    ")"
+                );
+                s.execute(
+                    "CREATE TABLE IF NOT EXISTS messages (" +
+                    "    id              INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "    conversation_id INTEGER NOT NULL," +
+                    "    author          TEXT    NOT NULL," +
+                    "    content         TEXT    NOT NULL," +
+                    "    timestamp       INTEGER NOT NULL" +
+                    ")"
+                );
+                s.execute(
+                    "CREATE TABLE IF NOT EXISTS kv_snapshots (" +
+                    "    conversation_id INTEGER PRIMARY KEY," +
+                    "    model           TEXT    NOT NULL," +
+                    "    tokens          INTEGER NOT NULL," +
+                    "    path            TEXT    NOT NULL," +
+                    "    created         INTEGER NOT NULL" +
+                    ")"
+                );
+                // Full-text index over messages.content, kept in step by triggers
+                boolean ftsExists;
+                try (ResultSet rs = s.executeQuery("SELECT 1 FROM sqlite_master WHERE name = 'messages_fts'")) {
+                    ftsExists = rs.next();
+                }
+                s.execute(
+                    "CREATE VIRTUAL TABLE IF NOT EXISTS messages_fts USING fts5(" +
+                    "    content, content = 'messages', content_rowid = 'id'," +
+                    "    tokenize = 'unicode61 remove_diacritics 2'" +
+                    ")"
+                );
+                s.execute(
+                    "CREATE TRIGGER IF NOT EXISTS messages_fts_insert AFTER INSERT ON messages BEGIN" +
+                    "    INSERT INTO messages_fts (rowid, content) VALUES (new.id, new.content);" +
+                    " END"
+                );
+                s.execute(
+                    "CREATE TRIGGER IF NOT EXISTS messages_fts_delete AFTER DELETE ON messages BEGIN" +
+                    "    INSERT INTO messages_fts (messages_fts, rowid, content) VALUES ('delete', old.id, old.content);" +
+                    " END"
+                );
+                s.execute(
+                    "CREATE TRIGGER IF NOT EXISTS messages_fts_update AFTER UPDATE OF content ON messages BEGIN" +
+                    "    INSERT INTO messages_fts (messages_fts, rowid, content) VALUES ('delete', old.id, old.content);" +
+                    "    INSERT INTO messages_fts (rowid, content) VALUES (new.id, new.content);" +
+                    " END"
+                );
+                // Messages saved before the index existed
+                if (!ftsExists) s.execute("INSERT INTO messages_fts (messages_fts) VALUES ('rebuild')");
+                // History loads and deletes by conversation, the sidebar lists by creation time
+                s.execute("CREATE INDEX IF NOT EXISTS messages_conversation ON messages (conversation_id, id)");
+                s.execute("CREATE INDEX IF NOT EXISTS conversations_created ON conversations (created DESC)");
+            }
+            return null;
+        });
         // Load most recent conversation or create one
         List<Conversation> all = loadAllConversations();
         if (all.isEmpty()) {
@@ -61,18 +208,14 @@ public class ConvoManager {
     }
 
     public int newConversation() {
-        try (Connection c = connect();
-             PreparedStatement ps = c.prepareStatement(
-                "INSERT INTO conversations (title, created) VALUES (?, ?)",
-                Statement.RETURN_GENERATED_KEYS)) {
+        Integer id = call("newConversation", null, c -> {
+            PreparedStatement ps = statement("INSERT INTO conversations (title, created) VALUES (?, ?)");
             ps.setString(1, "New Chat");
             ps.setLong(2, System.currentTimeMillis());
             ps.executeUpdate();
-            ResultSet keys = ps.getGeneratedKeys();
-            if (keys.next()) currentConversationId = keys.getInt(1);
-        } catch (SQLException e) {
-            System.err.println("[ConvoManager] newConversation failed: " + e.getMessage());
-        }
+            return (int) lastInsertId();
+        });
+        if (id != null) currentConversationId = id;
         return currentConversationId;
     }
 
@@ -89,95 +232,462 @@ public class ConvoManager {
         String title = firstUserMessage.length() > 40
             ? firstUserMessage.substring(0, 40) + "..."
             : firstUserMessage;
-        try (Connection c = connect();
-             PreparedStatement ps = c.prepareStatement(
-                "UPDATE conversations SET title = ? WHERE id = ?")) {
+        int id = currentConversationId;
+        execute("updateTitle", c -> {
+            PreparedStatement ps = statement("UPDATE conversations SET title = ? WHERE id = ?");
             ps.setString(1, title);
-            ps.setInt(2, currentConversationId);
+            ps.setInt(2, id);
             ps.executeUpdate();
-        } catch (SQLException e) {
-            System.err.println("[ConvoManager] updateTitle failed: " + e.getMessage());
-        }
+            return null;
+        });
     }
 
+    /** Queues a message for the current conversation and returns without waiting for the disk. */
     public void saveMessage(String author, String content) {
-        try (Connection c = connect();
-             PreparedStatement ps = c.prepareStatement(
-                "INSERT INTO messages (conversation_id, author, content, timestamp) VALUES (?, ?, ?, ?)")) {
-            ps.setInt(1, currentConversationId);
-            ps.setString(2, author);
-            ps.setString(3, content);
-            ps.setLong(4, System.currentTimeMillis());
-            ps.executeUpdate();
-        } catch (SQLException e) {
+        pendingMessages.add(new PendingMessage(currentConversationId, author, content, System.currentTimeMillis()));
+        if (flushScheduled.compareAndSet(false, true)) scheduleFlush(0);
+    }
+
+    // A failed flush keeps its messages queued and is retried with a growing delay
+    private void scheduleFlush(long delayMillis) {
+        try {
+            db.schedule(() -> {
+                if (closed) return;
+                try {
+                    run(c -> flushMessages());
+                    flushRetryMillis = 0;
+                } catch (SQLException e) {
+                    flushRetryMillis = Math.min(Math.max(1000, flushRetryMillis * 2), 30000);
+                    System.err.println("[ConvoManager] saving " + pendingMessages.size() + " messages failed, retrying in "
+                        + flushRetryMillis + " ms: " + e.getMessage());
+                    flushScheduled.set(true);
+                    scheduleFlush(flushRetryMillis);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
             System.err.println("[ConvoManager] save failed: " + e.getMessage());
         }
     }
 
-    public List<Message> loadHistory() {
-        List<Message> history = new ArrayList();
-        try (Connection c = connect();
-             PreparedStatement ps = c.prepareStatement(
-                "SELECT author, content, timestamp FROM messages WHERE conversation_id = ? ORDER BY timestamp ASC")) {
-            ps.setInt(1, currentConversationId);
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                history.add(new Message(
-                    rs.getString("author"),
-                    rs.getString("content"),
-                    rs.getLong("timestamp")
-                ));
+    // Database thread only: writes every queued message in one transaction. On failure the
+    // messages go back to the head of the queue, in order, for the next flush.
+    private Void flushMessages() throws SQLException {
+        flushScheduled.set(false);
+        if (pendingMessages.isEmpty()) return null;
+        List<PendingMessage> batch = new ArrayList<PendingMessage>();
+        List<Long> ids = new ArrayList<Long>();
+        try {
+            connection.setAutoCommit(false);
+            try {
+                PreparedStatement ps = statement(
+                    "INSERT INTO messages (conversation_id, author, content, timestamp) VALUES (?, ?, ?, ?)");
+                for (PendingMessage m; (m = pendingMessages.poll()) != null; ) {
+                    batch.add(m);
+                    ps.setInt(1, m.conversationId);
+                    ps.setString(2, m.author);
+                    ps.setString(3, m.content);
+                    ps.setLong(4, m.timestamp);
+                    ps.executeUpdate();
+                    ids.add(lastInsertId());
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                try {
+                    connection.rollback();
+                } catch (SQLException rollback) {
+                    e.addSuppressed(rollback);
+                }
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
             }
         } catch (SQLException e) {
-            System.err.println("[ConvoManager] load failed: " + e.getMessage());
+            for (int i = batch.size() - 1; i >= 0; i--) pendingMessages.addFirst(batch.get(i));
+            throw e;
         }
-        return history;
+        if (embedder != null) {
+            for (int i = 0; i < batch.size(); i++) {
+                long id = ids.get(i);
+                String content = batch.get(i).content;
+                indexer.submit(() -> indexMessage(id, content));
+            }
+        }
+        return null;
     }
 
-    public List<Conversation> loadAllConversations() {
-        List<Conversation> list = new ArrayList();
-        try (Connection c = connect();
-             Statement s = c.createStatement();
-             ResultSet rs = s.executeQuery(
-                "SELECT id, title, created FROM conversations ORDER BY created DESC")) {
-            while (rs.next()) {
-                list.add(new Conversation(
-                    rs.getInt("id"),
-                    rs.getString("title"),
-                    rs.getLong("created")
-                ));
+    // --- Message index ---
+
+    /**
+     * Indexes every message so {@link #findRelevant} can retrieve past messages as context.
+     * The index is loaded from {@code file} if present; messages saved since are embedded in the
+     * background, as is each new message.
+     */
+    public void enableIndex(Embedder embedder, File file) {
+        this.embedder = embedder;
+        indexer.submit(() -> {
+            indexFile = file;
+            if (file.exists()) {
+                try {
+                    HnswIndex loaded = HnswIndex.load(file);
+                    // Labels are message ids in insertion order, so the last one is the newest
+                    lastIndexedId = loaded.size() > 0 ? loaded.label(loaded.size() - 1) : 0;
+                    index = loaded;
+                } catch (IOException e) {
+                    System.err.println("[ConvoManager] index load failed, rebuilding: " + e.getMessage());
+                }
             }
-        } catch (SQLException e) {
-            System.err.println("[ConvoManager] loadAll failed: " + e.getMessage());
+            backfillIndex();
+        });
+    }
+
+    private void backfillIndex() {
+        long after = lastIndexedId;
+        Map<Long, String> pending = call("index backfill", new LinkedHashMap<Long, String>(), c -> {
+            Map<Long, String> rows = new LinkedHashMap<Long, String>();
+            PreparedStatement ps = statement("SELECT id, content FROM messages WHERE id > ? ORDER BY id ASC");
+            ps.setLong(1, after);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) rows.put(rs.getLong("id"), rs.getString("content"));
+            }
+            return rows;
+        });
+        for (Map.Entry<Long, String> m : pending.entrySet()) indexMessage(m.getKey(), m.getValue());
+        saveIndex();
+    }
+
+    // Indexer thread only
+    private void indexMessage(long id, String content) {
+        if (id <= lastIndexedId || content.trim().isEmpty()) return;
+        try {
+            float[] vector = embedder.embed(content);
+            if (index == null) index = new HnswIndex(vector.length);
+            index.add(id, vector);
+            lastIndexedId = id;
+            if (++unsavedVectors >= INDEX_SAVE_EVERY) saveIndex();
+        } catch (Exception e) {
+            System.err.println("[ConvoManager] indexing message " + id + " failed: " + e.getMessage());
+        }
+    }
+
+    // Indexer thread only
+    private void saveIndex() {
+        if (index == null || unsavedVectors == 0 && indexFile.exists()) return;
+        try {
+            index.save(indexFile);
+            unsavedVectors = 0;
+        } catch (IOException e) {
+            System.err.println("[ConvoManager] index save failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Up to {@code k} messages from any conversation most similar to {@code query}, best first,
+     * leaving out messages with exactly the query's text. Empty while indexing is off.
+     */
+    public List<Message> findRelevant(String query, int k) {
+        List<Message> relevant = new ArrayList<Message>();
+        Embedder e = embedder;
+        VectorIndex idx = index;
+        if (e == null || idx == null || idx.size() == 0) return relevant;
+        List<VectorIndex.Hit> hits;
+        try {
+            hits = idx.search(e.embed(query), k + 1);
+        } catch (Exception ex) {
+            System.err.println("[ConvoManager] search failed: " + ex.getMessage());
+            return relevant;
+        }
+        return call("findRelevant", relevant, c -> {
+            PreparedStatement ps = statement("SELECT author, content, timestamp FROM messages WHERE id = ?");
+            for (VectorIndex.Hit hit : hits) {
+                if (relevant.size() == k) break;
+                ps.setLong(1, hit.label);
+                try (ResultSet rs = ps.executeQuery()) {
+                    // Rows of deleted conversations stay in the index and are skipped here
+                    if (!rs.next() || rs.getString("content").equals(query)) continue;
+                    relevant.add(new Message(rs.getString("author"), rs.getString("content"), rs.getLong("timestamp")));
+                }
+            }
+            return relevant;
+        });
+    }
+
+    /**
+     * Writes queued messages, saves the message index and closes the database; waits briefly for
+     * the message being embedded.
+     */
+    public void close() {
+        indexer.submit(this::saveIndex);
+        indexer.shutdown();
+        try {
+            indexer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        execute("close", c -> {
+            closed = true;
+            try {
+                flushMessages();
+            } catch (SQLException e) {
+                System.err.println("[ConvoManager] " + pendingMessages.size() + " unsaved messages lost: " + e.getMessage());
+            }
+            for (PreparedStatement ps : statements.values()) ps.close();
+            statements.clear();
+            connection.close();
+            connection = null;
+            return null;
+        });
+        db.shutdown();
+        try {
+            db.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        return list;
+    }
+
+    public List<Message> loadHistory() {
+        int id = currentConversationId;
+        return call("load", new ArrayList<Message>(), c -> {
+            List<Message> history = new ArrayList<Message>();
+            PreparedStatement ps = statement(
+                "SELECT author, content, timestamp FROM messages WHERE conversation_id = ? ORDER BY id ASC");
+            ps.setInt(1, id);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    history.add(new Message(
+                        rs.getString("author"),
+                        rs.getString("content"),
+                        rs.getLong("timestamp")
+                    ));
+                }
+            }
+            return history;
+        });
+    }
+
+    public List<Conversation> loadAllConversations() {
+        return call("loadAll", new ArrayList<Conversation>(), c -> {
+            List<Conversation> list = new ArrayList<Conversation>();
+            try (ResultSet rs = statement("SELECT id, title, created FROM conversations ORDER BY created DESC").executeQuery()) {
+                while (rs.next()) {
+                    list.add(new Conversation(
+                        rs.getInt("id"),
+                        rs.getString("title"),
+                        rs.getLong("created")
+                    ));
+                }
+            }
+            return list;
+        });
     }
 
     public void clearHistory() {
-        try (Connection c = connect();
-             PreparedStatement ps = c.prepareStatement(
-                "DELETE FROM messages WHERE conversation_id = ?")) {
-            ps.setInt(1, currentConversationId);
+        int id = currentConversationId;
+        execute("clear", c -> {
+            PreparedStatement ps = statement("DELETE FROM messages WHERE conversation_id = ?");
+            ps.setInt(1, id);
             ps.executeUpdate();
-        } catch (SQLException e) {
-            System.err.println("[ConvoManager] clear failed: " + e.getMessage());
-        }
+            removeSnapshot(id);
+            return null;
+        });
     }
 
     public void deleteConversation(int id) {
-        try (Connection c = connect()) {
-            PreparedStatement ps1 = c.prepareStatement("DELETE FROM messages WHERE conversation_id = ?");
-            ps1.setInt(1, id);
-            ps1.executeUpdate();
-            PreparedStatement ps2 = c.prepareStatement("DELETE FROM conversations WHERE id = ?");
-            ps2.setInt(1, id);
-            ps2.executeUpdate();
-        } catch (SQLException e) {
-            System.err.println("[ConvoManager] delete failed: " + e.getMessage());
+        execute("delete", c -> {
+            c.setAutoCommit(false);
+            try {
+                PreparedStatement ps1 = statement("DELETE FROM messages WHERE conversation_id = ?");
+                ps1.setInt(1, id);
+                ps1.executeUpdate();
+                PreparedStatement ps2 = statement("DELETE FROM conversations WHERE id = ?");
+                ps2.setInt(1, id);
+                ps2.executeUpdate();
+                removeSnapshot(id);
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+            return null;
+        });
+    }
+
+    // --- Search ---
+
+    /**
+     * Messages containing every word of {@code query}, best match first. The last word also
+     * matches as a prefix, so results follow typing. FTS5 syntax in the query is taken literally.
+     */
+    public List<SearchHit> search(String query, int limit, int offset) {
+        String match = matchExpression(query);
+        if (match.isEmpty()) return new ArrayList<SearchHit>();
+        return call("search", new ArrayList<SearchHit>(), c -> {
+            List<SearchHit> hits = new ArrayList<SearchHit>();
+            PreparedStatement ps = statement(
+                "SELECT m.id, m.conversation_id, c.title, m.author, m.timestamp," +
+                "       snippet(messages_fts, 0, ?, ?, '...', 12) AS snippet" +
+                "  FROM messages_fts" +
+                "  JOIN messages m ON m.id = messages_fts.rowid" +
+                "  LEFT JOIN conversations c ON c.id = m.conversation_id" +
+                " WHERE messages_fts MATCH ?" +
+                " ORDER BY rank LIMIT ? OFFSET ?");
+            ps.setString(1, String.valueOf(MATCH_START));
+            ps.setString(2, String.valueOf(MATCH_END));
+            ps.setString(3, match);
+            ps.setInt(4, limit);
+            ps.setInt(5, offset);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    hits.add(new SearchHit(
+                        rs.getLong(1),
+                        rs.getInt(2),
+                        rs.getString(3) != null ? rs.getString(3) : "",
+                        rs.getString(4),
+                        rs.getLong(5),
+                        rs.getString(6)
+                    ));
+                }
+            }
+            return hits;
+        });
+    }
+
+    // Each word becomes a quoted FTS5 string, so operators and stray quotes in user text are inert
+    private static String matchExpression(String query) {
+        StringBuilder match = new StringBuilder();
+        String[] words = query.trim().split("\\s+");
+        for (int i = 0; i < words.length; i++) {
+            if (words[i].isEmpty()) continue;
+            if (match.length() > 0) match.append(' ');
+            match.append('"').append(words[i].replace("\"", "\"\"")).append('"');
+            if (i == words.length - 1) match.append('*');
         }
+        return match.toString();
+    }
+
+    // --- KV snapshots ---
+
+    /** Where the model state of a conversation is saved. */
+    public File snapshotFile(int conversationId) {
+        SNAPSHOT_DIR.mkdirs();
+        return new File(SNAPSHOT_DIR, "conversation-" + conversationId + ".kv");
     }
 
-    private Connection connect() throws SQLException {
-        return DriverManager.getConnection(DB_URL);
+    /**
+     * Records the state saved to {@code file} for a conversation, replacing an earlier one.
+     * {@code model} identifies the weights and context settings the state only fits.
+     */
+    public void saveSnapshot(int conversationId, String model, int tokens, File file) {
+        execute("saveSnapshot", c -> {
+            PreparedStatement ps = statement(
+                "INSERT OR REPLACE INTO kv_snapshots (conversation_id, model, tokens, path, created) VALUES (?, ?, ?, ?, ?)");
+            ps.setInt(1, conversationId);
+            ps.setString(2, model);
+            ps.setInt(3, tokens);
+            ps.setString(4, file.getPath());
+            ps.setLong(5, System.currentTimeMillis());
+            ps.executeUpdate();
+            return null;
+        });
+    }
+
+    /** The conversation's snapshot if it was taken with {@code model}; a stale one is removed. */
+    public Snapshot loadSnapshot(int conversationId, String model) {
+        return call("loadSnapshot", null, c -> {
+            PreparedStatement ps = statement("SELECT model, tokens, path FROM kv_snapshots WHERE conversation_id = ?");
+            ps.setInt(1, conversationId);
+            Snapshot snapshot;
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return null;
+                snapshot = new Snapshot(conversationId, rs.getString("model"), rs.getInt("tokens"), new File(rs.getString("path")));
+            }
+            if (snapshot.model.equals(model) && snapshot.file.isFile()) return snapshot;
+            removeSnapshot(conversationId);
+            return null;
+        });
+    }
+
+    public void deleteSnapshot(int conversationId) {
+        execute("deleteSnapshot", c -> {
+            removeSnapshot(conversationId);
+            return null;
+        });
+    }
+
+    // Database thread only
+    private void removeSnapshot(int conversationId) throws SQLException {
+        PreparedStatement ps = statement("SELECT path FROM kv_snapshots WHERE conversation_id = ?");
+        ps.setInt(1, conversationId);
+        try (ResultSet rs = ps.executeQuery()) {
+            if (rs.next()) new File(rs.getString("path")).delete();
+        }
+        PreparedStatement del = statement("DELETE FROM kv_snapshots WHERE conversation_id = ?");
+        del.setInt(1, conversationId);
+        del.executeUpdate();
+    }
+
+    // --- Database thread ---
+
+    /** Runs {@code task} on the database thread and waits for it; {@code fallback} if it fails. */
+    private <T> T call(String what, T fallback, DbTask<T> task) {
+        try {
+            return db.submit(() -> run(task)).get();
+        } catch (ExecutionException e) {
+            System.err.println("[ConvoManager] " + what + " failed: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            System.err.println("[ConvoManager] " + what + " failed: " + e.getMessage());
+        }
+        return fallback;
+    }
+
+    /** Queues {@code task} on the database thread without waiting. */
+    private void execute(String what, DbTask<?> task) {
+        try {
+            db.execute(() -> {
+                try {
+                    run(task);
+                } catch (SQLException e) {
+                    System.err.println("[ConvoManager] " + what + " failed: " + e.getMessage());
+                }
+            });
+        } catch (RuntimeException e) {
+            System.err.println("[ConvoManager] " + what + " failed: " + e.getMessage());
+        }
+    }
+
+    private <T> T run(DbTask<T> task) throws SQLException {
+        if (connection == null) connection = open();
+        return task.run(connection);
+    }
+
+    private static Connection open() throws SQLException {
+        Connection c = DriverManager.getConnection(DB_URL);
+        try (Statement s = c.createStatement()) {
+            // Readers no longer wait for the writer, and commits skip the fsync per transaction
+            s.execute("PRAGMA journal_mode = WAL");
+            s.execute("PRAGMA synchronous = NORMAL");
+            s.execute("PRAGMA busy_timeout = 5000");
+            s.execute("PRAGMA temp_store = MEMORY");
+        }
+        return c;
+    }
+
+    // Prepared once per connection and reused
+    private PreparedStatement statement(String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null) {
+            ps = connection.prepareStatement(sql);
+            statements.put(sql, ps);
+        }
+        return ps;
+    }
+
+    private long lastInsertId() throws SQLException {
+        try (ResultSet rs = statement("SELECT last_insert_rowid()").executeQuery()) {
+            return rs.next() ? rs.getLong(1) : -1;
+        }
     }
 }
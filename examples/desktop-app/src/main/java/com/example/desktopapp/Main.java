@@ -1,22 +1,35 @@
 package com.example.desktopapp;
 
+import com.ajllama.json.Json;
+import com.ajllama.text.StreamingTextBuffer;
 import com.formdev.flatlaf.FlatDarkLaf;
 import com.formdev.flatlaf.FlatLightLaf;
 import com.llama4aj;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.text.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.File;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
 
     private static final String MODEL_PATH = "./model.gguf"; // !!! CHANGE THIS !!!
+    // Optional: with an embedding model here, past messages are indexed and retrieved as context
+    private static final String EMBEDDING_MODEL_PATH = "./embedding.gguf";
+    private static final String INDEX_PATH = "chat_history.idx";
+    private static final int    RELEVANT_MESSAGES = 3;
+    private static final int    SEARCH_PAGE = 50;
 
     private static final Color CODE_BG_LIGHT = new Color(235, 235, 235);
     private static final Color CODE_BG_DARK  = new Color(45,  45,  45);
@@ -26,13 +39,39 @@ public class Main {
     private boolean          firstMessage = true;
 
     private llama4aj        model;
+    private llama4aj        embeddingModel;
     private ExecutorService executor;
-    private StringBuilder   currentResponse = new StringBuilder();
     private volatile CountDownLatch generationLatch;
-    private int             streamStart = -1;
+    private MarkdownAppender streaming;   // The assistant message being streamed, on the EDT
+
+    // Executor thread only: which conversation the model's KV cache holds, and whether it has
+    // turns not yet in that conversation's snapshot
+    private String  modelKey;
+    private int     kvConversation = -1;
+    private boolean kvDirty;
 
     private final ConvoManager convo = new ConvoManager();
 
+    private final MarkdownAppender.Styles markdownStyles = new MarkdownAppender.Styles() {
+        @Override
+        public AttributeSet text(boolean bold) {
+            SimpleAttributeSet s = new SimpleAttributeSet();
+            StyleConstants.setFontFamily(s, "SansSerif");
+            StyleConstants.setFontSize(s, 14);
+            if (bold) StyleConstants.setBold(s, true);
+            return s;
+        }
+
+        @Override
+        public AttributeSet code() {
+            SimpleAttributeSet s = new SimpleAttributeSet();
+            StyleConstants.setFontFamily(s, "Monospaced");
+            StyleConstants.setFontSize(s, 13);
+            StyleConstants.setBackground(s, darkTheme ? CODE_BG_DARK : CODE_BG_LIGHT);
+            return s;
+        }
+    };
+
     private JFrame    frame;
     private JTextPane chatPane;
     private JTextArea inputArea;
@@ -44,6 +83,14 @@ public class Main {
     private JLabel    statusLabel;
     private DefaultListModel<ConvoManager.Conversation> sidebarModel;
     private JList<ConvoManager.Conversation>            sidebarList;
+    private JScrollPane sidebarScroll;
+    private JTextField  searchField;
+    private Timer       searchTimer;
+    private DefaultListModel<ConvoManager.SearchHit> searchModel;
+    private JList<ConvoManager.SearchHit>            searchList;
+    private int         searchGeneration;   // Results of older searches are dropped
+    private boolean     searchLoading;
+    private boolean     searchExhausted;
 
     public static void main(String[] args) {
         FlatLightLaf.setup();
@@ -70,6 +117,9 @@ public class Main {
         try {
             model = llama4aj.load(MODEL_PATH);
             if (model != null) {
+                modelKey = f.getCanonicalPath() + ":" + f.length() + ":" + f.lastModified() + ":" + new llama4aj.Config().n_ctx;
+                enterConversation(convo.getCurrentConversationId());
+                initEmbeddings();
                 setStatus("Ready");
                 setSendEnabled(true);
             } else {
@@ -82,6 +132,34 @@ public class Main {
         }
     }
 
+    private void initEmbeddings() {
+        if (!new File(EMBEDDING_MODEL_PATH).exists()) return;
+        try {
+            embeddingModel = llama4aj.load(EMBEDDING_MODEL_PATH, new llama4aj.Config().embedding(true));
+            embeddingModel.enableParallel();
+            convo.enableIndex(this::embed, new File(INDEX_PATH));
+        } catch (Exception e) {
+            System.err.println("[Main] embeddings disabled: " + e.getMessage());
+            embeddingModel = null;
+        }
+    }
+
+    private float[] embed(String text) throws Exception {
+        String[] result = new String[1];
+        llama4aj.Completion c = embeddingModel.submitEmbedding(text, new llama4aj.RequestCallback() {
+            @Override public void onToken(String token) {}
+            @Override public void onComplete(String resultJson) { result[0] = resultJson; }
+        });
+        c.await();
+        Map<String, Object> json = Json.parseObject(result[0]);
+        Object values = json.get("embedding");
+        if (!(values instanceof List)) throw new IllegalStateException(Json.getString(json, "error", "no embedding"));
+        List<?> list = (List<?>) values;
+        float[] vector = new float[list.size()];
+        for (int i = 0; i < vector.length; i++) vector[i] = ((Number) list.get(i)).floatValue();
+        return vector;
+    }
+
     private void sendMessage() {
         String prompt = inputArea.getText().trim();
         if (prompt.isEmpty() || isGenerating) return;
@@ -104,23 +182,40 @@ public class Main {
             return;
         }
 
-        currentResponse = new StringBuilder();
+        // Tokens are only buffered here; the EDT renders what arrived once per frame
+        StreamingTextBuffer stream = new StreamingTextBuffer(StreamingTextBuffer.DEFAULT_FRAME_MILLIS,
+                Main::runOnEdt, this::renderStreamFrame);
         SwingUtilities.invokeLater(this::beginAssistantMessage);
 
         generationLatch = new CountDownLatch(1);
         CountDownLatch latch = generationLatch;
 
         try {
-            String fullPrompt = "User: " + userPrompt + "\nAssistant:";
-            String paramsJson = "{\"prompt\":\"" + fullPrompt.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n").replace("\r", "\\r") + "\",\"n_predict\":256,\"stream\":true}";
+            // The transcript comes first and only grows, so its KV is reused from turn to turn
+            List<ConvoManager.Message> history = convo.loadHistory();
+            StringBuilder transcript = new StringBuilder();
+            Set<String> inTranscript = new HashSet<String>();
+            for (int i = 0; i < history.size() - 1; i++) {
+                ConvoManager.Message m = history.get(i);
+                transcript.append("You".equals(m.author) ? "User" : m.author).append(": ").append(m.content).append("\n");
+                inTranscript.add(m.content);
+            }
+            StringBuilder context = new StringBuilder();
+            for (ConvoManager.Message m : convo.findRelevant(userPrompt, RELEVANT_MESSAGES)) {
+                if (inTranscript.contains(m.content)) continue;
+                context.append(m.author).append(": ").append(m.content).append("\n");
+            }
+            String fullPrompt = transcript
+                    + (context.length() > 0 ? "Relevant earlier messages:\n" + context + "\n" : "")
+                    + "User: " + userPrompt + "\nAssistant:";
+            enterConversation(convo.getCurrentConversationId());
+            kvDirty = true;
+            String paramsJson = "{\"prompt\":" + Json.quote(fullPrompt) + ",\"n_predict\":256,\"stream\":true}";
 
             model.completion(paramsJson, new llama4aj.CompletionCallback() {
                 @Override
                 public void onTokenReceived(String token, boolean stop) {
-                    if (!token.isEmpty()) {
-                        currentResponse.append(token);
-                        SwingUtilities.invokeLater(() -> updateStreamingMessage(currentResponse.toString()));
-                    }
+                    stream.append(token);
                     if (stop) latch.countDown();
                 }
             });
@@ -133,13 +228,9 @@ public class Main {
 
         try { latch.await(); } catch (InterruptedException e) { latch.countDown(); }
 
-        String finalText = currentResponse.toString();
+        // The final frame finishes the message and re-enables input
+        String finalText = stream.finish();
         convo.saveMessage("Assistant", finalText);
-        SwingUtilities.invokeLater(() -> {
-            finaliseStreamingMessage(finalText);
-            setGeneratingState(false);
-            setStatus("Ready");
-        });
     }
 
     private void interruptGeneration() {
@@ -149,9 +240,44 @@ public class Main {
         }).start();
     }
 
+    // --- KV snapshots (executor thread) ---
+
+    /** Saves the KV of the conversation the model holds if it changed, then loads the snapshot of {@code id}. */
+    private void enterConversation(int id) {
+        if (model == null || id == kvConversation) return;
+        leaveConversation();
+        kvConversation = id;
+        restoreSnapshot(id);
+    }
+
+    private void leaveConversation() {
+        if (model == null || kvConversation < 0 || !kvDirty) return;
+        File file = convo.snapshotFile(kvConversation);
+        try {
+            int tokens = model.saveSession(file);
+            convo.saveSnapshot(kvConversation, modelKey, tokens, file);
+        } catch (IllegalStateException e) {
+            System.err.println("[Main] snapshot not saved: " + e.getMessage());
+        }
+        kvDirty = false;
+    }
+
+    private void restoreSnapshot(int id) {
+        ConvoManager.Snapshot snapshot = convo.loadSnapshot(id, modelKey);
+        if (snapshot == null) return;
+        try {
+            int tokens = model.loadSession(snapshot.file);
+            setStatus("Restored " + tokens + " tokens of context");
+        } catch (IllegalStateException e) {
+            System.err.println("[Main] snapshot not restored: " + e.getMessage());
+            convo.deleteSnapshot(id);
+        }
+    }
+
     private void newConversation() {
         if (isGenerating) return;
-        convo.newConversation();
+        int id = convo.newConversation();
+        executor.submit(() -> enterConversation(id));
         firstMessage = true;
         chatPane.setText("");
         refreshSidebar();
@@ -162,6 +288,8 @@ public class Main {
     private void switchConversation(ConvoManager.Conversation c) {
         if (isGenerating) return;
         convo.setCurrentConversation(c.id);
+        // Prepared while the history is read; the next prompt then only decodes the new turn
+        executor.submit(() -> enterConversation(c.id));
         firstMessage = false;
         chatPane.setText("");
         loadHistory();
@@ -175,6 +303,60 @@ public class Main {
         selectCurrentInSidebar();
     }
 
+    // EDT: queries on a worker, shows the results in place of the conversation list
+    private void runSearch(boolean nextPage) {
+        String query = searchField.getText().trim();
+        int generation = ++searchGeneration;
+        if (query.isEmpty()) {
+            searchLoading = false;
+            searchModel.clear();
+            sidebarScroll.setViewportView(sidebarList);
+            return;
+        }
+        int offset = nextPage ? searchModel.size() : 0;
+        searchLoading = true;
+        new SwingWorker<List<ConvoManager.SearchHit>, Void>() {
+            @Override
+            protected List<ConvoManager.SearchHit> doInBackground() {
+                return convo.search(query, SEARCH_PAGE, offset);
+            }
+
+            @Override
+            protected void done() {
+                if (generation != searchGeneration) return;
+                searchLoading = false;
+                List<ConvoManager.SearchHit> hits;
+                try {
+                    hits = get();
+                } catch (Exception e) {
+                    return;
+                }
+                if (!nextPage) searchModel.clear();
+                for (ConvoManager.SearchHit hit : hits) searchModel.addElement(hit);
+                searchExhausted = hits.size() < SEARCH_PAGE;
+                if (sidebarScroll.getViewport().getView() != searchList) sidebarScroll.setViewportView(searchList);
+            }
+        }.execute();
+    }
+
+    // Escapes text for a Swing HTML label, turning search match markers into bold
+    private static String html(String text) {
+        StringBuilder sb = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            switch (ch) {
+                case '&': sb.append("&amp;"); break;
+                case '<': sb.append("&lt;");  break;
+                case '>': sb.append("&gt;");  break;
+                case '\n': sb.append(' ');    break;
+                case ConvoManager.MATCH_START: sb.append("<b>");  break;
+                case ConvoManager.MATCH_END:   sb.append("</b>"); break;
+                default:  sb.append(ch);
+            }
+        }
+        return sb.toString();
+    }
+
     private void selectCurrentInSidebar() {
         int current = convo.getCurrentConversationId();
         for (int i = 0; i < sidebarModel.size(); i++) {
@@ -207,76 +389,45 @@ public class Main {
             StyleConstants.setBold(authorStyle, true);
             StyleConstants.setSpaceAbove(authorStyle, 8f);
             doc.insertString(doc.getLength(), "Assistant:\n", authorStyle);
-            streamStart = doc.getLength();
+            streaming = new MarkdownAppender(doc, markdownStyles);
             chatPane.setCaretPosition(doc.getLength());
         } catch (BadLocationException e) {
             e.printStackTrace();
         }
     }
 
-    private void updateStreamingMessage(String fullText) {
+    private void renderStreamFrame(String delta, boolean done) {
+        if (streaming == null) return;
         StyledDocument doc = chatPane.getStyledDocument();
         try {
-            if (streamStart < 0) return;
-            int tail = doc.getLength() - streamStart;
-            if (tail > 0) doc.remove(streamStart, tail);
-            renderMarkdown(doc, fullText);
+            streaming.append(delta);
+            if (done) {
+                streaming.finish();
+                doc.insertString(doc.getLength(), "\n", new SimpleAttributeSet());
+                streaming = null;
+                setGeneratingState(false);
+                setStatus("Ready");
+            }
             chatPane.setCaretPosition(doc.getLength());
         } catch (BadLocationException e) {
             e.printStackTrace();
         }
     }
 
-    private void finaliseStreamingMessage(String fullText) {
-        StyledDocument doc = chatPane.getStyledDocument();
-        try {
-            if (streamStart < 0) return;
-            int tail = doc.getLength() - streamStart;
-            if (tail > 0) doc.remove(streamStart, tail);
-            renderMarkdown(doc, fullText);
-            doc.insertString(doc.getLength(), "\n", new SimpleAttributeSet());
-            streamStart = -1;
-            chatPane.setCaretPosition(doc.getLength());
-        } catch (BadLocationException e) {
-            e.printStackTrace();
+    private static void runOnEdt(Runnable task, long delayMillis) {
+        if (delayMillis <= 0) {
+            SwingUtilities.invokeLater(task);
+            return;
         }
+        Timer timer = new Timer((int) delayMillis, e -> task.run());
+        timer.setRepeats(false);
+        timer.start();
     }
 
     private void renderMarkdown(StyledDocument doc, String text) throws BadLocationException {
-        String[] parts = text.split("(?s)```[a-zA-Z]*\n?", -1);
-        boolean inFence = false;
-        for (String part : parts) {
-            if (inFence) appendCode(doc, part);
-            else         renderInline(doc, part);
-            inFence = !inFence;
-        }
-    }
-
-    private void renderInline(StyledDocument doc, String text) throws BadLocationException {
-        String[] parts = text.split("`", -1);
-        for (int i = 0; i < parts.length; i++) {
-            if (i % 2 == 1) appendCode(doc, parts[i]);
-            else             renderBold(doc, parts[i]);
-        }
-    }
-
-    private void renderBold(StyledDocument doc, String text) throws BadLocationException {
-        String[] parts = text.split("\\*\\*", -1);
-        for (int i = 0; i < parts.length; i++) {
-            SimpleAttributeSet s = new SimpleAttributeSet();
-            StyleConstants.setFontFamily(s, "SansSerif");
-            StyleConstants.setFontSize(s, 14);
-            if (i % 2 == 1) StyleConstants.setBold(s, true);
-            doc.insertString(doc.getLength(), parts[i], s);
-        }
-    }
-
-    private void appendCode(StyledDocument doc, String code) throws BadLocationException {
-        SimpleAttributeSet s = new SimpleAttributeSet();
-        StyleConstants.setFontFamily(s, "Monospaced");
-        StyleConstants.setFontSize(s, 13);
-        StyleConstants.setBackground(s, darkTheme ? CODE_BG_DARK : CODE_BG_LIGHT);
-        doc.insertString(doc.getLength(), code, s);
+        MarkdownAppender markdown = new MarkdownAppender(doc, markdownStyles);
+        markdown.append(text);
+        markdown.finish();
     }
 
     private void buildUI() {
@@ -311,15 +462,59 @@ public class Main {
                 }
             }
         });
-        JScrollPane sidebarScroll = new JScrollPane(sidebarList);
+        sidebarScroll = new JScrollPane(sidebarList);
         sidebarScroll.setPreferredSize(new Dimension(180, 0));
         sidebarScroll.setBorder(BorderFactory.createMatteBorder(0, 0, 0, 1, Color.GRAY));
 
+        // --- Search ---
+        searchModel = new DefaultListModel<ConvoManager.SearchHit>();
+        searchList  = new JList<ConvoManager.SearchHit>(searchModel);
+        searchList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        searchList.setFont(new Font("SansSerif", Font.PLAIN, 12));
+        searchList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+                super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+                if (value instanceof ConvoManager.SearchHit) {
+                    ConvoManager.SearchHit hit = (ConvoManager.SearchHit) value;
+                    setText("<html><body style='width:140px'><b>" + html(hit.conversationTitle) + "</b><br>"
+                            + html(hit.author) + ": " + html(hit.snippet) + "</body></html>");
+                }
+                return this;
+            }
+        });
+        searchList.addMouseListener(new MouseAdapter() {
+            @Override public void mouseClicked(MouseEvent e) {
+                ConvoManager.SearchHit hit = searchList.getSelectedValue();
+                if (hit != null && hit.conversationId != convo.getCurrentConversationId()) {
+                    switchConversation(new ConvoManager.Conversation(hit.conversationId, hit.conversationTitle, 0));
+                }
+            }
+        });
+        // The next page loads when the results are scrolled to the end
+        sidebarScroll.getVerticalScrollBar().addAdjustmentListener(e -> {
+            JScrollBar bar = (JScrollBar) e.getAdjustable();
+            if (sidebarScroll.getViewport().getView() == searchList && !searchLoading && !searchExhausted
+                    && bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum()) {
+                runSearch(true);
+            }
+        });
+        searchTimer = new Timer(200, e -> runSearch(false));
+        searchTimer.setRepeats(false);
+        searchField = new JTextField();
+        searchField.putClientProperty("JTextField.placeholderText", "Search messages");
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override public void insertUpdate(DocumentEvent e)  { searchTimer.restart(); }
+            @Override public void removeUpdate(DocumentEvent e)  { searchTimer.restart(); }
+            @Override public void changedUpdate(DocumentEvent e) { searchTimer.restart(); }
+        });
+
         newConvoButton = new JButton("New");
         newConvoButton.addActionListener(e -> newConversation());
 
         JPanel sidebarPanel = new JPanel(new BorderLayout(0, 4));
         sidebarPanel.setBorder(BorderFactory.createEmptyBorder(6, 4, 6, 4));
+        sidebarPanel.add(searchField,   BorderLayout.NORTH);
         sidebarPanel.add(sidebarScroll, BorderLayout.CENTER);
 
         // --- Chat pane ---
@@ -424,7 +619,9 @@ public class Main {
         int ok = JOptionPane.showConfirmDialog(frame,
             "Clear current conversation?", "Clear", JOptionPane.YES_NO_OPTION);
         if (ok == JOptionPane.YES_OPTION) {
+            int id = convo.getCurrentConversationId();
             convo.clearHistory();
+            executor.submit(() -> { if (kvConversation == id) kvDirty = false; });
             chatPane.setText("");
             firstMessage = true;
             setStatus("Cleared");
@@ -446,8 +643,20 @@ public class Main {
     private void setSendEnabled(boolean on) { SwingUtilities.invokeLater(() -> sendButton.setEnabled(on)); }
 
     private void shutdown() {
-        if (executor != null && !executor.isShutdown()) executor.shutdownNow();
+        if (executor != null && !executor.isShutdown()) {
+            if (model != null) model.interrupt();
+            // Keep the open conversation's KV so the next start resumes it without prefilling
+            executor.submit(this::leaveConversation);
+            executor.shutdown();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        convo.close();
         if (model    != null)                           model.close();
+        if (embeddingModel != null)                     embeddingModel.close();
         System.exit(0);
     }
 }
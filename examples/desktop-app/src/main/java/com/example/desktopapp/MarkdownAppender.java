@@ -0,0 +1,122 @@
+package com.example.desktopapp;
+
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.StyledDocument;
+
+/**
+ * Appends the chat's Markdown subset (``` fences, `code` and **bold**) to the end of a document
+ * as text streams in. Markers split across deltas are held back until the next character
+ * decides them, so a message appended in pieces looks the same as one appended whole, and each
+ * delta costs only its own length.
+ */
+final class MarkdownAppender {
+
+    interface Styles {
+        AttributeSet text(boolean bold);
+        AttributeSet code();
+    }
+
+    private static final int PLAIN = 0;
+    private static final int BOLD = 1;
+    private static final int CODE = 2;
+
+    private final StyledDocument doc;
+    private final Styles styles;
+
+    private boolean fence;
+    private boolean code;
+    private boolean bold;
+    private boolean fenceInfo;   // Skipping the language name and newline after ```
+    private int ticks;           // Backticks not yet known to be inline code or a fence
+    private boolean star;        // A '*' that may start "**"
+
+    private final StringBuilder run = new StringBuilder();
+    private int runKind;
+
+    MarkdownAppender(StyledDocument doc, Styles styles) {
+        this.doc = doc;
+        this.styles = styles;
+    }
+
+    void append(CharSequence delta) throws BadLocationException {
+        for (int i = 0; i < delta.length(); i++) step(delta.charAt(i));
+        flushRun();
+    }
+
+    /** Resolves held-back markers at the end of the message. */
+    void finish() throws BadLocationException {
+        if (ticks > 0) {
+            // Unclosed inline code shows nothing more; backticks inside a fence are code
+            if (fence) emitTicks();
+            ticks = 0;
+        }
+        if (star) {
+            emit('*');
+            star = false;
+        }
+        flushRun();
+    }
+
+    private void step(char c) throws BadLocationException {
+        if (fenceInfo) {
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) return;
+            fenceInfo = false;
+            if (c == '\n') return;
+        }
+        if (c == '`') {
+            if (star) {
+                emit('*');
+                star = false;
+            }
+            if (++ticks == 3) {
+                ticks = 0;
+                fence = !fence;
+                code = false;
+                bold = false;
+                fenceInfo = true;
+            }
+            return;
+        }
+        if (ticks > 0) {
+            if (fence) {
+                emitTicks();
+            } else {
+                // Each backtick opens or closes inline code, and bold never spans code
+                if (ticks % 2 == 1) code = !code;
+                bold = false;
+            }
+            ticks = 0;
+        }
+        if (c == '*' && !fence && !code) {
+            if (star) bold = !bold;
+            star = !star;
+            return;
+        }
+        if (star) {
+            emit('*');
+            star = false;
+        }
+        emit(c);
+    }
+
+    private void emitTicks() throws BadLocationException {
+        for (int i = 0; i < ticks; i++) emit('`');
+    }
+
+    private void emit(char c) throws BadLocationException {
+        int kind = fence || code ? CODE : bold ? BOLD : PLAIN;
+        if (kind != runKind) {
+            flushRun();
+            runKind = kind;
+        }
+        run.append(c);
+    }
+
+    private void flushRun() throws BadLocationException {
+        if (run.length() == 0) return;
+        AttributeSet style = runKind == CODE ? styles.code() : styles.text(runKind == BOLD);
+        doc.insertString(doc.getLength(), run.toString(), style);
+        run.setLength(0);
+    }
+}
@@ -0,0 +1,363 @@
+package com.ajllama.batch;
+
+import com.ajllama.json.Json;
+import com.llama4aj;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offline batch job on the native slot manager, yielding results in completion order.
+ *
+ * Requests are read ahead in chunks. Identical requests are submitted once and share the result,
+ * and each chunk is ordered by prompt length bucket and then by text, so requests with a common
+ * prefix run back to back and hit the slot manager's prefix cache (shared across slots with
+ * {@code Config.kvUnified(true)}). A feeder thread keeps twice as many requests queued as there
+ * are slots, so the slots stay busy however slowly results are consumed.
+ *
+ * Requests left at the normal priority run in the batch class, so interactive traffic on the
+ * same model is served first; if the queue is full the feeder backs off and retries.
+ *
+ * <pre>
+ * try (Batch batch = model.batch(prompts)) {
+ *     while (batch.hasNext()) write(batch.next());
+ *     System.out.println(batch.stats());
+ * }
+ * </pre>
+ */
+public final class Batch implements Iterator<Batch.Result>, AutoCloseable {
+
+    private static final Result END = new Result(-1, null, null);
+
+    private final llama4aj model;
+    private final Iterable<llama4aj.CompletionParams> requests;
+    private final int window;
+    private final int chunkSize;
+    private final Semaphore permits;
+    private final BlockingQueue<Result> results = new LinkedBlockingQueue<Result>();
+    private final Map<String, Group> inFlight = new ConcurrentHashMap<String, Group>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicBoolean endQueued = new AtomicBoolean();
+
+    private final AtomicInteger nRequests = new AtomicInteger();
+    private final AtomicInteger nSubmitted = new AtomicInteger();
+    private final AtomicInteger nFailed = new AtomicInteger();
+    private final AtomicLong promptTokens = new AtomicLong();
+    private final AtomicLong cachedTokens = new AtomicLong();
+    private final AtomicLong predictedTokens = new AtomicLong();
+
+    private Thread feeder;
+    private volatile boolean feederDone;
+    private volatile boolean closed;
+    private volatile RuntimeException failure;
+    private boolean ended;
+    private Result next;
+    private long startNanos;
+    private long endNanos;
+
+    public Batch(llama4aj model, Iterable<llama4aj.CompletionParams> requests) {
+        this.model = model;
+        this.requests = requests;
+        String status = model.parallelStatus();
+        int nParallel = status != null ? (int) Json.getLong(Json.parseObject(status), "n_parallel", 1) : 1;
+        this.window = Math.max(2, nParallel * 2);
+        this.chunkSize = Math.max(256, window * 64);
+        this.permits = new Semaphore(window);
+    }
+
+    /** Starts feeding the slot manager; called by the first {@link #hasNext()} if not done earlier. */
+    public synchronized Batch start() {
+        if (feeder == null) {
+            startNanos = System.nanoTime();
+            feeder = new Thread(this::feed, "llama-batch-feeder");
+            feeder.setDaemon(true);
+            feeder.start();
+        }
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) return true;
+        if (ended) return false;
+        start();
+        try {
+            Result r = results.take();
+            if (r == END) {
+                ended = true;
+                endNanos = System.nanoTime();
+                if (failure != null) throw failure;
+                return false;
+            }
+            next = r;
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            return false;
+        }
+    }
+
+    @Override
+    public Result next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Result r = next;
+        next = null;
+        return r;
+    }
+
+    /** Aggregate counts and throughput; final once iteration has ended. */
+    public Stats stats() {
+        long end = ended ? endNanos : System.nanoTime();
+        return new Stats(nRequests.get(), nSubmitted.get(), nFailed.get(),
+                promptTokens.get(), cachedTokens.get(), predictedTokens.get(),
+                startNanos == 0 ? 0 : end - startNanos);
+    }
+
+    /** Stops submitting and cancels whatever is still queued or running. */
+    @Override
+    public void close() {
+        closed = true;
+        if (feeder != null) feeder.interrupt();
+        for (Group group : inFlight.values()) {
+            if (group.completion != null) group.completion.cancel();
+        }
+    }
+
+    // --- Feeding ---
+
+    private void feed() {
+        try {
+            Iterator<llama4aj.CompletionParams> source = requests.iterator();
+            int index = 0;
+            while (!closed && source.hasNext()) {
+                Map<String, Group> chunk = new LinkedHashMap<String, Group>();
+                for (int n = 0; n < chunkSize && source.hasNext(); n++) {
+                    llama4aj.CompletionParams params = source.next().copy().stream(false);
+                    if (params.priority == llama4aj.CompletionParams.PRIORITY_NORMAL) {
+                        params.priority(llama4aj.CompletionParams.PRIORITY_BATCH);
+                    }
+                    int i = index++;
+                    nRequests.incrementAndGet();
+                    String key = params.toJson();
+                    if (attach(inFlight.get(key), i)) continue;
+                    Group group = chunk.get(key);
+                    if (group == null) {
+                        group = new Group(key, params);
+                        chunk.put(key, group);
+                    }
+                    group.indices.add(i);
+                }
+
+                List<Group> ordered = new ArrayList<Group>(chunk.values());
+                Collections.sort(ordered, ORDER);
+                for (Group group : ordered) {
+                    permits.acquire();
+                    if (closed) {
+                        permits.release();
+                        return;
+                    }
+                    submit(group);
+                }
+            }
+        } catch (InterruptedException e) {
+            // close()
+        } catch (RuntimeException e) {
+            failure = e;
+        } finally {
+            feederDone = true;
+            finishIfDone();
+        }
+    }
+
+    private static boolean attach(Group group, int index) {
+        if (group == null) return false;
+        synchronized (group) {
+            if (group.done) return false;
+            group.indices.add(index);
+            return true;
+        }
+    }
+
+    private void submit(final Group group) {
+        outstanding.incrementAndGet();
+        nSubmitted.incrementAndGet();
+        inFlight.put(group.key, group);
+        long backoffMillis = 10;
+        while (true) {
+            try {
+                group.completion = model.submit(group.params, new llama4aj.RequestCallback() {
+                    @Override public void onToken(String token) {}
+                    @Override public void onComplete(String resultJson) { complete(group, resultJson); }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                // Other clients filled the queue; our own window never does
+                if (!closed) {
+                    try {
+                        Thread.sleep(backoffMillis);
+                        backoffMillis = Math.min(backoffMillis * 2, 1000);
+                        continue;
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                complete(group, "{\"error\":\"Batch closed\"}");
+                return;
+            } catch (IllegalStateException e) {
+                complete(group, "{\"error\":" + Json.quote(e.getMessage()) + "}");
+                return;
+            }
+        }
+    }
+
+    // Runs on the slot manager thread: only hand results over, never submit from here
+    private void complete(Group group, String resultJson) {
+        inFlight.remove(group.key, group);
+        List<Integer> indices;
+        synchronized (group) {
+            if (group.done) return;
+            group.done = true;
+            indices = new ArrayList<Integer>(group.indices);
+        }
+
+        Map<String, Object> json;
+        try {
+            json = Json.parseObject(resultJson);
+        } catch (IllegalArgumentException e) {
+            json = Collections.<String, Object>singletonMap("error", "Malformed result: " + e.getMessage());
+        }
+        promptTokens.addAndGet(Json.getLong(json, "tokens_evaluated", 0));
+        cachedTokens.addAndGet(Math.max(0, Json.getLong(json, "tokens_cached", 0)));
+        predictedTokens.addAndGet(Json.getLong(json, "tokens_predicted", 0));
+
+        for (int index : indices) {
+            Result result = new Result(index, group.params, json);
+            if (result.failed()) nFailed.incrementAndGet();
+            results.add(result);
+        }
+
+        permits.release();
+        outstanding.decrementAndGet();
+        finishIfDone();
+    }
+
+    private void finishIfDone() {
+        if (feederDone && outstanding.get() == 0 && endQueued.compareAndSet(false, true)) {
+            results.add(END);
+        }
+    }
+
+    // Short prompts first, grouped by power-of-two length; text order within a bucket puts shared prefixes together
+    private static final Comparator<Group> ORDER = new Comparator<Group>() {
+        @Override
+        public int compare(Group a, Group b) {
+            int la = 32 - Integer.numberOfLeadingZeros(a.params.prompt.length());
+            int lb = 32 - Integer.numberOfLeadingZeros(b.params.prompt.length());
+            if (la != lb) return la < lb ? -1 : 1;
+            return a.params.prompt.compareTo(b.params.prompt);
+        }
+    };
+
+    private static final class Group {
+        final String key;
+        final llama4aj.CompletionParams params;
+        final List<Integer> indices = new ArrayList<Integer>(1);
+        volatile llama4aj.Completion completion;
+        boolean done;
+
+        Group(String key, llama4aj.CompletionParams params) {
+            this.key = key;
+            this.params = params;
+        }
+    }
+
+    // --- Results ---
+
+    public static final class Result {
+        /** Position of the request in the input. */
+        public final int index;
+        public final llama4aj.CompletionParams params;
+        /** Parsed result JSON (text, stop flags, token counts, timings). */
+        public final Map<String, Object> json;
+
+        Result(int index, llama4aj.CompletionParams params, Map<String, Object> json) {
+            this.index = index;
+            this.params = params;
+            this.json = json;
+        }
+
+        public String text() {
+            return Json.getString(json, "text", "");
+        }
+
+        public boolean failed() {
+            return json.containsKey("error") || Json.getBoolean(json, "interrupted", false);
+        }
+
+        public String error() {
+            return Json.getString(json, "error", failed() ? "Interrupted" : null);
+        }
+    }
+
+    public static final class Stats {
+        public final int requests;
+        /** Distinct requests actually run after deduplication. */
+        public final int submitted;
+        public final int failed;
+        public final long promptTokens;
+        public final long cachedTokens;
+        public final long predictedTokens;
+        public final long elapsedNanos;
+
+        Stats(int requests, int submitted, int failed, long promptTokens, long cachedTokens, long predictedTokens, long elapsedNanos) {
+            this.requests = requests;
+            this.submitted = submitted;
+            this.failed = failed;
+            this.promptTokens = promptTokens;
+            this.cachedTokens = cachedTokens;
+            this.predictedTokens = predictedTokens;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        private double seconds() {
+            return elapsedNanos / 1e9;
+        }
+
+        public double requestsPerSecond() {
+            return elapsedNanos > 0 ? requests / seconds() : 0;
+        }
+
+        /** Prompt tokens actually decoded (not served from the prefix cache) per second. */
+        public double promptTokensPerSecond() {
+            return elapsedNanos > 0 ? (promptTokens - cachedTokens) / seconds() : 0;
+        }
+
+        public double predictedTokensPerSecond() {
+            return elapsedNanos > 0 ? predictedTokens / seconds() : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests (%d unique, %d failed) in %.1f s: %.2f req/s, " +
+                            "prompt %d tokens (%d cached, %.1f t/s), generated %d tokens (%.1f t/s)",
+                    requests, submitted, failed, seconds(), requestsPerSecond(),
+                    promptTokens, cachedTokens, promptTokensPerSecond(),
+                    predictedTokens, predictedTokensPerSecond());
+        }
+    }
+}
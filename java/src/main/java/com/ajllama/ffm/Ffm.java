@@ -0,0 +1,35 @@
+package com.ajllama.ffm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Completion entry points over {@code java.lang.foreign} instead of JNI.
+ *
+ * This is the Java 8 variant and is never available; the multi-release jar carries a Java 22+
+ * variant under {@code META-INF/versions/22} that binds the native {@code ajllama_ffm_*}
+ * functions with downcall handles and delivers tokens through upcall stubs. {@code llama4aj}
+ * checks {@link #available()} and otherwise stays on JNI. Internal API.
+ */
+public final class Ffm {
+
+    /** Receives each token's UTF-8 bytes, only valid during the call; the last call has {@code stop} set. */
+    public interface TokenSink {
+        void onToken(ByteBuffer utf8, boolean stop);
+    }
+
+    /** Same contract as the JNI sampler bridge: logits and candidates are views of native memory. */
+    public interface SampleFn {
+        int sample(ByteBuffer logits, int nVocab, ByteBuffer candidates, int nCandidates);
+    }
+
+    private Ffm() {}
+
+    public static boolean available() {
+        return false;
+    }
+
+    /** @return the request id, cancellable like a JNI completion, or -1 */
+    public static int completion(long contextPtr, String paramsJson, TokenSink sink, SampleFn sampler, boolean prefilter) {
+        throw new UnsupportedOperationException("FFM needs Java 22+");
+    }
+}
@@ -0,0 +1,485 @@
+package com.ajllama.gguf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads GGUF metadata without loading the model.
+ *
+ * Only the header, key/value section and tensor descriptors are memory-mapped, growing the
+ * mapping as parsing needs it; tensor data is never touched. Keys are indexed on first access
+ * and values decoded only when asked for, so large arrays such as the tokenizer vocabulary are
+ * skipped over (see {@link #arrayLength}) unless requested.
+ *
+ * <pre>
+ * try (GgufFile gguf = GgufFile.open(new File("model.gguf"))) {
+ *     System.out.println(gguf.architecture() + " " + gguf.fileTypeName() + " ctx=" + gguf.contextLength());
+ * }
+ * </pre>
+ */
+public final class GgufFile implements AutoCloseable {
+
+    private static final int MAGIC = 0x46554747; // "GGUF" read little-endian
+    private static final int INITIAL_MAP = 1 << 20;
+
+    static final int TYPE_UINT8 = 0;
+    static final int TYPE_INT8 = 1;
+    static final int TYPE_UINT16 = 2;
+    static final int TYPE_INT16 = 3;
+    static final int TYPE_UINT32 = 4;
+    static final int TYPE_INT32 = 5;
+    static final int TYPE_FLOAT32 = 6;
+    static final int TYPE_BOOL = 7;
+    static final int TYPE_STRING = 8;
+    static final int TYPE_ARRAY = 9;
+    static final int TYPE_UINT64 = 10;
+    static final int TYPE_INT64 = 11;
+    static final int TYPE_FLOAT64 = 12;
+
+    // llama_ftype, indexed by general.file_type
+    private static final String[] FILE_TYPES = {
+            "F32", "F16", "Q4_0", "Q4_1", "Q4_1_SOME_F16", null, null, "Q8_0", "Q5_0", "Q5_1",
+            "Q2_K", "Q3_K_S", "Q3_K_M", "Q3_K_L", "Q4_K_S", "Q4_K_M", "Q5_K_S", "Q5_K_M", "Q6_K", "IQ2_XXS",
+            "IQ2_XS", "Q2_K_S", "IQ3_XS", "IQ3_XXS", "IQ1_S", "IQ4_NL", "IQ3_S", "IQ3_M", "IQ2_S", "IQ2_M",
+            "IQ4_XS", "IQ1_M", "BF16", null, null, null, "TQ1_0", "TQ2_0", "MXFP4_MOE"
+    };
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final ByteOrder order;
+    private final int version;
+    private final long tensorCount;
+    private final long kvCount;
+
+    private MappedByteBuffer map;
+    private Map<String, Entry> entries;
+    private long tensorInfoOffset;
+    private List<Tensor> tensors;
+
+    private GgufFile(File file) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "r");
+        try {
+            this.channel = raf.getChannel();
+            this.fileSize = channel.size();
+            if (fileSize < 24) throw new IOException("Not a GGUF file: " + file);
+            map(Math.min(fileSize, INITIAL_MAP));
+            if (map.getInt(0) != MAGIC) throw new IOException("Not a GGUF file: " + file);
+
+            // Big-endian files (s390x) show up as a byte-swapped version
+            int v = map.getInt(4);
+            if ((v & 0xFFFF) == 0) {
+                map.order(ByteOrder.BIG_ENDIAN);
+                v = map.getInt(4);
+            }
+            this.order = map.order();
+            this.version = v;
+            if (version < 2) throw new IOException("Unsupported GGUF version " + version + ": " + file);
+            this.tensorCount = map.getLong(8);
+            this.kvCount = map.getLong(16);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    public static GgufFile open(File file) throws IOException {
+        return new GgufFile(file);
+    }
+
+    public static GgufFile open(String path) throws IOException {
+        return new GgufFile(new File(path));
+    }
+
+    /** Checks the magic bytes only. */
+    public static boolean isGguf(File file) {
+        if (!file.isFile() || file.length() < 24) return false;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            return Integer.reverseBytes(in.readInt()) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public File file() {
+        return file;
+    }
+
+    public int version() {
+        return version;
+    }
+
+    public long tensorCount() {
+        return tensorCount;
+    }
+
+    public long fileSize() {
+        return fileSize;
+    }
+
+    // --- Metadata ---
+
+    public synchronized Set<String> keys() throws IOException {
+        return Collections.unmodifiableSet(index().keySet());
+    }
+
+    public boolean has(String key) throws IOException {
+        return entry(key) != null;
+    }
+
+    /**
+     * Decoded value: Long for integer types, Double for floats, Boolean, String, or a List of
+     * those for arrays. {@code null} if the key is absent.
+     */
+    public synchronized Object get(String key) throws IOException {
+        Entry e = entry(key);
+        if (e == null) return null;
+        Cursor c = new Cursor(e.valueOffset);
+        return c.value(e.type);
+    }
+
+    public String getString(String key, String defaultValue) throws IOException {
+        Object v = get(key);
+        return v instanceof String ? (String) v : defaultValue;
+    }
+
+    public long getLong(String key, long defaultValue) throws IOException {
+        Object v = get(key);
+        return v instanceof Number ? ((Number) v).longValue() : defaultValue;
+    }
+
+    public double getDouble(String key, double defaultValue) throws IOException {
+        Object v = get(key);
+        return v instanceof Number ? ((Number) v).doubleValue() : defaultValue;
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) throws IOException {
+        Object v = get(key);
+        return v instanceof Boolean ? (Boolean) v : defaultValue;
+    }
+
+    /** Element count of an array value without decoding it, -1 if absent or not an array. */
+    public synchronized long arrayLength(String key) throws IOException {
+        Entry e = entry(key);
+        if (e == null || e.type != TYPE_ARRAY) return -1;
+        Cursor c = new Cursor(e.valueOffset + 4);
+        return c.u64();
+    }
+
+    // Bulk reads for the tokenizer tables, without boxing each element; null if absent or of another type
+
+    synchronized String[] stringArray(String key) throws IOException {
+        Cursor c = arrayCursor(key, TYPE_STRING);
+        if (c == null) return null;
+        String[] values = new String[count(c)];
+        for (int i = 0; i < values.length; i++) values[i] = c.string();
+        return values;
+    }
+
+    synchronized float[] floatArray(String key) throws IOException {
+        Cursor c = arrayCursor(key, TYPE_FLOAT32);
+        if (c == null) return null;
+        float[] values = new float[count(c)];
+        for (int i = 0; i < values.length; i++) values[i] = Float.intBitsToFloat((int) c.u32());
+        return values;
+    }
+
+    synchronized int[] intArray(String key) throws IOException {
+        Entry e = entry(key);
+        if (e == null || e.type != TYPE_ARRAY) return null;
+        Cursor c = new Cursor(e.valueOffset);
+        int elementType = (int) c.u32();
+        if (elementType != TYPE_INT32 && elementType != TYPE_UINT32) return null;
+        int[] values = new int[count(c)];
+        for (int i = 0; i < values.length; i++) values[i] = (int) c.u32();
+        return values;
+    }
+
+    private static int count(Cursor c) throws IOException {
+        long n = c.u64();
+        if (n > Integer.MAX_VALUE) throw new IOException("GGUF array too large: " + n);
+        return (int) n;
+    }
+
+    private Cursor arrayCursor(String key, int elementType) throws IOException {
+        Entry e = entry(key);
+        if (e == null || e.type != TYPE_ARRAY) return null;
+        Cursor c = new Cursor(e.valueOffset);
+        if ((int) c.u32() != elementType) return null;
+        return c;
+    }
+
+    // --- Common keys ---
+
+    public String architecture() throws IOException {
+        return getString("general.architecture", null);
+    }
+
+    public String name() throws IOException {
+        return getString("general.name", null);
+    }
+
+    /** Training context length, -1 if not recorded. */
+    public long contextLength() throws IOException {
+        return archLong("context_length");
+    }
+
+    public long blockCount() throws IOException {
+        return archLong("block_count");
+    }
+
+    public long embeddingLength() throws IOException {
+        return archLong("embedding_length");
+    }
+
+    /** {@code general.file_type} (llama_ftype), -1 if not recorded. */
+    public int fileType() throws IOException {
+        return (int) getLong("general.file_type", -1);
+    }
+
+    /** Quantization such as {@code Q4_K_M}, {@code null} if unknown. */
+    public String fileTypeName() throws IOException {
+        int type = fileType();
+        return type >= 0 && type < FILE_TYPES.length ? FILE_TYPES[type] : null;
+    }
+
+    public String chatTemplate() throws IOException {
+        return getString("tokenizer.chat_template", null);
+    }
+
+    public long vocabSize() throws IOException {
+        return arrayLength("tokenizer.ggml.tokens");
+    }
+
+    private long archLong(String suffix) throws IOException {
+        String arch = architecture();
+        return arch != null ? getLong(arch + "." + suffix, -1) : -1;
+    }
+
+    // --- Tensors ---
+
+    /** Tensor descriptors (name, shape, ggml type, data offset); the data itself is not read. */
+    public synchronized List<Tensor> tensors() throws IOException {
+        if (tensors == null) {
+            index();
+            long alignment = getLong("general.alignment", 32);
+            List<Tensor> list = new ArrayList<Tensor>((int) Math.min(tensorCount, 1 << 16));
+            Cursor c = new Cursor(tensorInfoOffset);
+            for (long i = 0; i < tensorCount; i++) {
+                String name = c.string();
+                int nDims = (int) c.u32();
+                long[] shape = new long[nDims];
+                for (int d = 0; d < nDims; d++) shape[d] = c.u64();
+                int type = (int) c.u32();
+                long offset = c.u64();
+                list.add(new Tensor(name, shape, type, offset));
+            }
+            long dataStart = (c.pos + alignment - 1) / alignment * alignment;
+            for (Tensor t : list) t.fileOffset = dataStart + t.offset;
+            tensors = Collections.unmodifiableList(list);
+        }
+        return tensors;
+    }
+
+    public static final class Tensor {
+        public final String name;
+        public final long[] shape;
+        /** ggml_type id. */
+        public final int type;
+        /** Offset relative to the start of the data section. */
+        public final long offset;
+        long fileOffset;
+
+        Tensor(String name, long[] shape, int type, long offset) {
+            this.name = name;
+            this.shape = shape;
+            this.type = type;
+            this.offset = offset;
+        }
+
+        public long fileOffset() {
+            return fileOffset;
+        }
+
+        public long elements() {
+            long n = 1;
+            for (long d : shape) n *= d;
+            return n;
+        }
+    }
+
+    /** Releases the file; the mapping itself is freed by the GC (Java has no explicit unmap). */
+    @Override
+    public synchronized void close() throws IOException {
+        map = null;
+        raf.close();
+    }
+
+    // --- Parsing ---
+
+    private static final class Entry {
+        final int type;
+        final long valueOffset;
+
+        Entry(int type, long valueOffset) {
+            this.type = type;
+            this.valueOffset = valueOffset;
+        }
+    }
+
+    private synchronized Entry entry(String key) throws IOException {
+        return index().get(key);
+    }
+
+    private Map<String, Entry> index() throws IOException {
+        if (entries == null) {
+            Map<String, Entry> index = new LinkedHashMap<String, Entry>();
+            Cursor c = new Cursor(24);
+            for (long i = 0; i < kvCount; i++) {
+                String key = c.string();
+                int type = (int) c.u32();
+                index.put(key, new Entry(type, c.pos));
+                c.skip(type);
+            }
+            tensorInfoOffset = c.pos;
+            entries = index;
+        }
+        return entries;
+    }
+
+    private void map(long size) throws IOException {
+        if (map != null && map.capacity() >= size) return;
+        if (size > Integer.MAX_VALUE) throw new IOException("GGUF metadata too large: " + file);
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (order != null) map.order(order);
+        else map.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Grows the mapping (doubling) so [pos, pos + n) is readable
+    private void require(long pos, long n) throws IOException {
+        long end = pos + n;
+        if (n < 0 || end > fileSize) throw new IOException("Truncated GGUF metadata at offset " + pos + ": " + file);
+        if (map == null) throw new IOException("GgufFile is closed");
+        if (end > map.capacity()) map(Math.min(fileSize, Math.max(end, (long) map.capacity() * 2)));
+    }
+
+    private final class Cursor {
+        long pos;
+
+        Cursor(long pos) {
+            this.pos = pos;
+        }
+
+        int u8() throws IOException {
+            require(pos, 1);
+            return map.get((int) pos++) & 0xFF;
+        }
+
+        int u16() throws IOException {
+            require(pos, 2);
+            int v = map.getShort((int) pos) & 0xFFFF;
+            pos += 2;
+            return v;
+        }
+
+        long u32() throws IOException {
+            require(pos, 4);
+            long v = map.getInt((int) pos) & 0xFFFFFFFFL;
+            pos += 4;
+            return v;
+        }
+
+        long u64() throws IOException {
+            require(pos, 8);
+            long v = map.getLong((int) pos);
+            pos += 8;
+            return v;
+        }
+
+        String string() throws IOException {
+            long len = u64();
+            require(pos, len);
+            byte[] bytes = new byte[(int) len];
+            ByteBuffer view = map.duplicate();
+            view.position((int) pos);
+            view.get(bytes);
+            pos += len;
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        Object value(int type) throws IOException {
+            switch (type) {
+                case TYPE_UINT8: return (long) u8();
+                case TYPE_INT8: return (long) (byte) u8();
+                case TYPE_UINT16: return (long) u16();
+                case TYPE_INT16: return (long) (short) u16();
+                case TYPE_UINT32: return u32();
+                case TYPE_INT32: return (long) (int) u32();
+                case TYPE_FLOAT32: return (double) Float.intBitsToFloat((int) u32());
+                case TYPE_BOOL: return u8() != 0;
+                case TYPE_STRING: return string();
+                case TYPE_UINT64:
+                case TYPE_INT64: return u64();
+                case TYPE_FLOAT64: return Double.longBitsToDouble(u64());
+                case TYPE_ARRAY: {
+                    int elementType = (int) u32();
+                    long n = u64();
+                    if (n > Integer.MAX_VALUE) throw new IOException("GGUF array too large: " + n);
+                    List<Object> list = new ArrayList<Object>((int) n);
+                    for (long i = 0; i < n; i++) list.add(value(elementType));
+                    return list;
+                }
+                default: throw new IOException("Unknown GGUF value type " + type + " at offset " + pos);
+            }
+        }
+
+        // Fixed-size values and arrays of them are skipped in one step; strings need their lengths
+        void skip(int type) throws IOException {
+            int size = fixedSize(type);
+            if (size > 0) {
+                require(pos, size);
+                pos += size;
+            } else if (type == TYPE_STRING) {
+                long len = u64();
+                require(pos, len);
+                pos += len;
+            } else if (type == TYPE_ARRAY) {
+                int elementType = (int) u32();
+                long n = u64();
+                int elementSize = fixedSize(elementType);
+                if (elementSize > 0) {
+                    require(pos, n * elementSize);
+                    pos += n * elementSize;
+                } else {
+                    for (long i = 0; i < n; i++) skip(elementType);
+                }
+            } else {
+                throw new IOException("Unknown GGUF value type " + type + " at offset " + pos);
+            }
+        }
+    }
+
+    private static int fixedSize(int type) {
+        switch (type) {
+            case TYPE_UINT8: case TYPE_INT8: case TYPE_BOOL: return 1;
+            case TYPE_UINT16: case TYPE_INT16: return 2;
+            case TYPE_UINT32: case TYPE_INT32: case TYPE_FLOAT32: return 4;
+            case TYPE_UINT64: case TYPE_INT64: case TYPE_FLOAT64: return 8;
+            default: return 0;
+        }
+    }
+}
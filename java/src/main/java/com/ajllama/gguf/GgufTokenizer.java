@@ -0,0 +1,1016 @@
+package com.ajllama.gguf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tokenizer built from the vocabulary in a GGUF file, for counting and splitting prompts
+ * without loading the model. Output matches what the native side produces for prompts
+ * ({@code llama4aj.tokenize(text, addSpecial)}: special tokens parsed, BOS/EOS as the model asks).
+ *
+ * Supports SentencePiece vocabularies ({@code tokenizer.ggml.model = llama}) and byte-level BPE
+ * ({@code gpt2}) with the GPT-2, StarCoder, Llama 3 and Qwen 2 pre-tokenizers and the models that
+ * reuse them; {@link #from} rejects anything else. Character classes come from the JDK's Unicode
+ * tables, so text in scripts newer than the running JDK may split differently than in llama.cpp.
+ * When adding a model family, compare against {@code llama4aj.tokenize} on a sample corpus.
+ *
+ * The tables are immutable once built and every call works in per-thread scratch arrays, so a
+ * single instance can be shared by any number of request threads without locking. {@link #count}
+ * allocates nothing once a thread's scratch has grown to its largest text.
+ *
+ * <pre>
+ * GgufTokenizer tokenizer = GgufTokenizer.load(new File("model.gguf"));
+ * if (tokenizer.count(prompt, true) &gt; budget) reject();
+ * </pre>
+ */
+public final class GgufTokenizer {
+
+    // llama_token_type as stored in tokenizer.ggml.token_type
+    private static final int TYPE_UNKNOWN = 2;
+    private static final int TYPE_CONTROL = 3;
+    private static final int TYPE_USER_DEFINED = 4;
+
+    private static final int PRE_NONE = 0;      // SentencePiece
+    private static final int PRE_GPT2 = 1;
+    private static final int PRE_STARCODER = 2; // digits split off, then GPT-2
+    private static final int PRE_LLAMA3 = 3;
+    private static final int PRE_QWEN2 = 4;     // Llama 3 with single digits
+
+    // Unicode flags per code point, as in llama.cpp's unicode_cpt_flags (0 = outside the fragment)
+    private static final int F_DEFINED = 1;
+    private static final int F_NUMBER = 2;
+    private static final int F_LETTER = 4;
+    private static final int F_WHITESPACE = 8;
+
+    private static final char SPM_SPACE = '\u2581';
+    private static final int UNRESOLVED = -2;
+    // Texts this long get a throwaway scratch instead of growing the thread's cached one
+    private static final int MAX_CACHED_SCRATCH = 1 << 20;
+
+    private static final char[] BYTE_CHARS = byteChars();
+
+    // Token texts llama.cpp treats as control tokens even when the file does not mark them
+    private static final String[] EOG_TEXTS = {
+            "<|eot_id|>", "<|im_end|>", "<|end|>", "<|return|>", "<|call|>", "<|flush|>", "<|calls|>",
+            "<end_of_turn>", "<|endoftext|>", "<|eom_id|>", "<EOT>", "_<EOT>", "<|end_of_text|>",
+            "<end_of_utterance>"
+    };
+    // Only consulted when the id is missing from the metadata
+    private static final String[][] DETECTED_TEXTS = {
+            {"tokenizer.ggml.eot_token_id", "<\uFF5Cend\u2581of\u2581sentence\uFF5C>"},
+            {"tokenizer.ggml.fim_pre_token_id", "<|fim_prefix|>", "<fim-prefix>", "<fim_prefix>",
+                    "<\uFF5Cfim\u2581begin\uFF5C>", "<PRE>", "\u2581<PRE>", "<|code_prefix|>"},
+            {"tokenizer.ggml.fim_suf_token_id", "<|fim_suffix|>", "<fim-suffix>", "<fim_suffix>",
+                    "<\uFF5Cfim\u2581hole\uFF5C>", "<SUF>", "\u2581<SUF>", "<|code_suffix|>"},
+            {"tokenizer.ggml.fim_mid_token_id", "<|fim_middle|>", "<fim-middle>", "<fim_middle>",
+                    "<\uFF5Cfim\u2581end\uFF5C>", "<MID>", "\u2581<MID>", "<|code_middle|>"},
+            {"tokenizer.ggml.fim_pad_token_id", "<|fim_pad|>", "<fim-pad>", "<fim_pad>", "<PAD>"},
+            {"tokenizer.ggml.fim_rep_token_id", "<|fim_repo|>", "<|repo_name|>", "<fim-repo>", "<REPO>", "<reponame>"},
+            {"tokenizer.ggml.fim_sep_token_id", "<|file_sep|>"},
+    };
+    private static final String[] USER_DEFINED_TEXTS = {"<|channel|>", "<|message|>", "<|start|>", "<|constrain|>"};
+
+    private final boolean spm;
+    private final int preTokenizer;
+    private final String[] texts;
+    private final float[] scores;
+    private final int[] specials;           // Longest first, the order they are split out in
+
+    // text -> id, open addressing over token ids + 1
+    private final int[] table;
+    private final int[] tableHashes;
+    private final int tableMask;
+
+    // (left id, right id) -> merge rank; merges whose halves are not tokens go by text
+    private final long[] mergeKeys;
+    private final int[] mergeRanks;
+    private final int mergeMask;
+    private final Map<String, Integer> mergesByText;
+
+    private final int[] byteTokens;         // Token for each byte: <0xXX> (SPM) or its BPE character
+    private final int[] asciiTokens;        // Token whose text is the single ASCII character, BPE fallback
+    private final int bos;
+    private final int eos;
+    private final int unk;
+    private final boolean addBos;
+    private final boolean addEos;
+    private final boolean addSpacePrefix;
+    private final boolean ignoreMerges;
+
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    public static GgufTokenizer load(File file) throws IOException {
+        try (GgufFile gguf = GgufFile.open(file)) {
+            return from(gguf);
+        }
+    }
+
+    /** Reads the tokenizer tables; the file can be closed afterwards. */
+    public static GgufTokenizer from(GgufFile gguf) throws IOException {
+        return new GgufTokenizer(gguf);
+    }
+
+    private GgufTokenizer(GgufFile gguf) throws IOException {
+        String model = gguf.getString("tokenizer.ggml.model", null);
+        String pre = gguf.getString("tokenizer.ggml.pre", "");
+        int defaultBos;
+        int defaultEos;
+        int defaultUnk;
+        boolean defaultAddBos;
+        boolean ignore = false;
+        if ("llama".equals(model)) {
+            spm = true;
+            preTokenizer = PRE_NONE;
+            defaultBos = 1;
+            defaultEos = 2;
+            defaultUnk = 0;
+            defaultAddBos = true;
+        } else if ("gpt2".equals(model)) {
+            spm = false;
+            defaultBos = 11;
+            defaultEos = 11;
+            defaultUnk = -1;
+            defaultAddBos = false;
+            switch (pre) {
+                case "llama3": case "llama-v3": case "llama-bpe": case "falcon3": case "falcon-h1":
+                case "pixtral": case "midm-2.0": case "lfm2":
+                    preTokenizer = PRE_LLAMA3;
+                    ignore = true;
+                    defaultAddBos = true;
+                    break;
+                case "dbrx": case "smaug-bpe":
+                    preTokenizer = PRE_LLAMA3;
+                    break;
+                case "glm4": case "chatglm-bpe":
+                    preTokenizer = PRE_LLAMA3;
+                    defaultBos = -1;
+                    break;
+                case "qwen2": case "deepseek-r1-qwen": case "kormo": case "stablelm2": case "megrez":
+                case "hunyuan": case "solar-open": case "grok-2":
+                    preTokenizer = PRE_QWEN2;
+                    break;
+                case "gpt-2": case "phi-2": case "jina-es": case "jina-de": case "gigachat": case "jina-v2-es":
+                case "jina-v2-de": case "a.x-4.0": case "mellum": case "modern-bert": case "jina-v1-en":
+                case "jina-v2-code": case "roberta-bpe": case "exaone4": case "mpt": case "olmo": case "jais":
+                case "trillion": case "granite-docling":
+                    preTokenizer = PRE_GPT2;
+                    break;
+                case "starcoder": case "refact": case "command-r": case "smollm": case "codeshell":
+                case "exaone": case "minerva-7b":
+                    preTokenizer = PRE_STARCODER;
+                    break;
+                default:
+                    throw new IOException("Unsupported pre-tokenizer '" + pre + "': " + gguf.file());
+            }
+        } else {
+            throw new IOException("Unsupported tokenizer model '" + model + "': " + gguf.file());
+        }
+        ignoreMerges = ignore;
+
+        String[] tokens = gguf.stringArray("tokenizer.ggml.tokens");
+        if (tokens == null) throw new IOException("No tokenizer vocabulary: " + gguf.file());
+        int n = tokens.length;
+        float[] fileScores = gguf.floatArray("tokenizer.ggml.scores");
+        int[] types = gguf.intArray("tokenizer.ggml.token_type");
+
+        texts = new String[n];
+        scores = new float[n];
+        for (int i = 0; i < n; i++) {
+            texts[i] = tokens[i].isEmpty() ? "[EMPTY_" + i + "]" : tokens[i];
+            scores[i] = fileScores != null && i < fileScores.length ? fileScores[i] : 0f;
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(16, n * 2)) << 1;
+        table = new int[capacity];
+        tableHashes = new int[capacity];
+        tableMask = capacity - 1;
+        for (int i = 0; i < n; i++) insert(i);
+
+        bos = specialId(gguf, "tokenizer.ggml.bos_token_id", defaultBos, n);
+        eos = specialId(gguf, "tokenizer.ggml.eos_token_id", defaultEos, n);
+        unk = specialId(gguf, "tokenizer.ggml.unknown_token_id", defaultUnk, n);
+        addBos = gguf.getBoolean("tokenizer.ggml.add_bos_token", defaultAddBos);
+        addEos = gguf.getBoolean("tokenizer.ggml.add_eos_token", false);
+        addSpacePrefix = gguf.getBoolean("tokenizer.ggml.add_space_prefix", spm);
+
+        specials = specialTokens(gguf, types);
+
+        if (spm) {
+            mergeKeys = null;
+            mergeRanks = null;
+            mergeMask = 0;
+            mergesByText = Collections.emptyMap();
+        } else {
+            String[] merges = gguf.stringArray("tokenizer.ggml.merges");
+            if (merges == null) throw new IOException("No tokenizer merges: " + gguf.file());
+            int mergeCapacity = Integer.highestOneBit(Math.max(16, merges.length * 2)) << 1;
+            mergeKeys = new long[mergeCapacity];
+            Arrays.fill(mergeKeys, -1L);
+            mergeRanks = new int[mergeCapacity];
+            mergeMask = mergeCapacity - 1;
+            Map<String, Integer> byText = new HashMap<String, Integer>();
+            for (int rank = 0; rank < merges.length; rank++) {
+                String merge = merges[rank];
+                int space = merge.indexOf(' ', 1);
+                if (space < 0) continue;
+                String first = merge.substring(0, space);
+                String second = merge.substring(space + 1);
+                int left = lookup(first);
+                int right = lookup(second);
+                if (left >= 0 && right >= 0) {
+                    putMerge(left, right, rank);
+                } else {
+                    String key = first + '\0' + second;
+                    if (!byText.containsKey(key)) byText.put(key, rank);
+                }
+            }
+            mergesByText = byText.isEmpty() ? Collections.<String, Integer>emptyMap() : byText;
+        }
+
+        byteTokens = new int[256];
+        asciiTokens = new int[128];
+        for (int b = 0; b < 256; b++) {
+            if (spm) {
+                int id = lookup(String.format("<0x%02X>", b));
+                if (id < 0 && b < 0x80) id = lookup(String.valueOf((char) b));
+                byteTokens[b] = id;
+            } else {
+                byteTokens[b] = lookup(String.valueOf(BYTE_CHARS[b]));
+            }
+            if (b < 0x80) asciiTokens[b] = lookup(String.valueOf((char) b));
+        }
+    }
+
+    // --- API ---
+
+    /**
+     * Token ids for {@code text}, special tokens such as {@code <|im_start|>} parsed as in prompts.
+     * {@code addSpecial} adds BOS/EOS according to the model's metadata.
+     */
+    public int[] tokenize(String text, boolean addSpecial) {
+        Scratch s = scratch(text);
+        encode(text, addSpecial, s);
+        return Arrays.copyOf(s.out.a, s.out.n);
+    }
+
+    /** Same as {@code tokenize(text, addSpecial).length} without building the result. */
+    public int count(String text, boolean addSpecial) {
+        Scratch s = scratch(text);
+        encode(text, addSpecial, s);
+        return s.out.n;
+    }
+
+    public int vocabSize() {
+        return texts.length;
+    }
+
+    /** Token text as stored in the vocabulary (SentencePiece spaces, BPE byte characters). */
+    public String tokenText(int id) {
+        return texts[id];
+    }
+
+    /** Token id for an exact vocabulary entry, -1 if there is none. */
+    public int tokenId(String text) {
+        return lookup(text);
+    }
+
+    public int bosToken() {
+        return bos;
+    }
+
+    public int eosToken() {
+        return eos;
+    }
+
+    // --- Encoding ---
+
+    private Scratch scratch(String text) {
+        return text.length() > MAX_CACHED_SCRATCH ? new Scratch() : scratch.get();
+    }
+
+    private void encode(String text, boolean addSpecial, Scratch s) {
+        IntList out = s.out;
+        out.n = 0;
+        if (addSpecial && addBos && bos >= 0) out.add(bos);
+
+        IntList frags = partition(text, s);
+        boolean prevSpecial = true;
+        for (int f = 0; f < frags.n; f += 3) {
+            int token = frags.a[f + 2];
+            if (token >= 0) {
+                out.add(token);
+                prevSpecial = true;
+            } else if (spm) {
+                spmFragment(text, frags.a[f], frags.a[f + 1], addSpacePrefix && prevSpecial, s);
+                prevSpecial = false;
+            } else {
+                bpeFragment(text, frags.a[f], frags.a[f + 1], s);
+            }
+        }
+
+        if (addSpecial && addEos && eos >= 0) out.add(eos);
+    }
+
+    // Splits out special tokens, longest first, into (start, end, token or -1 for text) triples
+    private IntList partition(String text, Scratch s) {
+        IntList frags = s.frags;
+        frags.n = 0;
+        if (text.isEmpty()) return frags;
+        frags.add(0, text.length(), -1);
+
+        for (int id : specials) {
+            String special = texts[id];
+            if (text.indexOf(special) < 0) continue;
+            IntList next = frags == s.frags ? s.fragsNext : s.frags;
+            next.n = 0;
+            for (int f = 0; f < frags.n; f += 3) {
+                int start = frags.a[f];
+                int end = frags.a[f + 1];
+                if (frags.a[f + 2] >= 0) {
+                    next.add(start, end, frags.a[f + 2]);
+                    continue;
+                }
+                int pos = start;
+                while (true) {
+                    int match = text.indexOf(special, pos);
+                    if (match < 0 || match + special.length() > end) break;
+                    if (match > pos) next.add(pos, match, -1);
+                    next.add(match, match + special.length(), id);
+                    pos = match + special.length();
+                }
+                if (pos < end) next.add(pos, end, -1);
+            }
+            frags = next;
+        }
+        return frags;
+    }
+
+    // --- SentencePiece ---
+
+    private void spmFragment(String text, int start, int end, boolean spacePrefix, Scratch s) {
+        int len = end - start + (spacePrefix ? 1 : 0);
+        s.ensureSymbols(len);
+        char[] chars = s.chars;
+        int n = 0;
+        if (spacePrefix) chars[n++] = SPM_SPACE;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            chars[n++] = c == ' ' ? SPM_SPACE : c;
+        }
+        replaceLoneSurrogates(chars, n);
+
+        int last = -1;
+        for (int i = 0; i < n; ) {
+            int width = Character.isHighSurrogate(chars[i]) && i + 1 < n ? 2 : 1;
+            s.len[i] = width;
+            s.prev[i] = last;
+            s.next[i] = i + width < n ? i + width : -1;
+            s.id[i] = UNRESOLVED;
+            last = i;
+            i += width;
+        }
+
+        s.heapSize = 0;
+        for (int i = 0; i < n && s.next[i] >= 0; i = s.next[i]) spmBigram(i, s.next[i], s);
+
+        while (s.heapSize > 0) {
+            int size = s.heapSizes[0];
+            int left = (int) s.heapKeys[0];
+            s.pop();
+            int right = s.next[left];
+            if (s.len[left] == 0 || right < 0 || s.len[left] + s.len[right] != size) continue;
+            merge(left, right, s);
+            s.id[left] = lookup(chars, left, s.len[left]);
+            spmBigram(s.prev[left], left, s);
+            spmBigram(left, s.next[left], s);
+        }
+
+        IntList out = s.out;
+        for (int i = 0; i >= 0 && n > 0; i = s.next[i]) {
+            int id = s.id[i] == UNRESOLVED ? lookup(chars, i, s.len[i]) : s.id[i];
+            if (id >= 0) {
+                out.add(id);
+                continue;
+            }
+            // Not in the vocabulary: one token per UTF-8 byte
+            int cp = Character.codePointAt(chars, i);
+            int nBytes = utf8(cp, s.bytes, 0);
+            for (int b = 0; b < nBytes; b++) {
+                int token = byteTokens[s.bytes[b] & 0xFF];
+                out.add(token >= 0 ? token : unk);
+            }
+        }
+    }
+
+    private void spmBigram(int left, int right, Scratch s) {
+        if (left < 0 || right < 0) return;
+        int id = lookup(s.chars, left, s.len[left] + s.len[right]);
+        if (id < 0) return;
+        // Highest score first: order by the score's bits flipped so a min-heap works
+        int bits = Float.floatToIntBits(scores[id]);
+        int ordered = bits ^ ((bits >> 31) & 0x7FFFFFFF);
+        s.push(((long) ~ordered << 32) | left, s.len[left] + s.len[right]);
+    }
+
+    // --- BPE ---
+
+    private void bpeFragment(String text, int start, int end, Scratch s) {
+        s.ensureCodePoints(end - start);
+        int[] cpts = s.cpts;
+        int[] flags = s.flags;
+        int n = 0;
+        for (int i = start; i < end; ) {
+            int cp = text.codePointAt(i);
+            i += Character.charCount(cp);
+            if (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE) cp = '?';
+            cpts[n] = cp;
+            flags[n] = flags(cp);
+            n++;
+        }
+
+        IntList words = preTokenize(cpts, flags, n, s);
+        int pos = 0;
+        for (int w = 0; w < words.n; w++) {
+            int wordEnd = pos + words.a[w];
+            bpeWord(cpts, pos, wordEnd, s);
+            pos = wordEnd;
+        }
+    }
+
+    private void bpeWord(int[] cpts, int from, int to, Scratch s) {
+        s.ensureSymbols((to - from) * 4);
+        char[] chars = s.chars;
+        int n = 0;
+        // One symbol per byte, each a single character of the BPE alphabet
+        for (int i = from; i < to; i++) {
+            int nBytes = utf8(cpts[i], s.bytes, 0);
+            for (int b = 0; b < nBytes; b++) {
+                int value = s.bytes[b] & 0xFF;
+                chars[n] = BYTE_CHARS[value];
+                s.id[n] = byteTokens[value];
+                n++;
+            }
+        }
+        if (n == 0) return;
+
+        IntList out = s.out;
+        if (ignoreMerges) {
+            int id = lookup(chars, 0, n);
+            if (id >= 0) {
+                out.add(id);
+                return;
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            s.len[i] = 1;
+            s.prev[i] = i - 1;
+            s.next[i] = i + 1 < n ? i + 1 : -1;
+        }
+
+        s.heapSize = 0;
+        for (int i = 1; i < n; i++) bpeBigram(i - 1, i, s);
+
+        while (s.heapSize > 0) {
+            int size = s.heapSizes[0];
+            int left = (int) s.heapKeys[0];
+            s.pop();
+            int right = s.next[left];
+            if (s.len[left] == 0 || right < 0 || s.len[left] + s.len[right] != size) continue;
+            merge(left, right, s);
+            s.id[left] = lookup(chars, left, s.len[left]);
+            bpeBigram(s.prev[left], left, s);
+            bpeBigram(left, s.next[left], s);
+        }
+
+        for (int i = 0; i >= 0; i = s.next[i]) {
+            int id = s.id[i];
+            if (id >= 0) {
+                out.add(id);
+                continue;
+            }
+            // As llama.cpp: fall back to single-byte tokens, which only ASCII characters can form
+            for (int j = i; j < i + s.len[i]; j++) {
+                char c = chars[j];
+                if (c < 0x80 && asciiTokens[c] >= 0) out.add(asciiTokens[c]);
+            }
+        }
+    }
+
+    private void bpeBigram(int left, int right, Scratch s) {
+        if (left < 0 || right < 0) return;
+        int rank = -1;
+        int l = s.id[left];
+        int r = s.id[right];
+        if (l >= 0 && r >= 0) {
+            rank = mergeRank(l, r);
+        } else if (!mergesByText.isEmpty()) {
+            String key = new String(s.chars, left, s.len[left]) + '\0' + new String(s.chars, right, s.len[right]);
+            Integer found = mergesByText.get(key);
+            if (found != null) rank = found;
+        }
+        if (rank < 0) return;
+        s.push(((long) rank << 32) | left, s.len[left] + s.len[right]);
+    }
+
+    private static void merge(int left, int right, Scratch s) {
+        s.len[left] += s.len[right];
+        s.len[right] = 0;
+        s.next[left] = s.next[right];
+        if (s.next[right] >= 0) s.prev[s.next[right]] = left;
+    }
+
+    // --- Pre-tokenizers (ports of llama.cpp's unicode_regex_split_custom_*), returning word lengths ---
+
+    private IntList preTokenize(int[] cpts, int[] flags, int n, Scratch s) {
+        IntList in = s.wordsA;
+        in.n = 0;
+        if (n > 0) in.add(n);
+        IntList out = s.wordsB;
+        switch (preTokenizer) {
+            case PRE_GPT2:
+                splitGpt2(cpts, flags, in, out);
+                return out;
+            case PRE_STARCODER:
+                splitDigits(flags, in, out);
+                splitGpt2(cpts, flags, out, in);
+                return in;
+            case PRE_LLAMA3:
+                splitLlama3(cpts, flags, in, out, 3);
+                return out;
+            case PRE_QWEN2:
+                splitLlama3(cpts, flags, in, out, 1);
+                return out;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    // \p{N}: every number on its own
+    private static void splitDigits(int[] flags, IntList in, IntList out) {
+        out.n = 0;
+        int start = 0;
+        for (int k = 0; k < in.n; k++) {
+            int end = start + in.a[k];
+            int last = start;
+            for (int pos = start; pos < end; pos++) {
+                if ((flags[pos] & F_NUMBER) != 0) {
+                    if (pos > last) out.add(pos - last);
+                    out.add(1);
+                    last = pos + 1;
+                }
+            }
+            if (end > last) out.add(end - last);
+            start = end;
+        }
+    }
+
+    // 's|'t|'re|'ve|'m|'ll|'d| ?\p{L}+| ?\p{N}+| ?[^\s\p{L}\p{N}]+|\s+(?!\S)|\s+
+    private static void splitGpt2(int[] cpts, int[] flags, IntList in, IntList out) {
+        out.n = 0;
+        int start = 0;
+        for (int k = 0; k < in.n; k++) {
+            final int end = start + in.a[k];
+            int pos = start;
+            int prevEnd = start;
+            while (pos < end) {
+                int cpt = cpts[pos];
+                int f = flags[pos];
+
+                if (cpt == '\'' && pos + 1 < end) {
+                    int next = cpts[pos + 1];
+                    if (next == 's' || next == 't' || next == 'm' || next == 'd') {
+                        pos += 2;
+                        prevEnd = word(out, prevEnd, pos);
+                        continue;
+                    }
+                    if (pos + 2 < end) {
+                        int next2 = cpts[pos + 2];
+                        if ((next == 'r' && next2 == 'e') || (next == 'v' && next2 == 'e') || (next == 'l' && next2 == 'l')) {
+                            pos += 3;
+                            prevEnd = word(out, prevEnd, pos);
+                            continue;
+                        }
+                    }
+                }
+
+                int f2 = cpt == ' ' ? flagAt(flags, pos + 1, end) : f;
+                if ((f2 & F_LETTER) != 0) {
+                    if (cpt == ' ') pos++;
+                    while ((flagAt(flags, pos, end) & F_LETTER) != 0) pos++;
+                    prevEnd = word(out, prevEnd, pos);
+                    continue;
+                }
+                if ((f2 & F_NUMBER) != 0) {
+                    if (cpt == ' ') pos++;
+                    while ((flagAt(flags, pos, end) & F_NUMBER) != 0) pos++;
+                    prevEnd = word(out, prevEnd, pos);
+                    continue;
+                }
+                if (isOther(f2)) {
+                    if (cpt == ' ') pos++;
+                    while (isOther(flagAt(flags, pos, end))) pos++;
+                    prevEnd = word(out, prevEnd, pos);
+                    continue;
+                }
+
+                int nSpaces = 0;
+                while ((flagAt(flags, pos + nSpaces, end) & F_WHITESPACE) != 0) nSpaces++;
+                if (nSpaces > 1 && pos + nSpaces < end) {
+                    pos += nSpaces - 1;
+                } else if (nSpaces > 0) {
+                    pos += nSpaces;
+                } else {
+                    pos++;
+                }
+                prevEnd = word(out, prevEnd, pos);
+            }
+            start = end;
+        }
+    }
+
+    // (?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\r\n\p{L}\p{N}]?\p{L}+|\p{N}{1,maxDigits}| ?[^\s\p{L}\p{N}]+[\r\n]*|\s*[\r\n]+|\s+(?!\S)|\s+
+    private static void splitLlama3(int[] cpts, int[] flags, IntList in, IntList out, int maxDigits) {
+        out.n = 0;
+        int start = 0;
+        for (int k = 0; k < in.n; k++) {
+            final int end = start + in.a[k];
+            int pos = start;
+            int prevEnd = start;
+            while (pos < end) {
+                int cpt = cpts[pos];
+                int f = flags[pos];
+
+                if (cpt == '\'' && pos + 1 < end) {
+                    int next = Character.toLowerCase(cpts[pos + 1]);
+                    if (next == 's' || next == 't' || next == 'm' || next == 'd') {
+                        pos += 2;
+                        prevEnd = word(out, prevEnd, pos);
+                        continue;
+                    }
+                    if (pos + 2 < end) {
+                        int next2 = Character.toLowerCase(cpts[pos + 2]);
+                        if ((next == 'r' && next2 == 'e') || (next == 'v' && next2 == 'e') || (next == 'l' && next2 == 'l')) {
+                            pos += 3;
+                            prevEnd = word(out, prevEnd, pos);
+                            continue;
+                        }
+                    }
+                }
+
+                if (!(cpt == '\r' || cpt == '\n' || (f & F_NUMBER) != 0)) {
+                    if ((f & F_LETTER) != 0 || (flagAt(flags, pos + 1, end) & F_LETTER) != 0) {
+                        pos++;
+                        while ((flagAt(flags, pos, end) & F_LETTER) != 0) pos++;
+                        prevEnd = word(out, prevEnd, pos);
+                        continue;
+                    }
+                }
+
+                if ((f & F_NUMBER) != 0) {
+                    int first = pos;
+                    while ((flagAt(flags, pos, end) & F_NUMBER) != 0) {
+                        if (++pos - first >= maxDigits) {
+                            prevEnd = word(out, prevEnd, pos);
+                            first = pos;
+                        }
+                    }
+                    prevEnd = word(out, prevEnd, pos);
+                    continue;
+                }
+
+                int f2 = cpt == ' ' ? flagAt(flags, pos + 1, end) : f;
+                if ((f2 & (F_WHITESPACE | F_LETTER | F_NUMBER)) == 0 && f != 0) {
+                    if (cpt == ' ') pos++;
+                    while (isOther(flagAt(flags, pos, end))) pos++;
+                    while (pos < end && (cpts[pos] == '\r' || cpts[pos] == '\n')) pos++;
+                    prevEnd = word(out, prevEnd, pos);
+                    continue;
+                }
+
+                int nSpaces = 0;
+                int lastNewline = 0;
+                while ((flagAt(flags, pos + nSpaces, end) & F_WHITESPACE) != 0) {
+                    int c = cpts[pos + nSpaces];
+                    if (c == '\r' || c == '\n') lastNewline = pos + nSpaces + 1;
+                    nSpaces++;
+                }
+                if (lastNewline > 0) {
+                    pos = lastNewline;
+                } else if (nSpaces > 1 && pos + nSpaces < end) {
+                    pos += nSpaces - 1;
+                } else if (nSpaces > 0) {
+                    pos += nSpaces;
+                } else {
+                    pos++;
+                }
+                prevEnd = word(out, prevEnd, pos);
+            }
+            start = end;
+        }
+    }
+
+    private static int word(IntList out, int prevEnd, int end) {
+        if (end > prevEnd) out.add(end - prevEnd);
+        return end;
+    }
+
+    private static int flagAt(int[] flags, int pos, int end) {
+        return pos < end ? flags[pos] : 0;
+    }
+
+    private static boolean isOther(int f) {
+        return f != 0 && (f & (F_WHITESPACE | F_LETTER | F_NUMBER)) == 0;
+    }
+
+    private static int flags(int cp) {
+        int f = F_DEFINED;
+        switch (Character.getType(cp)) {
+            case Character.UPPERCASE_LETTER:
+            case Character.LOWERCASE_LETTER:
+            case Character.TITLECASE_LETTER:
+            case Character.MODIFIER_LETTER:
+            case Character.OTHER_LETTER:
+                f |= F_LETTER;
+                break;
+            case Character.DECIMAL_DIGIT_NUMBER:
+            case Character.LETTER_NUMBER:
+            case Character.OTHER_NUMBER:
+                f |= F_NUMBER;
+                break;
+            default:
+                break;
+        }
+        if (isWhitespace(cp)) f |= F_WHITESPACE;
+        return f;
+    }
+
+    // llama.cpp's whitespace set, which unlike Character.isWhitespace includes no-break spaces
+    private static boolean isWhitespace(int cp) {
+        if (cp < 0x80) return (cp >= 0x09 && cp <= 0x0D) || cp == 0x20;
+        switch (cp) {
+            case 0x85: case 0xA0: case 0x1680: case 0x2028: case 0x2029: case 0x202F: case 0x205F: case 0x3000:
+                return true;
+            default:
+                return cp >= 0x2000 && cp <= 0x200A;
+        }
+    }
+
+    // --- Tables ---
+
+    private int[] specialTokens(GgufFile gguf, int[] types) throws IOException {
+        boolean[] special = new boolean[texts.length];
+        if (types != null) {
+            for (int i = 0; i < texts.length && i < types.length; i++) {
+                int type = types[i];
+                special[i] = type == TYPE_CONTROL || type == TYPE_USER_DEFINED || type == TYPE_UNKNOWN;
+            }
+        }
+        markSpecial(special, EOG_TEXTS);
+        markSpecial(special, USER_DEFINED_TEXTS);
+        for (String[] detected : DETECTED_TEXTS) {
+            if (!gguf.has(detected[0])) markSpecial(special, Arrays.copyOfRange(detected, 1, detected.length));
+        }
+
+        Integer[] ids = new Integer[texts.length];
+        int n = 0;
+        for (int i = 0; i < texts.length; i++) {
+            if (special[i]) ids[n++] = i;
+        }
+        Arrays.sort(ids, 0, n, (a, b) -> texts[b].length() - texts[a].length());
+        int[] result = new int[n];
+        for (int i = 0; i < n; i++) result[i] = ids[i];
+        return result;
+    }
+
+    private void markSpecial(boolean[] special, String[] candidates) {
+        for (String text : candidates) {
+            int id = lookup(text);
+            if (id >= 0) special[id] = true;
+        }
+    }
+
+    private static int specialId(GgufFile gguf, String key, int defaultId, int nTokens) throws IOException {
+        long id = gguf.getLong(key, -1);
+        return id >= 0 && id < nTokens ? (int) id : defaultId;
+    }
+
+    // Later duplicates win, as in llama.cpp's token_to_id
+    private void insert(int id) {
+        String text = texts[id];
+        int hash = text.hashCode();
+        for (int slot = mix(hash) & tableMask; ; slot = (slot + 1) & tableMask) {
+            int existing = table[slot] - 1;
+            if (existing < 0 || (tableHashes[slot] == hash && texts[existing].equals(text))) {
+                table[slot] = id + 1;
+                tableHashes[slot] = hash;
+                return;
+            }
+        }
+    }
+
+    private int lookup(String text) {
+        int hash = text.hashCode();
+        for (int slot = mix(hash) & tableMask; ; slot = (slot + 1) & tableMask) {
+            int id = table[slot] - 1;
+            if (id < 0) return -1;
+            if (tableHashes[slot] == hash && texts[id].equals(text)) return id;
+        }
+    }
+
+    // Same hash as String.hashCode over chars[from, from + len), without building the string
+    private int lookup(char[] chars, int from, int len) {
+        int hash = 0;
+        for (int i = from; i < from + len; i++) hash = 31 * hash + chars[i];
+        for (int slot = mix(hash) & tableMask; ; slot = (slot + 1) & tableMask) {
+            int id = table[slot] - 1;
+            if (id < 0) return -1;
+            if (tableHashes[slot] == hash && regionEquals(texts[id], chars, from, len)) return id;
+        }
+    }
+
+    private static boolean regionEquals(String text, char[] chars, int from, int len) {
+        if (text.length() != len) return false;
+        for (int i = 0; i < len; i++) {
+            if (text.charAt(i) != chars[from + i]) return false;
+        }
+        return true;
+    }
+
+    // First occurrence wins, as bpe_ranks.emplace does
+    private void putMerge(int left, int right, int rank) {
+        long key = ((long) left << 32) | right;
+        for (int slot = mix(Long.hashCode(key)) & mergeMask; ; slot = (slot + 1) & mergeMask) {
+            if (mergeKeys[slot] == -1L) {
+                mergeKeys[slot] = key;
+                mergeRanks[slot] = rank;
+                return;
+            }
+            if (mergeKeys[slot] == key) return;
+        }
+    }
+
+    private int mergeRank(int left, int right) {
+        long key = ((long) left << 32) | right;
+        for (int slot = mix(Long.hashCode(key)) & mergeMask; ; slot = (slot + 1) & mergeMask) {
+            long k = mergeKeys[slot];
+            if (k == key) return mergeRanks[slot];
+            if (k == -1L) return -1;
+        }
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static void replaceLoneSurrogates(char[] chars, int n) {
+        for (int i = 0; i < n; i++) {
+            char c = chars[i];
+            if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(chars[i + 1])) {
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                chars[i] = '?'; // What String.getBytes(UTF_8) sends to the native tokenizer
+            }
+        }
+    }
+
+    private static int utf8(int cp, byte[] out, int at) {
+        if (cp < 0x80) {
+            out[at] = (byte) cp;
+            return 1;
+        }
+        if (cp < 0x800) {
+            out[at] = (byte) (0xC0 | (cp >> 6));
+            out[at + 1] = (byte) (0x80 | (cp & 0x3F));
+            return 2;
+        }
+        if (cp < 0x10000) {
+            out[at] = (byte) (0xE0 | (cp >> 12));
+            out[at + 1] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            out[at + 2] = (byte) (0x80 | (cp & 0x3F));
+            return 3;
+        }
+        out[at] = (byte) (0xF0 | (cp >> 18));
+        out[at + 1] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+        out[at + 2] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+        out[at + 3] = (byte) (0x80 | (cp & 0x3F));
+        return 4;
+    }
+
+    // GPT-2's byte-to-unicode table: printable Latin-1 maps to itself, the rest to U+0100 onwards
+    private static char[] byteChars() {
+        char[] chars = new char[256];
+        int n = 0;
+        for (int b = 0; b < 256; b++) {
+            boolean printable = (b >= 0x21 && b <= 0x7E) || (b >= 0xA1 && b <= 0xAC) || (b >= 0xAE && b <= 0xFF);
+            chars[b] = printable ? (char) b : (char) (256 + n++);
+        }
+        return chars;
+    }
+
+    // --- Per-thread working memory ---
+
+    private static final class IntList {
+        int[] a = new int[64];
+        int n;
+
+        void add(int v) {
+            if (n == a.length) a = Arrays.copyOf(a, n * 2);
+            a[n++] = v;
+        }
+
+        void add(int v0, int v1, int v2) {
+            if (n + 3 > a.length) a = Arrays.copyOf(a, Math.max(n + 3, a.length * 2));
+            a[n++] = v0;
+            a[n++] = v1;
+            a[n++] = v2;
+        }
+    }
+
+    private static final class Scratch {
+        final IntList out = new IntList();
+        final IntList frags = new IntList();
+        final IntList fragsNext = new IntList();
+        final IntList wordsA = new IntList();
+        final IntList wordsB = new IntList();
+        final byte[] bytes = new byte[4];
+
+        int[] cpts = new int[0];
+        int[] flags = new int[0];
+
+        // Symbols are indexed by the offset of their first character
+        char[] chars = new char[0];
+        int[] len = new int[0];
+        int[] prev = new int[0];
+        int[] next = new int[0];
+        int[] id = new int[0];
+
+        // Min-heap of candidate merges: (priority << 32 | left symbol) and the merged length
+        long[] heapKeys = new long[64];
+        int[] heapSizes = new int[64];
+        int heapSize;
+
+        void ensureCodePoints(int n) {
+            if (cpts.length < n) {
+                int capacity = Math.max(n, cpts.length * 2);
+                cpts = new int[capacity];
+                flags = new int[capacity];
+            }
+        }
+
+        void ensureSymbols(int n) {
+            if (chars.length < n) {
+                int capacity = Math.max(n, chars.length * 2);
+                chars = new char[capacity];
+                len = new int[capacity];
+                prev = new int[capacity];
+                next = new int[capacity];
+                id = new int[capacity];
+            }
+        }
+
+        void push(long key, int size) {
+            if (heapSize == heapKeys.length) {
+                heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+                heapSizes = Arrays.copyOf(heapSizes, heapSize * 2);
+            }
+            int i = heapSize++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heapKeys[parent] <= key) break;
+                heapKeys[i] = heapKeys[parent];
+                heapSizes[i] = heapSizes[parent];
+                i = parent;
+            }
+            heapKeys[i] = key;
+            heapSizes[i] = size;
+        }
+
+        void pop() {
+            long key = heapKeys[--heapSize];
+            int size = heapSizes[heapSize];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= heapSize) break;
+                if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) child++;
+                if (key <= heapKeys[child]) break;
+                heapKeys[i] = heapKeys[child];
+                heapSizes[i] = heapSizes[child];
+                i = child;
+            }
+            heapKeys[i] = key;
+            heapSizes[i] = size;
+        }
+    }
+}
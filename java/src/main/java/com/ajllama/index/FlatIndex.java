@@ -0,0 +1,144 @@
+package com.ajllama.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * Exact search by scanning every vector. Vectors are contiguous off-heap rows, so the scan
+ * streams memory; past {@value #PARALLEL_THRESHOLD} vectors it is split across the common
+ * fork-join pool. Fine for tens of thousands of vectors, and the reference to measure
+ * {@link HnswIndex} recall against.
+ */
+public final class FlatIndex implements VectorIndex {
+
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+    private static final int PARALLEL_SLICE = 1 << 14;
+
+    private final VectorStore store;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public FlatIndex(int dimension) {
+        this.store = new VectorStore(dimension);
+    }
+
+    private FlatIndex(VectorStore store) {
+        this.store = store;
+    }
+
+    /** Opens an index written by {@link #save}; vectors are mapped, not read. */
+    public static FlatIndex load(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = VectorStore.readHeader(channel, VectorStore.KIND_FLAT, file);
+            VectorStore store = new VectorStore(header.getInt(12));
+            store.read(channel, header.getInt(16));
+            return new FlatIndex(store);
+        }
+    }
+
+    @Override
+    public int dimension() {
+        return store.dim;
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return store.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long label(int i) {
+        lock.readLock().lock();
+        try {
+            if (i < 0 || i >= store.size()) throw new IndexOutOfBoundsException("No vector " + i);
+            return store.label(i);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void add(long label, float[] vector) {
+        lock.writeLock().lock();
+        try {
+            store.add(label, vector);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Hit> search(float[] query, int k) {
+        float[] q = store.normalized(query);
+        lock.readLock().lock();
+        try {
+            int n = store.size();
+            if (k <= 0 || n == 0) return new ArrayList<Hit>();
+            ScoreHeap top;
+            if (n < PARALLEL_THRESHOLD) {
+                top = scan(q, 0, n, k);
+            } else {
+                int slices = (n + PARALLEL_SLICE - 1) / PARALLEL_SLICE;
+                top = IntStream.range(0, slices).parallel()
+                        .mapToObj(s -> scan(q, s * PARALLEL_SLICE, Math.min(n, (s + 1) * PARALLEL_SLICE), k))
+                        .reduce((a, b) -> merge(a, b, k))
+                        .get();
+            }
+            return hits(top, store);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private ScoreHeap scan(float[] q, int from, int to, int k) {
+        ScoreHeap top = new ScoreHeap(k + 1, true);
+        for (int id = from; id < to; id++) top.offer(id, store.dot(q, id), k);
+        return top;
+    }
+
+    private static ScoreHeap merge(ScoreHeap a, ScoreHeap b, int k) {
+        while (!b.isEmpty()) {
+            a.offer(b.topId(), b.topScore(), k);
+            b.pop();
+        }
+        return a;
+    }
+
+    // Drains a worst-on-top heap into hits, best first
+    static List<Hit> hits(ScoreHeap top, VectorStore store) {
+        Hit[] hits = new Hit[top.size()];
+        for (int i = hits.length - 1; i >= 0; i--) {
+            hits[i] = new Hit(store.label(top.topId()), top.topScore());
+            top.pop();
+        }
+        return new ArrayList<Hit>(Arrays.asList(hits));
+    }
+
+    @Override
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        lock.readLock().lock();
+        try (FileChannel channel = VectorStore.create(tmp)) {
+            ByteBuffer header = VectorStore.header(VectorStore.KIND_FLAT, store.dim, store.size());
+            while (header.hasRemaining()) channel.write(header);
+            store.write(channel);
+            channel.force(false);
+        } finally {
+            lock.readLock().unlock();
+        }
+        VectorStore.replace(tmp, file);
+    }
+}
@@ -0,0 +1,84 @@
+package com.ajllama.index;
+
+import java.util.Arrays;
+
+// Binary heap of (score, id) pairs without boxing; the best or the worst score on top
+final class ScoreHeap {
+
+    private final boolean worstOnTop;
+    private float[] keys;
+    private int[] ids;
+    private int size;
+
+    ScoreHeap(int capacity, boolean worstOnTop) {
+        this.worstOnTop = worstOnTop;
+        this.keys = new float[Math.max(4, capacity)];
+        this.ids = new int[keys.length];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    float topScore() {
+        return worstOnTop ? -keys[0] : keys[0];
+    }
+
+    int topId() {
+        return ids[0];
+    }
+
+    void push(int id, float score) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        float key = worstOnTop ? -score : score;
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] >= key) break;
+            keys[i] = keys[parent];
+            ids[i] = ids[parent];
+            i = parent;
+        }
+        keys[i] = key;
+        ids[i] = id;
+    }
+
+    /** Removes the top entry; read it with {@link #topId()} / {@link #topScore()} first. */
+    void pop() {
+        float key = keys[--size];
+        int id = ids[size];
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && keys[child + 1] > keys[child]) child++;
+            if (key >= keys[child]) break;
+            keys[i] = keys[child];
+            ids[i] = ids[child];
+            i = child;
+        }
+        keys[i] = key;
+        ids[i] = id;
+    }
+
+    /** Keeps the best {@code k}: with the worst on top, pushes and drops the worst past {@code k}. */
+    void offer(int id, float score, int k) {
+        if (size < k) {
+            push(id, score);
+        } else if (score > topScore()) {
+            pop();
+            push(id, score);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.ajllama.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * In-process nearest-neighbour index over embeddings, for retrieval without an external vector
+ * database. Vectors are normalised when added and when searched, so scores are cosine
+ * similarities. Each vector carries a caller-chosen {@code long} label, e.g. a database row id.
+ *
+ * Vectors live off-heap in direct or memory-mapped buffers. Adds and searches may run from
+ * different threads; adds are serialised.
+ *
+ * @see FlatIndex exact search, a linear scan
+ * @see HnswIndex approximate search over a navigable small-world graph
+ */
+public interface VectorIndex {
+
+    int dimension();
+
+    int size();
+
+    /** Label of the {@code i}-th vector added, {@code 0 <= i < size()}. */
+    long label(int i);
+
+    /** @throws IllegalArgumentException when {@code vector.length != dimension()} */
+    void add(long label, float[] vector);
+
+    /** The {@code k} most similar vectors, best first. */
+    List<Hit> search(float[] query, int k);
+
+    /** Writes the index to {@code file}, replacing it atomically. */
+    void save(File file) throws IOException;
+
+    final class Hit {
+        public final long label;
+        public final float score;
+
+        public Hit(long label, float score) {
+            this.label = label;
+            this.score = score;
+        }
+
+        @Override
+        public String toString() {
+            return label + ":" + score;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.ajllama.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Normalised float vectors in off-heap chunks, row-major so a scan reads memory sequentially.
+ * Chunks hold a power-of-two number of vectors (at most 1 GiB each, the last one grows by
+ * doubling); chunks loaded from a file are mapped copy-on-write, so opening an index reads
+ * nothing up front and later adds never touch the file.
+ *
+ * File layout, little-endian: a 64-byte header, the labels ({@code long} each), the vectors
+ * from the next 64-byte boundary, then whatever the index appends (the HNSW graph).
+ */
+final class VectorStore {
+
+    static final int MAGIC = 0x58564A41; // "AJVX" read little-endian
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    static final int KIND_FLAT = 0;
+    static final int KIND_HNSW = 1;
+
+    private static final int MAX_CHUNK_BYTES = 1 << 30;
+    private static final int FIRST_CHUNK_VECTORS = 1024;
+    private static final int IO_BUFFER_BYTES = 1 << 16;
+
+    final int dim;
+    private final int stride;          // Bytes per vector
+    private final int shift;           // log2 of vectors per full chunk
+    private final int mask;
+    private ByteBuffer[] chunks = new ByteBuffer[0];
+    private long[] labels = new long[FIRST_CHUNK_VECTORS];
+    private int size;
+
+    VectorStore(int dim) {
+        if (dim <= 0 || dim > MAX_CHUNK_BYTES / 4) throw new IllegalArgumentException("Bad dimension: " + dim);
+        this.dim = dim;
+        this.stride = dim * 4;
+        this.shift = 31 - Integer.numberOfLeadingZeros(Math.max(1, MAX_CHUNK_BYTES / stride));
+        this.mask = (1 << shift) - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long label(int id) {
+        return labels[id];
+    }
+
+    /** Stores {@code vector} normalised and returns its id, ids being dense from 0. */
+    int add(long label, float[] vector) {
+        float[] v = normalized(vector);
+        int id = size;
+        ByteBuffer chunk = chunkFor(id);
+        int base = (id & mask) * stride;
+        for (int i = 0; i < dim; i++) chunk.putFloat(base + (i << 2), v[i]);
+        if (id == labels.length) labels = Arrays.copyOf(labels, labels.length * 2);
+        labels[id] = label;
+        size++;
+        return id;
+    }
+
+    private ByteBuffer chunkFor(int id) {
+        int c = id >>> shift;
+        int full = 1 << shift;
+        if (c == chunks.length) {
+            chunks = Arrays.copyOf(chunks, c + 1);
+            chunks[c] = allocate(Math.min(full, FIRST_CHUNK_VECTORS));
+        }
+        ByteBuffer chunk = chunks[c];
+        int capacity = chunk.capacity() / stride;
+        if ((id & mask) == capacity) {
+            ByteBuffer grown = allocate(Math.min(full, capacity * 2));
+            ByteBuffer src = chunk.duplicate();
+            src.clear();
+            grown.put(src);
+            grown.clear();
+            chunks[c] = grown;
+            chunk = grown;
+        }
+        return chunk;
+    }
+
+    private ByteBuffer allocate(int vectors) {
+        return ByteBuffer.allocateDirect(vectors * stride).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    float[] vector(int id) {
+        ByteBuffer chunk = chunks[id >>> shift];
+        int base = (id & mask) * stride;
+        float[] v = new float[dim];
+        for (int i = 0; i < dim; i++) v[i] = chunk.getFloat(base + (i << 2));
+        return v;
+    }
+
+    float[] normalized(float[] vector) {
+        if (vector.length != dim) throw new IllegalArgumentException("Expected " + dim + " dimensions, got " + vector.length);
+        double norm = 0;
+        for (float x : vector) norm += (double) x * x;
+        float[] v = vector.clone();
+        if (norm > 0) {
+            float inv = (float) (1 / Math.sqrt(norm));
+            for (int i = 0; i < dim; i++) v[i] *= inv;
+        }
+        return v;
+    }
+
+    // Four accumulators let the JIT overlap the multiply-adds
+
+    float dot(float[] q, int id) {
+        ByteBuffer chunk = chunks[id >>> shift];
+        int base = (id & mask) * stride;
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int n = dim & ~3;
+        int i = 0;
+        for (; i < n; i += 4) {
+            int o = base + (i << 2);
+            s0 += q[i] * chunk.getFloat(o);
+            s1 += q[i + 1] * chunk.getFloat(o + 4);
+            s2 += q[i + 2] * chunk.getFloat(o + 8);
+            s3 += q[i + 3] * chunk.getFloat(o + 12);
+        }
+        for (; i < dim; i++) s0 += q[i] * chunk.getFloat(base + (i << 2));
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    float dot(int a, int b) {
+        ByteBuffer ca = chunks[a >>> shift];
+        ByteBuffer cb = chunks[b >>> shift];
+        int ba = (a & mask) * stride;
+        int bb = (b & mask) * stride;
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int end = dim << 2;
+        int n = (dim & ~3) << 2;
+        int o = 0;
+        for (; o < n; o += 16) {
+            s0 += ca.getFloat(ba + o) * cb.getFloat(bb + o);
+            s1 += ca.getFloat(ba + o + 4) * cb.getFloat(bb + o + 4);
+            s2 += ca.getFloat(ba + o + 8) * cb.getFloat(bb + o + 8);
+            s3 += ca.getFloat(ba + o + 12) * cb.getFloat(bb + o + 12);
+        }
+        for (; o < end; o += 4) s0 += ca.getFloat(ba + o) * cb.getFloat(bb + o);
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    // --- Persistence ---
+
+    static ByteBuffer header(int kind, int dim, int count) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, kind).putInt(12, dim).putInt(16, count);
+        return header;
+    }
+
+    /** Reads and checks the header; bytes 20 to 63 are the index's own. */
+    static ByteBuffer readHeader(FileChannel channel, int kind, File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0);
+        if (header.getInt(0) != MAGIC) throw new IOException("Not a vector index: " + file);
+        if (header.getInt(4) != VERSION) throw new IOException("Unsupported vector index version " + header.getInt(4) + ": " + file);
+        if (header.getInt(8) != kind) throw new IOException("Vector index of another kind: " + file);
+        return header;
+    }
+
+    private long vectorsOffset() {
+        return align(HEADER_BYTES + (long) size * 8);
+    }
+
+    /** Writes labels and vectors after the header and returns the end offset. */
+    long write(FileChannel channel) throws IOException {
+        ByteBuffer io = ByteBuffer.allocate(IO_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long pos = HEADER_BYTES;
+        for (int i = 0; i < size; i++) {
+            if (io.remaining() < 8) pos = flush(channel, io, pos);
+            io.putLong(labels[i]);
+        }
+        pos = flush(channel, io, pos);
+        pos = vectorsOffset();
+        for (int c = 0; c < chunks.length; c++) {
+            int n = Math.min(size - (c << shift), 1 << shift);
+            if (n <= 0) break;
+            ByteBuffer src = chunks[c].duplicate();
+            src.clear();
+            src.limit(n * stride);
+            while (src.hasRemaining()) pos += channel.write(src, pos);
+        }
+        return pos;
+    }
+
+    /** Reads what {@link #write} wrote and returns the end offset. */
+    long read(FileChannel channel, int count) throws IOException {
+        labels = new long[Math.max(FIRST_CHUNK_VECTORS, count)];
+        ByteBuffer io = ByteBuffer.allocate(IO_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long pos = HEADER_BYTES;
+        for (int i = 0; i < count; ) {
+            int n = Math.min(count - i, IO_BUFFER_BYTES / 8);
+            io.clear();
+            io.limit(n * 8);
+            readFully(channel, io, pos);
+            pos += n * 8L;
+            for (int j = 0; j < n; j++) labels[i + j] = io.getLong(j * 8);
+            i += n;
+        }
+        size = count;
+        pos = vectorsOffset();
+        int full = 1 << shift;
+        int nChunks = (count + full - 1) >>> shift;
+        chunks = new ByteBuffer[nChunks];
+        for (int c = 0; c < nChunks; c++) {
+            int n = Math.min(count - (c << shift), full);
+            if (n == full) {
+                // Copy-on-write: pages load on first touch and adds never reach the file
+                chunks[c] = channel.map(FileChannel.MapMode.PRIVATE, pos, (long) n * stride).order(ByteOrder.LITTLE_ENDIAN);
+            } else {
+                int capacity = Math.min(full, Math.max(FIRST_CHUNK_VECTORS, Integer.highestOneBit(n - 1) << 1));
+                ByteBuffer chunk = allocate(capacity);
+                chunk.limit(n * stride);
+                readFully(channel, chunk, pos);
+                chunk.clear();
+                chunks[c] = chunk;
+            }
+            pos += (long) n * stride;
+        }
+        return pos;
+    }
+
+    static long align(long offset) {
+        return (offset + 63) & ~63L;
+    }
+
+    static long writeInts(FileChannel channel, long pos, int[] values, int offset, int length) throws IOException {
+        ByteBuffer io = ByteBuffer.allocate(IO_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < length; i++) {
+            if (!io.hasRemaining()) pos = flush(channel, io, pos);
+            io.putInt(values[offset + i]);
+        }
+        return flush(channel, io, pos);
+    }
+
+    static long readInts(FileChannel channel, long pos, int[] values, int offset, int length) throws IOException {
+        ByteBuffer io = ByteBuffer.allocate(IO_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < length; ) {
+            int n = Math.min(length - i, IO_BUFFER_BYTES / 4);
+            io.clear();
+            io.limit(n * 4);
+            readFully(channel, io, pos);
+            pos += n * 4L;
+            io.flip();
+            io.asIntBuffer().get(values, offset + i, n);
+            i += n;
+        }
+        return pos;
+    }
+
+    private static long flush(FileChannel channel, ByteBuffer io, long pos) throws IOException {
+        io.flip();
+        while (io.hasRemaining()) pos += channel.write(io, pos);
+        io.clear();
+        return pos;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long pos) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, pos);
+            if (n < 0) throw new IOException("Vector index file is truncated");
+            pos += n;
+        }
+    }
+
+    /** Opens a temporary file next to {@code file} for {@link #replace}. */
+    static FileChannel create(File tmp) throws IOException {
+        return FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // A rename leaves mappings of the old file valid, where overwriting it in place would not
+    static void replace(File tmp, File file) throws IOException {
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.ajllama.jfr;
+
+/**
+ * Java Flight Recorder events for model loads, requests, decode batches and Java callbacks.
+ *
+ * This is the Java 8 variant and records nothing; the multi-release jar carries a Java 11+
+ * variant under {@code META-INF/versions/11} that emits {@code com.ajllama.*} events while a
+ * recording has them enabled. Every {@code begin} method returns {@code null} when its event is
+ * disabled, and the matching {@code end} method accepts {@code null}. Internal API.
+ */
+public final class Jfr {
+
+    private Jfr() {}
+
+    /** Starts a {@code com.ajllama.ModelLoad} event. */
+    public static Object loadBegin(String modelPath) {
+        return null;
+    }
+
+    /** Ends the current {@code com.ajllama.ModelLoadPhase} when {@code phase} differs from it and starts the next. */
+    public static void loadPhase(Object load, String phase) {}
+
+    public static void loadEnd(Object load, boolean loaded) {}
+
+    /** Starts a {@code com.ajllama.InferenceRequest} event, ended when the request completes. */
+    public static Object requestBegin() {
+        return null;
+    }
+
+    /** @param resultJson the request's result, whose token counts and timings become event fields */
+    public static void requestEnd(Object request, int requestId, String resultJson) {}
+
+    /** Starts a {@code com.ajllama.JavaCallback} event around user code called from the decode thread. */
+    public static Object callbackBegin() {
+        return null;
+    }
+
+    public static void callbackEnd(Object callback, String method, int requestId) {}
+}
@@ -0,0 +1,266 @@
+package com.ajllama.json;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON reader/writer used for the native bridge.
+ *
+ * Objects parse to {@code LinkedHashMap<String, Object>}, arrays to {@code ArrayList<Object>},
+ * integers to {@code Long}, other numbers to {@code Double}.
+ */
+public final class Json {
+
+    private final String src;
+    private int pos;
+
+    private Json(String src) {
+        this.src = src;
+    }
+
+    // --- Writing ---
+
+    public static String quote(String s) {
+        if (s == null) return "null";
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\b': sb.append("\\b"); break;
+                case '\f': sb.append("\\f"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    public static String write(Object value) {
+        StringBuilder sb = new StringBuilder();
+        write(sb, value);
+        return sb.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void write(StringBuilder sb, Object value) {
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof String) {
+            sb.append(quote((String) value));
+        } else if (value instanceof Number || value instanceof Boolean) {
+            sb.append(value);
+        } else if (value instanceof Map) {
+            sb.append('{');
+            boolean first = true;
+            for (Map.Entry<String, Object> e : ((Map<String, Object>) value).entrySet()) {
+                if (!first) sb.append(',');
+                first = false;
+                sb.append(quote(e.getKey())).append(':');
+                write(sb, e.getValue());
+            }
+            sb.append('}');
+        } else if (value instanceof Iterable) {
+            sb.append('[');
+            boolean first = true;
+            for (Object o : (Iterable<Object>) value) {
+                if (!first) sb.append(',');
+                first = false;
+                write(sb, o);
+            }
+            sb.append(']');
+        } else if (value instanceof float[]) {
+            float[] arr = (float[]) value;
+            sb.append('[');
+            for (int i = 0; i < arr.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(arr[i]);
+            }
+            sb.append(']');
+        } else {
+            sb.append(quote(value.toString()));
+        }
+    }
+
+    // --- Reading ---
+
+    public static Object parse(String json) {
+        if (json == null) return null;
+        Json p = new Json(json);
+        p.skipWs();
+        Object v = p.readValue();
+        p.skipWs();
+        if (p.pos != p.src.length()) throw p.error("Trailing characters");
+        return v;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> parseObject(String json) {
+        Object v = parse(json);
+        if (!(v instanceof Map)) throw new IllegalArgumentException("Expected JSON object");
+        return (Map<String, Object>) v;
+    }
+
+    public static long getLong(Map<String, Object> obj, String key, long def) {
+        Object v = obj.get(key);
+        return v instanceof Number ? ((Number) v).longValue() : def;
+    }
+
+    public static double getDouble(Map<String, Object> obj, String key, double def) {
+        Object v = obj.get(key);
+        return v instanceof Number ? ((Number) v).doubleValue() : def;
+    }
+
+    public static boolean getBoolean(Map<String, Object> obj, String key, boolean def) {
+        Object v = obj.get(key);
+        return v instanceof Boolean ? (Boolean) v : def;
+    }
+
+    public static String getString(Map<String, Object> obj, String key, String def) {
+        Object v = obj.get(key);
+        return v instanceof String ? (String) v : def;
+    }
+
+    private Object readValue() {
+        if (pos >= src.length()) throw error("Unexpected end of input");
+        char c = src.charAt(pos);
+        switch (c) {
+            case '{': return readObject();
+            case '[': return readArray();
+            case '"': return readString();
+            case 't': expect("true"); return Boolean.TRUE;
+            case 'f': expect("false"); return Boolean.FALSE;
+            case 'n': expect("null"); return null;
+            default:  return readNumber();
+        }
+    }
+
+    private Map<String, Object> readObject() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        pos++;
+        skipWs();
+        if (peek() == '}') { pos++; return map; }
+        while (true) {
+            skipWs();
+            if (peek() != '"') throw error("Expected object key");
+            String key = readString();
+            skipWs();
+            if (peek() != ':') throw error("Expected ':'");
+            pos++;
+            skipWs();
+            map.put(key, readValue());
+            skipWs();
+            char c = peek();
+            pos++;
+            if (c == '}') return map;
+            if (c != ',') throw error("Expected ',' or '}'");
+        }
+    }
+
+    private List<Object> readArray() {
+        List<Object> list = new ArrayList<Object>();
+        pos++;
+        skipWs();
+        if (peek() == ']') { pos++; return list; }
+        while (true) {
+            skipWs();
+            list.add(readValue());
+            skipWs();
+            char c = peek();
+            pos++;
+            if (c == ']') return list;
+            if (c != ',') throw error("Expected ',' or ']'");
+        }
+    }
+
+    private String readString() {
+        pos++;
+        StringBuilder sb = null;
+        int start = pos;
+        while (pos < src.length()) {
+            char c = src.charAt(pos);
+            if (c == '"') {
+                String s = sb == null ? src.substring(start, pos) : sb.append(src, start, pos).toString();
+                pos++;
+                return s;
+            }
+            if (c == '\\') {
+                if (sb == null) sb = new StringBuilder();
+                sb.append(src, start, pos);
+                pos++;
+                char e = src.charAt(pos++);
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        sb.append((char) Integer.parseInt(src.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default: sb.append(e);
+                }
+                start = pos;
+            } else {
+                pos++;
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private Number readNumber() {
+        int start = pos;
+        boolean integral = true;
+        while (pos < src.length()) {
+            char c = src.charAt(pos);
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+') {
+                pos++;
+            } else if (c == '.' || c == 'e' || c == 'E') {
+                integral = false;
+                pos++;
+            } else {
+                break;
+            }
+        }
+        if (start == pos) throw error("Unexpected character");
+        String num = src.substring(start, pos);
+        if (integral) {
+            try {
+                return Long.parseLong(num);
+            } catch (NumberFormatException ignored) {
+                // fall through to double for out-of-range integers
+            }
+        }
+        return Double.parseDouble(num);
+    }
+
+    private void expect(String word) {
+        if (!src.startsWith(word, pos)) throw error("Expected " + word);
+        pos += word.length();
+    }
+
+    private char peek() {
+        if (pos >= src.length()) throw error("Unexpected end of input");
+        return src.charAt(pos);
+    }
+
+    private void skipWs() {
+        while (pos < src.length() && Character.isWhitespace(src.charAt(pos))) pos++;
+    }
+
+    private IllegalArgumentException error(String msg) {
+        return new IllegalArgumentException(msg + " at position " + pos);
+    }
+}
@@ -0,0 +1,83 @@
+package com.ajllama.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Fixed-bucket histogram, lock-free on the recording side. Buckets follow Prometheus: bucket
+ * {@code i} counts observations {@code <= bounds[i]}, plus an implicit {@code +Inf} bucket.
+ */
+public final class Histogram {
+
+    private final double[] bounds;
+    private final AtomicLongArray counts;
+    private final AtomicLong count = new AtomicLong();
+    private final DoubleAdder sum = new DoubleAdder();
+
+    /** @param bounds strictly increasing upper bounds */
+    public Histogram(double... bounds) {
+        for (int i = 1; i < bounds.length; i++) {
+            if (!(bounds[i] > bounds[i - 1])) throw new IllegalArgumentException("Bounds must be strictly increasing");
+        }
+        this.bounds = bounds.clone();
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void observe(double value) {
+        if (Double.isNaN(value)) return;
+        int i = Arrays.binarySearch(bounds, value);
+        counts.incrementAndGet(i >= 0 ? i : -i - 1);
+        sum.add(value);
+        count.incrementAndGet();
+    }
+
+    public double[] bounds() {
+        return bounds.clone();
+    }
+
+    /** Cumulative counts per bound, the last entry being {@code +Inf}. */
+    public long[] cumulativeCounts() {
+        long[] out = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < out.length; i++) {
+            total += counts.get(i);
+            out[i] = total;
+        }
+        return out;
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public double sum() {
+        return sum.sum();
+    }
+
+    public double mean() {
+        long n = count.get();
+        return n > 0 ? sum.sum() / n : 0;
+    }
+
+    /**
+     * Estimated quantile, interpolating linearly inside the bucket that holds it (as Prometheus'
+     * {@code histogram_quantile} does); 0 when empty, the last bound when it falls in {@code +Inf}.
+     */
+    public double quantile(double q) {
+        long[] cumulative = cumulativeCounts();
+        long total = cumulative[cumulative.length - 1];
+        if (total == 0) return 0;
+        double rank = q * total;
+        for (int i = 0; i < cumulative.length; i++) {
+            if (cumulative[i] < rank) continue;
+            if (i == bounds.length) return bounds.length > 0 ? bounds[bounds.length - 1] : 0;
+            double lower = i == 0 ? Math.min(0, bounds[0]) : bounds[i - 1];
+            long below = i == 0 ? 0 : cumulative[i - 1];
+            long inBucket = cumulative[i] - below;
+            return inBucket == 0 ? bounds[i] : lower + (bounds[i] - lower) * (rank - below) / inBucket;
+        }
+        return bounds.length > 0 ? bounds[bounds.length - 1] : 0;
+    }
+}
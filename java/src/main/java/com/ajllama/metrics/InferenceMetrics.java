@@ -0,0 +1,166 @@
+package com.ajllama.metrics;
+
+import com.ajllama.json.Json;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Throughput, latency and capacity metrics of one model in parallel mode.
+ *
+ * Per-request figures come from the result JSON of every finished request; slot, queue and KV
+ * gauges are sampled from the slot manager status when read, at most every 250 ms. Publish them
+ * with {@link #registerMBean()} (JMX, not available on Android) or {@link PrometheusFormat}.
+ *
+ * <pre>
+ * InferenceMetrics metrics = model.metrics();
+ * metrics.registerMBean();
+ * String scrape = PrometheusFormat.write(new StringBuilder(), metrics).toString();
+ * </pre>
+ */
+public final class InferenceMetrics implements InferenceMetricsMXBean {
+
+    private static final long STATUS_MAX_AGE_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final double[] RATE_BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+    private static final double[] LATENCY_BOUNDS = {0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    private final String name;
+    private final Supplier<String> status;
+
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    final AtomicLong promptTokens = new AtomicLong();
+    final AtomicLong cachedTokens = new AtomicLong();
+    final AtomicLong generatedTokens = new AtomicLong();
+
+    final Histogram promptTokensPerSecond = new Histogram(RATE_BOUNDS);
+    final Histogram decodeTokensPerSecond = new Histogram(RATE_BOUNDS);
+    final Histogram timeToFirstToken = new Histogram(LATENCY_BOUNDS);
+    final Histogram queueWait = new Histogram(LATENCY_BOUNDS);
+
+    private volatile Map<String, Object> lastStatus;
+    private volatile long lastStatusNanos;
+
+    /**
+     * @param name   label telling models apart, e.g. the model file name
+     * @param status supplies the slot manager status JSON, {@code null} when parallel mode is off
+     */
+    public InferenceMetrics(String name, Supplier<String> status) {
+        this.name = name;
+        this.status = status;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /** Records a finished request from its result JSON; embedding results only count as requests. */
+    public void record(String resultJson) {
+        Map<String, Object> result;
+        try {
+            result = Json.parseObject(resultJson);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        requests.incrementAndGet();
+        if (result.containsKey("error") || Json.getBoolean(result, "interrupted", false)) failed.incrementAndGet();
+        promptTokens.addAndGet(Json.getLong(result, "tokens_evaluated", 0));
+        cachedTokens.addAndGet(Math.max(0, Json.getLong(result, "tokens_cached", 0)));
+        generatedTokens.addAndGet(Math.max(0, Json.getLong(result, "tokens_predicted", 0)));
+
+        Object t = result.get("timings");
+        if (!(t instanceof Map)) return;
+        @SuppressWarnings("unchecked")
+        Map<String, Object> timings = (Map<String, Object>) t;
+        double queueMs = Json.getDouble(timings, "queue_ms", 0);
+        long promptN = Json.getLong(timings, "prompt_n", 0);
+        double promptMs = Json.getDouble(timings, "prompt_ms", 0);
+        long predictedN = Json.getLong(timings, "predicted_n", 0);
+        double predictedMs = Json.getDouble(timings, "predicted_ms", 0);
+
+        queueWait.observe(queueMs / 1000);
+        if (promptN > 0 && promptMs > 0) promptTokensPerSecond.observe(promptN * 1000 / promptMs);
+        if (predictedN > 0 && predictedMs > 0) decodeTokensPerSecond.observe(predictedN * 1000 / predictedMs);
+        // The first token is sampled from the logits of the last prompt batch
+        if (predictedN > 0) timeToFirstToken.observe((queueMs + promptMs) / 1000);
+    }
+
+    // --- Slot manager status ---
+
+    Map<String, Object> status() {
+        Map<String, Object> snapshot = lastStatus;
+        if (snapshot != null && System.nanoTime() - lastStatusNanos <= STATUS_MAX_AGE_NANOS) return snapshot;
+        synchronized (this) {
+            if (lastStatus == snapshot) {
+                lastStatusNanos = System.nanoTime();
+                lastStatus = fetchStatus();
+            }
+            return lastStatus;
+        }
+    }
+
+    private Map<String, Object> fetchStatus() {
+        try {
+            String json = status.get();
+            return json != null ? Json.parseObject(json) : Collections.<String, Object>emptyMap();
+        } catch (RuntimeException e) {
+            // Model closed or parallel mode not enabled yet
+            return Collections.emptyMap();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    Map<String, Object> queueStatus() {
+        Object queue = status().get("queue");
+        return queue instanceof Map ? (Map<String, Object>) queue : Collections.<String, Object>emptyMap();
+    }
+
+    private int statusInt(String key) {
+        return (int) Json.getLong(status(), key, 0);
+    }
+
+    // --- Histograms ---
+
+    public Histogram promptTokensPerSecond() { return promptTokensPerSecond; }
+    public Histogram decodeTokensPerSecond() { return decodeTokensPerSecond; }
+    /** Seconds from queuing to the first generated token. */
+    public Histogram timeToFirstToken() { return timeToFirstToken; }
+    /** Seconds spent waiting for a slot. */
+    public Histogram queueWait() { return queueWait; }
+
+    // --- MXBean ---
+
+    /** Registers as {@code com.ajllama:type=InferenceMetrics,name=<name>}, replacing an earlier registration. */
+    public void registerMBean() {
+        MBeans.register(this);
+    }
+
+    public void unregisterMBean() {
+        MBeans.unregister(this);
+    }
+
+    @Override public long getRequests() { return requests.get(); }
+    @Override public long getFailedRequests() { return failed.get(); }
+    @Override public long getPromptTokens() { return promptTokens.get(); }
+    @Override public long getCachedPromptTokens() { return cachedTokens.get(); }
+    @Override public long getGeneratedTokens() { return generatedTokens.get(); }
+
+    @Override public double getPromptTokensPerSecondP50() { return promptTokensPerSecond.quantile(0.5); }
+    @Override public double getDecodeTokensPerSecondP50() { return decodeTokensPerSecond.quantile(0.5); }
+    @Override public double getDecodeTokensPerSecondP05() { return decodeTokensPerSecond.quantile(0.05); }
+    @Override public double getTimeToFirstTokenP50Millis() { return timeToFirstToken.quantile(0.5) * 1000; }
+    @Override public double getTimeToFirstTokenP95Millis() { return timeToFirstToken.quantile(0.95) * 1000; }
+    @Override public double getQueueWaitP95Millis() { return queueWait.quantile(0.95) * 1000; }
+
+    @Override public int getSlots() { return statusInt("n_parallel"); }
+    @Override public int getActiveSlots() { return statusInt("active_slots"); }
+    @Override public int getQueuedRequests() { return statusInt("queued_requests"); }
+    @Override public long getRejectedRequests() { return Json.getLong(queueStatus(), "rejected", 0); }
+    @Override public long getExpiredRequests() { return Json.getLong(queueStatus(), "expired", 0); }
+    @Override public int getCachedPrefixTokens() { return statusInt("cached_prefix_tokens"); }
+    @Override public int getKvCellsUsed() { return statusInt("kv_used_cells"); }
+    @Override public int getKvSize() { return statusInt("kv_size"); }
+}
@@ -0,0 +1,30 @@
+package com.ajllama.metrics;
+
+/**
+ * JMX view of {@link InferenceMetrics}. Latency and throughput attributes are estimated from
+ * the histogram buckets; slot, queue and KV attributes are sampled from the slot manager.
+ */
+public interface InferenceMetricsMXBean {
+
+    long getRequests();
+    long getFailedRequests();
+    long getPromptTokens();
+    long getCachedPromptTokens();
+    long getGeneratedTokens();
+
+    double getPromptTokensPerSecondP50();
+    double getDecodeTokensPerSecondP50();
+    double getDecodeTokensPerSecondP05();
+    double getTimeToFirstTokenP50Millis();
+    double getTimeToFirstTokenP95Millis();
+    double getQueueWaitP95Millis();
+
+    int getSlots();
+    int getActiveSlots();
+    int getQueuedRequests();
+    long getRejectedRequests();
+    long getExpiredRequests();
+    int getCachedPrefixTokens();
+    int getKvCellsUsed();
+    int getKvSize();
+}
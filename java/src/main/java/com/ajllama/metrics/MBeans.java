@@ -0,0 +1,37 @@
+package com.ajllama.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+// Kept apart from InferenceMetrics so that javax.management is only loaded when registering
+final class MBeans {
+
+    private MBeans() {}
+
+    static void register(InferenceMetrics metrics) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = objectName(metrics);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(metrics, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register metrics MBean: " + e.getMessage(), e);
+        }
+    }
+
+    static void unregister(InferenceMetrics metrics) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = objectName(metrics);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to unregister metrics MBean: " + e.getMessage(), e);
+        }
+    }
+
+    private static ObjectName objectName(InferenceMetrics metrics) throws JMException {
+        return new ObjectName("com.ajllama:type=InferenceMetrics,name=" + ObjectName.quote(metrics.name()));
+    }
+}
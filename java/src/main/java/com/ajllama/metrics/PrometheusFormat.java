@@ -0,0 +1,100 @@
+package com.ajllama.metrics;
+
+import com.ajllama.json.Json;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Prometheus text exposition (format 0.0.4) of one or more models' {@link InferenceMetrics},
+ * each labelled {@code model="<name>"}. Serve it with content type {@link #CONTENT_TYPE}.
+ */
+public final class PrometheusFormat {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private PrometheusFormat() {}
+
+    public static <A extends Appendable> A write(A out, InferenceMetrics... models) {
+        try {
+            counter(out, "llama_requests_total", "Finished requests", models, m -> m.requests.get());
+            counter(out, "llama_requests_failed_total", "Requests that ended with an error or were interrupted", models, m -> m.failed.get());
+            counter(out, "llama_prompt_tokens_total", "Prompt tokens of finished requests", models, m -> m.promptTokens.get());
+            counter(out, "llama_prompt_tokens_cached_total", "Prompt tokens served from the KV cache instead of decoded", models, m -> m.cachedTokens.get());
+            counter(out, "llama_generated_tokens_total", "Generated tokens", models, m -> m.generatedTokens.get());
+            counter(out, "llama_queue_rejected_total", "Requests turned away by a full queue", models,
+                    m -> Json.getLong(m.queueStatus(), "rejected", 0));
+            counter(out, "llama_queue_expired_total", "Requests whose deadline passed while queued", models,
+                    m -> Json.getLong(m.queueStatus(), "expired", 0));
+
+            gauge(out, "llama_slots", "Parallel slots", models, m -> Json.getLong(m.status(), "n_parallel", 0));
+            gauge(out, "llama_slots_active", "Slots processing a prompt or generating", models, m -> Json.getLong(m.status(), "active_slots", 0));
+            gauge(out, "llama_queue_depth", "Requests waiting for a slot", models, m -> Json.getLong(m.status(), "queued_requests", 0));
+            gauge(out, "llama_prefix_cache_tokens", "Prompt prefix tokens kept in the KV cache for reuse", models,
+                    m -> Json.getLong(m.status(), "cached_prefix_tokens", 0));
+            gauge(out, "llama_kv_cells_used", "KV cells held by slot sequences (shared prefixes count per sequence)", models,
+                    m -> Json.getLong(m.status(), "kv_used_cells", 0));
+            gauge(out, "llama_kv_cells", "KV cells in the context", models, m -> Json.getLong(m.status(), "kv_size", 0));
+
+            histogram(out, "llama_prompt_tokens_per_second", "Prompt processing rate per request", models, m -> m.promptTokensPerSecond);
+            histogram(out, "llama_decode_tokens_per_second", "Generation rate per request", models, m -> m.decodeTokensPerSecond);
+            histogram(out, "llama_time_to_first_token_seconds", "Time from queuing to the first generated token", models, m -> m.timeToFirstToken);
+            histogram(out, "llama_queue_wait_seconds", "Time spent waiting for a slot", models, m -> m.queueWait);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out;
+    }
+
+    private interface Value {
+        long of(InferenceMetrics m);
+    }
+
+    private interface HistogramOf {
+        Histogram of(InferenceMetrics m);
+    }
+
+    private static void counter(Appendable out, String name, String help, InferenceMetrics[] models, Value value) throws IOException {
+        header(out, name, help, "counter");
+        for (InferenceMetrics m : models) sample(out, name, label(m), Long.toString(value.of(m)));
+    }
+
+    private static void gauge(Appendable out, String name, String help, InferenceMetrics[] models, Value value) throws IOException {
+        header(out, name, help, "gauge");
+        for (InferenceMetrics m : models) sample(out, name, label(m), Long.toString(value.of(m)));
+    }
+
+    private static void histogram(Appendable out, String name, String help, InferenceMetrics[] models, HistogramOf of) throws IOException {
+        header(out, name, help, "histogram");
+        for (InferenceMetrics m : models) {
+            Histogram h = of.of(m);
+            String label = label(m);
+            double[] bounds = h.bounds();
+            long[] cumulative = h.cumulativeCounts();
+            for (int i = 0; i < cumulative.length; i++) {
+                String le = i < bounds.length ? number(bounds[i]) : "+Inf";
+                sample(out, name + "_bucket", label + ",le=\"" + le + "\"", Long.toString(cumulative[i]));
+            }
+            sample(out, name + "_sum", label, number(h.sum()));
+            sample(out, name + "_count", label, Long.toString(cumulative[cumulative.length - 1]));
+        }
+    }
+
+    private static void header(Appendable out, String name, String help, String type) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(Appendable out, String name, String labels, String value) throws IOException {
+        out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static String label(InferenceMetrics m) {
+        String v = m.name().replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return "model=\"" + v + "\"";
+    }
+
+    private static String number(double v) {
+        return v == Math.rint(v) && !Double.isInfinite(v) && Math.abs(v) < 1e15 ? Long.toString((long) v) : Double.toString(v);
+    }
+}
@@ -0,0 +1,118 @@
+package com.ajllama.text;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects streamed tokens and hands them to the UI at most once per frame. Tokens are appended
+ * on the decoding thread without touching the UI; the renderer runs on the UI thread with the
+ * text appended since the previous frame, so drawing cost follows the frame rate and the size of
+ * the delta rather than the token rate and the length of the response.
+ *
+ * The scheduler runs a task on the UI thread after a delay: {@code handler::postDelayed} on
+ * Android, a one-shot {@code javax.swing.Timer} in Swing.
+ *
+ * <pre>
+ * StreamingTextBuffer stream = new StreamingTextBuffer(StreamingTextBuffer.DEFAULT_FRAME_MILLIS,
+ *         handler::postDelayed, (delta, done) -&gt; textView.append(delta));
+ * model.generate(params, stream::append, stream::finish);
+ * </pre>
+ */
+public final class StreamingTextBuffer {
+
+    /** About 60 frames per second. */
+    public static final long DEFAULT_FRAME_MILLIS = 16;
+
+    public interface Scheduler {
+        /** Runs {@code task} on the UI thread after {@code delayMillis} (0: as soon as possible). */
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    public interface Renderer {
+        /**
+         * Called on the UI thread with the text appended since the last frame. The last frame
+         * has {@code done} set and is delivered even when its delta is empty.
+         */
+        void render(String delta, boolean done);
+    }
+
+    private final long frameNanos;
+    private final Scheduler scheduler;
+    private final Renderer renderer;
+    private final Runnable frameTask = this::frame;
+
+    private final StringBuilder text = new StringBuilder();
+    private int rendered;
+    private boolean frameScheduled;
+    private boolean finished;
+    private boolean doneRendered;
+    private long lastFrameNanos;
+
+    public StreamingTextBuffer(long frameMillis, Scheduler scheduler, Renderer renderer) {
+        this.frameNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, frameMillis));
+        this.scheduler = scheduler;
+        this.renderer = renderer;
+        // The first token is shown right away
+        this.lastFrameNanos = System.nanoTime() - frameNanos;
+    }
+
+    /** Appends streamed text from any thread. Ignored after {@link #finish()}. */
+    public void append(CharSequence token) {
+        if (token == null || token.length() == 0) return;
+        long delay;
+        synchronized (this) {
+            if (finished) return;
+            text.append(token);
+            delay = claimFrame();
+        }
+        if (delay >= 0) scheduler.schedule(frameTask, delay);
+    }
+
+    /** Ends the stream and returns the full text; the final frame is rendered with {@code done} set. */
+    public String finish() {
+        long delay;
+        String full;
+        synchronized (this) {
+            if (finished) return text.toString();
+            finished = true;
+            full = text.toString();
+            delay = claimFrame();
+        }
+        if (delay >= 0) scheduler.schedule(frameTask, delay);
+        return full;
+    }
+
+    public synchronized String text() {
+        return text.toString();
+    }
+
+    public synchronized int length() {
+        return text.length();
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    // Delay until the next frame is due, or -1 when one is already scheduled
+    private long claimFrame() {
+        if (frameScheduled) return -1;
+        frameScheduled = true;
+        long wait = lastFrameNanos + frameNanos - System.nanoTime();
+        return wait > 0 ? TimeUnit.NANOSECONDS.toMillis(wait) : 0;
+    }
+
+    private void frame() {
+        String delta;
+        boolean done;
+        synchronized (this) {
+            frameScheduled = false;
+            lastFrameNanos = System.nanoTime();
+            if (doneRendered) return;
+            delta = text.substring(rendered);
+            rendered = text.length();
+            done = finished;
+            doneRendered = done;
+        }
+        if (!delta.isEmpty() || done) renderer.render(delta, done);
+    }
+}
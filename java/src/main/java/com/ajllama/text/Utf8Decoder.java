@@ -0,0 +1,146 @@
+package com.ajllama.text;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * Incremental UTF-8 decoder for token streams. Token pieces are byte strings, so a character can
+ * be split across tokens; the decoder keeps the bytes of an unfinished character between calls
+ * and only ever appends complete code points. Malformed input becomes U+FFFD, following the
+ * WHATWG decoder (one replacement per maximal invalid subpart).
+ *
+ * Decoding allocates nothing; reuse one instance per stream. Not thread-safe.
+ *
+ * <pre>
+ * Utf8Decoder decoder = new Utf8Decoder();
+ * StringBuilder text = new StringBuilder();
+ * model.completionBytes(json, null, (utf8, stop) -&gt; {
+ *     decoder.decode(utf8, text);
+ *     if (stop) decoder.flush(text);
+ * });
+ * </pre>
+ */
+public final class Utf8Decoder {
+
+    private static final char REPLACEMENT = '\uFFFD';
+
+    // Results of step() besides a code point
+    private static final int MORE = -1;
+    private static final int REPLACE = -2;
+    private static final int REPLACE_AND_RETRY = -3;
+
+    private int codePoint;
+    private int needed;
+    private int lower = 0x80;
+    private int upper = 0xBF;
+
+    /** Decodes {@code in} from its position to its limit, consuming all of it. */
+    public void decode(ByteBuffer in, StringBuilder out) {
+        int pos = in.position();
+        int limit = in.limit();
+        while (pos < limit) {
+            int r = step(in.get(pos) & 0xFF);
+            if (r != REPLACE_AND_RETRY) pos++;
+            append(r, out);
+        }
+        in.position(pos);
+    }
+
+    public void decode(byte[] in, int offset, int length, StringBuilder out) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            int r = step(in[i] & 0xFF);
+            if (r != REPLACE_AND_RETRY) i++;
+            append(r, out);
+        }
+    }
+
+    /**
+     * Decodes as much of {@code in} as fits in {@code out}. Stops early once {@code out} has fewer
+     * than two chars left (a supplementary character needs two); {@code in} keeps the rest.
+     *
+     * @return {@code true} when all of {@code in} was consumed
+     */
+    public boolean decode(ByteBuffer in, CharBuffer out) {
+        int pos = in.position();
+        int limit = in.limit();
+        while (pos < limit && out.remaining() >= 2) {
+            int r = step(in.get(pos) & 0xFF);
+            if (r != REPLACE_AND_RETRY) pos++;
+            if (r >= 0) {
+                if (r >= 0x10000) {
+                    out.put(Character.highSurrogate(r)).put(Character.lowSurrogate(r));
+                } else {
+                    out.put((char) r);
+                }
+            } else if (r != MORE) {
+                out.put(REPLACEMENT);
+            }
+        }
+        in.position(pos);
+        return pos == limit;
+    }
+
+    /** Whether the bytes decoded so far end inside a character. */
+    public boolean hasPending() {
+        return needed > 0;
+    }
+
+    /** Ends the stream: an unfinished character becomes U+FFFD. The decoder is ready for a new stream. */
+    public void flush(StringBuilder out) {
+        if (needed > 0) out.append(REPLACEMENT);
+        reset();
+    }
+
+    /** Drops an unfinished character. */
+    public void reset() {
+        codePoint = 0;
+        needed = 0;
+        lower = 0x80;
+        upper = 0xBF;
+    }
+
+    private static void append(int r, StringBuilder out) {
+        if (r >= 0) {
+            out.appendCodePoint(r);
+        } else if (r != MORE) {
+            out.append(REPLACEMENT);
+        }
+    }
+
+    private int step(int b) {
+        if (needed == 0) {
+            if (b < 0x80) return b;
+            if (b >= 0xC2 && b <= 0xDF) {
+                needed = 1;
+                codePoint = b & 0x1F;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                if (b == 0xE0) lower = 0xA0;   // overlong
+                if (b == 0xED) upper = 0x9F;   // surrogates
+                needed = 2;
+                codePoint = b & 0x0F;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                if (b == 0xF0) lower = 0x90;   // overlong
+                if (b == 0xF4) upper = 0x8F;   // above U+10FFFF
+                needed = 3;
+                codePoint = b & 0x07;
+            } else {
+                return REPLACE;
+            }
+            return MORE;
+        }
+        if (b < lower || b > upper) {
+            // The sequence is cut short; the byte may start the next one
+            reset();
+            return REPLACE_AND_RETRY;
+        }
+        lower = 0x80;
+        upper = 0xBF;
+        codePoint = (codePoint << 6) | (b & 0x3F);
+        if (--needed > 0) return MORE;
+        int cp = codePoint;
+        codePoint = 0;
+        return cp;
+    }
+}
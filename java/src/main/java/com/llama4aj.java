@@ -1,6 +1,26 @@
 package com;
 
+import com.ajllama.batch.Batch;
+import com.ajllama.ffm.Ffm;
+import com.ajllama.json.Json;
+import com.ajllama.jfr.Jfr;
+import com.ajllama.metrics.InferenceMetrics;
+import com.ajllama.text.Utf8Decoder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.IntFunction;
 
 /**
  * llama4aj: The ultra-concise Java identity for llama.cpp
@@ -12,7 +32,10 @@ import java.util.function.Consumer;
  */
 public class llama4aj implements AutoCloseable {
 
-    private long contextPtr;
+    private volatile long contextPtr;
+    private long timeToReadyNanos;
+    private String modelName = "model";
+    private volatile InferenceMetrics metrics;
     private static String loadedLib = "unknown";
 
     // --- Configuration ---
@@ -21,35 +44,332 @@ public class llama4aj implements AutoCloseable {
         public int n_ctx = 2048;
         public int n_gpu_layers = 0;
         public int n_batch = 512;
+        public int n_ubatch = 512;
+        public int n_parallel = 1;
         public boolean use_mlock = true;
         public boolean use_mmap = true;
-        public int n_threads = Runtime.getRuntime().availableProcessors();
+        // Decode threads, capped to the process thread budget (see setThreadBudget); 0 = the whole budget
+        public int n_threads = 0;
         public boolean flash_attn = false;
+        public boolean kv_unified = false;
+        // Slide the KV window instead of stopping when the context fills up
+        public boolean ctx_shift = true;
+        // Required for embedding requests
+        public boolean embedding = false;
+        // KV tokens kept for prompt prefixes shared between parallel requests: -1 = auto, 0 = off.
+        // Prefixes are copied across slots only with kv_unified; otherwise a slot reuses what it already holds.
+        public int prefix_cache_tokens = -1;
+        // KV cache element types: "f16", "q8_0", "q4_0", ... (a quantized V cache turns on flash_attn)
+        public String cache_type_k = "f16";
+        public String cache_type_v = "f16";
+        // Prefetch the mmapped weights into the page cache and run a full-batch dummy decode while loading,
+        // so the first request doesn't pay the cold start (load takes longer instead)
+        public boolean warmup = false;
+        // Requests waiting for a slot in parallel mode before submit() starts rejecting, 0 = unbounded.
+        // A full queue makes room for a request by shedding a queued one of a less urgent priority class.
+        public int max_queued_requests = 0;
 
         public Config nCtx(int n) { this.n_ctx = n; return this; }
         public Config gpuLayers(int n) { this.n_gpu_layers = n; return this; }
         public Config batchSize(int n) { this.n_batch = n; return this; }
+        public Config ubatchSize(int n) { this.n_ubatch = n; return this; }
+        public Config parallel(int n) { this.n_parallel = n; return this; }
         public Config threads(int n) { this.n_threads = n; return this; }
         public Config flashAttn(boolean b) { this.flash_attn = b; return this; }
+        public Config kvUnified(boolean b) { this.kv_unified = b; return this; }
+        public Config contextShift(boolean b) { this.ctx_shift = b; return this; }
+        public Config embedding(boolean b) { this.embedding = b; return this; }
+        public Config prefixCacheTokens(int n) { this.prefix_cache_tokens = n; return this; }
+        public Config cacheTypeK(String t) { this.cache_type_k = t; return this; }
+        public Config cacheTypeV(String t) { this.cache_type_v = t; return this; }
+        public Config cacheType(String t) { return cacheTypeK(t).cacheTypeV(t); }
+        public Config warmup(boolean b) { this.warmup = b; return this; }
+        public Config maxQueuedRequests(int n) { this.max_queued_requests = n; return this; }
+
+        public Config copy() {
+            Config c = new Config();
+            c.n_ctx = n_ctx;
+            c.n_gpu_layers = n_gpu_layers;
+            c.n_batch = n_batch;
+            c.n_ubatch = n_ubatch;
+            c.n_parallel = n_parallel;
+            c.use_mlock = use_mlock;
+            c.use_mmap = use_mmap;
+            c.n_threads = n_threads;
+            c.flash_attn = flash_attn;
+            c.kv_unified = kv_unified;
+            c.ctx_shift = ctx_shift;
+            c.embedding = embedding;
+            c.prefix_cache_tokens = prefix_cache_tokens;
+            c.cache_type_k = cache_type_k;
+            c.cache_type_v = cache_type_v;
+            c.warmup = warmup;
+            c.max_queued_requests = max_queued_requests;
+            return c;
+        }
 
         public String toJson() {
             return "{" +
                     "\"n_ctx\":" + n_ctx + "," +
                     "\"n_gpu_layers\":" + n_gpu_layers + "," +
                     "\"n_batch\":" + n_batch + "," +
+                    "\"n_ubatch\":" + n_ubatch + "," +
+                    "\"n_parallel\":" + n_parallel + "," +
                     "\"use_mlock\":" + use_mlock + "," +
                     "\"use_mmap\":" + use_mmap + "," +
                     "\"n_threads\":" + n_threads + "," +
-                    "\"flash_attn\":" + flash_attn +
+                    "\"flash_attn\":" + flash_attn + "," +
+                    "\"kv_unified\":" + kv_unified + "," +
+                    "\"ctx_shift\":" + ctx_shift + "," +
+                    "\"embedding\":" + embedding + "," +
+                    "\"prefix_cache_tokens\":" + prefix_cache_tokens + "," +
+                    "\"cache_type_k\":" + Json.quote(cache_type_k) + "," +
+                    "\"cache_type_v\":" + Json.quote(cache_type_v) + "," +
+                    "\"warmup\":" + warmup + "," +
+                    "\"max_queued_requests\":" + max_queued_requests +
+                    "}";
+        }
+    }
+
+    public static class CompletionParams {
+        /** Priority classes for queued requests: a request never waits behind a less urgent one. */
+        public static final int PRIORITY_INTERACTIVE = 0;
+        public static final int PRIORITY_NORMAL = 1;
+        public static final int PRIORITY_BATCH = 2;
+
+        public String prompt = "";
+        public int n_predict = -1;
+        public float temperature = 0.8f;
+        public int top_k = 40;
+        public float top_p = 0.95f;
+        public float min_p = 0.05f;
+        public float repeat_penalty = 1.1f;
+        public int seed = -1;
+        public List<String> stop = new ArrayList<String>();
+        // Leading prompt tokens (e.g. the system prompt) kept across context shifts, -1 = whole prompt
+        public int n_keep = 0;
+        // Oldest tokens dropped per context shift, 0 = half of the unkept window
+        public int n_discard = 0;
+        public boolean stream = true;
+        // Completions sampled from one prompt prefill by submitN(), seeds seed + i
+        public int n = 1;
+        // Parallel mode only: queue priority class, and how long the request may wait for a slot
+        // before it completes with "expired" instead of running (0 = no deadline)
+        public int priority = PRIORITY_NORMAL;
+        public long deadline_ms = 0;
+
+        public CompletionParams prompt(String p) { this.prompt = p; return this; }
+        public CompletionParams nPredict(int n) { this.n_predict = n; return this; }
+        public CompletionParams temperature(float t) { this.temperature = t; return this; }
+        public CompletionParams topK(int k) { this.top_k = k; return this; }
+        public CompletionParams topP(float p) { this.top_p = p; return this; }
+        public CompletionParams minP(float p) { this.min_p = p; return this; }
+        public CompletionParams repeatPenalty(float p) { this.repeat_penalty = p; return this; }
+        public CompletionParams seed(int s) { this.seed = s; return this; }
+        public CompletionParams stop(String... words) { this.stop = new ArrayList<String>(Arrays.asList(words)); return this; }
+        public CompletionParams nKeep(int n) { this.n_keep = n; return this; }
+        public CompletionParams nDiscard(int n) { this.n_discard = n; return this; }
+        public CompletionParams stream(boolean b) { this.stream = b; return this; }
+        public CompletionParams n(int n) { this.n = n; return this; }
+        public CompletionParams priority(int p) { this.priority = p; return this; }
+        public CompletionParams deadline(long timeout, TimeUnit unit) { this.deadline_ms = unit.toMillis(timeout); return this; }
+
+        public CompletionParams copy() {
+            CompletionParams c = new CompletionParams();
+            c.prompt = prompt;
+            c.n_predict = n_predict;
+            c.temperature = temperature;
+            c.top_k = top_k;
+            c.top_p = top_p;
+            c.min_p = min_p;
+            c.repeat_penalty = repeat_penalty;
+            c.seed = seed;
+            c.stop = new ArrayList<String>(stop);
+            c.n_keep = n_keep;
+            c.n_discard = n_discard;
+            c.stream = stream;
+            c.n = n;
+            c.priority = priority;
+            c.deadline_ms = deadline_ms;
+            return c;
+        }
+
+        public String toJson() {
+            return "{" +
+                    "\"prompt\":" + Json.quote(prompt) + "," +
+                    "\"n_predict\":" + n_predict + "," +
+                    "\"temperature\":" + temperature + "," +
+                    "\"top_k\":" + top_k + "," +
+                    "\"top_p\":" + top_p + "," +
+                    "\"min_p\":" + min_p + "," +
+                    "\"repeat_penalty\":" + repeat_penalty + "," +
+                    "\"seed\":" + (seed & 0xFFFFFFFFL) + "," +
+                    "\"stop\":" + Json.write(stop) + "," +
+                    "\"n_keep\":" + n_keep + "," +
+                    "\"n_discard\":" + n_discard + "," +
+                    "\"stream\":" + stream + "," +
+                    "\"n\":" + n + "," +
+                    "\"priority\":" + priority + "," +
+                    "\"deadline_ms\":" + deadline_ms +
                     "}";
         }
     }
 
+    // --- Memory Planning ---
+
+    /**
+     * Estimated memory footprint of a {@link Config} for a given model, computed from the
+     * GGUF header only (the model is not loaded).
+     *
+     * Compute-buffer sizes are an estimate of the CPU graph buffers; KV sizes are exact for
+     * non-SWA models.
+     */
+    public static class MemoryPlan {
+        private static final int CTX_PAD = 256;
+        private static final int MAX_PARALLEL = 256;
+
+        public final Config config;
+        public final String architecture;
+        public final int nLayer;
+        public final int nEmbd;
+        public final int nFf;
+        public final int nHead;
+        public final int nHeadKv;
+        public final int nCtxTrain;
+        public final int nVocab;
+        public final long modelBytes;
+        public final long kvBytesPerToken;
+        private final String modelPath;
+
+        MemoryPlan(String modelPath, Config config, Map<String, Object> hparams) {
+            this.modelPath = modelPath;
+            this.config = config;
+            this.architecture = Json.getString(hparams, "architecture", "");
+            this.nLayer = (int) Json.getLong(hparams, "n_layer", 0);
+            this.nEmbd = (int) Json.getLong(hparams, "n_embd", 0);
+            this.nFf = (int) Json.getLong(hparams, "n_ff", 0);
+            this.nHead = (int) Json.getLong(hparams, "n_head", 0);
+            this.nHeadKv = (int) Json.getLong(hparams, "n_head_kv", 0);
+            this.nCtxTrain = (int) Json.getLong(hparams, "n_ctx_train", 0);
+            this.nVocab = (int) Json.getLong(hparams, "n_vocab", 0);
+            this.modelBytes = Json.getLong(hparams, "model_bytes", 0);
+            this.kvBytesPerToken = Json.getLong(hparams, "kv_bytes_per_token", 0);
+        }
+
+        private MemoryPlan(MemoryPlan base, Config config) {
+            this.modelPath = base.modelPath;
+            this.config = config;
+            this.architecture = base.architecture;
+            this.nLayer = base.nLayer;
+            this.nEmbd = base.nEmbd;
+            this.nFf = base.nFf;
+            this.nHead = base.nHead;
+            this.nHeadKv = base.nHeadKv;
+            this.nCtxTrain = base.nCtxTrain;
+            this.nVocab = base.nVocab;
+            this.modelBytes = base.modelBytes;
+            this.kvBytesPerToken = base.kvBytesPerToken;
+        }
+
+        /**
+         * Returns the plan for {@code config} against the same model. Other KV cache types change
+         * the bytes per token, so those re-read the header.
+         */
+        public MemoryPlan with(Config config) {
+            if (!this.config.cache_type_k.equals(config.cache_type_k) || !this.config.cache_type_v.equals(config.cache_type_v)) {
+                return plan(modelPath, config);
+            }
+            return new MemoryPlan(this, config);
+        }
+
+        public long kvBytes() {
+            return kvBytesPerToken * padCtx(config.n_ctx);
+        }
+
+        public long computeBytes() {
+            long nTokens = Math.min(config.n_ubatch, config.n_batch);
+            long nKv = config.kv_unified || config.n_parallel <= 1
+                    ? padCtx(config.n_ctx)
+                    : padCtx(config.n_ctx / config.n_parallel);
+            // logits for a full ubatch plus the widest per-layer activations
+            long bytes = 4L * nTokens * (nVocab + 4L * nEmbd + 2L * nFf);
+            if (!usesFlashAttn()) {
+                // materialized KQ scores for every head
+                bytes += 4L * nTokens * nKv * nHead;
+            }
+            return bytes;
+        }
+
+        public long totalBytes() {
+            return modelBytes + kvBytes() + computeBytes();
+        }
+
+        public boolean fits(long budgetBytes) {
+            return totalBytes() <= budgetBytes;
+        }
+
+        /** Largest {@code n_ctx} (keeping {@code n_parallel}) whose plan fits in {@code budgetBytes}. */
+        public Config fitContext(long budgetBytes) {
+            int limit = nCtxTrain > 0 ? nCtxTrain * Math.max(1, config.n_parallel) : Integer.MAX_VALUE / 2;
+            Config best = null;
+            for (int n = CTX_PAD; n <= limit; n += CTX_PAD) {
+                Config candidate = config.copy().nCtx(n);
+                if (!with(candidate).fits(budgetBytes)) break;
+                best = candidate;
+            }
+            if (best == null) {
+                throw new IllegalStateException("Budget of " + budgetBytes + " bytes cannot hold the model with any context");
+            }
+            return best;
+        }
+
+        /** Largest {@code n_parallel} where every slot gets {@code nCtxPerSlot} tokens and the plan fits. */
+        public Config fitParallel(long budgetBytes, int nCtxPerSlot) {
+            Config best = null;
+            for (int p = 1; p <= MAX_PARALLEL; p++) {
+                Config candidate = config.copy().parallel(p).nCtx(p * nCtxPerSlot);
+                if (!with(candidate).fits(budgetBytes)) break;
+                best = candidate;
+            }
+            if (best == null) {
+                throw new IllegalStateException("Budget of " + budgetBytes + " bytes cannot hold one slot of " + nCtxPerSlot + " tokens");
+            }
+            return best;
+        }
+
+        private boolean usesFlashAttn() {
+            return config.flash_attn || !("f16".equals(config.cache_type_v) || "f32".equals(config.cache_type_v));
+        }
+
+        private static long padCtx(int n) {
+            return ((long) n + CTX_PAD - 1) / CTX_PAD * CTX_PAD;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("MemoryPlan{arch=%s, n_ctx=%d, n_parallel=%d, kv=%s/%s, model=%d MiB, kv=%d MiB, compute=%d MiB, total=%d MiB}",
+                    architecture, config.n_ctx, config.n_parallel, config.cache_type_k, config.cache_type_v,
+                    modelBytes >> 20, kvBytes() >> 20, computeBytes() >> 20, totalBytes() >> 20);
+        }
+    }
+
+    public static MemoryPlan plan(String modelPath) {
+        return plan(modelPath, new Config());
+    }
+
+    public static MemoryPlan plan(String modelPath, Config config) {
+        String hparams = nativePlanMemory(modelPath, config.toJson());
+        if (hparams == null) throw new RuntimeException("Failed to read model: " + modelPath);
+        return new MemoryPlan(modelPath, config, Json.parseObject(hparams));
+    }
+
     // --- High-Level API ---
 
     public static void generate(String modelPath, String prompt, Consumer<String> onToken) {
         try (llama4aj model = load(modelPath)) {
-            model.generate(prompt, onToken);
+            model.generate(prompt, onToken).await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -58,14 +378,228 @@ public class llama4aj implements AutoCloseable {
     }
 
     public static llama4aj load(String modelPath, Config config) {
-        long ptr = nativeLoadModel(modelPath, config.toJson());
+        return load(modelPath, config, null);
+    }
+
+    /** Load phases: "prefetch" and "warmup" (with {@link Config#warmup}), and "load". */
+    public interface LoadProgress {
+        /** Called on the loading thread; throwing cancels the load. */
+        void onProgress(String phase, float progress);
+    }
+
+    public static llama4aj load(String modelPath, Config config, LoadProgress progress) {
+        long start = System.nanoTime();
+        Object load = Jfr.loadBegin(modelPath);
+        LoadProgress traced = load == null ? progress : (phase, value) -> {
+            Jfr.loadPhase(load, phase);
+            if (progress != null) progress.onProgress(phase, value);
+        };
+        long ptr = 0;
+        try {
+            ptr = nativeLoadModel(modelPath, config.toJson(), traced);
+        } finally {
+            Jfr.loadEnd(load, ptr != 0);
+        }
         if (ptr == 0) throw new RuntimeException("Failed to load model: " + modelPath);
-        return new llama4aj(ptr);
+        llama4aj model = new llama4aj(ptr);
+        model.timeToReadyNanos = System.nanoTime() - start;
+        model.modelName = new File(modelPath).getName();
+        return model;
+    }
+
+    /** Wall time {@code load} took until the model could serve requests, including any warm-up. */
+    public long timeToReadyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(timeToReadyNanos);
+    }
+
+    public Completion generate(String prompt, Consumer<String> onToken) {
+        return generate(new CompletionParams().prompt(prompt), onToken);
+    }
+
+    public Completion generate(CompletionParams params, Consumer<String> onToken) {
+        return generate(params, onToken, null);
+    }
+
+    public Completion generate(CompletionParams params, Consumer<String> onToken, Runnable onComplete) {
+        return generate(params, null, onToken, onComplete);
+    }
+
+    /** Like {@link #generate(CompletionParams, Consumer, Runnable)} with every token chosen by {@code sampler}. */
+    public Completion generate(CompletionParams params, Sampler sampler, Consumer<String> onToken, Runnable onComplete) {
+        return completion(params.toJson(), sampler, (token, stop) -> {
+            if (!stop || !token.isEmpty()) onToken.accept(token);
+            if (stop && onComplete != null) onComplete.run();
+        });
+    }
+
+    // --- Custom Sampling ---
+
+    /**
+     * Picks the next token from Java, e.g. for constrained decoding. Runs on the completion
+     * thread once per generated token; the chosen token still goes through the native sampler
+     * state (repetition penalties etc.).
+     */
+    public interface Sampler {
+        /** @return the next token id, or -1 to let the native sampler choose this step */
+        int sample(Logits logits);
+
+        /** When true, native top-k/top-p from the request run first and only the survivors are offered. */
+        default boolean prefilter() {
+            return false;
+        }
+    }
+
+    /**
+     * Read-only view of the last position's logits in native memory. Nothing is copied, so the
+     * view (and any buffer taken from it) is only valid inside {@link Sampler#sample}.
+     */
+    public static final class Logits {
+        // Native llama_token_data: int32 id, float logit, float p
+        private static final int CANDIDATE_BYTES = 12;
+
+        private ByteBuffer logitsBytes;
+        private FloatBuffer logits;
+        private ByteBuffer candidatesBytes;
+        private ByteBuffer candidates;
+        private int nVocab;
+        private int nCandidates;
+
+        private Logits() {}
+
+        /** All {@link #nVocab()} logits, indexed by token id. */
+        public FloatBuffer values() {
+            return logits.duplicate();
+        }
+
+        public int nVocab() {
+            return nVocab;
+        }
+
+        /** Whether only the native top-k/top-p survivors are offered. */
+        public boolean filtered() {
+            return candidates != null;
+        }
+
+        /** Number of offered tokens: the survivors when filtered, else the whole vocabulary. */
+        public int size() {
+            return candidates != null ? nCandidates : nVocab;
+        }
+
+        public int token(int i) {
+            return candidates != null ? candidates.getInt(i * CANDIDATE_BYTES) : i;
+        }
+
+        public float logit(int i) {
+            return candidates != null ? candidates.getFloat(i * CANDIDATE_BYTES + 4) : logits.get(i);
+        }
+
+        /** Softmax probability after filtering; only available when {@link #filtered()}. */
+        public float probability(int i) {
+            if (candidates == null) throw new IllegalStateException("Probabilities are only computed when prefiltering");
+            return candidates.getFloat(i * CANDIDATE_BYTES + 8);
+        }
+
+        /** Offered token with the highest logit. */
+        public int argmax() {
+            int best = 0;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = 0, n = size(); i < n; i++) {
+                float v = logit(i);
+                if (v > max) {
+                    max = v;
+                    best = i;
+                }
+            }
+            return token(best);
+        }
+
+        private void update(ByteBuffer logitsBytes, int nVocab, ByteBuffer candidatesBytes, int nCandidates) {
+            // The native side reuses its buffers between steps; only re-wrap when they change
+            if (logitsBytes != this.logitsBytes) {
+                this.logitsBytes = logitsBytes;
+                this.logits = logitsBytes.order(ByteOrder.nativeOrder()).asFloatBuffer().asReadOnlyBuffer();
+            }
+            if (candidatesBytes != this.candidatesBytes) {
+                this.candidatesBytes = candidatesBytes;
+                this.candidates = candidatesBytes != null ? candidatesBytes.asReadOnlyBuffer().order(ByteOrder.nativeOrder()) : null;
+            }
+            this.nVocab = nVocab;
+            this.nCandidates = nCandidates;
+        }
+    }
+
+    /** Called from native code for each token of a completion with a {@link Sampler}. */
+    private static final class SamplerBridge {
+        private final Sampler sampler;
+        private final Logits logits = new Logits();
+
+        SamplerBridge(Sampler sampler) {
+            this.sampler = sampler;
+        }
+
+        boolean prefilter() {
+            return sampler.prefilter();
+        }
+
+        int sample(ByteBuffer logitsBytes, int nVocab, ByteBuffer candidatesBytes, int nCandidates) {
+            logits.update(logitsBytes, nVocab, candidatesBytes, nCandidates);
+            return sampler.sample(logits);
+        }
     }
 
-    public void generate(String prompt, Consumer<String> onToken) {
-        String paramsJson = "{\"prompt\":\"" + prompt.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n").replace("\r", "\\r") + "\", \"stream\": true}";
-        nativeCompletion(contextPtr, paramsJson, (token, stop) -> onToken.accept(token));
+    /**
+     * Handle to a queued or running completion. Every completion ends with exactly one
+     * {@code stop} callback, also when it fails or is cancelled.
+     */
+    public static final class Completion {
+        private final llama4aj model;
+        private final boolean queued;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile int requestId;
+        private volatile String result;
+
+        private Completion(llama4aj model, boolean queued) {
+            this.model = model;
+            this.queued = queued;
+        }
+
+        /** Stops the request; a running prefill is aborted inside the current decode. */
+        public void cancel() {
+            long ptr;
+            // Under the lock close() takes, so the context can't be freed during the native call
+            synchronized (model) {
+                ptr = model.contextPtr;
+                if (ptr == 0 || isDone()) return;
+                if (!queued) {
+                    nativeCancel(ptr, requestId);
+                    return;
+                }
+            }
+            // Not under the lock: this waits for the slot loop, whose callbacks may call close().
+            // The native side holds off a concurrent destroy until it is done with the context.
+            nativeCancelRequest(ptr, requestId);
+        }
+
+        public int requestId() {
+            return requestId;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /** Result JSON of a queued request once done, {@code null} for direct completions. */
+        public String result() {
+            return result;
+        }
+
+        public void await() throws InterruptedException {
+            done.await();
+        }
+
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
     }
 
     // --- Lifecycle ---
@@ -74,37 +608,425 @@ public class llama4aj implements AutoCloseable {
         this.contextPtr = contextPtr;
     }
 
+    /** Cancels queued and running completions, waits for them to unwind, then frees the model. */
     @Override
     public void close() {
-        if (contextPtr != 0) {
-            nativeDestroyContext(contextPtr);
+        long ptr;
+        synchronized (this) {
+            ptr = contextPtr;
             contextPtr = 0;
         }
+        // Not under the lock: a token callback may call close() while we wait for it
+        if (ptr != 0) nativeDestroyContext(ptr);
     }
 
-    public void interrupt() {
-        if (contextPtr != 0) nativeInterrupt(contextPtr);
+    /** Cancels the running completion and every completion queued behind it. */
+    public synchronized void interrupt() {
+        long ptr = contextPtr;
+        if (ptr != 0) nativeInterrupt(ptr);
     }
 
     public static String getLoadedLibrary() {
         return loadedLib;
     }
 
+    // --- Native Logging ---
+    // llama.cpp, ggml and binding logs. The level is checked natively before a message is
+    // formatted. Without a Logger records go straight to logcat / stderr; with one they are
+    // queued in a native lock-free ring and handed over on a background thread, so decoding
+    // threads never wait on log output. Records are dropped (and counted) if the ring fills up.
+
+    public enum LogLevel { DEBUG, INFO, WARN, ERROR, OFF }
+
+    public interface Logger {
+        void log(LogLevel level, String tag, String message);
+    }
+
+    private static LogBridge logBridge;
+
+    /** Default {@link LogLevel#INFO}. */
+    public static void setLogLevel(LogLevel level) {
+        nativeSetLogLevel(level.ordinal() + 1);
+    }
+
+    /** Routes native logs to {@code logger}; {@code null} goes back to logcat / stderr. Not from inside {@link Logger#log}. */
+    public static synchronized void setLogger(Logger logger) {
+        if (logger != null && logBridge != null) {
+            logBridge.target = logger;
+        } else if (logger != null) {
+            LogBridge bridge = new LogBridge(logger);
+            bridge.thread = new Thread(() -> {
+                while (bridge.running) nativeDrainLogs(bridge, 250);
+                nativeDrainLogs(bridge, 0);
+            }, "llama4aj-log");
+            bridge.thread.setDaemon(true);
+            logBridge = bridge;
+            nativeSetLogSink(true);
+            bridge.thread.start();
+        } else if (logBridge != null) {
+            LogBridge bridge = logBridge;
+            logBridge = null;
+            bridge.running = false;
+            nativeSetLogSink(false);
+            // The ring has a single consumer: let this one finish before another can start
+            try {
+                bridge.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Called from native on the log thread
+    private static final class LogBridge {
+        private static final LogLevel[] LEVELS = LogLevel.values();
+
+        volatile Logger target;
+        volatile boolean running = true;
+        Thread thread;
+
+        LogBridge(Logger target) {
+            this.target = target;
+        }
+
+        void log(int level, String tag, String message) {
+            try {
+                target.log(LEVELS[Math.max(0, Math.min(level - 1, LEVELS.length - 1))], tag, message);
+            } catch (RuntimeException e) {
+                // A failing logger must not take the log thread down
+            }
+        }
+    }
+
+    // --- CPU Thread Budget ---
+    // All models in the process compute on ggml threadpools leased from one native budget.
+    // Models loaded with the same thread settings share a pool and take turns on it, so loading
+    // more models adds queueing, not threads. n_threads is capped to the budget.
+
+    /**
+     * Caps the threads models compute with; {@code 0} restores the default, the cores that do
+     * math. Models loaded before the change keep their pools.
+     */
+    public static void setThreadBudget(int threads) {
+        nativeSetThreadBudget(threads);
+    }
+
+    /**
+     * Thread budget JSON: {@code budget}, {@code helper_threads}, {@code leased_threads} and a
+     * {@code pools} array with each pool's {@code n_threads}, {@code contexts}, {@code computes}
+     * and {@code wait_ms} (time models waited for each other).
+     */
+    public static String threadBudget() {
+        return nativeThreadBudget();
+    }
+
     // --- Native Bridge ---
 
-    private static native long nativeLoadModel(String modelPath, String configJson);
+    private static native long nativeLoadModel(String modelPath, String configJson, LoadProgress progress);
+    private static native String nativePlanMemory(String modelPath, String configJson);
     private static native void nativeDestroyContext(long contextPtr);
-    private static native void nativeCompletion(long contextPtr, String completionParamsJson, CompletionCallback callback);
+    private static native int nativeCompletion(long contextPtr, String completionParamsJson, TokenBytesBridge callback, SamplerBridge sampler);
+    private static native void nativeCancel(long contextPtr, int requestId);
     private static native void nativeInterrupt(long contextPtr);
+    private static native boolean nativeEnableParallelMode(long contextPtr, int nParallel, int nBatch);
+    private static native int nativeQueueCompletion(long contextPtr, String completionParamsJson, RequestCallback callback);
+    private static native int[] nativeQueueCompletions(long contextPtr, String completionParamsJson, RequestCallback[] callbacks);
+    private static native int nativeQueueEmbedding(long contextPtr, String text, int normalize, RequestCallback callback);
+    private static native void nativeCancelRequest(long contextPtr, int requestId);
+    private static native String nativeFormatChat(long contextPtr, String messagesJson);
+    private static native int[] nativeTokenize(long contextPtr, byte[] textUtf8, boolean addSpecial);
+    private static native String nativeParallelStatus(long contextPtr);
+    private static native int nativeSaveSession(long contextPtr, String path);
+    private static native int nativeLoadSession(long contextPtr, String path);
+    private static native boolean nativeReleaseContext(long contextPtr, String sessionPath);
+    private static native void nativeSetThreadBudget(int threads);
+    private static native String nativeThreadBudget();
+    private static native void nativeSetLogLevel(int level);
+    private static native void nativeSetLogSink(boolean enabled);
+    private static native int nativeDrainLogs(LogBridge bridge, int timeoutMs);
 
     public interface CompletionCallback {
         void onTokenReceived(String token, boolean stop);
     }
 
+    /** Receives each token as the raw UTF-8 bytes of its piece; decode them with a {@link Utf8Decoder}. */
+    public interface TokenBytesCallback {
+        /**
+         * @param utf8 the piece between position and limit; it may start or end inside a character.
+         *             The buffer is reused for the next token, so it is only valid during the call.
+         */
+        void onTokenBytes(ByteBuffer utf8, boolean stop);
+    }
+
+    /** Called from native code with a direct buffer the request reuses for every token. */
+    private static final class TokenBytesBridge {
+        private final TokenBytesCallback callback;
+
+        TokenBytesBridge(TokenBytesCallback callback) {
+            this.callback = callback;
+        }
+
+        void onTokenBytes(ByteBuffer buffer, int length, boolean stop) {
+            buffer.clear();
+            buffer.limit(length);
+            callback.onTokenBytes(buffer, stop);
+        }
+    }
+
     // --- Advanced API ---
 
-    public void completion(String json, CompletionCallback callback) {
-        nativeCompletion(contextPtr, json, callback);
+    public Completion completion(String json, CompletionCallback callback) {
+        return completion(json, null, callback);
+    }
+
+    /**
+     * Tokens arrive as whole characters: a token that ends inside a multi-byte character is held
+     * back and delivered with the one that completes it.
+     *
+     * @param sampler picks each token instead of the native sampler, may be {@code null}
+     */
+    public Completion completion(String json, Sampler sampler, CompletionCallback callback) {
+        Utf8Decoder decoder = new Utf8Decoder();
+        StringBuilder text = new StringBuilder();
+        return completionBytes(json, sampler, (utf8, stop) -> {
+            text.setLength(0);
+            decoder.decode(utf8, text);
+            if (stop) decoder.flush(text);
+            if (text.length() > 0 || stop) callback.onTokenReceived(text.toString(), stop);
+        });
+    }
+
+    /**
+     * Like {@link #completion(String, Sampler, CompletionCallback)} but hands over each token's raw
+     * UTF-8 bytes in a reused buffer, so streaming allocates nothing per token.
+     */
+    public Completion completionBytes(String json, Sampler sampler, TokenBytesCallback callback) {
+        long ptr = contextPtr;
+        if (ptr == 0) throw new IllegalStateException("Model is closed");
+        Completion completion = new Completion(this, false);
+        SamplerBridge bridge = sampler != null ? new SamplerBridge(sampler) : null;
+        TokenBytesCallback tracking = (utf8, stop) -> {
+            Object traced = Jfr.callbackBegin();
+            try {
+                callback.onTokenBytes(utf8, stop);
+            } finally {
+                Jfr.callbackEnd(traced, "onTokenBytes", completion.requestId);
+                if (stop) completion.done.countDown();
+            }
+        };
+        // On Java 22+ the multi-release jar binds the same completion path through FFM
+        int id = Ffm.available()
+                ? Ffm.completion(ptr, json, tracking::onTokenBytes, bridge != null ? bridge::sample : null,
+                        bridge != null && bridge.prefilter())
+                : nativeCompletion(ptr, json, new TokenBytesBridge(tracking), bridge);
+        if (id < 0) throw new IllegalStateException("Failed to start completion");
+        completion.requestId = id;
+        return completion;
+    }
+
+    // --- Parallel Decoding ---
+    // Requests are queued on the native slot manager and batched together. Once enabled,
+    // generate()/completion() are rejected; use submit() instead.
+
+    // Returned by the native queue calls when admission control turns a request away
+    private static final int QUEUE_REJECTED = -2;
+
+    public interface RequestCallback {
+        void onToken(String token);
+        /** Called exactly once with the result JSON (text, stop flags, token counts, timings). */
+        void onComplete(String resultJson);
+    }
+
+    public void enableParallel() {
+        enableParallel(0);
+    }
+
+    /** @param nParallel slot count, at most {@link Config#n_parallel}; 0 uses the configured value */
+    public void enableParallel(int nParallel) {
+        long ptr = requirePtr();
+        if (!nativeEnableParallelMode(ptr, nParallel, 0)) {
+            throw new IllegalStateException("Failed to enable parallel mode with " + nParallel + " slots");
+        }
+    }
+
+    /**
+     * Queues a completion behind requests of the same or a more urgent priority class.
+     *
+     * @throws RejectedExecutionException when the queue is at {@link Config#max_queued_requests}
+     *         and holds nothing less urgent to shed
+     */
+    public Completion submit(CompletionParams params, RequestCallback callback) {
+        long ptr = requirePtr();
+        Completion completion = new Completion(this, true);
+        int id = nativeQueueCompletion(ptr, params.toJson(), trackingCallback(completion, callback));
+        if (id == QUEUE_REJECTED) throw new RejectedExecutionException("Request queue is full");
+        if (id < 0) throw new IllegalStateException("Failed to queue completion (is parallel mode enabled?)");
+        completion.requestId = id;
+        return completion;
+    }
+
+    /**
+     * Queues {@code params.n} completions of the same prompt. The prompt is decoded once and its
+     * KV sequence copied into the other slots, which then decode together in one batch, each with
+     * its own sampler (seed {@code seed + i} when a seed is set). Best-of-N and self-consistency
+     * jobs cost about one prefill instead of n. A branch that cannot share the prefill (e.g.
+     * recurrent models, or the first completion already started generating) decodes the prompt itself.
+     *
+     * @param callbacks callback for the i-th completion
+     * @throws RejectedExecutionException when the queue is full; branches that no longer fit after
+     *         the first was queued complete with {@code "rejected"} instead
+     */
+    public List<Completion> submitN(CompletionParams params, IntFunction<RequestCallback> callbacks) {
+        long ptr = requirePtr();
+        int n = Math.max(1, params.n);
+        List<Completion> completions = new ArrayList<Completion>(n);
+        RequestCallback[] tracking = new RequestCallback[n];
+        for (int i = 0; i < n; i++) {
+            Completion completion = new Completion(this, true);
+            completions.add(completion);
+            tracking[i] = trackingCallback(completion, callbacks.apply(i));
+        }
+        int[] ids = nativeQueueCompletions(ptr, params.toJson(), tracking);
+        if (ids != null && ids.length > 0 && ids[0] == QUEUE_REJECTED) throw new RejectedExecutionException("Request queue is full");
+        if (ids == null || ids.length != n || ids[0] < 0) {
+            throw new IllegalStateException("Failed to queue completions (is parallel mode enabled?)");
+        }
+        for (int i = 0; i < n; i++) {
+            completions.get(i).requestId = ids[i];
+        }
+        return completions;
+    }
+
+    /** Queues an embedding request; the result JSON carries an {@code embedding} array. Needs {@link Config#embedding}. */
+    public Completion submitEmbedding(String text, RequestCallback callback) {
+        long ptr = requirePtr();
+        Completion completion = new Completion(this, true);
+        int id = nativeQueueEmbedding(ptr, text, -2, trackingCallback(completion, callback));
+        if (id == QUEUE_REJECTED) throw new RejectedExecutionException("Request queue is full");
+        if (id < 0) throw new IllegalStateException("Failed to queue embedding (is parallel mode enabled?)");
+        completion.requestId = id;
+        return completion;
+    }
+
+    /**
+     * Tokenizes with the loaded vocabulary, parsing special tokens, as prompts are tokenized.
+     * {@code addSpecial} adds BOS/EOS as the model asks for. Use
+     * {@link com.ajllama.gguf.GgufTokenizer} to count tokens without a loaded model.
+     */
+    public int[] tokenize(String text, boolean addSpecial) {
+        int[] tokens = nativeTokenize(requirePtr(), text.getBytes(StandardCharsets.UTF_8), addSpecial);
+        if (tokens == null) throw new IllegalStateException("Failed to tokenize");
+        return tokens;
+    }
+
+    /**
+     * Applies the model's chat template to OpenAI-style messages.
+     * Returns JSON with {@code prompt} and the template's extra {@code stop} strings.
+     */
+    public String formatChat(String messagesJson) {
+        String formatted = nativeFormatChat(requirePtr(), messagesJson);
+        if (formatted == null) throw new IllegalArgumentException("Failed to apply chat template");
+        return formatted;
+    }
+
+    /**
+     * Saves the KV cache of the completion path with the tokens it holds, waiting for the running
+     * completion. Returns the token count; {@link #loadSession} resumes without decoding them again.
+     */
+    public int saveSession(File file) {
+        int n = nativeSaveSession(requirePtr(), file.getAbsolutePath());
+        if (n < 0) throw new IllegalStateException("Failed to save session to " + file);
+        return n;
+    }
+
+    /**
+     * Loads a session saved by {@link #saveSession} (with the same model and context size); the
+     * next prompt only decodes what follows its common prefix with the session. Returns the token count.
+     */
+    public int loadSession(File file) {
+        int n = nativeLoadSession(requirePtr(), file.getAbsolutePath());
+        if (n < 0) throw new IllegalStateException("Failed to load session from " + file);
+        return n;
+    }
+
+    /**
+     * Frees the KV cache and compute buffers, keeping the weights loaded, e.g. when the app is
+     * backgrounded. With a {@code sessionFile} the session is saved there first; the next
+     * completion recreates the context, loads the session and deletes the file. Waits for the
+     * running completion. Not available in parallel mode.
+     *
+     * @return false when the session could not be saved or parallel mode is on; nothing was freed
+     */
+    public boolean releaseMemory(File sessionFile) {
+        return nativeReleaseContext(requirePtr(), sessionFile != null ? sessionFile.getAbsolutePath() : null);
+    }
+
+    /**
+     * Runs many completions through the slot manager for throughput and yields results as they
+     * finish. Parallel mode is enabled if it is not already. See {@link Batch}.
+     */
+    public Batch batch(Iterable<CompletionParams> requests) {
+        if (parallelStatus() == null) enableParallel();
+        return new Batch(this, requests);
+    }
+
+    /**
+     * Slot manager status JSON, or {@code null} when parallel mode is off. The {@code queue} object
+     * holds the queued count per priority class, admitted/rejected/expired totals and queue wait times.
+     */
+    public String parallelStatus() {
+        return nativeParallelStatus(requirePtr());
+    }
+
+    /**
+     * Throughput, latency, queue and KV metrics of the requests submitted from now on, named after
+     * the model file. Created on first use; until then finished requests are not parsed.
+     */
+    public InferenceMetrics metrics() {
+        InferenceMetrics m = metrics;
+        if (m == null) {
+            synchronized (this) {
+                if (metrics == null) metrics = new InferenceMetrics(modelName, this::parallelStatus);
+                m = metrics;
+            }
+        }
+        return m;
+    }
+
+    private static RequestCallback trackingCallback(Completion completion, RequestCallback callback) {
+        Object request = Jfr.requestBegin();
+        return new RequestCallback() {
+            @Override
+            public void onToken(String token) {
+                Object traced = Jfr.callbackBegin();
+                try {
+                    callback.onToken(token);
+                } finally {
+                    Jfr.callbackEnd(traced, "onToken", completion.requestId);
+                }
+            }
+
+            @Override
+            public void onComplete(String resultJson) {
+                completion.result = resultJson;
+                InferenceMetrics m = completion.model.metrics;
+                if (m != null) m.record(resultJson);
+                Jfr.requestEnd(request, completion.requestId, resultJson);
+                Object traced = Jfr.callbackBegin();
+                try {
+                    callback.onComplete(resultJson);
+                } finally {
+                    Jfr.callbackEnd(traced, "onComplete", completion.requestId);
+                    completion.done.countDown();
+                }
+            }
+        };
+    }
+
+    private long requirePtr() {
+        long ptr = contextPtr;
+        if (ptr == 0) throw new IllegalStateException("Model is closed");
+        return ptr;
     }
 
     // --- Legacy Support (Deprecated) ---
@@ -0,0 +1,33 @@
+package com.ajllama.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("com.ajllama.Batch")
+@Label("Decode Batch")
+@Category("ajllama")
+@Description("One llama_decode step and the sampling after it; committed when the step ends, so the durations are fields")
+final class BatchEvent extends jdk.jfr.Event {
+
+    @Label("Tokens")
+    int tokens;
+
+    @Label("Prompt Tokens")
+    @Description("Prefill tokens in the batch; the rest are generated tokens")
+    int promptTokens;
+
+    @Label("Sequences")
+    int sequences;
+
+    @Label("Decode Time")
+    @Timespan
+    long decodeTime;
+
+    @Label("Sample Time")
+    @Description("Sampling, including the token callbacks it runs")
+    @Timespan
+    long sampleTime;
+}
@@ -0,0 +1,43 @@
+package com.ajllama.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("com.ajllama.InferenceRequest")
+@Label("Inference Request")
+@Category("ajllama")
+@Description("A request queued on the slot manager, from submission to its result")
+final class InferenceRequestEvent extends jdk.jfr.Event {
+
+    @Label("Request Id")
+    int requestId;
+
+    @Label("Failed")
+    @Description("Ended with an error, or was cancelled, rejected or expired")
+    boolean failed;
+
+    @Label("Prompt Tokens")
+    int promptTokens;
+
+    @Label("Cached Prompt Tokens")
+    @Description("Prompt tokens served from the KV cache instead of decoded")
+    int cachedTokens;
+
+    @Label("Generated Tokens")
+    int generatedTokens;
+
+    @Label("Queue Time")
+    @Timespan
+    long queueTime;
+
+    @Label("Prefill Time")
+    @Timespan
+    long prefillTime;
+
+    @Label("Decode Time")
+    @Timespan
+    long decodeTime;
+}
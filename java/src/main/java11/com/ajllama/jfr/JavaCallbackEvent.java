@@ -0,0 +1,21 @@
+package com.ajllama.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+@Name("com.ajllama.JavaCallback")
+@Label("Java Callback")
+@Category("ajllama")
+@Description("User code run on the decoding thread; every slot waits while it runs")
+@Threshold("1 ms")
+final class JavaCallbackEvent extends jdk.jfr.Event {
+
+    @Label("Method")
+    String method;
+
+    @Label("Request Id")
+    int requestId;
+}
@@ -0,0 +1,184 @@
+package com.ajllama.jfr;
+
+import com.ajllama.json.Json;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+
+import java.util.Map;
+
+/**
+ * Java Flight Recorder events for model loads, requests, decode batches and Java callbacks.
+ *
+ * Java 11+ variant. Enablement is re-read whenever a recording starts or stops, so with no
+ * recording every hook costs a volatile read and native decode steps are not traced at all.
+ * Every {@code begin} method returns {@code null} when its event is disabled, and the matching
+ * {@code end} method accepts {@code null}. Internal API.
+ */
+public final class Jfr {
+
+    private static volatile boolean loadEnabled;
+    private static volatile boolean requestEnabled;
+    private static volatile boolean callbackEnabled;
+    private static boolean batchTraced;
+
+    static {
+        try {
+            FlightRecorder.addListener(new FlightRecorderListener() {
+                @Override
+                public void recordingStateChanged(Recording recording) {
+                    update();
+                }
+            });
+            update();
+        } catch (Throwable t) {
+            // jdk.jfr missing from the runtime image, or Flight Recorder disabled
+        }
+    }
+
+    private Jfr() {}
+
+    private static synchronized void update() {
+        loadEnabled = enabled(ModelLoadEvent.class) || enabled(ModelLoadPhaseEvent.class);
+        requestEnabled = enabled(InferenceRequestEvent.class);
+        callbackEnabled = enabled(JavaCallbackEvent.class);
+        boolean batch = enabled(BatchEvent.class);
+        if (batch != batchTraced) {
+            try {
+                nativeSetTrace(batch);
+                batchTraced = batch;
+            } catch (UnsatisfiedLinkError e) {
+                // Native library not loaded; batches stay untraced
+            }
+        }
+    }
+
+    private static boolean enabled(Class<? extends jdk.jfr.Event> event) {
+        return EventType.getEventType(event).isEnabled();
+    }
+
+    // --- Model load ---
+
+    private static final class Load {
+        final ModelLoadEvent event = new ModelLoadEvent();
+        ModelLoadPhaseEvent phase;
+    }
+
+    /** Starts a {@code com.ajllama.ModelLoad} event. */
+    public static Object loadBegin(String modelPath) {
+        if (!loadEnabled) return null;
+        Load load = new Load();
+        load.event.modelPath = modelPath;
+        load.event.begin();
+        return load;
+    }
+
+    /** Ends the current {@code com.ajllama.ModelLoadPhase} when {@code phase} differs from it and starts the next. */
+    public static void loadPhase(Object load, String phase) {
+        if (load == null) return;
+        Load l = (Load) load;
+        if (l.phase != null && l.phase.phase.equals(phase)) return;
+        endPhase(l);
+        l.phase = new ModelLoadPhaseEvent();
+        l.phase.modelPath = l.event.modelPath;
+        l.phase.phase = phase;
+        l.phase.begin();
+    }
+
+    public static void loadEnd(Object load, boolean loaded) {
+        if (load == null) return;
+        Load l = (Load) load;
+        endPhase(l);
+        l.event.end();
+        if (l.event.shouldCommit()) {
+            l.event.loaded = loaded;
+            l.event.commit();
+        }
+    }
+
+    private static void endPhase(Load load) {
+        if (load.phase == null) return;
+        load.phase.end();
+        if (load.phase.shouldCommit()) load.phase.commit();
+        load.phase = null;
+    }
+
+    // --- Requests ---
+
+    /** Starts a {@code com.ajllama.InferenceRequest} event, ended when the request completes. */
+    public static Object requestBegin() {
+        if (!requestEnabled) return null;
+        InferenceRequestEvent event = new InferenceRequestEvent();
+        event.begin();
+        return event;
+    }
+
+    /** @param resultJson the request's result, whose token counts and timings become event fields */
+    public static void requestEnd(Object request, int requestId, String resultJson) {
+        if (request == null) return;
+        InferenceRequestEvent event = (InferenceRequestEvent) request;
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.requestId = requestId;
+        try {
+            Map<String, Object> result = Json.parseObject(resultJson);
+            event.failed = result.containsKey("error") || Json.getBoolean(result, "interrupted", false);
+            event.promptTokens = (int) Json.getLong(result, "tokens_evaluated", 0);
+            event.cachedTokens = (int) Math.max(0, Json.getLong(result, "tokens_cached", 0));
+            event.generatedTokens = (int) Math.max(0, Json.getLong(result, "tokens_predicted", 0));
+            Object t = result.get("timings");
+            if (t instanceof Map) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> timings = (Map<String, Object>) t;
+                event.queueTime = millisToNanos(Json.getDouble(timings, "queue_ms", 0));
+                event.prefillTime = millisToNanos(Json.getDouble(timings, "prompt_ms", 0));
+                event.decodeTime = millisToNanos(Json.getDouble(timings, "predicted_ms", 0));
+            }
+        } catch (IllegalArgumentException e) {
+            event.failed = true;
+        }
+        event.commit();
+    }
+
+    private static long millisToNanos(double ms) {
+        return (long) (ms * 1_000_000);
+    }
+
+    // --- Java callbacks ---
+
+    /** Starts a {@code com.ajllama.JavaCallback} event around user code called from the decode thread. */
+    public static Object callbackBegin() {
+        if (!callbackEnabled) return null;
+        JavaCallbackEvent event = new JavaCallbackEvent();
+        event.begin();
+        return event;
+    }
+
+    public static void callbackEnd(Object callback, String method, int requestId) {
+        if (callback == null) return;
+        JavaCallbackEvent event = (JavaCallbackEvent) callback;
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = method;
+            event.requestId = requestId;
+            event.commit();
+        }
+    }
+
+    // --- Decode batches (called from native) ---
+
+    private static native void nativeSetTrace(boolean enabled);
+
+    // Called on the decoding thread after each llama_decode step and the sampling that followed it
+    private static void batch(int nTokens, int nPromptTokens, int nSeqs, long decodeMicros, long sampleMicros) {
+        BatchEvent event = new BatchEvent();
+        if (!event.shouldCommit()) return;
+        event.tokens = nTokens;
+        event.promptTokens = nPromptTokens;
+        event.sequences = nSeqs;
+        event.decodeTime = decodeMicros * 1000;
+        event.sampleTime = sampleMicros * 1000;
+        event.commit();
+    }
+}
@@ -0,0 +1,19 @@
+package com.ajllama.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.ajllama.ModelLoad")
+@Label("Model Load")
+@Category("ajllama")
+@Description("Loading a model until it can serve requests, including prefetch and warm-up")
+final class ModelLoadEvent extends jdk.jfr.Event {
+
+    @Label("Model Path")
+    String modelPath;
+
+    @Label("Loaded")
+    boolean loaded;
+}
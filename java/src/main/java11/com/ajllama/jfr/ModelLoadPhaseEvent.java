@@ -0,0 +1,19 @@
+package com.ajllama.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.ajllama.ModelLoadPhase")
+@Label("Model Load Phase")
+@Category("ajllama")
+@Description("One phase of a model load: prefetch, load or warmup")
+final class ModelLoadPhaseEvent extends jdk.jfr.Event {
+
+    @Label("Model Path")
+    String modelPath;
+
+    @Label("Phase")
+    String phase;
+}
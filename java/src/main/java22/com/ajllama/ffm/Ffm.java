@@ -0,0 +1,158 @@
+package com.ajllama.ffm;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * Java 22+ variant: completions through {@code ajllama_ffm_completion} with two upcall stubs
+ * registered once for the lifetime of the process. Token bytes are copied from native memory
+ * into a buffer reused for the request, and the sampler sees the logits and candidates as views
+ * of native memory.
+ *
+ * Binds lazily to the library {@code llama4aj} already loaded; if the symbols are missing (an
+ * older library), native access is denied, or {@code -Dllama4aj.ffm=false} is set, it reports
+ * itself unavailable and JNI is used. Run with {@code --enable-native-access=ALL-UNNAMED} to
+ * silence the JDK's restricted-method warning.
+ */
+public final class Ffm {
+
+    public interface TokenSink {
+        void onToken(ByteBuffer utf8, boolean stop);
+    }
+
+    public interface SampleFn {
+        int sample(ByteBuffer logits, int nVocab, ByteBuffer candidates, int nCandidates);
+    }
+
+    private static final long TOKEN_DATA_BYTES = 12; // llama_token_data: id, logit, p
+
+    private static final Map<Long, Request> REQUESTS = new ConcurrentHashMap<>();
+    private static final AtomicLong NEXT_USER = new AtomicLong();
+    private static final MethodHandle COMPLETION = bind();
+
+    private Ffm() {}
+
+    public static boolean available() {
+        return COMPLETION != null;
+    }
+
+    public static int completion(long contextPtr, String paramsJson, TokenSink sink, SampleFn sampler, boolean prefilter) {
+        if (COMPLETION == null) throw new UnsupportedOperationException("FFM entry points are not available");
+        long user = NEXT_USER.incrementAndGet();
+        REQUESTS.put(user, new Request(sink, sampler));
+        int id;
+        // The native side copies the params before returning
+        try (Arena arena = Arena.ofConfined()) {
+            id = (int) COMPLETION.invokeExact(contextPtr, arena.allocateFrom(paramsJson), user,
+                    sampler != null ? 1 : 0, prefilter ? 1 : 0);
+        } catch (Throwable t) {
+            id = -1;
+        }
+        if (id < 0) REQUESTS.remove(user);
+        return id;
+    }
+
+    private static final class Request {
+        final TokenSink sink;
+        final SampleFn sampler;
+        // Token bytes are copied out of native memory into one buffer reused for every token
+        byte[] tokenBytes = new byte[256];
+        ByteBuffer token = ByteBuffer.wrap(tokenBytes);
+        // Native buffers stay put between steps; keep the same views so the sampler can cache too
+        long logitsAddress;
+        ByteBuffer logits;
+        long candidatesAddress;
+        ByteBuffer candidates;
+
+        Request(TokenSink sink, SampleFn sampler) {
+            this.sink = sink;
+            this.sampler = sampler;
+        }
+    }
+
+    // --- Upcalls (completion thread); nothing may be thrown back into native code ---
+
+    private static void onToken(long user, MemorySegment text, int len, int stop) {
+        Request request = stop != 0 ? REQUESTS.remove(user) : REQUESTS.get(user);
+        if (request == null) return;
+        try {
+            if (len > request.tokenBytes.length) {
+                request.tokenBytes = new byte[len * 2];
+                request.token = ByteBuffer.wrap(request.tokenBytes);
+            }
+            if (len > 0) MemorySegment.copy(text.reinterpret(len), ValueLayout.JAVA_BYTE, 0, request.tokenBytes, 0, len);
+            request.token.clear();
+            request.token.limit(len);
+            request.sink.onToken(request.token, stop != 0);
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
+    private static int sample(long user, MemorySegment logits, int nVocab, MemorySegment candidates, int nCandidates) {
+        Request request = REQUESTS.get(user);
+        if (request == null || request.sampler == null) return -1;
+        try {
+            if (logits.address() != request.logitsAddress) {
+                request.logitsAddress = logits.address();
+                request.logits = logits.reinterpret((long) nVocab * Float.BYTES).asByteBuffer();
+            }
+            ByteBuffer candidateView = null;
+            if (candidates.address() != 0) {
+                if (candidates.address() != request.candidatesAddress) {
+                    request.candidatesAddress = candidates.address();
+                    request.candidates = candidates.reinterpret(nVocab * TOKEN_DATA_BYTES).asByteBuffer();
+                }
+                candidateView = request.candidates;
+            }
+            return request.sampler.sample(request.logits, nVocab, candidateView, nCandidates);
+        } catch (Throwable t) {
+            t.printStackTrace();
+            return -1;
+        }
+    }
+
+    private static MethodHandle bind() {
+        if ("false".equals(System.getProperty("llama4aj.ffm"))) return null;
+        try {
+            Linker linker = Linker.nativeLinker();
+            SymbolLookup lookup = SymbolLookup.loaderLookup();
+            MemorySegment init = lookup.find("ajllama_ffm_init").orElse(null);
+            MemorySegment completion = lookup.find("ajllama_ffm_completion").orElse(null);
+            if (init == null || completion == null) return null;
+
+            MethodHandles.Lookup self = MethodHandles.lookup();
+            MemorySegment onToken = linker.upcallStub(
+                    self.findStatic(Ffm.class, "onToken",
+                            MethodType.methodType(void.class, long.class, MemorySegment.class, int.class, int.class)),
+                    FunctionDescriptor.ofVoid(JAVA_LONG, ADDRESS, JAVA_INT, JAVA_INT),
+                    Arena.global());
+            MemorySegment sample = linker.upcallStub(
+                    self.findStatic(Ffm.class, "sample",
+                            MethodType.methodType(int.class, long.class, MemorySegment.class, int.class, MemorySegment.class, int.class)),
+                    FunctionDescriptor.of(JAVA_INT, JAVA_LONG, ADDRESS, JAVA_INT, ADDRESS, JAVA_INT),
+                    Arena.global());
+
+            linker.downcallHandle(init, FunctionDescriptor.ofVoid(ADDRESS, ADDRESS)).invokeExact(onToken, sample);
+            return linker.downcallHandle(completion,
+                    FunctionDescriptor.of(JAVA_INT, JAVA_LONG, ADDRESS, JAVA_LONG, JAVA_INT, JAVA_INT));
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+}
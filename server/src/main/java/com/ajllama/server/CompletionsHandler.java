@@ -0,0 +1,275 @@
+package com.ajllama.server;
+
+import com.ajllama.json.Json;
+import com.llama4aj;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** {@code /v1/chat/completions} and {@code /v1/completions}, streaming (SSE) or not. */
+final class CompletionsHandler implements HttpHandler {
+
+    private static final AtomicLong IDS = new AtomicLong();
+    private static final String END = new String("<end>");
+
+    private final llama4aj model;
+    private final String modelName;
+    private final boolean chat;
+    private final long queueTimeoutMillis;
+
+    CompletionsHandler(llama4aj model, String modelName, boolean chat, long queueTimeoutMillis) {
+        this.model = model;
+        this.modelName = modelName;
+        this.chat = chat;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                HttpUtil.sendError(exchange, 405, "invalid_request_error", "Use POST");
+                return;
+            }
+            Map<String, Object> body = Json.parseObject(HttpUtil.readBody(exchange));
+            llama4aj.CompletionParams params = toParams(body);
+            String id = (chat ? "chatcmpl-" : "cmpl-") + IDS.incrementAndGet();
+            if (Json.getBoolean(body, "stream", false)) {
+                if (params.n > 1) throw new IllegalArgumentException("'n' > 1 is not supported with 'stream'");
+                stream(exchange, params, id);
+            } else {
+                complete(exchange, params, id);
+            }
+        } catch (IllegalArgumentException e) {
+            HttpUtil.sendError(exchange, 400, "invalid_request_error", e.getMessage());
+        } catch (RejectedExecutionException e) {
+            HttpUtil.sendOverloaded(exchange, e.getMessage());
+        } catch (IllegalStateException e) {
+            HttpUtil.sendError(exchange, 503, "server_error", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private llama4aj.CompletionParams toParams(Map<String, Object> body) {
+        llama4aj.CompletionParams params = new llama4aj.CompletionParams();
+        List<String> stops = new ArrayList<String>(Arrays.asList(HttpUtil.stringOrArray(body, "stop")));
+
+        if (chat) {
+            Object messages = body.get("messages");
+            if (!(messages instanceof List) || ((List<Object>) messages).isEmpty()) {
+                throw new IllegalArgumentException("'messages' must be a non-empty array");
+            }
+            Map<String, Object> formatted = Json.parseObject(model.formatChat(Json.write(messages)));
+            params.prompt(Json.getString(formatted, "prompt", ""));
+            Object extra = formatted.get("stop");
+            if (extra instanceof List) {
+                for (Object s : (List<Object>) extra) {
+                    if (s instanceof String && !stops.contains(s)) stops.add((String) s);
+                }
+            }
+        } else {
+            String[] prompt = HttpUtil.stringOrArray(body, "prompt");
+            if (prompt.length != 1) throw new IllegalArgumentException("'prompt' must be a single string");
+            params.prompt(prompt[0]);
+        }
+
+        long maxTokens = Json.getLong(body, "max_completion_tokens", Json.getLong(body, "max_tokens", -1));
+        params.nPredict((int) maxTokens)
+                .temperature((float) Json.getDouble(body, "temperature", params.temperature))
+                .topP((float) Json.getDouble(body, "top_p", params.top_p))
+                .seed((int) Json.getLong(body, "seed", -1))
+                .n((int) Json.getLong(body, "n", 1))
+                .priority(priority(Json.getString(body, "priority", "normal")));
+        if (params.n < 1) throw new IllegalArgumentException("'n' must be at least 1");
+        params.deadline_ms = queueTimeoutMillis;
+        params.stop = stops;
+        return params;
+    }
+
+    private static int priority(String name) {
+        switch (name) {
+            case "interactive": return llama4aj.CompletionParams.PRIORITY_INTERACTIVE;
+            case "normal": return llama4aj.CompletionParams.PRIORITY_NORMAL;
+            case "batch": return llama4aj.CompletionParams.PRIORITY_BATCH;
+            default: throw new IllegalArgumentException("'priority' must be \"interactive\", \"normal\" or \"batch\"");
+        }
+    }
+
+    private void complete(HttpExchange exchange, llama4aj.CompletionParams params, String id) throws IOException, InterruptedException {
+        // All n choices share one prompt prefill in the slot manager
+        List<llama4aj.Completion> completions = model.submitN(params.stream(false), i -> new llama4aj.RequestCallback() {
+            @Override public void onToken(String token) {}
+            @Override public void onComplete(String resultJson) {}
+        });
+
+        List<Object> choices = new ArrayList<Object>();
+        long promptTokens = 0;
+        long completionTokens = 0;
+        for (int i = 0; i < completions.size(); i++) {
+            llama4aj.Completion completion = completions.get(i);
+            completion.await();
+            Map<String, Object> result = Json.parseObject(completion.result());
+            if (result.containsKey("error")) {
+                for (llama4aj.Completion other : completions) other.cancel();
+                String error = Json.getString(result, "error", "Completion failed");
+                if (Json.getBoolean(result, "expired", false) || Json.getBoolean(result, "rejected", false)) {
+                    HttpUtil.sendOverloaded(exchange, error);
+                } else {
+                    HttpUtil.sendError(exchange, 500, "server_error", error);
+                }
+                return;
+            }
+            if (i == 0) promptTokens = Json.getLong(result, "tokens_evaluated", 0);
+            completionTokens += Json.getLong(result, "tokens_predicted", 0);
+            choices.add(choice(i, result));
+        }
+
+        Map<String, Object> usage = new LinkedHashMap<String, Object>();
+        usage.put("prompt_tokens", promptTokens);
+        usage.put("completion_tokens", completionTokens);
+        usage.put("total_tokens", promptTokens + completionTokens);
+
+        Map<String, Object> response = envelope(id, chat ? "chat.completion" : "text_completion");
+        response.put("choices", choices);
+        response.put("usage", usage);
+        HttpUtil.sendJson(exchange, 200, Json.write(response));
+    }
+
+    // Stop strings are matched natively: the text is already cut before them
+    private Map<String, Object> choice(int index, Map<String, Object> result) {
+        String text = Json.getString(result, "text", "");
+
+        Map<String, Object> choice = new LinkedHashMap<String, Object>();
+        choice.put("index", index);
+        if (chat) {
+            Map<String, Object> message = new LinkedHashMap<String, Object>();
+            message.put("role", "assistant");
+            message.put("content", text);
+            choice.put("message", message);
+        } else {
+            choice.put("text", text);
+            choice.put("logprobs", null);
+        }
+        choice.put("finish_reason", finishReason(result));
+        return choice;
+    }
+
+    private void stream(HttpExchange exchange, llama4aj.CompletionParams params, String id) throws IOException, InterruptedException {
+        BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+        llama4aj.Completion completion = model.submit(params, new llama4aj.RequestCallback() {
+            @Override public void onToken(String token) { events.add(token); }
+            @Override public void onComplete(String resultJson) { events.add(END); }
+        });
+
+        // Not opened until there is text to send, so a request that fails first gets a real status
+        OutputStream out = null;
+        try {
+            while (true) {
+                String token = events.take();
+                if (token == END) break;
+                // Tokens arrive with any text that may start a stop string already held back
+                if (token.isEmpty()) continue;
+                if (out == null) out = openStream(exchange, id);
+                HttpUtil.sendEvent(out, chunk(id, token, null));
+            }
+
+            Map<String, Object> result = Json.parseObject(completion.result());
+            if (result.containsKey("error")) {
+                String error = Json.getString(result, "error", "Completion failed");
+                if (out == null) {
+                    if (Json.getBoolean(result, "expired", false) || Json.getBoolean(result, "rejected", false)) {
+                        HttpUtil.sendOverloaded(exchange, error);
+                    } else {
+                        HttpUtil.sendError(exchange, 500, "server_error", error);
+                    }
+                } else {
+                    // Too late for a status code; end the stream without a finish_reason
+                    HttpUtil.sendEvent(out, HttpUtil.errorJson("server_error", error));
+                }
+                return;
+            }
+
+            if (out == null) out = openStream(exchange, id);
+            Map<String, Object> last = envelope(id, chat ? "chat.completion.chunk" : "text_completion");
+            last.put("choices", Collections.singletonList(streamChoice(chat ? Collections.emptyMap() : "", finishReason(result))));
+            last.put("usage", usage(result));
+            HttpUtil.sendEvent(out, Json.write(last));
+            HttpUtil.sendEvent(out, "[DONE]");
+        } catch (IOException e) {
+            // Client went away; stop generating for it
+            completion.cancel();
+        } finally {
+            if (out != null) out.close();
+        }
+    }
+
+    private OutputStream openStream(HttpExchange exchange, String id) throws IOException {
+        OutputStream out = HttpUtil.startEventStream(exchange);
+        if (chat) HttpUtil.sendEvent(out, chunk(id, roleDelta(), null));
+        return out;
+    }
+
+    private String chunk(String id, Object delta, String finishReason) {
+        Map<String, Object> response = envelope(id, chat ? "chat.completion.chunk" : "text_completion");
+        Object content = chat && delta instanceof String ? Collections.singletonMap("content", delta) : delta;
+        response.put("choices", Collections.singletonList(streamChoice(content, finishReason)));
+        return Json.write(response);
+    }
+
+    private Map<String, Object> streamChoice(Object delta, String finishReason) {
+        Map<String, Object> choice = new LinkedHashMap<String, Object>();
+        choice.put("index", 0);
+        choice.put(chat ? "delta" : "text", delta);
+        choice.put("finish_reason", finishReason);
+        return choice;
+    }
+
+    private static Map<String, Object> roleDelta() {
+        Map<String, Object> delta = new LinkedHashMap<String, Object>();
+        delta.put("role", "assistant");
+        delta.put("content", "");
+        return delta;
+    }
+
+    private Map<String, Object> envelope(String id, String object) {
+        Map<String, Object> response = new LinkedHashMap<String, Object>();
+        response.put("id", id);
+        response.put("object", object);
+        response.put("created", System.currentTimeMillis() / 1000);
+        response.put("model", modelName);
+        return response;
+    }
+
+    private static String finishReason(Map<String, Object> result) {
+        if (Json.getBoolean(result, "stopped_limit", false) || Json.getBoolean(result, "context_full", false)) {
+            return "length";
+        }
+        return "stop";
+    }
+
+    private static Map<String, Object> usage(Map<String, Object> result) {
+        long prompt = Json.getLong(result, "tokens_evaluated", 0);
+        long completion = Json.getLong(result, "tokens_predicted", 0);
+        Map<String, Object> usage = new LinkedHashMap<String, Object>();
+        usage.put("prompt_tokens", prompt);
+        usage.put("completion_tokens", completion);
+        usage.put("total_tokens", prompt + completion);
+        return usage;
+    }
+}
@@ -0,0 +1,98 @@
+package com.ajllama.server;
+
+import com.ajllama.json.Json;
+import com.llama4aj;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/** {@code /v1/embeddings}; every input is queued at once so they share decode batches. */
+final class EmbeddingsHandler implements HttpHandler {
+
+    private static final llama4aj.RequestCallback IGNORE = new llama4aj.RequestCallback() {
+        @Override public void onToken(String token) {}
+        @Override public void onComplete(String resultJson) {}
+    };
+
+    private final llama4aj model;
+    private final String modelName;
+
+    EmbeddingsHandler(llama4aj model, String modelName) {
+        this.model = model;
+        this.modelName = modelName;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                HttpUtil.sendError(exchange, 405, "invalid_request_error", "Use POST");
+                return;
+            }
+            if (model == null) {
+                HttpUtil.sendError(exchange, 501, "invalid_request_error", "No embedding model loaded (start with --embedding-model)");
+                return;
+            }
+            Map<String, Object> body = Json.parseObject(HttpUtil.readBody(exchange));
+            String[] inputs = HttpUtil.stringOrArray(body, "input");
+            if (inputs.length == 0) throw new IllegalArgumentException("'input' must be a string or an array of strings");
+
+            List<llama4aj.Completion> pending = new ArrayList<llama4aj.Completion>();
+            for (String input : inputs) {
+                pending.add(model.submitEmbedding(input, IGNORE));
+            }
+
+            List<Object> data = new ArrayList<Object>();
+            long tokens = 0;
+            for (int i = 0; i < pending.size(); i++) {
+                llama4aj.Completion completion = pending.get(i);
+                completion.await();
+                Map<String, Object> result = Json.parseObject(completion.result());
+                if (result.containsKey("error")) {
+                    for (llama4aj.Completion other : pending) other.cancel();
+                    String error = Json.getString(result, "error", "Embedding failed");
+                    if (Json.getBoolean(result, "expired", false) || Json.getBoolean(result, "rejected", false)) {
+                        HttpUtil.sendOverloaded(exchange, error);
+                    } else {
+                        HttpUtil.sendError(exchange, 500, "server_error", error);
+                    }
+                    return;
+                }
+                tokens += Json.getLong(result, "tokens_evaluated", 0);
+
+                Map<String, Object> item = new LinkedHashMap<String, Object>();
+                item.put("object", "embedding");
+                item.put("index", i);
+                item.put("embedding", result.get("embedding"));
+                data.add(item);
+            }
+
+            Map<String, Object> usage = new LinkedHashMap<String, Object>();
+            usage.put("prompt_tokens", tokens);
+            usage.put("total_tokens", tokens);
+
+            Map<String, Object> response = new LinkedHashMap<String, Object>();
+            response.put("object", "list");
+            response.put("data", data);
+            response.put("model", modelName);
+            response.put("usage", usage);
+            HttpUtil.sendJson(exchange, 200, Json.write(response));
+        } catch (IllegalArgumentException e) {
+            HttpUtil.sendError(exchange, 400, "invalid_request_error", e.getMessage());
+        } catch (RejectedExecutionException e) {
+            HttpUtil.sendOverloaded(exchange, e.getMessage());
+        } catch (IllegalStateException e) {
+            HttpUtil.sendError(exchange, 503, "server_error", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.ajllama.server;
+
+import com.ajllama.json.Json;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+final class HttpUtil {
+
+    private HttpUtil() {}
+
+    static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    static void sendText(HttpExchange exchange, int status, String contentType, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    static void sendError(HttpExchange exchange, int status, String type, String message) throws IOException {
+        sendJson(exchange, status, errorJson(type, message));
+    }
+
+    static String errorJson(String type, String message) {
+        return "{\"error\":{\"message\":" + Json.quote(message) + ",\"type\":" + Json.quote(type) + "}}";
+    }
+
+    /** 429 for a request the slot manager's queue turned away; clients should retry later. */
+    static void sendOverloaded(HttpExchange exchange, String message) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        sendError(exchange, 429, "server_overloaded", message);
+    }
+
+    /** Starts a {@code text/event-stream} response; events are written with {@link #sendEvent}. */
+    static OutputStream startEventStream(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        return exchange.getResponseBody();
+    }
+
+    static void sendEvent(OutputStream out, String data) throws IOException {
+        out.write(("data: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /** Accepts a string or an array of strings, as OpenAI does for {@code stop}, {@code prompt} and {@code input}. */
+    @SuppressWarnings("unchecked")
+    static String[] stringOrArray(Map<String, Object> body, String key) {
+        Object v = body.get(key);
+        if (v instanceof String) return new String[] { (String) v };
+        if (v instanceof List) {
+            List<Object> list = (List<Object>) v;
+            String[] out = new String[list.size()];
+            for (int i = 0; i < out.length; i++) {
+                Object item = list.get(i);
+                if (!(item instanceof String)) throw new IllegalArgumentException("'" + key + "' must contain strings");
+                out[i] = (String) item;
+            }
+            return out;
+        }
+        return new String[0];
+    }
+}
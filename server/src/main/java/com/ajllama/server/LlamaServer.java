@@ -0,0 +1,153 @@
+package com.ajllama.server;
+
+import com.ajllama.json.Json;
+import com.ajllama.metrics.InferenceMetrics;
+import com.ajllama.metrics.PrometheusFormat;
+import com.llama4aj;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * OpenAI-compatible HTTP server on the JDK's built-in {@link HttpServer}.
+ *
+ * Endpoints: {@code /v1/chat/completions}, {@code /v1/completions}, {@code /v1/embeddings},
+ * {@code /v1/models}, {@code /health} and {@code /metrics} (Prometheus text format; the same
+ * figures are registered as JMX MBeans under {@code com.ajllama}). Completions go straight into
+ * the native slot manager, so concurrent requests are decoded together (continuous batching).
+ * A request may set {@code "priority"} to {@code "interactive"}, {@code "normal"} or
+ * {@code "batch"}; requests the queue turns away, or that wait longer than
+ * {@code --queue-timeout}, get a 429.
+ *
+ * Usage:
+ * java -jar server.jar -m model.gguf [--host 127.0.0.1] [--port 8080] [--parallel 4] [--ctx-size 8192]
+ *                      [--threads N] [--thread-budget N] [--gpu-layers N] [--embedding-model embed.gguf] [--log-level info] [--warmup]
+ *                      [--max-queue N] [--queue-timeout MS]
+ */
+public class LlamaServer implements AutoCloseable {
+
+    private final HttpServer http;
+    private final ExecutorService executor;
+
+    public LlamaServer(llama4aj model, llama4aj embeddingModel, String modelName, InetSocketAddress address) throws IOException {
+        this(model, embeddingModel, modelName, address, 0);
+    }
+
+    /** @param queueTimeoutMillis how long a completion may wait for a slot, 0 = as long as it takes */
+    public LlamaServer(llama4aj model, llama4aj embeddingModel, String modelName, InetSocketAddress address,
+                       long queueTimeoutMillis) throws IOException {
+        this.executor = newExecutor();
+        this.http = HttpServer.create(address, 0);
+        http.setExecutor(executor);
+        http.createContext("/v1/chat/completions", new CompletionsHandler(model, modelName, true, queueTimeoutMillis));
+        http.createContext("/v1/completions", new CompletionsHandler(model, modelName, false, queueTimeoutMillis));
+        http.createContext("/v1/embeddings", new EmbeddingsHandler(embeddingModel, modelName));
+        http.createContext("/v1/models", exchange -> HttpUtil.sendJson(exchange, 200,
+                "{\"object\":\"list\",\"data\":[{\"id\":" + Json.quote(modelName) +
+                        ",\"object\":\"model\",\"owned_by\":\"llama4aj\"}]}"));
+        final InferenceMetrics[] metrics = embeddingModel != null
+                ? new InferenceMetrics[] { model.metrics(), embeddingModel.metrics() }
+                : new InferenceMetrics[] { model.metrics() };
+        http.createContext("/metrics", exchange -> HttpUtil.sendText(exchange, 200, PrometheusFormat.CONTENT_TYPE,
+                PrometheusFormat.write(new StringBuilder(), metrics).toString()));
+        http.createContext("/health", exchange -> {
+            String status = model.parallelStatus();
+            HttpUtil.sendJson(exchange, 200, "{\"status\":\"ok\",\"slots\":" + (status != null ? status : "null") + "}");
+        });
+    }
+
+    public void start() {
+        http.start();
+    }
+
+    public InetSocketAddress address() {
+        return http.getAddress();
+    }
+
+    @Override
+    public void close() {
+        http.stop(0);
+        executor.shutdownNow();
+    }
+
+    /** One virtual thread per exchange on Java 21+, a cached platform pool otherwise. */
+    static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "llama-server-worker");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String modelPath = null;
+        String embeddingPath = null;
+        String host = "127.0.0.1";
+        int port = 8080;
+        long queueTimeoutMillis = 0;
+        llama4aj.Config config = new llama4aj.Config().nCtx(8192).parallel(4);
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (arg) {
+                case "-m": case "--model": modelPath = value; i++; break;
+                case "--embedding-model": embeddingPath = value; i++; break;
+                case "--warmup": config.warmup(true); break;
+                case "--log-level": llama4aj.setLogLevel(llama4aj.LogLevel.valueOf(value.toUpperCase())); i++; break;
+                case "--host": host = value; i++; break;
+                case "--port": port = Integer.parseInt(value); i++; break;
+                case "-np": case "--parallel": config.parallel(Integer.parseInt(value)); i++; break;
+                case "-c": case "--ctx-size": config.nCtx(Integer.parseInt(value)); i++; break;
+                case "-t": case "--threads": config.threads(Integer.parseInt(value)); i++; break;
+                case "--thread-budget": llama4aj.setThreadBudget(Integer.parseInt(value)); i++; break;
+                case "-ngl": case "--gpu-layers": config.gpuLayers(Integer.parseInt(value)); i++; break;
+                case "--max-queue": config.maxQueuedRequests(Integer.parseInt(value)); i++; break;
+                case "--queue-timeout": queueTimeoutMillis = Long.parseLong(value); i++; break;
+                default:
+                    System.err.println("Unknown argument: " + arg);
+                    System.exit(1);
+            }
+        }
+        if (modelPath == null) {
+            System.err.println("Usage: LlamaServer -m model.gguf [--host H] [--port P] [--parallel N] [--ctx-size N] " +
+                    "[--threads N] [--thread-budget N] [--gpu-layers N] [--embedding-model embed.gguf] [--log-level debug|info|warn|error|off] [--warmup] " +
+                    "[--max-queue N] [--queue-timeout MS]");
+            System.exit(1);
+        }
+
+        // Native logs are written from the log thread, never from the decode loop
+        llama4aj.setLogger((level, tag, message) -> System.err.println("[" + level + "] " + tag + ": " + message));
+
+        llama4aj model = llama4aj.load(modelPath, config);
+        model.enableParallel();
+        model.metrics().registerMBean();
+        System.out.println("Model ready in " + model.timeToReadyMillis() + " ms");
+
+        llama4aj embeddingModel = null;
+        if (embeddingPath != null) {
+            embeddingModel = llama4aj.load(embeddingPath, config.copy().embedding(true).contextShift(false));
+            embeddingModel.enableParallel();
+            embeddingModel.metrics().registerMBean();
+        }
+
+        String modelName = new File(modelPath).getName();
+        LlamaServer server = new LlamaServer(model, embeddingModel, modelName, new InetSocketAddress(host, port), queueTimeoutMillis);
+        final llama4aj embeddings = embeddingModel;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            model.close();
+            if (embeddings != null) embeddings.close();
+        }));
+        server.start();
+        System.out.println("llama4aj server listening on http://" + host + ":" + server.address().getPort());
+    }
+}